@@ -0,0 +1,321 @@
+package MX.unison;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+
+/**
+ * Protocolo binario compacto para las tramas de sensores (cliente -> servidor).
+ *
+ * Formato de una trama:
+ *   [versión: 1 byte][tipo: 1 byte][longitud: 2 bytes][carga cifrada: longitud bytes]
+ * La carga en claro de una trama DATA es:
+ *   [id de dispositivo: int][marca de tiempo de captura en ms: long][x: int][y: int][z: int]
+ * y se cifra con AES igual que los mensajes de texto, por lo que una lectura ocupa 36 bytes
+ * en lugar de los ~60 de la línea "DATA:x:#, y:#, z:#" en Base64.
+ * Una trama DATA_BATCH agrupa varias lecturas del mismo dispositivo (unos 20 bytes por lectura):
+ *   [id de dispositivo: int][cantidad: 2 bytes] y por cada lectura [marca de tiempo: long][x][y][z]
+ *
+ * Negociación: al conectar, el cliente envía la línea de texto cifrada HELLO. Si el servidor responde
+ * HELLO_OK, a partir de ese momento el cliente envía tramas binarias; si no responde (servidor antiguo)
+ * o rechaza la versión, el cliente sigue usando líneas de texto. Las respuestas del servidor
+ * siguen siendo líneas de texto.
+ * Después del protocolo pueden ir capacidades separadas por ';' (p.ej. "PROTOCOL:BIN:1;MUX");
+ * el servidor repite en su respuesta las que soporta. Un cliente que prefiere texto negocia solo
+ * capacidades con TEXT_HELLO. Con "GCM=<clave pública>" se acuerda una clave propia de la conexión
+ * (ver GcmSessionCipher); todo lo que sigue a la respuesta, en ambos sentidos, usa ese cifrado.
+ */
+public final class BinaryProtocol {
+
+    public static final byte VERSION = 1;
+
+    public static final byte TYPE_DATA = 1;
+    // Mensaje de texto del protocolo original (p.ej. HISTORICAL_REQUEST) dentro de una trama
+    public static final byte TYPE_TEXT = 2;
+    public static final byte TYPE_DATA_BATCH = 3;
+
+    public static final int HEADER_SIZE = 4;
+    public static final int MAX_PAYLOAD = 0xFFFF;
+    // Carga en claro de una trama DATA: int + long + 3 int
+    private static final int DATA_PLAIN_SIZE = 4 + 8 + 4 * 3;
+    private static final int BATCH_HEADER_SIZE = 4 + 2;
+    private static final int BATCH_RECORD_SIZE = 8 + 4 * 3;
+    // Lecturas máximas por lote para que la carga cifrada quepa en la longitud de 2 bytes
+    public static final int MAX_BATCH_RECORDS = 3000;
+
+    public static final String HELLO = "PROTOCOL:BIN:" + VERSION;
+    public static final String HELLO_OK = "PROTOCOL_OK:BIN:" + VERSION;
+    public static final String HELLO_REJECTED = "PROTOCOL_NO:TEXT";
+    public static final String TEXT_HELLO = "PROTOCOL:TEXT";
+
+    // Capacidad: peticiones con identificador y respuestas intercaladas (ver TaggedSession)
+    public static final String FEATURE_MUX = "MUX";
+    private static final String FEATURE_SEPARATOR = ";";
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Resultado de negociar con un cliente (lado del servidor).
+     */
+    public static final class Negotiation {
+        // Respuesta a enviar, todavía con el cifrado anterior
+        public final String response;
+        public final boolean binary;
+        public final boolean multiplexed;
+        // Cifrado para todo lo que sigue a la respuesta
+        public final SessionCipher cipher;
+
+        Negotiation(String response, boolean binary, boolean multiplexed, SessionCipher cipher) {
+            this.response = response;
+            this.binary = binary;
+            this.multiplexed = multiplexed;
+            this.cipher = cipher;
+        }
+    }
+
+    /**
+     * Trama decodificada. Se reutiliza entre llamadas para no crear objetos por lectura.
+     * Las tramas DATA y DATA_BATCH dejan 'count' lecturas en los arreglos.
+     */
+    public static final class Frame {
+        public byte type;
+        public int deviceId;
+        public int count;
+        public long[] timestamps = new long[1];
+        public int[] xs = new int[1];
+        public int[] ys = new int[1];
+        public int[] zs = new int[1];
+        public String text;
+        // Carga descifrada; se reutiliza entre tramas
+        private ByteBuffer plain = ByteBuffer.allocate(256);
+
+        private ByteBuffer plainBuffer(int size) {
+            if (plain.capacity() < size) {
+                plain = ByteBuffer.allocate(Math.max(size, plain.capacity() * 2));
+            }
+            plain.clear();
+            return plain;
+        }
+
+        private void ensureCapacity(int size) {
+            if (timestamps.length < size) {
+                timestamps = new long[size];
+                xs = new int[size];
+                ys = new int[size];
+                zs = new int[size];
+            }
+        }
+    }
+
+    /**
+     * Indica si el mensaje de texto es una petición de negociación de protocolo.
+     */
+    public static boolean isNegotiation(String message) {
+        return message.startsWith("PROTOCOL:");
+    }
+
+    /**
+     * Negociación del lado del servidor: acepta o rechaza el protocolo binario, repite las capacidades
+     * pedidas que soporta y, si el cliente envió su clave pública GCM, acuerda la clave de la conexión.
+     * @param hello Mensaje de negociación del cliente.
+     * @param current Cifrado actual de la conexión (se conserva si no se acuerda uno nuevo).
+     */
+    public static Negotiation negotiate(String hello, SessionCipher current) {
+        boolean binary = protocolOf(hello).equals(HELLO);
+        boolean multiplexed = hasFeature(hello, FEATURE_MUX);
+        String response = binary ? HELLO_OK : HELLO_REJECTED;
+        if (multiplexed) {
+            response = withFeature(response, FEATURE_MUX);
+        }
+
+        SessionCipher cipher = current;
+        String clientKey = featureValue(hello, GcmSessionCipher.FEATURE_GCM);
+        if (clientKey != null) {
+            try {
+                KeyPair serverKeys = GcmSessionCipher.generateKeyPair();
+                cipher = GcmSessionCipher.agree(serverKeys, clientKey, true);
+                response = withFeature(response, GcmSessionCipher.FEATURE_GCM + "=" + GcmSessionCipher.encodePublicKey(serverKeys));
+            } catch (GeneralSecurityException e) {
+                // Sin GCM la conexión sigue con el cifrado anterior
+                System.err.println("No se pudo acordar la clave de sesión: " + e.getMessage());
+            }
+        }
+        return new Negotiation(response, binary, multiplexed, cipher);
+    }
+
+    /**
+     * Mensaje de negociación (o su respuesta) sin las capacidades.
+     */
+    public static String protocolOf(String message) {
+        int separator = message.indexOf(FEATURE_SEPARATOR);
+        return separator < 0 ? message : message.substring(0, separator);
+    }
+
+    /**
+     * Agrega una capacidad a un mensaje de negociación.
+     */
+    public static String withFeature(String message, String feature) {
+        return message + FEATURE_SEPARATOR + feature;
+    }
+
+    public static boolean hasFeature(String message, String feature) {
+        String[] parts = message.split(FEATURE_SEPARATOR);
+        for (int i = 1; i < parts.length; i++) {
+            if (parts[i].equals(feature)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Valor de una capacidad con valor ("NOMBRE=valor"), o null si no viene.
+     */
+    public static String featureValue(String message, String feature) {
+        String[] parts = message.split(FEATURE_SEPARATOR);
+        for (int i = 1; i < parts.length; i++) {
+            if (parts[i].startsWith(feature + "=")) {
+                return parts[i].substring(feature.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Escribe una trama DATA en el buffer.
+     * @return false si no se pudo cifrar la carga.
+     */
+    public static boolean encodeSensorData(ByteBuffer out, SessionCipher cipher, int deviceId, long timestamp, int x, int y, int z) {
+        ByteBuffer plain = ByteBuffer.allocate(DATA_PLAIN_SIZE);
+        plain.putInt(deviceId).putLong(timestamp).putInt(x).putInt(y).putInt(z);
+        return encodeFrame(out, cipher, TYPE_DATA, plain.flip());
+    }
+
+    /**
+     * Escribe una trama DATA_BATCH con las primeras 'count' lecturas de los arreglos.
+     * @return false si no se pudo cifrar la carga.
+     */
+    public static boolean encodeSensorBatch(ByteBuffer out, SessionCipher cipher, int deviceId, long[] timestamps,
+                                            int[] xs, int[] ys, int[] zs, int count) {
+        if (count > MAX_BATCH_RECORDS) {
+            throw new IllegalArgumentException("Lote demasiado grande: " + count + " lecturas.");
+        }
+        ByteBuffer plain = ByteBuffer.allocate(BATCH_HEADER_SIZE + count * BATCH_RECORD_SIZE);
+        plain.putInt(deviceId).putShort((short) count);
+        for (int i = 0; i < count; i++) {
+            plain.putLong(timestamps[i]).putInt(xs[i]).putInt(ys[i]).putInt(zs[i]);
+        }
+        return encodeFrame(out, cipher, TYPE_DATA_BATCH, plain.flip());
+    }
+
+    /**
+     * Escribe una trama TEXT con un mensaje del protocolo de texto.
+     * @return false si no se pudo cifrar la carga.
+     */
+    public static boolean encodeText(ByteBuffer out, SessionCipher cipher, String message) {
+        return encodeFrame(out, cipher, TYPE_TEXT, ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Escribe la cabecera y cifra la carga directamente en 'out', sin arreglos intermedios.
+     */
+    private static boolean encodeFrame(ByteBuffer out, SessionCipher cipher, byte type, ByteBuffer plainPayload) {
+        int payloadLength = cipher.sealedFrameSize(plainPayload.remaining());
+        if (payloadLength > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Carga de trama demasiado grande: " + payloadLength + " bytes.");
+        }
+        int start = out.position();
+        out.put(VERSION).put(type).putShort((short) payloadLength);
+        if (cipher.sealFrame(type, plainPayload, out) < 0) {
+            out.position(start);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Longitud total de la trama que empieza en la posición actual, o -1 si aún no llega la cabecera.
+     */
+    public static int frameLength(ByteBuffer in) {
+        if (in.remaining() < HEADER_SIZE) {
+            return -1;
+        }
+        return HEADER_SIZE + (in.getShort(in.position() + 2) & 0xFFFF);
+    }
+
+    /**
+     * Decodifica la trama que empieza en la posición actual del buffer.
+     * Si la trama está incompleta no consume nada y devuelve false.
+     * @throws IllegalArgumentException si la versión o el tipo no son válidos, la carga no se puede descifrar
+     *         o su tamaño no corresponde al tipo (p.ej. un lote con menos lecturas que las anunciadas).
+     */
+    public static boolean decodeFrame(ByteBuffer in, SessionCipher cipher, Frame frame) {
+        int length = frameLength(in);
+        if (length < 0 || in.remaining() < length) {
+            return false;
+        }
+
+        byte version = in.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Versión de trama no soportada: " + version);
+        }
+        byte type = in.get();
+        int payloadLength = in.getShort() & 0xFFFF;
+
+        // Descifrar directo del buffer de entrada al buffer reutilizable de la trama
+        ByteBuffer payload = in.slice();
+        payload.limit(payloadLength);
+        in.position(in.position() + payloadLength);
+        ByteBuffer plain = frame.plainBuffer(payloadLength);
+        if (cipher.openFrame(type, payload, plain) < 0) {
+            throw new IllegalArgumentException("No se pudo desencriptar la trama.");
+        }
+        plain.flip();
+
+        frame.type = type;
+        switch (type) {
+            case TYPE_DATA:
+                if (plain.remaining() != DATA_PLAIN_SIZE) {
+                    throw new IllegalArgumentException("Trama DATA de tamaño inválido: " + plain.remaining() + " bytes.");
+                }
+                frame.deviceId = plain.getInt();
+                frame.count = 1;
+                readRecord(plain, frame, 0);
+                frame.text = null;
+                break;
+            case TYPE_DATA_BATCH:
+                if (plain.remaining() < BATCH_HEADER_SIZE) {
+                    throw new IllegalArgumentException("Trama DATA_BATCH demasiado corta: " + plain.remaining() + " bytes.");
+                }
+                frame.deviceId = plain.getInt();
+                int count = plain.getShort() & 0xFFFF;
+                if (plain.remaining() != count * BATCH_RECORD_SIZE) {
+                    throw new IllegalArgumentException("Trama DATA_BATCH con " + count + " lecturas y "
+                            + plain.remaining() + " bytes de registros.");
+                }
+                frame.count = count;
+                frame.ensureCapacity(frame.count);
+                for (int i = 0; i < frame.count; i++) {
+                    readRecord(plain, frame, i);
+                }
+                frame.text = null;
+                break;
+            case TYPE_TEXT:
+                frame.count = 0;
+                frame.text = new String(plain.array(), 0, plain.limit(), StandardCharsets.UTF_8);
+                break;
+            default:
+                throw new IllegalArgumentException("Tipo de trama desconocido: " + type);
+        }
+        return true;
+    }
+
+    private static void readRecord(ByteBuffer in, Frame frame, int index) {
+        frame.timestamps[index] = in.getLong();
+        frame.xs[index] = in.getInt();
+        frame.ys[index] = in.getInt();
+        frame.zs[index] = in.getInt();
+    }
+}
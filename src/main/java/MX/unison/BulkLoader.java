@@ -0,0 +1,674 @@
+package MX.unison;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Carga masiva de archivos de lecturas (CSV o el binario de HistoryExport) en la base SQLite, para
+ * preparar ambientes de prueba o reponer lecturas después de una caída sin pasar por la ingesta del
+ * servidor (que escribe lotes chicos, cada uno con su transacción).
+ *
+ * El hilo principal lee el archivo en trozos (CHUNK_BYTES de CSV cortados en un fin de línea, o
+ * CHUNK_BLOCKS bloques binarios completos) y los reparte entre los hilos "carga-parser", que los
+ * convierten en columnas y calculan sus rollups e histogramas de cuantiles. Como máximo hay
+ * hilos + 2 trozos en memoria a la vez. Solo el hilo principal escribe, con la conexión de
+ * escritura del pool:
+ *  - Inserta con executeBatch en transacciones grandes (se confirman al completar el trozo que
+ *    llega a monitor.carga.lote lecturas), y en la misma transacción suma los agregados de lo
+ *    insertado: si la carga se interrumpe, la base queda consistente con lo confirmado.
+ *  - La primera vez que toca una partición le quita el índice por capturado_ms. Al terminar (también
+ *    si falla) crea de nuevo los índices de todas las particiones que tocó: ordenar todo una vez es
+ *    mucho más rápido que mantener el índice fila por fila.
+ *  - Borra los archivos sellados (SealedHistory) de los días que carga, para que se vuelvan a sellar
+ *    con todas sus lecturas.
+ * El avance se informa en lecturas/s una vez por segundo.
+ *
+ * Formatos de entrada (el binario se reconoce por su magic):
+ *  - CSV: el de HistoryExport ("dispositivo,capturado_ms,fecha_hora,x,y,z", fecha_hora se ignora)
+ *    o sin la fecha ("dispositivo,capturado_ms,x,y,z"). La primera línea puede ser un encabezado.
+ *    Las líneas que no se pueden interpretar se descartan y se cuentan.
+ *  - Binario de HistoryExport: se rechaza completo si está incompleto o dañado.
+ * Las lecturas se agregan a las que ya existen: cargar dos veces el mismo archivo las duplica.
+ *
+ * Uso, con el servidor detenido (las particiones no tienen índice mientras dura la carga):
+ *   java -cp ... MX.unison.BulkLoader archivo... [db=monitorBD.db] [hilos=N]
+ * Configuración: monitor.carga.lote (lecturas por transacción) y monitor.sellado.dir.
+ */
+public class BulkLoader {
+
+    // Bytes de CSV por trozo
+    static final int CHUNK_BYTES = 4 << 20;
+    // Bloques binarios por trozo (hasta HistoryExport.BLOCK lecturas cada uno)
+    static final int CHUNK_BLOCKS = 32;
+    // Filas que se juntan en las sentencias antes de executeBatch
+    private static final int STATEMENT_BATCH = 8192;
+    // Sentencias INSERT con filas pendientes; por debajo del límite de la caché de la conexión
+    private static final int MAX_PENDING_STATEMENTS = 16;
+    private static final long PROGRESS_INTERVAL_NS = 1_000_000_000L;
+
+    private final DataBaseManager dbManager;
+    private final int threads;
+    private final Path sealedDir;
+    private final int transactionRows = Math.max(1, Integer.getInteger("monitor.carga.lote", 500_000));
+
+    // Particiones que recibieron lecturas (inicio del día -> tabla); sin índice hasta terminar
+    private final Map<Long, String> touched = new TreeMap<>();
+    private long loaded;
+    private long committed;
+    private long rejected;
+    private String firstRejected;
+    private long startNanos;
+    private long lastReport;
+
+    /**
+     * @param dbManager Base ya preparada con createTable().
+     * @param threads Hilos que interpretan los archivos.
+     * @param sealedDir Directorio de los días sellados del Server.
+     */
+    public BulkLoader(DataBaseManager dbManager, int threads, Path sealedDir) {
+        this.dbManager = dbManager;
+        this.threads = Math.max(1, threads);
+        this.sealedDir = sealedDir;
+    }
+
+    public static void main(String[] args) {
+        List<Path> files = new ArrayList<>();
+        String dbPath = "monitorBD.db";
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("db=")) {
+                    dbPath = arg.substring(3);
+                } else if (arg.startsWith("hilos=")) {
+                    threads = Integer.parseInt(arg.substring(6));
+                } else {
+                    files.add(Paths.get(arg));
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Parámetro inválido: " + e.getMessage());
+            return;
+        }
+        if (files.isEmpty()) {
+            System.err.println("Uso: BulkLoader archivo... [db=monitorBD.db] [hilos=N]");
+            return;
+        }
+
+        BulkLoader loader = null;
+        try (DataBaseManager dbManager = new DataBaseManager(dbPath)) {
+            dbManager.createTable();
+            loader = new BulkLoader(dbManager, threads, Paths.get(System.getProperty("monitor.sellado.dir", "sellados")));
+            loader.load(files);
+        } catch (Exception e) {
+            System.err.println("Error en la carga masiva: " + e.getMessage()
+                    + (loader != null ? " (" + loader.getCommittedCount() + " lecturas quedaron confirmadas)" : ""));
+        }
+    }
+
+    /**
+     * Carga los archivos en orden.
+     * @return Lecturas cargadas.
+     * @throws IOException si un archivo no se puede leer o un binario está dañado.
+     * @throws SQLException si falla la escritura; lo confirmado hasta ahí se queda.
+     */
+    public long load(List<Path> files) throws Exception {
+        startNanos = System.nanoTime();
+        lastReport = startNanos;
+        ExecutorService parsers = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "carga-parser");
+            thread.setDaemon(true);
+            return thread;
+        });
+        double indexSeconds;
+        try (DataBaseManager.PooledConnection conn = dbManager.borrowWriter()) {
+            Writer writer = new Writer(conn);
+            try {
+                for (Path file : files) {
+                    loadFile(file, parsers, writer);
+                }
+                writer.commit();
+            } finally {
+                writer.abort();
+                long indexStart = System.nanoTime();
+                for (String table : touched.values()) {
+                    Partitions.createIndex(conn.getConnection(), table);
+                }
+                indexSeconds = (System.nanoTime() - indexStart) / 1e9;
+            }
+        } finally {
+            parsers.shutdownNow();
+        }
+
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("Carga terminada: %d lecturas de %d archivos en %.1f s (%.0f lecturas/s),"
+                        + " de ellos %.1f s en los índices de %d particiones; %d líneas descartadas.%n",
+                committed, files.size(), seconds, committed / Math.max(seconds, 1e-9), indexSeconds,
+                touched.size(), rejected);
+        if (firstRejected != null) {
+            System.out.println("Primera línea descartada: " + firstRejected);
+        }
+        return committed;
+    }
+
+    private void loadFile(Path file, ExecutorService parsers, Writer writer) throws Exception {
+        long before = loaded;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Source source = isBinary(channel) ? new BinarySource(file, channel) : new CsvSource(file, channel);
+            CompletionService<Chunk> completion = new ExecutorCompletionService<>(parsers);
+            int inFlight = 0;
+            boolean more = true;
+            while (more || inFlight > 0) {
+                // Leer es mucho más rápido que interpretar: se adelantan trozos hasta el límite
+                while (more && inFlight < threads + 2) {
+                    Callable<Chunk> task = source.next();
+                    if (task == null) {
+                        more = false;
+                    } else {
+                        completion.submit(task);
+                        inFlight++;
+                    }
+                }
+                if (inFlight > 0) {
+                    Chunk chunk;
+                    try {
+                        chunk = completion.take().get();
+                    } catch (ExecutionException e) {
+                        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                    inFlight--;
+                    writer.write(chunk);
+                }
+            }
+            source.finish(loaded - before);
+        }
+        System.out.println("Archivo '" + file + "': " + (loaded - before) + " lecturas.");
+    }
+
+    private static boolean isBinary(FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        while (magic.hasRemaining() && channel.read(magic, magic.position()) > 0) {
+            // Seguir hasta leer los 4 bytes o llegar al final
+        }
+        return !magic.hasRemaining() && magic.getInt(0) == HistoryExport.MAGIC;
+    }
+
+    /** Lecturas confirmadas en la base hasta ahora. */
+    public long getCommittedCount() {
+        return committed;
+    }
+
+    /** Líneas de CSV descartadas por no poder interpretarse. */
+    public long getRejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * Lecturas de un trozo ya interpretado, en columnas, con sus agregados.
+     */
+    private static final class Chunk {
+        final long[] timestamps;
+        final int[] devices;
+        final int[] xs;
+        final int[] ys;
+        final int[] zs;
+        int count;
+        final Rollup.Batch rollup = new Rollup.Batch();
+        final Quantiles.Batch quantiles = new Quantiles.Batch();
+        long rejected;
+        String firstRejected;
+
+        Chunk(int capacity) {
+            timestamps = new long[capacity];
+            devices = new int[capacity];
+            xs = new int[capacity];
+            ys = new int[capacity];
+            zs = new int[capacity];
+        }
+
+        void add(int device, long timestamp, int x, int y, int z) {
+            timestamps[count] = timestamp;
+            devices[count] = device;
+            xs[count] = x;
+            ys[count] = y;
+            zs[count] = z;
+            count++;
+            rollup.add(timestamp, x, y, z);
+            quantiles.add(device, timestamp, x, y, z);
+        }
+    }
+
+    /**
+     * Parte un archivo en trozos que se interpretan por separado.
+     */
+    private interface Source {
+        /**
+         * @return La tarea que interpreta el siguiente trozo, o null al terminar el archivo.
+         */
+        Callable<Chunk> next() throws IOException;
+
+        /**
+         * Revisa el archivo completo una vez cargado.
+         */
+        void finish(long readings) throws IOException;
+    }
+
+    /**
+     * CSV en trozos de CHUNK_BYTES que terminan en un fin de línea; lo que sigue pasa al siguiente.
+     */
+    private static final class CsvSource implements Source {
+        private final Path file;
+        private final FileChannel channel;
+        private byte[] carry = new byte[0];
+        private boolean eof;
+        private boolean first = true;
+
+        CsvSource(Path file, FileChannel channel) throws IOException {
+            this.file = file;
+            this.channel = channel.position(0);
+        }
+
+        @Override
+        public Callable<Chunk> next() throws IOException {
+            if (eof && carry.length == 0) {
+                return null;
+            }
+            byte[] data = new byte[CHUNK_BYTES];
+            System.arraycopy(carry, 0, data, 0, carry.length);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            buffer.position(carry.length);
+            while (buffer.hasRemaining() && !eof) {
+                eof = channel.read(buffer) < 0;
+            }
+            int length = buffer.position();
+            int end = length;
+            if (!eof) {
+                while (end > 0 && data[end - 1] != '\n') {
+                    end--;
+                }
+                if (end == 0) {
+                    throw new IOException("'" + file + "' tiene una línea de más de " + CHUNK_BYTES + " bytes.");
+                }
+            }
+            carry = Arrays.copyOfRange(data, end, length);
+            if (end == 0) {
+                return null;
+            }
+            int chunkLength = end;
+            boolean header = first;
+            first = false;
+            return () -> parse(data, chunkLength, header);
+        }
+
+        @Override
+        public void finish(long readings) {
+            // Las líneas inválidas ya se contaron como descartadas
+        }
+
+        private static Chunk parse(byte[] data, int length, boolean header) {
+            int lines = 1;
+            for (int i = 0; i < length; i++) {
+                if (data[i] == '\n') {
+                    lines++;
+                }
+            }
+            Chunk chunk = new Chunk(lines);
+            CsvLine line = new CsvLine(data);
+            int pos = 0;
+            if (header && length > 0 && data[0] != '-' && (data[0] < '0' || data[0] > '9')) {
+                while (pos < length && data[pos++] != '\n') {
+                    // Se salta el encabezado
+                }
+            }
+            while (pos < length) {
+                int end = pos;
+                while (end < length && data[end] != '\n') {
+                    end++;
+                }
+                int lineEnd = end > pos && data[end - 1] == '\r' ? end - 1 : end;
+                if (lineEnd > pos && !line.parse(pos, lineEnd, chunk)) {
+                    chunk.rejected++;
+                    if (chunk.firstRejected == null) {
+                        chunk.firstRejected = new String(data, pos, Math.min(lineEnd - pos, 200), StandardCharsets.UTF_8);
+                    }
+                }
+                pos = end + 1;
+            }
+            return chunk;
+        }
+    }
+
+    /**
+     * Interpreta una línea de CSV sin crear objetos por campo.
+     */
+    private static final class CsvLine {
+        private final byte[] data;
+        private final int[] starts = new int[6];
+        private final int[] ends = new int[6];
+        private boolean valid;
+
+        CsvLine(byte[] data) {
+            this.data = data;
+        }
+
+        /**
+         * @return false si la línea no tiene el formato esperado.
+         */
+        boolean parse(int from, int to, Chunk chunk) {
+            int fields = 0;
+            int start = from;
+            for (int i = from; i <= to; i++) {
+                if (i == to || data[i] == ',') {
+                    if (fields == starts.length) {
+                        return false;
+                    }
+                    starts[fields] = start;
+                    ends[fields++] = i;
+                    start = i + 1;
+                }
+            }
+            if (fields != 5 && fields != 6) {
+                return false;
+            }
+            // Con 6 campos el tercero es la fecha legible, que se ignora
+            int values = fields - 3;
+            valid = true;
+            int device = toInt(number(0));
+            long timestamp = number(1);
+            int x = toInt(number(values));
+            int y = toInt(number(values + 1));
+            int z = toInt(number(values + 2));
+            if (!valid) {
+                return false;
+            }
+            chunk.add(device, timestamp, x, y, z);
+            return true;
+        }
+
+        private long number(int field) {
+            int pos = starts[field];
+            int end = ends[field];
+            boolean negative = pos < end && data[pos] == '-';
+            if (negative) {
+                pos++;
+            }
+            // Hasta 18 dígitos no hay desbordamiento
+            if (pos == end || end - pos > 18) {
+                valid = false;
+                return 0;
+            }
+            long value = 0;
+            for (; pos < end; pos++) {
+                int digit = data[pos] - '0';
+                if (digit < 0 || digit > 9) {
+                    valid = false;
+                    return 0;
+                }
+                value = value * 10 + digit;
+            }
+            return negative ? -value : value;
+        }
+
+        private int toInt(long value) {
+            if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                valid = false;
+            }
+            return (int) value;
+        }
+    }
+
+    /**
+     * Binario de HistoryExport en trozos de CHUNK_BLOCKS bloques.
+     */
+    private static final class BinarySource implements Source {
+        private final Path file;
+        private final FileChannel channel;
+        private final long readings;
+        private final int blocks;
+        private int block;
+
+        BinarySource(Path file, FileChannel channel) throws IOException {
+            this.file = file;
+            this.channel = channel.position(0);
+            ByteBuffer header = ByteBuffer.allocate(HistoryExport.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            HistoryExport.readFully(channel, header);
+            this.readings = header.getLong(8);
+            this.blocks = header.getInt(32);
+            if (header.getInt(4) != HistoryExport.VERSION || readings < 0 || blocks < 0) {
+                throw new IOException("'" + file + "' no es una exportación binaria completa.");
+            }
+        }
+
+        @Override
+        public Callable<Chunk> next() throws IOException {
+            if (block == blocks) {
+                return null;
+            }
+            int firstBlock = block;
+            List<byte[]> data = new ArrayList<>(CHUNK_BLOCKS);
+            ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while (block < blocks && data.size() < CHUNK_BLOCKS) {
+                size.clear();
+                HistoryExport.readFully(channel, size);
+                int length = size.getInt(0);
+                if (length <= 0 || length > HistoryExport.MAX_BLOCK_BYTES) {
+                    throw new IOException("'" + file + "' tiene un bloque inválido: " + block);
+                }
+                byte[] bytes = new byte[length];
+                HistoryExport.readFully(channel, ByteBuffer.wrap(bytes));
+                data.add(bytes);
+                block++;
+            }
+            return () -> decode(data, firstBlock);
+        }
+
+        private Chunk decode(List<byte[]> data, int firstBlock) throws IOException {
+            int total = 0;
+            for (int i = 0; i < data.size(); i++) {
+                total += count(data.get(i), firstBlock + i);
+            }
+            Chunk chunk = new Chunk(total);
+            SeriesCodec codec = new SeriesCodec();
+            long[] timestamps = new long[HistoryExport.BLOCK];
+            int[] devices = new int[HistoryExport.BLOCK];
+            int[] xs = new int[HistoryExport.BLOCK];
+            int[] ys = new int[HistoryExport.BLOCK];
+            int[] zs = new int[HistoryExport.BLOCK];
+            for (int i = 0; i < data.size(); i++) {
+                byte[] bytes = data.get(i);
+                int n;
+                try {
+                    n = codec.decode(bytes, 0, bytes.length, timestamps, devices, xs, ys, zs);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("'" + file + "' tiene un bloque inválido: " + (firstBlock + i));
+                }
+                for (int k = 0; k < n; k++) {
+                    chunk.add(devices[k], timestamps[k], xs[k], ys[k], zs[k]);
+                }
+            }
+            return chunk;
+        }
+
+        private int count(byte[] bytes, int index) throws IOException {
+            try {
+                int n = SeriesCodec.count(bytes, 0, bytes.length);
+                if (n <= HistoryExport.BLOCK) {
+                    return n;
+                }
+            } catch (IllegalArgumentException e) {
+                // Se informa abajo
+            }
+            throw new IOException("'" + file + "' tiene un bloque inválido: " + index);
+        }
+
+        @Override
+        public void finish(long loaded) throws IOException {
+            if (loaded != readings) {
+                throw new IOException("'" + file + "' tiene " + loaded + " lecturas y el encabezado dice " + readings + ".");
+            }
+        }
+    }
+
+    /**
+     * Escribe los trozos con la conexión de escritura en transacciones grandes.
+     */
+    private final class Writer {
+        private final DataBaseManager.PooledConnection conn;
+        private final Partitions partitions;
+        private final Set<PreparedStatement> pending = new LinkedHashSet<>();
+        private int pendingRows;
+        private long transactionSize;
+        private boolean open;
+        private Rollup.Batch rollup = new Rollup.Batch();
+        private Quantiles.Batch quantiles = new Quantiles.Batch();
+
+        Writer(DataBaseManager.PooledConnection conn) {
+            this.conn = conn;
+            this.partitions = dbManager.getPartitions();
+        }
+
+        void write(Chunk chunk) throws SQLException, IOException {
+            // Los días nuevos se preparan fuera de la transacción (ver Partitions.ensure)
+            long day = Long.MIN_VALUE;
+            for (int i = 0; i < chunk.count; i++) {
+                long start = Partitions.dayStart(chunk.timestamps[i]);
+                if (start != day) {
+                    day = start;
+                    if (!touched.containsKey(day)) {
+                        commit();
+                        prepareDay(day);
+                    }
+                }
+            }
+
+            if (!open) {
+                conn.getConnection().setAutoCommit(false);
+                open = true;
+            }
+            PreparedStatement insert = null;
+            day = Long.MIN_VALUE;
+            for (int i = 0; i < chunk.count; i++) {
+                long timestamp = chunk.timestamps[i];
+                if (Partitions.dayStart(timestamp) != day) {
+                    day = Partitions.dayStart(timestamp);
+                    insert = partitions.prepareInsert(conn, timestamp);
+                    if (pending.add(insert) && pending.size() > MAX_PENDING_STATEMENTS) {
+                        // Con lecturas muy desordenadas: que la caché no cierre una sentencia con filas pendientes
+                        executePending();
+                        pending.add(insert);
+                    }
+                }
+                insert.setInt(1, chunk.devices[i]);
+                insert.setLong(2, timestamp);
+                insert.setInt(3, chunk.xs[i]);
+                insert.setInt(4, chunk.ys[i]);
+                insert.setInt(5, chunk.zs[i]);
+                insert.addBatch();
+                if (++pendingRows == STATEMENT_BATCH) {
+                    executePending();
+                    pending.add(insert);
+                }
+            }
+            rollup.merge(chunk.rollup);
+            quantiles.merge(chunk.quantiles);
+            transactionSize += chunk.count;
+            loaded += chunk.count;
+            rejected += chunk.rejected;
+            if (firstRejected == null) {
+                firstRejected = chunk.firstRejected;
+            }
+            if (transactionSize >= transactionRows) {
+                commit();
+            }
+
+            long now = System.nanoTime();
+            if (now - lastReport >= PROGRESS_INTERVAL_NS) {
+                lastReport = now;
+                System.out.printf("Carga: %d lecturas (%.0f lecturas/s)%n", loaded, loaded / ((now - startNanos) / 1e9));
+            }
+        }
+
+        /**
+         * Primera lectura de un día: crea su partición si falta, le quita el índice y borra su día sellado.
+         */
+        private void prepareDay(long day) throws SQLException, IOException {
+            partitions.ensure(conn.getConnection(), day);
+            String table = partitions.find(day);
+            Partitions.dropIndex(conn.getConnection(), table);
+            touched.put(day, table);
+            if (SealedHistory.deleteDay(sealedDir, day)) {
+                System.out.println("Histórico sellado: se borra el día " + table.substring(Partitions.PREFIX.length())
+                        + "; se volverá a sellar con las lecturas cargadas.");
+            }
+        }
+
+        private void executePending() throws SQLException {
+            try {
+                for (PreparedStatement insert : pending) {
+                    insert.executeBatch();
+                }
+            } finally {
+                for (PreparedStatement insert : pending) {
+                    insert.clearBatch();
+                }
+                pending.clear();
+                pendingRows = 0;
+            }
+        }
+
+        /**
+         * Confirma la transacción en curso junto con sus rollups e histogramas.
+         */
+        void commit() throws SQLException {
+            if (!open) {
+                return;
+            }
+            executePending();
+            rollup.write(conn);
+            quantiles.write(conn);
+            conn.getConnection().commit();
+            conn.getConnection().setAutoCommit(true);
+            open = false;
+            committed += transactionSize;
+            transactionSize = 0;
+            rollup = new Rollup.Batch();
+            quantiles = new Quantiles.Batch();
+        }
+
+        /**
+         * Deshace lo que no se confirmó (no hace nada después de commit()).
+         */
+        void abort() throws SQLException {
+            for (PreparedStatement insert : pending) {
+                insert.clearBatch();
+            }
+            pending.clear();
+            pendingRows = 0;
+            if (open) {
+                open = false;
+                conn.getConnection().rollback();
+                conn.getConnection().setAutoCommit(true);
+            }
+        }
+    }
+}
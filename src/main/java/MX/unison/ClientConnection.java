@@ -1,26 +1,135 @@
 package MX.unison;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * Gestiona la conexión del cliente con el servidor vía Socket.
+ * Al conectar intenta negociar el protocolo binario (BinaryProtocol); si el servidor no lo soporta,
+ * los datos se envían como líneas de texto cifradas, igual que antes.
+ *
+ * Las lecturas del sensor no se envían en el hilo que las produce: sendSensorData las deja en una
+ * cola acotada y un hilo emisor las agrupa en lotes, que se envían al juntar BATCH_SIZE lecturas
+ * o al pasar MAX_BATCH_DELAY_MS desde la primera lectura del lote (lo que ocurra antes).
+ *
+ * Las respuestas del servidor las lee un único hilo lector, que las reparte a las peticiones en curso.
+ * Si el servidor soporta MUX, cada petición lleva un identificador (ver TaggedSession) y pueden estar
+ * varias en curso a la vez; si no, las peticiones se atienden de una en una, como antes.
+ * Con MUX el servidor también puede pedir bajar el ritmo (SLOW_DOWN) cuando su cola de ingesta
+ * se llena; el hilo emisor hace una pausa entre lotes hasta recibir RESUME.
+ * Si el servidor lo soporta, la conexión usa una clave de sesión propia con AES-GCM (GcmSessionCipher)
+ * en lugar de la clave fija; -Dmonitor.cifrado=aes fuerza el cifrado anterior.
  */
 public class ClientConnection {
 
     private static final String SERVER_IP = "127.0.0.1"; // IP del servidor (localhost)
     private static final int SERVER_PORT = 12345;
     private static final String DATA_DELIMITER = "\\|"; // Delimitador para separar registros en la respuesta
+    private static final byte[] COMPRESSED_PAGE_PREFIX =
+            HistoricalRequest.COMPRESSED_PAGE_PREFIX.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SERIES_PAGE_PREFIX =
+            HistoricalRequest.SERIES_PAGE_PREFIX.getBytes(StandardCharsets.US_ASCII);
+    // Tiempo máximo para que el servidor responda la negociación (un servidor antiguo no responde)
+    private static final int NEGOTIATION_TIMEOUT_MS = 2000;
+    // Tiempo máximo para recibir una respuesta de estadísticas o de cuantiles
+    private static final long STATS_TIMEOUT_MS = 60_000;
+
+    // Identificador de este dispositivo en las tramas binarias
+    private final int deviceId = Integer.getInteger("monitor.dispositivo", 1);
+    // Se puede forzar el protocolo de texto con -Dmonitor.protocolo=texto
+    private final boolean preferBinary = !"texto".equals(System.getProperty("monitor.protocolo"));
+    // Se puede forzar el cifrado anterior (clave fija, sin GCM) con -Dmonitor.cifrado=aes
+    private final boolean preferGcm = !"aes".equals(System.getProperty("monitor.cifrado"));
 
     private Socket socket;
-    private PrintWriter out;
+    private OutputStream out;
     private BufferedReader in;
     private volatile boolean isConnected = false;
+    private volatile boolean binaryMode = false;
+    // El servidor acepta peticiones con identificador (capacidad MUX)
+    private volatile boolean muxSupported = false;
+    // Cifrado de la conexión; cambia a GCM si el servidor acuerda una clave de sesión
+    private volatile SessionCipher cipher = SessionCipher.LEGACY;
+
+    // Peticiones en curso, por identificador; sin MUX solo hay una a la vez (untaggedRequest)
+    private final Map<Integer, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final Semaphore untaggedSlot = new Semaphore(1);
+    private volatile PendingRequest untaggedRequest;
+    // Líneas de un día sellado que aún faltan y petición a la que van (solo las usa el hilo lector)
+    private PendingHistory sealedOwner;
+    private int sealedRemaining;
+    private Thread readerThread;
+    // Lector de los avisos del canal de control (solo lo usa el hilo lector); se crea tras negociar
+    private SessionCipher.LineOpener controlOpener;
+
+    // Pausa entre lotes pedida por el servidor con SLOW_DOWN (0 = sin pausa)
+    private volatile long throttleMs = 0;
+    private final AtomicLong slowDownCount = new AtomicLong();
+    // Lecturas que el servidor confirmó como guardadas (commit), solo con MUX
+    private final AtomicLong acknowledgedCount = new AtomicLong();
+
+    // Las escrituras llegan desde el hilo emisor y desde el de la vista histórico
+    private final Object writeLock = new Object();
+    private final ByteBuffer frameBuffer = ByteBuffer.allocate(BinaryProtocol.HEADER_SIZE + BinaryProtocol.MAX_PAYLOAD);
+
+    /**
+     * Qué hacer cuando la cola de envío está llena (el servidor o la red van más lentos que el sensor).
+     */
+    public enum OverflowPolicy {
+        BLOCK,       // El productor espera a que haya lugar (frena el muestreo)
+        DROP_OLDEST, // Se descarta la lectura más antigua de la cola (por defecto)
+        DROP_NEWEST  // Se descarta la lectura que se intenta encolar
+    }
+
+    // Configuración de la cola y los lotes (propiedades del sistema)
+    private static final int QUEUE_CAPACITY = Integer.getInteger("monitor.cola.capacidad", 1024);
+    private static final int BATCH_SIZE = Math.min(Integer.getInteger("monitor.lote.tamano", 50),
+            BinaryProtocol.MAX_BATCH_RECORDS);
+    private static final long MAX_BATCH_DELAY_MS = Long.getLong("monitor.lote.espera", 200);
+    private final OverflowPolicy overflowPolicy =
+            OverflowPolicy.valueOf(System.getProperty("monitor.cola.politica", OverflowPolicy.DROP_OLDEST.name()));
+
+    private final BlockingQueue<SensorData> sendQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private Thread senderThread;
+
+    // Contadores de lecturas
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    // Lote en construcción (solo lo usa el hilo emisor)
+    private final long[] batchTimestamps = new long[BATCH_SIZE];
+    private final int[] batchX = new int[BATCH_SIZE];
+    private final int[] batchY = new int[BATCH_SIZE];
+    private final int[] batchZ = new int[BATCH_SIZE];
 
     /**
      * Intenta establecer la conexión con el servidor.
@@ -30,10 +139,14 @@ public class ClientConnection {
         try {
             System.out.println("Intentando conectar con el servidor en " + SERVER_IP + ":" + SERVER_PORT);
             socket = new Socket(SERVER_IP, SERVER_PORT);
-            out = new PrintWriter(socket.getOutputStream(), true);
+            out = new BufferedOutputStream(socket.getOutputStream());
             in = new BufferedReader(new InputStreamReader(socket.getInputStream())); // Añadido BufferedReader
             isConnected = true;
             System.out.println("Conexión con el servidor establecida.");
+            negotiateProtocol();
+            controlOpener = cipher.newOpener();
+            startReader();
+            startSender();
             return true;
         } catch (Exception e) {
             System.err.println("Error al conectar con el servidor: " + e.getMessage());
@@ -43,7 +156,112 @@ public class ClientConnection {
     }
 
     /**
-     * Envía los datos del sensor al servidor, cifrados.
+     * Propone el protocolo binario (si se prefiere) y la capacidad MUX, y espera la respuesta del servidor.
+     * Si no hay respuesta a tiempo o el servidor rechaza algo, se sigue con el protocolo de texto
+     * y con peticiones de una en una.
+     */
+    private void negotiateProtocol() throws IOException {
+        String hello = BinaryProtocol.withFeature(
+                preferBinary ? BinaryProtocol.HELLO : BinaryProtocol.TEXT_HELLO, BinaryProtocol.FEATURE_MUX);
+        KeyPair sessionKeys = null;
+        if (preferGcm) {
+            try {
+                sessionKeys = GcmSessionCipher.generateKeyPair();
+                hello = BinaryProtocol.withFeature(hello,
+                        GcmSessionCipher.FEATURE_GCM + "=" + GcmSessionCipher.encodePublicKey(sessionKeys));
+            } catch (GeneralSecurityException e) {
+                System.err.println("No se pudo generar la clave de sesión: " + e.getMessage());
+            }
+        }
+
+        String response = negotiate(hello);
+        if (response != null) {
+            binaryMode = preferBinary && BinaryProtocol.protocolOf(response).equals(BinaryProtocol.HELLO_OK);
+            muxSupported = BinaryProtocol.hasFeature(response, BinaryProtocol.FEATURE_MUX);
+            String serverKey = BinaryProtocol.featureValue(response, GcmSessionCipher.FEATURE_GCM);
+            if (sessionKeys != null && serverKey != null) {
+                try {
+                    cipher = GcmSessionCipher.agree(sessionKeys, serverKey, false);
+                } catch (GeneralSecurityException e) {
+                    // El servidor ya cambió de cifrado: sin la misma clave no hay comunicación posible
+                    throw new IOException("No se pudo acordar la clave de sesión: " + e.getMessage(), e);
+                }
+            }
+            // Un servidor anterior a MUX rechaza el saludo con capacidades: se repite sin ellas
+            if (preferBinary && !binaryMode && !muxSupported) {
+                binaryMode = BinaryProtocol.HELLO_OK.equals(negotiate(BinaryProtocol.HELLO));
+            }
+        }
+        System.out.println("Protocolo con el servidor: " + (binaryMode ? "binario v" + BinaryProtocol.VERSION : "texto")
+                + (muxSupported ? ", peticiones simultáneas" : "")
+                + (cipher != SessionCipher.LEGACY ? ", cifrado AES-GCM de sesión" : ""));
+    }
+
+    /**
+     * Envía un mensaje de negociación (siempre con la clave fija) y espera la respuesta.
+     * @return La respuesta desencriptada, o null si el servidor no respondió a tiempo.
+     */
+    private String negotiate(String hello) throws IOException {
+        String encryptedHello = EncryptionUtil.encrypt(hello);
+        if (encryptedHello == null) {
+            return null;
+        }
+        writeLine(encryptedHello);
+
+        socket.setSoTimeout(NEGOTIATION_TIMEOUT_MS);
+        try {
+            String response = in.readLine();
+            return response != null ? EncryptionUtil.decrypt(response) : null;
+        } catch (SocketTimeoutException e) {
+            return null;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    /**
+     * Escribe una línea de texto (ya cifrada) y la envía.
+     */
+    private void writeLine(String line) throws IOException {
+        synchronized (writeLock) {
+            out.write(line.getBytes(StandardCharsets.US_ASCII));
+            out.write('\n');
+            out.flush();
+        }
+    }
+
+    /**
+     * Envía un mensaje del protocolo de texto: como línea cifrada o, en modo binario, como trama TEXT.
+     * @return false si no se pudo cifrar.
+     */
+    private boolean sendTextMessage(String plainMessage) throws IOException {
+        if (binaryMode) {
+            synchronized (writeLock) {
+                frameBuffer.clear();
+                if (!BinaryProtocol.encodeText(frameBuffer, cipher, plainMessage)) {
+                    return false;
+                }
+                out.write(frameBuffer.array(), 0, frameBuffer.position());
+                out.flush();
+            }
+            return true;
+        }
+        // Se cifra con el candado tomado: el servidor rechaza un contador menor que el último recibido
+        synchronized (writeLock) {
+            String[] encryptedLines = cipher.seal(plainMessage);
+            if (encryptedLines == null) {
+                return false;
+            }
+            for (String line : encryptedLines) {
+                writeLine(line);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encola los datos del sensor para enviarlos al servidor, cifrados, en el siguiente lote.
+     * No espera a la red; solo puede bloquear si la política de cola llena es BLOCK.
      * @param data Los datos del sensor en formato SensorData.
      */
     public void sendSensorData(SensorData data) {
@@ -52,83 +270,648 @@ public class ClientConnection {
             return;
         }
 
-        // 1. Formatear el mensaje: DATA:x:#, y:#, z:#
-        String plainMessage = "DATA:" + data.toString();
+        // La lectura ya trae su marca de tiempo de captura (SensorData.timestamp)
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    sendQueue.put(data);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    droppedCount.incrementAndGet();
+                    return;
+                }
+                break;
+            case DROP_NEWEST:
+                if (!sendQueue.offer(data)) {
+                    droppedCount.incrementAndGet();
+                    return;
+                }
+                break;
+            default:
+                while (!sendQueue.offer(data)) {
+                    if (sendQueue.poll() != null) {
+                        droppedCount.incrementAndGet();
+                    }
+                }
+        }
+        queuedCount.incrementAndGet();
+    }
 
-        // 2. Encriptar el mensaje
-        String encryptedMessage = EncryptionUtil.encrypt(plainMessage);
+    private void startSender() {
+        senderThread = new Thread(this::runSender, "client-sender");
+        senderThread.setDaemon(true);
+        senderThread.start();
+    }
 
-        if (encryptedMessage != null) {
-            // 3. Enviar el mensaje cifrado al servidor
-            out.println(encryptedMessage);
-            // System.out.println("Cliente envió (Encriptado): " + encryptedMessage);
-        } else {
-            System.err.println("Fallo al encriptar el mensaje.");
+    /**
+     * Hilo emisor: arma lotes de la cola y los envía hasta que se desconecta y la cola queda vacía.
+     */
+    private void runSender() {
+        try {
+            while (isConnected || !sendQueue.isEmpty()) {
+                SensorData first = sendQueue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                int count = addToBatch(first, 0);
+
+                // Completar el lote hasta BATCH_SIZE o hasta que venza la espera máxima de la primera lectura
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_BATCH_DELAY_MS);
+                while (count < BATCH_SIZE) {
+                    long remaining = deadline - System.nanoTime();
+                    SensorData next = remaining > 0 ? sendQueue.poll(remaining, TimeUnit.NANOSECONDS) : sendQueue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    count = addToBatch(next, count);
+                }
+                sendBatch(count);
+
+                // El servidor pidió bajar el ritmo: las lecturas se acumulan en la cola mientras tanto
+                long pause = throttleMs;
+                if (pause > 0) {
+                    Thread.sleep(pause);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int addToBatch(SensorData reading, int index) {
+        batchTimestamps[index] = reading.timestamp;
+        batchX[index] = reading.x;
+        batchY[index] = reading.y;
+        batchZ[index] = reading.z;
+        return index + 1;
+    }
+
+    /**
+     * Envía el lote con una sola escritura: una trama DATA_BATCH en modo binario,
+     * o varias líneas "DATA:x:#, y:#, z:#" en modo texto (compatibles con servidores antiguos).
+     */
+    private void sendBatch(int count) {
+        // Lecturas que salen en esta escritura (las que no se pudieron cifrar ya cuentan como descartadas)
+        int written = count;
+        try {
+            synchronized (writeLock) {
+                if (binaryMode) {
+                    frameBuffer.clear();
+                    if (!BinaryProtocol.encodeSensorBatch(frameBuffer, cipher, deviceId, batchTimestamps,
+                            batchX, batchY, batchZ, count)) {
+                        System.err.println("Fallo al encriptar el mensaje.");
+                        droppedCount.addAndGet(count);
+                        return;
+                    }
+                    out.write(frameBuffer.array(), 0, frameBuffer.position());
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        // Formato del mensaje: DATA:x:#, y:#, z:#
+                        String[] encryptedLines = cipher.seal(
+                                "DATA:" + new SensorData(batchX[i], batchY[i], batchZ[i], batchTimestamps[i]));
+                        if (encryptedLines == null) {
+                            System.err.println("Fallo al encriptar el mensaje.");
+                            droppedCount.incrementAndGet();
+                            written--;
+                            continue;
+                        }
+                        for (String line : encryptedLines) {
+                            out.write(line.getBytes(StandardCharsets.US_ASCII));
+                            out.write('\n');
+                        }
+                    }
+                }
+                out.flush();
+            }
+            sentCount.addAndGet(written);
+        } catch (IOException e) {
+            System.err.println("Error al enviar datos al servidor: " + e.getMessage());
+            droppedCount.addAndGet(written);
         }
     }
 
+    /** Lecturas aceptadas en la cola de envío. */
+    public long getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    /** Lecturas enviadas al servidor. */
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /** Lecturas descartadas (cola llena o error al enviar). */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /** Lecturas que esperan en la cola en este momento. */
+    public int getPendingCount() {
+        return sendQueue.size();
+    }
+
     /**
-     * Solicita datos históricos al servidor y espera la respuesta cifrada.
-     * NOTA: Actualmente sin filtros (se añadirá en la GUI).
+     * Solicita todos los datos históricos al servidor y los devuelve en una lista.
+     * Para tablas grandes conviene la variante que entrega las páginas a un consumidor.
      * @return Una lista de objetos SensorData con la información histórica.
      */
     public List<SensorData> requestHistoricalData() {
         List<SensorData> historicalList = new ArrayList<>();
+        requestHistoricalData(new HistoricalRequest(), historicalList::addAll);
+        return historicalList;
+    }
+
+    /**
+     * Solicita datos históricos paginados y espera a que terminen.
+     * @param request Parámetros de la petición.
+     * @param pageConsumer Recibe los registros de cada página, en orden.
+     * @return Total de registros recibidos, o -1 si hubo un error.
+     */
+    public long requestHistoricalData(HistoricalRequest request, Consumer<List<SensorData>> pageConsumer) {
+        try {
+            return requestHistoricalDataAsync(request, pageConsumer).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (ExecutionException e) {
+            System.err.println("Error al solicitar/recibir datos históricos: " + e.getCause().getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Solicita datos históricos paginados sin esperar la respuesta. Cada página se desencripta y se
+     * entrega al consumidor en cuanto llega, desde el hilo lector, así que el consumidor debe ser breve
+     * (p.ej. pasar la página al hilo de Swing). Las lecturas en vivo siguen enviándose mientras tanto.
+     * Con un servidor sin MUX esta llamada espera a que termine la petición anterior.
+     * @param request Parámetros de la petición.
+     * @param pageConsumer Recibe los registros de cada página, en orden.
+     * @return Futuro con el total de registros recibidos; falla si hubo un error.
+     */
+    public CompletableFuture<Long> requestHistoricalDataAsync(HistoricalRequest request,
+                                                              Consumer<List<SensorData>> pageConsumer) {
+        return submit(new PendingHistory(request, pageConsumer), request.toMessage());
+    }
+
+    /**
+     * Solicita estadísticas calculadas en el servidor (ver StatsRequest) y espera a que terminen.
+     * Un servidor que no conoce STATS_REQUEST no responde, así que la espera tiene límite.
+     * @return Los intervalos, del más reciente al más antiguo, o null si hubo un error.
+     */
+    public List<RangeStats> requestStats(StatsRequest request) {
+        List<RangeStats> results = new ArrayList<>();
+        CompletableFuture<Long> future = submit(new PendingStats(results::addAll), request.toMessage());
+        try {
+            future.get(STATS_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            System.err.println("Error al solicitar/recibir estadísticas: " + e.getCause().getMessage());
+            return null;
+        } catch (TimeoutException e) {
+            future.completeExceptionally(e);
+            System.err.println("El servidor no respondió las estadísticas (¿versión anterior?).");
+            return null;
+        }
+    }
+
+    /**
+     * Solicita cuantiles calculados en el servidor con sus histogramas (ver QuantileRequest) y espera
+     * a que terminen. Igual que requestStats(), la espera tiene límite.
+     * @return Los intervalos, del más reciente al más antiguo, o null si hubo un error.
+     */
+    public List<QuantileRequest.Result> requestQuantiles(QuantileRequest request) {
+        List<QuantileRequest.Result> results = new ArrayList<>();
+        CompletableFuture<Long> future = submit(new PendingQuantiles(request.getQuantiles().length, results::addAll),
+                request.toMessage());
+        try {
+            future.get(STATS_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            System.err.println("Error al solicitar/recibir cuantiles: " + e.getCause().getMessage());
+            return null;
+        } catch (TimeoutException e) {
+            future.completeExceptionally(e);
+            System.err.println("El servidor no respondió los cuantiles (¿versión anterior?).");
+            return null;
+        }
+    }
+
+    /**
+     * Envía la petición y la registra para que el hilo lector le entregue sus líneas.
+     * Con MUX lleva un identificador; sin MUX espera a que termine la petición anterior.
+     */
+    private CompletableFuture<Long> submit(PendingRequest pending, String message) {
         if (!isConnected) {
-            System.err.println("No conectado al servidor. No se puede solicitar el histórico.");
-            return historicalList;
+            pending.future.completeExceptionally(new IOException("No conectado al servidor."));
+            return pending.future;
+        }
+
+        if (muxSupported) {
+            int requestId = nextRequestId.incrementAndGet();
+            pendingRequests.put(requestId, pending);
+            pending.future.whenComplete((total, error) -> pendingRequests.remove(requestId));
+            message = TaggedSession.tag(requestId, message);
+        } else {
+            try {
+                untaggedSlot.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pending.future.completeExceptionally(e);
+                return pending.future;
+            }
+            untaggedRequest = pending;
+            pending.future.whenComplete((total, error) -> {
+                untaggedRequest = null;
+                untaggedSlot.release();
+            });
         }
 
         try {
-            // 1. Enviar la solicitud cifrada
-            String request = EncryptionUtil.encrypt("HISTORICAL_REQUEST:ALL");
-            if (request == null) {
-                System.err.println("Fallo al encriptar la solicitud histórica.");
-                return historicalList;
+            // Enviar la solicitud cifrada; la respuesta la recibe el hilo lector
+            if (!sendTextMessage(message)) {
+                pending.future.completeExceptionally(new IOException("Fallo al encriptar la solicitud."));
             }
-            out.println(request);
+        } catch (IOException e) {
+            pending.future.completeExceptionally(e);
+        }
+        return pending.future;
+    }
 
-            // 2. Esperar y recibir la respuesta cifrada del servidor
-            System.out.println("Esperando respuesta histórica del servidor...");
-            String encryptedResponse = in.readLine();
+    /**
+     * Petición en curso: recibe sus líneas desde el hilo lector hasta el marcador de fin.
+     */
+    private abstract class PendingRequest {
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+        // Descifra las líneas de esta respuesta y junta los bloques de las páginas grandes (GCM)
+        final SessionCipher.LineOpener opener = cipher.newOpener();
+
+        /**
+         * Procesa una línea cifrada de la respuesta; completa el futuro al terminar o con un error.
+         */
+        abstract void onLine(String encryptedLine) throws Exception;
+    }
+
+    /**
+     * Petición de estadísticas en curso (STATS_PAGE hasta STATS_END).
+     */
+    private final class PendingStats extends PendingRequest {
+        final Consumer<List<RangeStats>> pageConsumer;
+
+        PendingStats(Consumer<List<RangeStats>> pageConsumer) {
+            this.pageConsumer = pageConsumer;
+        }
 
-            if (encryptedResponse == null) {
-                System.err.println("Respuesta histórica vacía.");
-                return historicalList;
+        @Override
+        void onLine(String encryptedLine) throws GeneralSecurityException {
+            String response = opener.openText(encryptedLine);
+            if (response == null) {
+                return;
             }
+            if (response.startsWith(StatsRequest.PAGE_PREFIX)) {
+                List<RangeStats> page = new ArrayList<>();
+                for (String record : response.substring(StatsRequest.PAGE_PREFIX.length()).split(DATA_DELIMITER)) {
+                    page.add(RangeStats.parse(record));
+                }
+                pageConsumer.accept(page);
+            } else if (response.startsWith(StatsRequest.END_PREFIX)) {
+                future.complete(StatsRequest.parseEndTotal(response));
+            } else if (response.startsWith("ERROR:")) {
+                future.completeExceptionally(new IOException("Error del servidor: " + response));
+            }
+        }
+    }
+
+    /**
+     * Petición de cuantiles en curso (QUANTILE_PAGE hasta QUANTILE_END).
+     */
+    private final class PendingQuantiles extends PendingRequest {
+        final int quantiles;
+        final Consumer<List<QuantileRequest.Result>> pageConsumer;
 
-            // 3. Desencriptar la respuesta
-            String decryptedResponse = EncryptionUtil.decrypt(encryptedResponse);
+        PendingQuantiles(int quantiles, Consumer<List<QuantileRequest.Result>> pageConsumer) {
+            this.quantiles = quantiles;
+            this.pageConsumer = pageConsumer;
+        }
 
-            if (decryptedResponse == null || decryptedResponse.startsWith("ERROR:")) {
-                System.err.println("Error al desencriptar la respuesta o error del servidor: " + decryptedResponse);
-                return historicalList;
+        @Override
+        void onLine(String encryptedLine) throws GeneralSecurityException {
+            String response = opener.openText(encryptedLine);
+            if (response == null) {
+                return;
+            }
+            if (response.startsWith(QuantileRequest.PAGE_PREFIX)) {
+                List<QuantileRequest.Result> page = new ArrayList<>();
+                for (String record : response.substring(QuantileRequest.PAGE_PREFIX.length()).split(DATA_DELIMITER)) {
+                    page.add(QuantileRequest.Result.parse(record, quantiles));
+                }
+                pageConsumer.accept(page);
+            } else if (response.startsWith(QuantileRequest.END_PREFIX)) {
+                future.complete(QuantileRequest.parseEndTotal(response));
+            } else if (response.startsWith("ERROR:")) {
+                future.completeExceptionally(new IOException("Error del servidor: " + response));
             }
+        }
+    }
 
-            if (decryptedResponse.equals("NO_DATA")) {
-                System.out.println("El servidor no tiene datos históricos.");
-                return historicalList;
+    /**
+     * Petición de histórico en curso.
+     */
+    private final class PendingHistory extends PendingRequest {
+        final HistoricalRequest request;
+        final Consumer<List<SensorData>> pageConsumer;
+        // Un descompresor por respuesta, reutilizado entre páginas
+        private Inflater inflater;
+        // Decodificador y columnas de las páginas HIST_SPAGE, reutilizados entre páginas
+        private SeriesCodec codec;
+        private long[] timestamps = new long[0];
+        private int[] devices = new int[0];
+        private int[] xs = new int[0];
+        private int[] ys = new int[0];
+        private int[] zs = new int[0];
+        private long received;
+        // Día sellado en curso (ver HIST_SEALED)
+        private byte[] sealedKey;
+        private long sealedDay;
+        private int sealedIndex;
+
+        PendingHistory(HistoricalRequest request, Consumer<List<SensorData>> pageConsumer) {
+            this.request = request;
+            this.pageConsumer = pageConsumer;
+            future.whenComplete((total, error) -> {
+                if (inflater != null) {
+                    inflater.end();
+                }
+            });
+        }
+
+        @Override
+        void onLine(String encryptedLine) throws DataFormatException, GeneralSecurityException {
+            // Desencriptar la página (como bytes, porque las páginas comprimidas no son texto)
+            byte[] decryptedBytes = opener.open(encryptedLine);
+            if (decryptedBytes == null) {
+                return; // Bloque de una página que sigue en la siguiente línea
             }
 
-            // 4. Procesar la cadena delimitada
-            String[] records = decryptedResponse.split(DATA_DELIMITER);
-            for (String record : records) {
-                try {
-                    if (!record.trim().isEmpty()) {
-                        historicalList.add(SensorData.fromHistoricalString(record.trim()));
+            if (startsWith(decryptedBytes, COMPRESSED_PAGE_PREFIX)) {
+                if (inflater == null) {
+                    inflater = new Inflater(true);
+                }
+                byte[] plain = CompressionUtil.inflate(inflater, decryptedBytes, COMPRESSED_PAGE_PREFIX.length);
+                deliver(parseRecords(new String(plain, StandardCharsets.UTF_8)));
+                return;
+            }
+
+            if (startsWith(decryptedBytes, SERIES_PAGE_PREFIX)) {
+                deliver(decodeSeries(decryptedBytes, SERIES_PAGE_PREFIX.length));
+                return;
+            }
+
+            String decryptedResponse = new String(decryptedBytes, StandardCharsets.UTF_8);
+
+            if (decryptedResponse.startsWith(HistoricalRequest.SEALED_PREFIX)) {
+                startSealedDay(decryptedResponse.substring(HistoricalRequest.SEALED_PREFIX.length()));
+                return;
+            }
+
+            if (decryptedResponse.startsWith("ERROR:")) {
+                future.completeExceptionally(new IOException("Error del servidor: " + decryptedResponse));
+                return;
+            }
+
+            if (decryptedResponse.startsWith(HistoricalRequest.END_PREFIX)) {
+                if (received == 0) {
+                    System.out.println("El servidor no tiene datos históricos.");
+                }
+                System.out.println("Datos históricos recibidos y procesados: " + received + " registros. "
+                        + decryptedResponse.substring(HistoricalRequest.END_PREFIX.length()));
+                future.complete(received);
+                return;
+            }
+
+            // Procesar la cadena delimitada de la página
+            if (decryptedResponse.startsWith(HistoricalRequest.PAGE_PREFIX)) {
+                deliver(parseRecords(decryptedResponse.substring(HistoricalRequest.PAGE_PREFIX.length())));
+            } else if (!request.isPaged()) {
+                // Respuesta antigua en una sola línea ("NO_DATA" si no hay registros)
+                List<SensorData> records = decryptedResponse.equals("NO_DATA")
+                        ? new ArrayList<>() : parseRecords(decryptedResponse);
+                deliver(records);
+                future.complete(received);
+            }
+        }
+
+        /**
+         * Cabecera de un día sellado: las siguientes 'lineas' líneas de la conexión son suyas.
+         */
+        private void startSealedDay(String params) {
+            int lines = 0;
+            for (String pair : params.split(";")) {
+                int eq = pair.indexOf('=');
+                String key = eq < 0 ? pair : pair.substring(0, eq);
+                String value = eq < 0 ? "" : pair.substring(eq + 1);
+                if (key.equals("dia")) {
+                    sealedDay = Long.parseLong(value);
+                } else if (key.equals("lineas")) {
+                    lines = Integer.parseInt(value);
+                } else if (key.equals("clave")) {
+                    sealedKey = Base64.getDecoder().decode(value);
+                }
+            }
+            sealedIndex = 0;
+            expectSealedLines(this, lines);
+        }
+
+        /**
+         * Línea de un día sellado: se descifra con la clave del día y se decodifica como HIST_SPAGE.
+         */
+        void onSealedLine(String line) throws GeneralSecurityException {
+            byte[] block = SealedHistory.openLine(sealedKey, sealedDay, sealedIndex++, line);
+            deliver(decodeSeries(block, 0));
+        }
+
+        /**
+         * Decodifica una página HIST_SPAGE en registros.
+         * @throws IllegalArgumentException si el bloque no es válido.
+         */
+        private List<SensorData> decodeSeries(byte[] data, int offset) {
+            if (codec == null) {
+                codec = new SeriesCodec();
+            }
+            int length = data.length - offset;
+            int count = SeriesCodec.count(data, offset, length);
+            if (timestamps.length < count) {
+                timestamps = new long[count];
+                devices = new int[count];
+                xs = new int[count];
+                ys = new int[count];
+                zs = new int[count];
+            }
+            int n = codec.decode(data, offset, length, timestamps, devices, xs, ys, zs);
+            List<SensorData> records = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                records.add(new SensorData(xs[i], ys[i], zs[i], timestamps[i]));
+            }
+            return records;
+        }
+
+        private void deliver(List<SensorData> page) {
+            received += page.size();
+            pageConsumer.accept(page);
+        }
+    }
+
+    /**
+     * Las siguientes 'lines' líneas son de un día sellado de 'owner' (llegan sin marca de petición).
+     * Solo lo invoca el hilo lector, al procesar la cabecera HIST_SEALED.
+     */
+    private void expectSealedLines(PendingHistory owner, int lines) {
+        sealedOwner = owner;
+        sealedRemaining = lines;
+    }
+
+    private void startReader() {
+        readerThread = new Thread(this::runReader, "client-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Hilo lector: única lectura del socket. Reparte cada línea a la petición que corresponde
+     * según su identificador (o a la petición sin identificador en curso); las líneas de un día
+     * sellado, que no llevan identificador, van a la petición que anunció el día.
+     */
+    private void runReader() {
+        IOException failure = new IOException("El servidor cerró la conexión durante la respuesta histórica.");
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (sealedRemaining > 0 && !TaggedSession.isTagged(line)) {
+                    // Las líneas del día sellado siguen a su cabecera; entre ellas solo llegan líneas con marca
+                    sealedRemaining--;
+                    try {
+                        sealedOwner.onSealedLine(line);
+                    } catch (Exception e) {
+                        sealedOwner.future.completeExceptionally(e);
+                    }
+                    continue;
+                }
+                PendingRequest pending;
+                if (TaggedSession.isTagged(line)) {
+                    int requestId = TaggedSession.parseId(line);
+                    line = TaggedSession.stripTag(line);
+                    if (requestId == TaggedSession.CONTROL_ID) {
+                        handleControlMessage(line);
+                        continue;
                     }
-                } catch (NumberFormatException e) {
-                    System.err.println("Error al parsear registro histórico: " + record);
+                    pending = pendingRequests.get(requestId);
+                } else {
+                    pending = untaggedRequest;
+                }
+                if (pending == null) {
+                    System.err.println("Respuesta del servidor sin petición en curso; se ignora.");
+                    continue;
+                }
+                try {
+                    pending.onLine(line);
+                } catch (Exception e) {
+                    pending.future.completeExceptionally(e);
                 }
             }
+        } catch (IOException e) {
+            if (isConnected) {
+                failure = e;
+            }
+        } finally {
+            // Las peticiones que seguían en curso ya no recibirán respuesta
+            for (PendingRequest pending : pendingRequests.values()) {
+                pending.future.completeExceptionally(failure);
+            }
+            PendingRequest pending = untaggedRequest;
+            if (pending != null) {
+                pending.future.completeExceptionally(failure);
+            }
+        }
+    }
+
+    /**
+     * Avisos del servidor sobre su cola de ingesta (ver IngestQueue).
+     */
+    private void handleControlMessage(String encryptedLine) {
+        String message;
+        try {
+            message = controlOpener.openText(encryptedLine);
+        } catch (GeneralSecurityException e) {
+            System.err.println("Aviso del servidor inválido o no se pudo desencriptar: " + e.getMessage());
+            return;
+        }
+        if (message == null) {
+            return;
+        } else if (message.startsWith(IngestQueue.SLOW_DOWN)) {
+            try {
+                throttleMs = Long.parseLong(message.substring(IngestQueue.SLOW_DOWN.length()));
+                slowDownCount.incrementAndGet();
+                System.out.println("El servidor pide bajar el ritmo: pausa de " + throttleMs + " ms entre lotes.");
+            } catch (NumberFormatException e) {
+                System.err.println("Aviso SLOW_DOWN inválido: " + message);
+            }
+        } else if (message.startsWith(IngestQueue.ACK)) {
+            try {
+                acknowledgedCount.addAndGet(Long.parseLong(message.substring(IngestQueue.ACK.length())));
+            } catch (NumberFormatException e) {
+                System.err.println("Confirmación ACK inválida: " + message);
+            }
+        } else if (message.equals(IngestQueue.RESUME)) {
+            throttleMs = 0;
+            System.out.println("El servidor permite reanudar el ritmo normal.");
+        }
+    }
 
-            System.out.println("Datos históricos recibidos y procesados: " + historicalList.size() + " registros.");
-            return historicalList;
+    /**
+     * Lecturas que el servidor confirmó como guardadas en disco.
+     * Solo se confirman con un servidor que aceptó MUX; con uno antiguo queda en 0.
+     */
+    public long getAcknowledgedCount() {
+        return acknowledgedCount.get();
+    }
 
-        } catch (Exception e) {
-            System.err.println("Error al solicitar/recibir datos históricos: " + e.getMessage());
-            return historicalList;
+    /** Veces que el servidor pidió bajar el ritmo. */
+    public long getSlowDownCount() {
+        return slowDownCount.get();
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Convierte los registros delimitados de una página en objetos SensorData.
+     */
+    private List<SensorData> parseRecords(String delimitedRecords) {
+        List<SensorData> records = new ArrayList<>();
+        for (String record : delimitedRecords.split(DATA_DELIMITER)) {
+            try {
+                if (!record.trim().isEmpty()) {
+                    records.add(SensorData.fromHistoricalString(record.trim()));
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("Error al parsear registro histórico: " + record);
+            }
         }
+        return records;
     }
 
     /**
@@ -136,11 +919,16 @@ public class ClientConnection {
      */
     public void disconnect() {
         try {
+            // Dejar que el hilo emisor envíe lo que queda en la cola antes de cerrar
+            isConnected = false;
+            if (senderThread != null) {
+                senderThread.join(MAX_BATCH_DELAY_MS + 1000);
+            }
             if (socket != null) {
                 socket.close();
             }
-            isConnected = false;
-            System.out.println("Conexión con el servidor cerrada.");
+            System.out.println("Conexión con el servidor cerrada. Lecturas encoladas: " + queuedCount.get()
+                    + ", enviadas: " + sentCount.get() + ", descartadas: " + droppedCount.get());
         } catch (Exception e) {
             System.err.println("Error al cerrar la conexión: " + e.getMessage());
         }
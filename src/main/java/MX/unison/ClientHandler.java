@@ -1,68 +1,119 @@
 package MX.unison;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Hilo (Thread) que maneja la comunicación con un cliente específico.
- * Se encarga de recibir, desencriptar y procesar los datos del cliente, y responder peticiones de histórico.
+ * Se encarga de recibir y desencriptar los mensajes del cliente; el procesamiento
+ * (guardar datos y responder peticiones de histórico) lo realiza el MessageProcessor.
+ * Si el cliente negocia el protocolo binario, a partir de ese momento lee tramas (ver BinaryProtocol).
  */
-public class ClientHandler extends Thread {
+public class ClientHandler extends Thread implements ClientSession {
+    // Bytes de un día sellado que se copian de una vez; entre un tramo y otro pueden salir otras respuestas
+    private static final int FILE_SLICE_BYTES = 256 * 1024;
+    // Hilos que envían los avisos del canal de control (ACK, SLOW_DOWN/RESUME) de las conexiones sin
+    // respuestas en curso; nunca esperan el candado de escritura (ver acknowledge)
+    private static final int CONTROL_SENDER_THREADS = 2;
+    private static final ExecutorService CONTROL_SENDER = Executors.newFixedThreadPool(CONTROL_SENDER_THREADS, task -> {
+        Thread thread = new Thread(task, "control-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final String CONTROL_PREFIX = TaggedSession.tag(TaggedSession.CONTROL_ID, "");
+
     private Socket clientSocket;
-    private DataBaseManager dbManager;
+    private MessageProcessor processor;
     private PrintWriter out;
-    private BufferedReader in;
-
-    // Formato de fecha y hora para la DB
-    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
-    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+    // Stream del socket sin el PrintWriter, para copiar los días sellados
+    private OutputStream rawOut;
+    // Una línea (o un tramo de un día sellado) a la vez, aunque respondan varias peticiones.
+    // ReentrantLock y no synchronized: en el modo "virtual" un monitor fija el hilo portador
+    // mientras el socket está bloqueado
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Un día sellado a la vez, para que sus líneas sin marca no se mezclen con las de otro
+    private final ReentrantLock fileLock = new ReentrantLock();
+    private DataInputStream in;
+    private volatile boolean multiplexed;
+    // Cifrado de la conexión; cambia a GCM si se acuerda en la negociación
+    private volatile SessionCipher cipher = SessionCipher.LEGACY;
+    // Lecturas guardadas que aún no se confirman (ver acknowledge)
+    private final AtomicLong pendingAcks = new AtomicLong();
+    // Último aviso SLOW_DOWN/RESUME sin enviar (ver signalFlow)
+    private final AtomicReference<String> pendingFlow = new AtomicReference<>();
+    // Hay una tarea de CONTROL_SENDER en cola para esta conexión
+    private final AtomicBoolean controlScheduled = new AtomicBoolean(false);
 
-    // Delimitador para enviar múltiples registros de datos históricos en una sola cadena
-    private static final String DATA_DELIMITER = "|";
+    // Buffer reutilizado para las líneas de texto entrantes (Base64, solo ASCII)
+    private final StringBuilder lineBuffer = new StringBuilder();
 
-    public ClientHandler(Socket socket, DataBaseManager dbManager) {
+    public ClientHandler(Socket socket, MessageProcessor processor) {
         this.clientSocket = socket;
-        this.dbManager = dbManager;
+        this.processor = processor;
         System.out.println("Mensaje: Cliente conectado desde: " + socket.getInetAddress());
     }
 
     @Override
     public void run() {
         try {
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            rawOut = clientSocket.getOutputStream();
+            out = new PrintWriter(rawOut, true);
+            // Se lee del stream sin Reader para poder cambiar de líneas a tramas binarias sin perder bytes
+            in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
 
             String inputLine;
+            SessionCipher.LineOpener opener = cipher.newOpener();
             // El servidor lee los datos encriptados del cliente
-            while ((inputLine = in.readLine()) != null) {
+            while ((inputLine = readLine()) != null) {
                 // 1. Desencriptar el mensaje
-                String decryptedMessage = EncryptionUtil.decrypt(inputLine);
-
-                if (decryptedMessage == null) {
-                    System.err.println("Mensaje recibido inválido o no se pudo desencriptar.");
+                String decryptedMessage;
+                try {
+                    decryptedMessage = opener.openText(inputLine);
+                } catch (GeneralSecurityException e) {
+                    System.err.println("Mensaje recibido inválido o no se pudo desencriptar: " + e.getMessage());
                     continue;
                 }
+                if (decryptedMessage == null) {
+                    continue; // Bloque de un mensaje que sigue en la siguiente línea
+                }
 
                 System.out.println("Servidor recibió (Desencriptado): " + decryptedMessage);
 
-                // 2. Procesar el mensaje
-                if (decryptedMessage.startsWith("DATA:")) {
-                    processSensorData(decryptedMessage.substring(5).trim());
-                } else if (decryptedMessage.startsWith("HISTORICAL_REQUEST:")) {
-                    System.out.println("Mensaje: Cliente solicita datos históricos.");
-                    // En el futuro, aquí se procesarían los filtros (fecha/hora)
-                    sendHistoricalData();
+                // 2. Negociación del protocolo binario
+                if (BinaryProtocol.isNegotiation(decryptedMessage)) {
+                    BinaryProtocol.Negotiation negotiation = BinaryProtocol.negotiate(decryptedMessage, cipher);
+                    // La respuesta sale con el cifrado actual; lo que sigue, con el acordado
+                    sendMessage(negotiation.response);
+                    multiplexed = negotiation.multiplexed;
+                    cipher = negotiation.cipher;
+                    opener = cipher.newOpener();
+                    if (negotiation.binary) {
+                        System.out.println("Mensaje: Cliente usa el protocolo binario v" + BinaryProtocol.VERSION + ".");
+                        readBinaryFrames();
+                        break;
+                    }
+                    continue;
                 }
+
+                // 3. Procesar el mensaje
+                processor.process(decryptedMessage, this);
             }
 
         } catch (Exception e) {
@@ -75,120 +126,258 @@ public class ClientHandler extends Thread {
             } catch (Exception e) {
                 System.err.println("Error al cerrar el socket: " + e.getMessage());
             }
+            // Los avisos pendientes ya no tienen a quién llegar
+            pendingAcks.set(0);
+            pendingFlow.set(null);
+            processor.sessionClosed(this);
             System.out.println("Cliente desconectado.");
         }
     }
 
     /**
-     * Procesa y guarda los datos de los sensores en la base de datos.
-     * Formato esperado: "x=#, y=#, z=#"
-     * @param dataStr La cadena de datos del sensor.
+     * Lee una línea terminada en '\n' (ignora '\r').
+     * @return La línea, o null si el cliente cerró la conexión.
      */
-    private void processSensorData(String dataStr) {
-        try {
-            // Analizar la cadena para obtener x, y, z
-            int x = 0, y = 0, z = 0;
-            String[] parts = dataStr.split(", ");
-            for (String part : parts) {
-                if (part.startsWith("x:")) {
-                    x = Integer.parseInt(part.substring(2));
-                } else if (part.startsWith("y:")) {
-                    y = Integer.parseInt(part.substring(2));
-                } else if (part.startsWith("z:")) {
-                    z = Integer.parseInt(part.substring(2));
-                }
+    private String readLine() throws IOException {
+        lineBuffer.setLength(0);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                return lineBuffer.toString();
+            }
+            if (b != '\r') {
+                lineBuffer.append((char) b);
             }
-
-            // Obtener fecha y hora actual
-            LocalDateTime now = LocalDateTime.now();
-            String fecha = now.format(DATE_FORMAT);
-            String hora = now.format(TIME_FORMAT);
-
-            // Insertar en la DB
-            saveSensorData(x, y, z, fecha, hora);
-            System.out.println("Mensaje: Cliente envía datos para guardar. Datos guardados: X=" + x + ", Y=" + y + ", Z=" + z);
-
-        } catch (NumberFormatException e) {
-            System.err.println("Error de formato en los datos del sensor: " + e.getMessage());
-        } catch (Exception e) {
-            System.err.println("Error al procesar los datos: " + e.getMessage());
         }
+        return lineBuffer.length() > 0 ? lineBuffer.toString() : null;
     }
 
     /**
-     * Realiza la inserción de datos en la tabla 'datos_sensor'.
+     * Lee tramas binarias hasta que el cliente cierra la conexión.
      */
-    private void saveSensorData(int x, int y, int z, String fecha, String hora) {
-        String sql = "INSERT INTO datos_sensor(x, y, z, fecha_de_captura, hora_de_captura) VALUES(?, ?, ?, ?, ?)";
+    private void readBinaryFrames() throws IOException {
+        ByteBuffer frameBuffer = ByteBuffer.allocate(BinaryProtocol.HEADER_SIZE + BinaryProtocol.MAX_PAYLOAD);
+        BinaryProtocol.Frame frame = new BinaryProtocol.Frame();
+        while (true) {
+            frameBuffer.clear();
+            try {
+                in.readFully(frameBuffer.array(), 0, BinaryProtocol.HEADER_SIZE);
+            } catch (EOFException e) {
+                return; // Fin normal de la conexión
+            }
+            frameBuffer.limit(BinaryProtocol.HEADER_SIZE);
+            int length = BinaryProtocol.frameLength(frameBuffer);
+            in.readFully(frameBuffer.array(), BinaryProtocol.HEADER_SIZE, length - BinaryProtocol.HEADER_SIZE);
+            frameBuffer.limit(length);
 
-        try (Connection conn = dbManager.connect();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            try {
+                BinaryProtocol.decodeFrame(frameBuffer, cipher, frame);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Trama inválida: " + e.getMessage());
+                continue;
+            }
+            processor.processFrame(frame, this);
+        }
+    }
 
-            pstmt.setInt(1, x);
-            pstmt.setInt(2, y);
-            pstmt.setInt(3, z);
-            pstmt.setString(4, fecha);
-            pstmt.setString(5, hora);
+    /**
+     * Envía una línea ya cifrada, completa y sin mezclarse con las de otras peticiones.
+     */
+    @Override
+    public void sendEncryptedLine(String encryptedLine) {
+        writeLock.lock();
+        try {
+            out.println(encryptedLine);
+        } finally {
+            unlockWriter();
+        }
+    }
 
-            pstmt.executeUpdate();
+    /**
+     * Cifra y escribe el mensaje con el candado tomado, así las líneas salen en el orden de sus
+     * contadores aunque respondan varias peticiones a la vez (ver GcmSessionCipher).
+     */
+    @Override
+    public void sendSealed(String prefix, byte[] plainMessage) {
+        writeLock.lock();
+        try {
+            if (!writeSealed(prefix, plainMessage)) {
+                System.err.println("Error: Fallo al encriptar la respuesta.");
+            }
+        } finally {
+            unlockWriter();
+        }
+    }
 
-        } catch (SQLException e) {
-            System.err.println("Error al guardar en la DB: " + e.getMessage());
+    /**
+     * Solo con writeLock tomado.
+     * @return false si no se pudo cifrar.
+     */
+    private boolean writeSealed(String prefix, byte[] plainMessage) {
+        String[] encryptedLines = cipher.seal(plainMessage);
+        if (encryptedLines == null) {
+            return false;
+        }
+        for (String line : encryptedLines) {
+            out.println(prefix + line);
         }
+        return true;
     }
 
     /**
-     * Consulta todos los datos históricos de la base de datos, los serializa y los envía al cliente.
+     * Envía la cabecera y copia el archivo al socket. El Socket de un ServerSocket no tiene canal,
+     * así que transferTo pasa por un buffer intermedio en lugar de enviar directo desde el archivo
+     * (eso solo lo hace el modo "nio"); igual no se vuelve a codificar ni a cifrar nada.
+     * El archivo sale en tramos de FILE_SLICE_BYTES que terminan en un fin de línea, y el candado de
+     * escritura se suelta entre tramos: un cliente lento no detiene las demás respuestas ni los ACK
+     * durante toda la copia, y lo que se intercala son líneas completas con marca de petición.
      */
-    private void sendHistoricalData() {
-        String sql = "SELECT x, y, z, fecha_de_captura, hora_de_captura FROM datos_sensor ORDER BY id DESC";
-        List<SensorData> historicalData = new ArrayList<>();
-
-        try (Connection conn = dbManager.connect();
-             PreparedStatement pstmt = conn.prepareStatement(sql);
-             ResultSet rs = pstmt.executeQuery()) {
-
-            while (rs.next()) {
-                SensorData data = new SensorData(
-                        rs.getInt("x"),
-                        rs.getInt("y"),
-                        rs.getInt("z"),
-                        rs.getString("fecha_de_captura"),
-                        rs.getString("hora_de_captura")
-                );
-                historicalData.add(data);
+    @Override
+    public void sendSealedAndFile(String prefix, byte[] plainMessage, FileChannel file, long position, long count) throws IOException {
+        fileLock.lock();
+        try (FileChannel channel = file) {
+            writeLock.lock();
+            try {
+                if (!writeSealed(prefix, plainMessage)) {
+                    throw new IOException("Fallo al encriptar la cabecera del día sellado.");
+                }
+            } finally {
+                unlockWriter();
             }
+            WritableByteChannel target = Channels.newChannel(rawOut);
+            long end = position + count;
+            while (position < end) {
+                long sliceEnd = lineEndAfter(channel, Math.min(position + FILE_SLICE_BYTES, end), end);
+                writeLock.lock();
+                try {
+                    while (position < sliceEnd) {
+                        long sent = channel.transferTo(position, sliceEnd - position, target);
+                        if (sent <= 0) {
+                            throw new IOException("El archivo sellado terminó antes de lo esperado.");
+                        }
+                        position += sent;
+                    }
+                    rawOut.flush();
+                } finally {
+                    unlockWriter();
+                }
+            }
+        } finally {
+            fileLock.unlock();
+        }
+    }
 
-            // 1. Serializar la lista de datos a una sola cadena
-            StringBuilder sb = new StringBuilder();
-            for (SensorData data : historicalData) {
-                sb.append(data.toHistoricalString()).append(DATA_DELIMITER);
+    /**
+     * Posición justo después del primer '\n' desde 'from' (o 'end' si no hay más).
+     */
+    private static long lineEndAfter(FileChannel channel, long from, long end) throws IOException {
+        if (from >= end) {
+            return end;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+        long position = from - 1;
+        while (position < end) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                return end;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
             }
+            position += read;
+        }
+        return end;
+    }
 
-            String plainHistoricalData = sb.toString();
+    /**
+     * Suma las lecturas a la confirmación pendiente sin bloquear al escritor de la ingesta.
+     * La envía quien tenga el candado de escritura al soltarlo (ver unlockWriter) o, si la conexión
+     * no está respondiendo nada, un hilo de CONTROL_SENDER. Así un cliente lento ocupa a lo sumo el
+     * hilo que ya le estaba escribiendo, y no uno nuevo por cada confirmación.
+     */
+    @Override
+    public void acknowledge(int count) {
+        pendingAcks.addAndGet(count);
+        scheduleControl();
+    }
 
-            // Si hay datos, eliminar el último delimitador
-            if (plainHistoricalData.length() > 0) {
-                plainHistoricalData = plainHistoricalData.substring(0, plainHistoricalData.length() - DATA_DELIMITER.length());
-            } else {
-                plainHistoricalData = "NO_DATA";
-            }
+    /**
+     * Guarda el aviso y lo envía como los ACK; si llega otro antes, solo sale el último.
+     */
+    @Override
+    public void signalFlow(String signal) {
+        pendingFlow.set(signal);
+        scheduleControl();
+    }
 
-            // 2. Encriptar y enviar
-            String encryptedResponse = EncryptionUtil.encrypt(plainHistoricalData);
+    private void scheduleControl() {
+        if (controlScheduled.compareAndSet(false, true)) {
+            CONTROL_SENDER.execute(this::trySendControl);
+        }
+    }
 
-            if (encryptedResponse != null) {
-                out.println(encryptedResponse);
-                System.out.println("Mensaje: Se envían los datos solicitados. Total de registros: " + historicalData.size());
-            } else {
-                System.err.println("Error: Fallo al encriptar la respuesta histórica.");
+    /**
+     * Tarea de CONTROL_SENDER: si otro hilo tiene el candado no espera, ese hilo envía los avisos al soltarlo.
+     */
+    private void trySendControl() {
+        controlScheduled.set(false);
+        if (writeLock.tryLock()) {
+            try {
+                writeControl();
+            } finally {
+                unlockWriter();
             }
+        }
+    }
 
-        } catch (SQLException e) {
-            System.err.println("Error al leer datos históricos de la DB: " + e.getMessage());
-            // Enviar un mensaje de error al cliente si falla
-            String errorResponse = EncryptionUtil.encrypt("ERROR: Database read failed.");
-            if (errorResponse != null) out.println(errorResponse);
+    /**
+     * Suelta el candado de escritura y envía los avisos que llegaron mientras se escribía.
+     * Cada aviso se agrega antes de intentar tomar el candado, así que si aquí no se alcanza a tomar,
+     * el que lo tiene lo verá al soltarlo.
+     */
+    private void unlockWriter() {
+        writeLock.unlock();
+        while ((pendingAcks.get() > 0 || pendingFlow.get() != null) && writeLock.tryLock()) {
+            try {
+                writeControl();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Envía el aviso de ritmo y la confirmación pendientes. Solo con writeLock tomado.
+     */
+    private void writeControl() {
+        String signal = pendingFlow.getAndSet(null);
+        long count = pendingAcks.getAndSet(0);
+        if (!isOpen()) {
+            return;
         }
+        if (signal != null) {
+            writeSealed(CONTROL_PREFIX, signal.getBytes(StandardCharsets.UTF_8));
+        }
+        if (count > 0) {
+            writeSealed(CONTROL_PREFIX, (IngestQueue.ACK + count).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Override
+    public SessionCipher cipher() {
+        return cipher;
+    }
+
+    @Override
+    public boolean isMultiplexed() {
+        return multiplexed;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !clientSocket.isClosed();
     }
-}
\ No newline at end of file
+}
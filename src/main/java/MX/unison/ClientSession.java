@@ -0,0 +1,145 @@
+package MX.unison;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Representa la conexión de un cliente desde el punto de vista del protocolo.
+ * La implementan tanto el ClientHandler (un hilo por cliente) como las conexiones del NioServer,
+ * de modo que el MessageProcessor no necesita saber cómo se escriben las respuestas.
+ * Las implementaciones deben escribir cada línea completa de una vez, porque varias peticiones
+ * de la misma conexión pueden responder al mismo tiempo (ver TaggedSession).
+ */
+public interface ClientSession {
+
+    /**
+     * Envía una línea ya cifrada (Base64, sin el fin de línea).
+     * @param encryptedLine Línea cifrada.
+     */
+    void sendEncryptedLine(String encryptedLine);
+
+    /**
+     * Cifrado de la conexión: el anterior (clave fija) o el acordado en la negociación.
+     */
+    default SessionCipher cipher() {
+        return SessionCipher.LEGACY;
+    }
+
+    /**
+     * Indica si la conexión sigue abierta. Cuando el cliente se desconecta lo que se envía se descarta,
+     * así que quien recorre una respuesta larga puede dejar de leer.
+     */
+    default boolean isOpen() {
+        return true;
+    }
+
+    /**
+     * Indica si el cliente negoció MUX, es decir, si acepta líneas con identificador
+     * (respuestas a peticiones marcadas y mensajes del canal de control).
+     */
+    default boolean isMultiplexed() {
+        return false;
+    }
+
+    /**
+     * Confirma 'count' lecturas guardadas ("ACK:n" en el canal de control) sin bloquear a quien
+     * llama: el conteo se suma al de la confirmación pendiente y lo envía la propia conexión.
+     * El cliente suma los ACK, así que juntar varios en uno no cambia el total.
+     * Por omisión no hace nada (solo las conexiones reales confirman).
+     */
+    default void acknowledge(int count) {
+    }
+
+    /**
+     * Envía un aviso de ritmo ("SLOW_DOWN:ms" o "RESUME") por el canal de control sin bloquear a quien
+     * llama, igual que acknowledge(): lo envía la propia conexión, y si llega otro aviso antes de que
+     * salga el anterior solo se envía el último.
+     * Por omisión no hace nada.
+     */
+    default void signalFlow(String signal) {
+    }
+
+    /**
+     * Encripta y envía un mensaje de texto al cliente como una línea.
+     * @param plainMessage Mensaje en texto plano.
+     */
+    default void sendMessage(String plainMessage) {
+        sendSealed("", plainMessage.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encripta y envía un mensaje binario (p.ej. una página comprimida) como una línea en Base64.
+     * Con el cifrado GCM un mensaje grande puede salir en varias líneas (bloques) consecutivas.
+     * @param plainMessage Bytes en claro.
+     */
+    default void sendMessageBytes(byte[] plainMessage) {
+        sendSealed("", plainMessage);
+    }
+
+    /**
+     * Encripta y envía un mensaje y, después, 'count' bytes de un archivo que ya contiene líneas
+     * completas terminadas en '\n' (un día sellado, ver SealedHistory). Las líneas del archivo
+     * salen tal cual, sin marca de petición; entre ellas solo se pueden intercalar líneas completas
+     * con marca, nunca las de otro archivo ni respuestas sin marca.
+     * La sesión cierra 'file' al terminar de enviarlo, aunque falle.
+     */
+    default void sendMessageAndFile(String plainMessage, FileChannel file, long position, long count) throws IOException {
+        sendSealedAndFile("", plainMessage.getBytes(StandardCharsets.UTF_8), file, position, count);
+    }
+
+    /**
+     * Encripta el mensaje y envía sus líneas con 'prefix' delante (la marca de TaggedSession).
+     * Con GCM el receptor rechaza un contador menor que el último que recibió, así que las líneas
+     * deben salir en el orden en que se cifraron: las conexiones reales cifran y encolan en un
+     * solo paso; esta versión solo sirve para sesiones de un hilo.
+     */
+    default void sendSealed(String prefix, byte[] plainMessage) {
+        String[] encryptedLines = cipher().seal(plainMessage);
+        if (encryptedLines == null) {
+            System.err.println("Error: Fallo al encriptar la respuesta.");
+            return;
+        }
+        for (String line : encryptedLines) {
+            sendEncryptedLine(prefix + line);
+        }
+    }
+
+    /**
+     * Como sendSealed() seguido del archivo (ver sendMessageAndFile()).
+     * Por omisión lee el archivo y envía sus líneas una por una; las conexiones reales lo reemplazan.
+     */
+    default void sendSealedAndFile(String prefix, byte[] plainMessage, FileChannel file, long position, long count) throws IOException {
+        try (FileChannel channel = file) {
+            String[] encryptedLines = cipher().seal(plainMessage);
+            if (encryptedLines == null) {
+                throw new IOException("Fallo al encriptar la cabecera del archivo.");
+            }
+            for (String line : encryptedLines) {
+                sendEncryptedLine(prefix + line);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+            StringBuilder line = new StringBuilder();
+            long end = position + count;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("El archivo terminó antes de lo esperado.");
+                }
+                position += read;
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    char c = (char) buffer.get();
+                    if (c == '\n') {
+                        sendEncryptedLine(line.toString());
+                        line.setLength(0);
+                    } else {
+                        line.append(c);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package MX.unison;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Clase utilitaria para comprimir las páginas del histórico antes de cifrarlas.
+ *
+ * Las filas del histórico son texto muy repetitivo ("x:", ", fecha:2026-..."), así que Deflate
+ * las reduce varias veces; como la compresión ocurre antes del cifrado, también se reduce el Base64.
+ * Cada página se comprime por separado (formato Deflate sin cabecera zlib) para que el cliente
+ * pueda descomprimirla en cuanto llega.
+ */
+public class CompressionUtil {
+
+    public static final String NONE = "none";
+    public static final String DEFLATE = "deflate";
+    // Lecturas codificadas por columnas con SeriesCodec (los agregados van con Deflate)
+    public static final String SERIES = "serie";
+
+    // Nivel por defecto del servidor si el cliente no pide uno (1 = más rápido, 9 = más compacto)
+    public static final int DEFAULT_LEVEL = clampLevel(Integer.getInteger("monitor.compresion.nivel", 6));
+
+    /**
+     * Ajusta un nivel pedido al rango válido de Deflate (1 a 9).
+     */
+    public static int clampLevel(int level) {
+        return Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+    }
+
+    /**
+     * Crea un compresor para una respuesta; se reutiliza entre páginas y se libera con end().
+     */
+    public static Deflater newDeflater(int level) {
+        return new Deflater(clampLevel(level), true);
+    }
+
+    /**
+     * Comprime 'length' bytes de 'input' y los agrega a 'prefix'.
+     * @param deflater Compresor de la respuesta (se reinicia en cada llamada).
+     * @param prefix Bytes que van antes de los datos comprimidos (p.ej. el encabezado de la página).
+     * @return prefix + datos comprimidos.
+     */
+    public static byte[] deflate(Deflater deflater, byte[] prefix, byte[] input, int length) {
+        deflater.reset();
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+
+        byte[] output = Arrays.copyOf(prefix, prefix.length + Math.max(64, length / 4));
+        int size = prefix.length;
+        while (!deflater.finished()) {
+            if (size == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            size += deflater.deflate(output, size, output.length - size);
+        }
+        return size == output.length ? output : Arrays.copyOf(output, size);
+    }
+
+    /**
+     * Descomprime los datos que empiezan en 'offset'.
+     * @param inflater Descompresor de la respuesta (se reinicia en cada llamada).
+     * @throws DataFormatException si los datos no son Deflate válido.
+     */
+    public static byte[] inflate(Inflater inflater, byte[] input, int offset) throws DataFormatException {
+        inflater.reset();
+        inflater.setInput(input, offset, input.length - offset);
+
+        byte[] output = new byte[Math.max(256, (input.length - offset) * 4)];
+        int size = 0;
+        while (!inflater.finished()) {
+            if (size == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            int read = inflater.inflate(output, size, output.length - size);
+            if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("Página comprimida incompleta.");
+            }
+            size += read;
+        }
+        return Arrays.copyOf(output, size);
+    }
+}
@@ -1,19 +1,108 @@
 package MX.unison;
 
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class DataBaseManager {
+/**
+ * Acceso a la base de datos SQLite.
+ *
+ * La base corre en modo WAL: las lecturas ven la última versión confirmada sin bloquear al que
+ * escribe ni ser bloqueadas por él, así un histórico largo ya no frena la ingesta. Hay un solo
+ * escritor en SQLite, por eso el servidor usa dos pools de conexiones de larga duración:
+ *  - borrowWriter(): la única conexión de escritura (la usa el escritor de la IngestQueue).
+ *  - borrowReader(): conexiones de solo lectura (PRAGMA query_only) para las consultas del histórico.
+ * Cada conexión del pool guarda sus PreparedStatement por SQL, así que el INSERT y las consultas
+ * del histórico se preparan una sola vez por conexión. connect() sigue abriendo una conexión nueva
+ * para herramientas y tareas sueltas (crear tablas, benchmarks).
+ *
+ * El escritor no hace los checkpoints del WAL (wal_autocheckpoint = 0): un hilo en segundo plano
+ * copia el WAL a la base cada monitor.db.checkpoint segundos, sin esperar a lectores ni al escritor.
+ *
+ * Las lecturas se guardan en una tabla por día (ver Partitions). Con monitor.db.retencion > 0 un
+ * hilo en segundo plano (desde createTable()) elimina cada hora las particiones de los días más
+ * antiguos que ese número de días.
+ *
+ * Configuración: monitor.db.conexiones (lectores), monitor.db.espera (ms máximos para obtener una
+ * conexión), monitor.db.synchronous, monitor.db.cache (KiB por conexión), monitor.db.mmap (bytes),
+ * monitor.db.checkpoint (segundos; 0 = checkpoint automático de SQLite) y monitor.db.retencion
+ * (días de lecturas que se conservan; 0 = todas).
+ */
+public class DataBaseManager implements AutoCloseable {
 
     // Nombre del archivo de la base de datos SQLite
     private static final String DB_NAME = "monitorBD.db";
-    // URL de conexión a la base de datos SQLite
-    private static final String URL = "jdbc:sqlite:" + DB_NAME;
+
+    // Nombre base de las particiones de lecturas (y de la tabla única del esquema 2)
+    public static final String TABLE = "lecturas";
+    // Tabla del esquema 1, que se migra en línea
+    public static final String LEGACY_TABLE = "datos_sensor";
+    public static final int SCHEMA_VERSION = 3;
+    // Cada cuánto se aplica la política de retención
+    private static final long RETENTION_INTERVAL_MS = 3_600_000L;
+
+    // Sentencias guardadas por conexión (las menos usadas se cierran al pasar el límite)
+    private static final int MAX_CACHED_STATEMENTS = 32;
+    // Espera de SQLite cuando otra conexión tiene el archivo bloqueado, en ms
+    private static final int BUSY_TIMEOUT_MS = 5000;
+
+    // Archivo y URL de conexión a la base de datos SQLite
+    private final String dbPath;
+    private final String url;
+
+    // Pragmas de las conexiones del pool. Con WAL, synchronous=NORMAL no arriesga la base si se cae
+    // el proceso; solo las últimas transacciones si se cae el sistema operativo.
+    private final String synchronous = System.getProperty("monitor.db.synchronous", "NORMAL");
+    private final long cacheKib = Long.getLong("monitor.db.cache", 16 * 1024);
+    private final long mmapBytes = Long.getLong("monitor.db.mmap", 256L * 1024 * 1024);
+    private final long checkpointSeconds = Long.getLong("monitor.db.checkpoint", 5);
+    private final long borrowTimeoutMs = Long.getLong("monitor.db.espera", 30000);
+    private final long retentionDays = Long.getLong("monitor.db.retencion", 0);
+
+    private final ConnectionPool writers = new ConnectionPool("escritura", 1, false);
+    private final ConnectionPool readers =
+            new ConnectionPool("lectura", Math.max(1, Integer.getInteger("monitor.db.conexiones", 8)), true);
+    private volatile boolean closed = false;
+    private volatile boolean legacyTable = false;
+    private final Partitions partitions = new Partitions();
+
+    // Se prepara el modo WAL y el hilo de checkpoints con la primera conexión del pool
+    private boolean walReady = false;
+    private Thread checkpointThread;
+    private Thread retentionThread;
+    private final AtomicLong checkpointCount = new AtomicLong();
+
+    public DataBaseManager() {
+        this(DB_NAME);
+    }
 
     /**
-     * Establece y retorna la conexión a la base de datos.
+     * @param dbPath Ruta del archivo SQLite (usado por herramientas y benchmarks).
+     */
+    public DataBaseManager(String dbPath) {
+        this.dbPath = dbPath;
+        this.url = "jdbc:sqlite:" + dbPath;
+    }
+
+    /**
+     * Establece y retorna una conexión nueva (fuera del pool); quien la pide la cierra.
+     * No se informa en la salida, porque las herramientas la piden a menudo; las del pool
+     * se informan cuando el pool crece (ver openPooled()).
      * @return Objeto Connection si la conexión es exitosa, null en caso contrario.
      */
     public Connection connect() {
@@ -21,8 +110,7 @@ public class DataBaseManager {
         try {
             // Carga el driver de SQLite (aunque con versiones recientes de JDBC esto puede no ser necesario)
             // Class.forName("org.sqlite.JDBC");
-            conn = DriverManager.getConnection(URL);
-            System.out.println("Conexión a SQLite establecida.");
+            conn = DriverManager.getConnection(url);
         } catch (SQLException e) {
             System.err.println("Error al conectar a la base de datos: " + e.getMessage());
         }
@@ -30,29 +118,534 @@ public class DataBaseManager {
     }
 
     /**
-     * Crea la tabla 'datos_sensor' si no existe, siguiendo el esquema del proyecto.
-     * Esquema: id, x, y, z, fecha_de_captura, hora_de_captura.
+     * Toma la conexión de escritura; se devuelve con close() (try-with-resources).
+     * Solo hay una, así que las escrituras quedan en fila en lugar de pelear por el bloqueo de SQLite.
+     * @throws SQLException si no hay conexión a tiempo, el pool está cerrado o no se pudo abrir.
      */
-    public void createTable() {
-        // SQL para crear la tabla
-        String sql = "CREATE TABLE IF NOT EXISTS datos_sensor (\n"
-                + " id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL,\n"
-                + " x INTEGER NOT NULL,\n"
-                + " y INTEGER NOT NULL,\n"
-                + " z INTEGER NOT NULL,\n"
-                + " fecha_de_captura TEXT NOT NULL,\n" // Usaremos TEXT para almacenar la fecha y hora
-                + " hora_de_captura TEXT NOT NULL\n"
-                + ");";
+    public PooledConnection borrowWriter() throws SQLException {
+        return writers.borrow();
+    }
+
+    /**
+     * Toma una conexión de solo lectura; se devuelve con close() (try-with-resources).
+     * Si todas están ocupadas espera hasta monitor.db.espera ms.
+     * @throws SQLException si no hay conexión a tiempo, el pool está cerrado o no se pudo abrir una nueva.
+     */
+    public PooledConnection borrowReader() throws SQLException {
+        return readers.borrow();
+    }
+
+    public ConnectionPool getWriterPool() {
+        return writers;
+    }
+
+    public ConnectionPool getReaderPool() {
+        return readers;
+    }
+
+    public Partitions getPartitions() {
+        return partitions;
+    }
+
+    /** Checkpoints del WAL hechos por el hilo en segundo plano. */
+    public long getCheckpointCount() {
+        return checkpointCount.get();
+    }
+
+    /**
+     * Resumen de las métricas de los pools para los reportes del servidor.
+     */
+    public String describePool() {
+        return "Pool DB: " + writers.describe() + "; " + readers.describe() + "; checkpoints " + checkpointCount.get();
+    }
+
+    /**
+     * Pone la base en modo WAL (queda guardado en el archivo) y arranca el hilo de checkpoints.
+     */
+    private synchronized void prepareWal() throws SQLException {
+        if (walReady) {
+            return;
+        }
+        try (Connection conn = DriverManager.getConnection(url);
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MS);
+            try (ResultSet rs = stmt.executeQuery("PRAGMA journal_mode = WAL")) {
+                String mode = rs.next() ? rs.getString(1) : "?";
+                if (!"wal".equalsIgnoreCase(mode)) {
+                    System.err.println("SQLite no aceptó el modo WAL (modo actual: " + mode + ").");
+                }
+            }
+        }
+        if (checkpointSeconds > 0) {
+            checkpointThread = new Thread(this::runCheckpoints, "db-checkpoint");
+            checkpointThread.setDaemon(true);
+            checkpointThread.start();
+        }
+        walReady = true;
+    }
+
+    private Connection openPooled(ConnectionPool pool) throws SQLException {
+        prepareWal();
+        Connection conn = DriverManager.getConnection(url);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MS);
+            stmt.execute("PRAGMA synchronous = " + synchronous);
+            stmt.execute("PRAGMA cache_size = -" + cacheKib);
+            stmt.execute("PRAGMA mmap_size = " + mmapBytes);
+            if (pool.readOnly) {
+                stmt.execute("PRAGMA query_only = 1");
+            } else if (checkpointSeconds > 0) {
+                stmt.execute("PRAGMA wal_autocheckpoint = 0");
+            }
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+        System.out.println("Conexión a SQLite del pool de " + pool.name + " establecida ("
+                + pool.openCount.incrementAndGet() + "/" + pool.size + ").");
+        return conn;
+    }
+
+    /**
+     * Hilo de checkpoints: con su propia conexión copia el WAL a la base (PASSIVE: no espera a nadie;
+     * lo que no pudo copiar queda para la siguiente vuelta).
+     */
+    private void runCheckpoints() {
+        try (Connection conn = DriverManager.getConnection(url);
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MS);
+            while (!closed) {
+                try {
+                    Thread.sleep(checkpointSeconds * 1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    stmt.execute("PRAGMA wal_checkpoint(PASSIVE)");
+                    checkpointCount.incrementAndGet();
+                } catch (SQLException e) {
+                    System.err.println("Error en el checkpoint del WAL: " + e.getMessage());
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("No se pudo abrir la conexión de checkpoints: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Arranca el hilo de retención si está configurada (una sola vez).
+     */
+    private synchronized void startRetention() {
+        if (retentionDays <= 0 || retentionThread != null || closed) {
+            return;
+        }
+        retentionThread = new Thread(this::runRetention, "db-retencion");
+        retentionThread.setDaemon(true);
+        retentionThread.start();
+    }
+
+    /**
+     * Hilo de retención: al arrancar y luego cada hora elimina las particiones vencidas.
+     */
+    private void runRetention() {
+        while (!closed) {
+            try {
+                applyRetention(System.currentTimeMillis() - retentionDays * Partitions.DAY_MS);
+            } catch (SQLException e) {
+                System.err.println("Error al aplicar la retención de lecturas: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(RETENTION_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Elimina las particiones de los días que terminaron antes de 'cutoffMs', con la conexión de
+     * escritura (se turna con los lotes de la ingesta). Los rollups se conservan.
+     * @return Cantidad de particiones eliminadas.
+     */
+    public int applyRetention(long cutoffMs) throws SQLException {
+        try (PooledConnection conn = borrowWriter()) {
+            return partitions.dropBefore(conn, cutoffMs);
+        }
+    }
+
+    /**
+     * Cierra los pools: espera a que se devuelvan las conexiones prestadas (hasta monitor.db.espera ms),
+     * cierra sentencias y conexiones, y deja el WAL vacío con un último checkpoint.
+     * Después de esto borrowReader()/borrowWriter() fallan.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Thread checkpointer;
+        Thread retention;
+        synchronized (this) {
+            checkpointer = checkpointThread;
+            retention = retentionThread;
+        }
+        if (checkpointer != null) {
+            checkpointer.interrupt();
+        }
+        if (retention != null) {
+            retention.interrupt();
+        }
+        writers.close();
+        readers.close();
+        if (walReady) {
+            try (Connection conn = DriverManager.getConnection(url);
+                 Statement stmt = conn.createStatement()) {
+                stmt.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MS);
+                stmt.execute("PRAGMA wal_checkpoint(TRUNCATE)");
+            } catch (SQLException e) {
+                System.err.println("Error en el checkpoint final del WAL: " + e.getMessage());
+            }
+        }
+        System.out.println("Pool de conexiones cerrado. " + describePool());
+    }
 
+    /**
+     * Conjunto de conexiones del mismo tipo (escritura o lectura), abiertas a demanda hasta 'size'.
+     */
+    public final class ConnectionPool {
+        private final String name;
+        private final int size;
+        private final boolean readOnly;
+        private final Semaphore permits;
+        private final Deque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+
+        // Métricas
+        private final AtomicInteger activeCount = new AtomicInteger();
+        private final AtomicInteger openCount = new AtomicInteger();
+        private final AtomicLong borrowCount = new AtomicLong();
+        private final AtomicLong borrowWaitNanos = new AtomicLong();
+        private final AtomicLong maxBorrowWaitNanos = new AtomicLong();
+
+        private ConnectionPool(String name, int size, boolean readOnly) {
+            this.name = name;
+            this.size = size;
+            this.readOnly = readOnly;
+            this.permits = new Semaphore(size, true);
+        }
+
+        private PooledConnection borrow() throws SQLException {
+            if (closed) {
+                throw new SQLException("El pool de conexiones está cerrado.");
+            }
+            long start = System.nanoTime();
+            try {
+                if (!permits.tryAcquire(borrowTimeoutMs, TimeUnit.MILLISECONDS)) {
+                    throw new SQLException("No hay conexiones de " + name + " libres después de " + borrowTimeoutMs + " ms.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrumpido mientras esperaba una conexión.", e);
+            }
+            long waited = System.nanoTime() - start;
+            borrowCount.incrementAndGet();
+            borrowWaitNanos.addAndGet(waited);
+            maxBorrowWaitNanos.accumulateAndGet(waited, Math::max);
+
+            PooledConnection pooled = idle.pollFirst();
+            if (pooled == null) {
+                try {
+                    pooled = new PooledConnection(this, openPooled(this));
+                } catch (SQLException e) {
+                    permits.release();
+                    throw e;
+                }
+            }
+            activeCount.incrementAndGet();
+            return pooled;
+        }
+
+        private void giveBack(PooledConnection pooled, boolean broken) {
+            activeCount.decrementAndGet();
+            if (broken || closed) {
+                pooled.closeQuietly();
+            } else {
+                // La más reciente primero: conserva "calientes" las sentencias y la caché de páginas
+                idle.offerFirst(pooled);
+            }
+            permits.release();
+        }
+
+        private void close() {
+            try {
+                // Tomar todos los permisos equivale a esperar a que no haya conexiones prestadas
+                if (!permits.tryAcquire(size, borrowTimeoutMs, TimeUnit.MILLISECONDS)) {
+                    System.err.println("Se cierra el pool de " + name + " con " + activeCount.get() + " conexiones aún en uso.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            PooledConnection pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                pooled.closeQuietly();
+            }
+        }
+
+        /** Conexiones prestadas en este momento. */
+        public int getActiveCount() {
+            return activeCount.get();
+        }
+
+        /** Conexiones abiertas y libres en el pool. */
+        public int getIdleCount() {
+            return idle.size();
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        /** Préstamos atendidos desde el inicio. */
+        public long getBorrowCount() {
+            return borrowCount.get();
+        }
+
+        /** Espera promedio para obtener una conexión, en microsegundos. */
+        public double getAverageBorrowWaitMicros() {
+            long count = borrowCount.get();
+            return count == 0 ? 0 : borrowWaitNanos.get() / 1000.0 / count;
+        }
+
+        /** Espera máxima para obtener una conexión, en microsegundos. */
+        public double getMaxBorrowWaitMicros() {
+            return maxBorrowWaitNanos.get() / 1000.0;
+        }
+
+        private String describe() {
+            return String.format("%s: activas %d, libres %d, tamaño %d, préstamos %d, espera media %.1f us, máxima %.1f us",
+                    name, getActiveCount(), getIdleCount(), size, getBorrowCount(),
+                    getAverageBorrowWaitMicros(), getMaxBorrowWaitMicros());
+        }
+    }
+
+    /**
+     * Conexión prestada del pool. close() la devuelve (no la cierra) y deja la transacción limpia.
+     * No es segura entre hilos: la usa solo quien la pidió, hasta devolverla.
+     */
+    public final class PooledConnection implements AutoCloseable {
+        private final ConnectionPool pool;
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements =
+                new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                        if (size() > MAX_CACHED_STATEMENTS) {
+                            closeStatement(eldest.getValue());
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+        private boolean broken = false;
+
+        private PooledConnection(ConnectionPool pool, Connection connection) {
+            this.pool = pool;
+            this.connection = connection;
+        }
+
+        /**
+         * Sentencia preparada para el SQL, reutilizada entre préstamos; no se debe cerrar.
+         * Los parámetros anteriores se limpian antes de devolverla.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            } else {
+                statement.clearParameters();
+            }
+            return statement;
+        }
+
+        /**
+         * Conexión JDBC subyacente (para transacciones o sentencias sueltas); no se debe cerrar.
+         */
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Marca la conexión como inservible: al devolverla se cierra en lugar de volver al pool.
+         */
+        public void markBroken() {
+            broken = true;
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (!broken && !connection.getAutoCommit()) {
+                    // Una transacción a medias no debe pasar al siguiente préstamo
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                broken = true;
+            }
+            pool.giveBack(this, broken);
+        }
+
+        private void closeQuietly() {
+            List<PreparedStatement> cached = new ArrayList<>(statements.values());
+            statements.clear();
+            for (PreparedStatement statement : cached) {
+                closeStatement(statement);
+            }
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                System.err.println("Error al cerrar una conexión del pool: " + e.getMessage());
+            }
+            pool.openCount.decrementAndGet();
+        }
+
+        private void closeStatement(PreparedStatement statement) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                System.err.println("Error al cerrar una sentencia: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Prepara el esquema versión SCHEMA_VERSION y carga el catálogo de particiones.
+     * Las lecturas van en una tabla por día ('lecturas_AAAAMMDD', ver Partitions) con el esquema:
+     * id, dispositivo, capturado_ms (milisegundos desde 1970, UTC), x, y, z, y un índice por
+     * momento de captura para las consultas por rango. Las particiones se crean al llegar la
+     * primera lectura de cada día. También crea las tablas de rollup (ver Rollup) y de histogramas
+     * de cuantiles (ver Quantiles).
+     *
+     * Una base del esquema 2 (todas las lecturas en 'lecturas') se reparte aquí en particiones,
+     * un día por transacción. Las bases del esquema 1 guardaban las lecturas en 'datos_sensor'
+     * con fecha y hora como TEXT; esa tabla no se toca aquí: la vacía SchemaMigration por lotes
+     * mientras el servidor sigue atendiendo, y las consultas la incluyen mientras exista
+     * (ver hasLegacyTable()).
+     */
+    public void createTable() {
         try (Connection conn = connect();
              Statement stmt = conn.createStatement()) {
 
-            // Ejecuta el SQL para crear la tabla
-            stmt.execute(sql);
-            System.out.println("Tabla 'datos_sensor' creada o ya existe.");
+            if (tableExists(conn, TABLE)) {
+                splitUnpartitionedTable(conn);
+            }
+            partitions.load(conn);
+            stmt.execute("PRAGMA user_version = " + SCHEMA_VERSION);
+            System.out.println("Lecturas en " + partitions.size() + " particiones por día.");
+
+            // Agregados por minuto, hora y día que se actualizan con cada lote de la ingesta
+            Rollup.createTables(conn);
+            // Histogramas de cuantiles por dispositivo, hora y día, también incrementales
+            Quantiles.createTables(conn);
+
+            legacyTable = tableExists(conn, LEGACY_TABLE);
+            if (legacyTable) {
+                System.out.println("La base tiene lecturas en el esquema anterior ('" + LEGACY_TABLE + "'); falta migrarlas.");
+            }
+            startRetention();
 
         } catch (SQLException e) {
             System.err.println("Error al crear la tabla: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Prepara el acceso a una base ya creada por el servidor, para herramientas que solo leen
+     * (p.ej. HistoryExport): carga el catálogo de particiones sin crear tablas, migrar ni arrancar
+     * la retención.
+     * @throws SQLException si el archivo no existe o su esquema no es el actual (SCHEMA_VERSION).
+     */
+    public void openExisting() throws SQLException {
+        if (!Files.isRegularFile(Paths.get(dbPath))) {
+            throw new SQLException("No existe la base de datos '" + dbPath + "'.");
+        }
+        try (Connection conn = DriverManager.getConnection(url);
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA query_only = 1");
+            int version;
+            try (ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+                version = rs.next() ? rs.getInt(1) : 0;
+            }
+            if (version != SCHEMA_VERSION) {
+                throw new SQLException("La base '" + dbPath + "' tiene el esquema " + version + " y se espera el "
+                        + SCHEMA_VERSION + "; hay que abrirla primero con el servidor para migrarla.");
+            }
+            partitions.load(conn);
+            legacyTable = tableExists(conn, LEGACY_TABLE);
+        }
+    }
+
+    /**
+     * Reparte la tabla única del esquema 2 en particiones por día y la elimina.
+     * Cada día se copia y se borra de la tabla en una transacción, así que si se interrumpe
+     * el siguiente arranque continúa sin duplicar filas.
+     */
+    private void splitUnpartitionedTable(Connection conn) throws SQLException {
+        long start = System.nanoTime();
+        long moved = 0;
+        boolean autoCommit = conn.getAutoCommit();
+        try (PreparedStatement first = conn.prepareStatement("SELECT MIN(capturado_ms) FROM " + TABLE)) {
+            while (true) {
+                long day;
+                try (ResultSet rs = first.executeQuery()) {
+                    rs.next();
+                    day = rs.getLong(1);
+                    if (rs.wasNull()) {
+                        break;
+                    }
+                }
+                day = Partitions.dayStart(day);
+                String table = Partitions.tableName(day);
+                conn.setAutoCommit(false);
+                try (Statement stmt = conn.createStatement()) {
+                    Partitions.create(conn, table);
+                    String range = " WHERE capturado_ms >= " + day + " AND capturado_ms < " + (day + Partitions.DAY_MS);
+                    moved += stmt.executeUpdate("INSERT INTO " + table + "(dispositivo, capturado_ms, x, y, z)"
+                            + " SELECT dispositivo, capturado_ms, x, y, z FROM " + TABLE + range + " ORDER BY capturado_ms, id");
+                    stmt.executeUpdate("DELETE FROM " + TABLE + range);
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(autoCommit);
+                }
+            }
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP TABLE " + TABLE);
+        }
+        System.out.printf("Tabla '%s' repartida en particiones por día: %d lecturas en %.1f s.%n",
+                TABLE, moved, (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Indica si aún existe la tabla del esquema anterior (fecha y hora como TEXT).
+     * Se consulta una vez en createTable() y se actualiza al terminar la migración.
+     */
+    public boolean hasLegacyTable() {
+        return legacyTable;
+    }
+
+    void setLegacyTable(boolean present) {
+        this.legacyTable = present;
+    }
+
+    static boolean tableExists(Connection conn, String table) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(
+                "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?")) {
+            pstmt.setString(1, table);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+}
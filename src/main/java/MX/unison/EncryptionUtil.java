@@ -2,69 +2,170 @@ package MX.unison;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Base64;
 
 /**
  * Clase utilitaria para encriptar y desencriptar mensajes usando AES.
+ *
+ * La clave se deriva una sola vez al cargar la clase y cada hilo reutiliza sus propios objetos Cipher
+ * (Cipher no es seguro entre hilos), así que los métodos se pueden llamar desde cualquier hilo
+ * sin sincronización y sin crear objetos de cifrado por mensaje.
+ * Además de las variantes con String (Base64), hay variantes con byte[] y ByteBuffer que evitan
+ * la conversión a UTF-8 y Base64 cuando el protocolo ya trabaja en binario.
  */
 public class EncryptionUtil {
 
     // Clave secreta fija para el cifrado AES. DEBE SER IGUAL EN CLIENTE Y SERVIDOR.
     private static final String SECRET_KEY = "UNISON_MONITOR_KEY";
 
-    private static SecretKeySpec secretKey;
+    private static final String TRANSFORMATION = "AES/ECB/PKCS5Padding"; // ECB es simple, PKCS5Padding para relleno
+    private static final int BLOCK_SIZE = 16;
+
+    private static final SecretKeySpec secretKey = deriveKey();
+
+    // Un Cipher por hilo y por dirección, inicializado una vez; doFinal lo deja listo para el siguiente mensaje
+    private static final ThreadLocal<Cipher> ENCRYPT_CIPHER = ThreadLocal.withInitial(() -> newCipher(Cipher.ENCRYPT_MODE));
+    private static final ThreadLocal<Cipher> DECRYPT_CIPHER = ThreadLocal.withInitial(() -> newCipher(Cipher.DECRYPT_MODE));
 
     /**
      * Prepara la clave AES.
      * Crea una clave de 128 bits (16 bytes) a partir de la clave secreta usando SHA-1.
      */
-    private static void setKey() {
-        MessageDigest sha = null;
+    private static SecretKeySpec deriveKey() {
         try {
             byte[] key = SECRET_KEY.getBytes(StandardCharsets.UTF_8);
-            sha = MessageDigest.getInstance("SHA-1");
+            MessageDigest sha = MessageDigest.getInstance("SHA-1");
             key = sha.digest(key);
             key = Arrays.copyOf(key, 16); // Usar solo los primeros 16 bytes para AES-128
-            secretKey = new SecretKeySpec(key, "AES");
+            return new SecretKeySpec(key, "AES");
         } catch (Exception e) {
-            System.err.println("Error al configurar la clave de encriptación: " + e.getMessage());
+            throw new IllegalStateException("Error al configurar la clave de encriptación: " + e.getMessage(), e);
         }
     }
 
+    private static Cipher newCipher(int mode) {
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(mode, secretKey);
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("No se pudo crear el cifrador AES: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Tamaño cifrado de un mensaje de 'plainLength' bytes (el relleno siempre agrega de 1 a 16 bytes).
+     */
+    public static int encryptedSize(int plainLength) {
+        return (plainLength / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
     /**
      * Encripta una cadena de texto.
      * @param strToEncrypt Cadena a encriptar.
      * @return Cadena encriptada en formato Base64.
      */
     public static String encrypt(String strToEncrypt) {
+        byte[] encrypted = encryptBytes(strToEncrypt.getBytes(StandardCharsets.UTF_8));
+        return encrypted != null ? Base64.getEncoder().encodeToString(encrypted) : null;
+    }
+
+    /**
+     * Desencripta una cadena de texto.
+     * @param strToDecrypt Cadena encriptada en formato Base64.
+     * @return Cadena desencriptada.
+     */
+    public static String decrypt(String strToDecrypt) {
+        byte[] encrypted;
         try {
-            setKey();
-            Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding"); // ECB es simple, PKCS5Padding para relleno
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-            return Base64.getEncoder().encodeToString(cipher.doFinal(strToEncrypt.getBytes(StandardCharsets.UTF_8)));
+            encrypted = Base64.getDecoder().decode(strToDecrypt);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error al desencriptar: " + e.getMessage());
+            return null;
+        }
+        byte[] plain = decryptBytes(encrypted);
+        return plain != null ? new String(plain, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Encripta bytes sin pasar por Base64 (usado por el protocolo binario).
+     * @param plain Bytes en claro.
+     * @return Bytes cifrados, o null si hubo un error.
+     */
+    public static byte[] encryptBytes(byte[] plain) {
+        return encryptBytes(plain, 0, plain.length);
+    }
+
+    /**
+     * Encripta 'length' bytes de 'plain' a partir de 'offset'.
+     * @return Bytes cifrados, o null si hubo un error.
+     */
+    public static byte[] encryptBytes(byte[] plain, int offset, int length) {
+        try {
+            return ENCRYPT_CIPHER.get().doFinal(plain, offset, length);
         } catch (Exception e) {
+            ENCRYPT_CIPHER.remove();
             System.err.println("Error al encriptar: " + e.getMessage());
         }
         return null;
     }
 
     /**
-     * Desencripta una cadena de texto.
-     * @param strToDecrypt Cadena encriptada en formato Base64.
-     * @return Cadena desencriptada.
+     * Desencripta bytes sin pasar por Base64 (usado por el protocolo binario).
+     * @param encrypted Bytes cifrados.
+     * @return Bytes en claro, o null si hubo un error.
      */
-    public static String decrypt(String strToDecrypt) {
+    public static byte[] decryptBytes(byte[] encrypted) {
+        return decryptBytes(encrypted, 0, encrypted.length);
+    }
+
+    /**
+     * Desencripta 'length' bytes de 'encrypted' a partir de 'offset'.
+     * @return Bytes en claro, o null si hubo un error.
+     */
+    public static byte[] decryptBytes(byte[] encrypted, int offset, int length) {
         try {
-            setKey();
-            Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
-            cipher.init(Cipher.DECRYPT_MODE, secretKey);
-            return new String(cipher.doFinal(Base64.getDecoder().decode(strToDecrypt)));
+            return DECRYPT_CIPHER.get().doFinal(encrypted, offset, length);
         } catch (Exception e) {
+            // Tras un error (p.ej. relleno inválido) se descarta el Cipher del hilo por si quedó a medias
+            DECRYPT_CIPHER.remove();
             System.err.println("Error al desencriptar: " + e.getMessage());
         }
         return null;
     }
-}
\ No newline at end of file
+
+    /**
+     * Encripta los bytes restantes de 'plain' y los escribe en 'out', sin arreglos intermedios.
+     * 'out' necesita al menos encryptedSize(plain.remaining()) bytes libres.
+     * @return Bytes escritos en 'out', o -1 si hubo un error.
+     */
+    public static int encrypt(ByteBuffer plain, ByteBuffer out) {
+        try {
+            return ENCRYPT_CIPHER.get().doFinal(plain, out);
+        } catch (Exception e) {
+            ENCRYPT_CIPHER.remove();
+            System.err.println("Error al encriptar: " + e.getMessage());
+        }
+        return -1;
+    }
+
+    /**
+     * Desencripta los bytes restantes de 'encrypted' y los escribe en 'out'.
+     * 'out' necesita al menos encrypted.remaining() bytes libres.
+     * @return Bytes escritos en 'out', o -1 si hubo un error.
+     */
+    public static int decrypt(ByteBuffer encrypted, ByteBuffer out) {
+        try {
+            return DECRYPT_CIPHER.get().doFinal(encrypted, out);
+        } catch (Exception e) {
+            DECRYPT_CIPHER.remove();
+            System.err.println("Error al desencriptar: " + e.getMessage());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,319 @@
+package MX.unison;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * Cifrado por conexión con AES-GCM (cifrado autenticado: un mensaje alterado se rechaza).
+ *
+ * Clave: en la negociación cada lado envía una clave pública X25519 efímera ("GCM=<Base64>");
+ * la clave AES-256 de la conexión es SHA-256 del secreto compartido y de ambas claves públicas.
+ * Los mensajes de negociación van cifrados con la clave fija, así que solo quien la conoce puede
+ * participar.
+ *
+ * Nonce (12 bytes): [dirección: 4 bytes][contador: 8 bytes]. Cada lado usa su propia dirección
+ * y un contador que nunca se repite con la misma clave. El receptor guarda el contador más alto
+ * que ya autenticó y rechaza cualquier línea o trama con uno menor o igual (replay dentro de la
+ * conexión); por eso cada lado debe enviar en el orden de sus contadores, es decir, cifrar y
+ * encolar juntos (ver ClientSession.sendSealed).
+ *
+ * Líneas: Base64 de [nonce][índice de bloque: 2 bytes][bloques: 2 bytes][cifrado + etiqueta de 16 bytes].
+ * Un mensaje de más de CHUNK_SIZE bytes se parte en bloques sellados por separado y en paralelo
+ * (ForkJoinPool "monitor.gcm.hilos"); índice y total de bloques van autenticados como AAD, y los
+ * contadores de un mensaje son consecutivos, así que los bloques no se pueden reordenar ni mezclar.
+ * El receptor descifra cada bloque en cuanto llega (LineOpener) y entrega el mensaje al completarse.
+ *
+ * Tramas binarias: [nonce][cifrado + etiqueta], con el tipo de trama como AAD.
+ */
+public class GcmSessionCipher implements SessionCipher {
+
+    public static final String FEATURE_GCM = "GCM";
+
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_SIZE = 16;
+    private static final int CHUNK_HEADER_SIZE = 4;
+    private static final int DIRECTION_CLIENT = 1;
+    private static final int DIRECTION_SERVER = 2;
+
+    // Tamaño de bloque de los mensajes grandes (propiedad monitor.gcm.bloque, en bytes)
+    static final int CHUNK_SIZE = Math.max(1024, Integer.getInteger("monitor.gcm.bloque", 64 * 1024));
+    private static final int MAX_CHUNKS = 0xFFFF;
+
+    private static final ForkJoinPool SEAL_POOL = new ForkJoinPool(
+            Integer.getInteger("monitor.gcm.hilos", Runtime.getRuntime().availableProcessors()));
+
+    // El Cipher se reinicia con otro nonce en cada mensaje; uno por hilo
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM no disponible: " + e.getMessage(), e);
+        }
+    });
+
+    private final SecretKeySpec key;
+    private final int sendDirection;
+    private final int receiveDirection;
+    private final AtomicLong sendCounter = new AtomicLong();
+    // Contador más alto recibido y autenticado (-1 = ninguno)
+    private final AtomicLong receivedCounter = new AtomicLong(-1);
+
+    private GcmSessionCipher(byte[] key, boolean server) {
+        this.key = new SecretKeySpec(key, "AES");
+        this.sendDirection = server ? DIRECTION_SERVER : DIRECTION_CLIENT;
+        this.receiveDirection = server ? DIRECTION_CLIENT : DIRECTION_SERVER;
+    }
+
+    /**
+     * Genera el par de claves efímero de un lado de la negociación.
+     */
+    public static KeyPair generateKeyPair() throws GeneralSecurityException {
+        return KeyPairGenerator.getInstance("X25519").generateKeyPair();
+    }
+
+    /**
+     * Clave pública en el formato de la negociación (Base64 de su codificación X.509).
+     */
+    public static String encodePublicKey(KeyPair keyPair) {
+        return Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded());
+    }
+
+    /**
+     * Acuerda la clave de la conexión con la clave pública del otro lado.
+     * @param own Par de claves propio.
+     * @param peerPublicKey Clave pública del otro lado, como llegó en la negociación.
+     * @param server true del lado del servidor.
+     */
+    public static GcmSessionCipher agree(KeyPair own, String peerPublicKey, boolean server) throws GeneralSecurityException {
+        byte[] peerEncoded;
+        try {
+            peerEncoded = Base64.getDecoder().decode(peerPublicKey);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("Clave pública inválida: " + e.getMessage());
+        }
+        PublicKey peer = KeyFactory.getInstance("X25519").generatePublic(new X509EncodedKeySpec(peerEncoded));
+        KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+        agreement.init(own.getPrivate());
+        agreement.doPhase(peer, true);
+        byte[] shared = agreement.generateSecret();
+
+        byte[] ownEncoded = own.getPublic().getEncoded();
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        sha.update("monitor-gcm-v1".getBytes(StandardCharsets.US_ASCII));
+        sha.update(shared);
+        // Siempre en el mismo orden (cliente, servidor) para que ambos lados obtengan la misma clave
+        sha.update(server ? peerEncoded : ownEncoded);
+        sha.update(server ? ownEncoded : peerEncoded);
+        return new GcmSessionCipher(sha.digest(), server);
+    }
+
+    private GCMParameterSpec nonce(int direction, long counter) {
+        byte[] iv = new byte[NONCE_SIZE];
+        ByteBuffer.wrap(iv).putInt(direction).putLong(counter);
+        return new GCMParameterSpec(TAG_SIZE * 8, iv);
+    }
+
+    @Override
+    public String[] seal(byte[] plain) {
+        int chunks = Math.max(1, (plain.length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        if (chunks > MAX_CHUNKS) {
+            System.err.println("Error: Mensaje demasiado grande para cifrar (" + plain.length + " bytes).");
+            return null;
+        }
+        // Los contadores del mensaje se reservan juntos: el bloque i usa base + i
+        long base = sendCounter.getAndAdd(chunks);
+        String[] lines = new String[chunks];
+        try {
+            if (chunks == 1) {
+                lines[0] = sealChunk(plain, 0, plain.length, base, 0, 1);
+            } else {
+                SEAL_POOL.submit(() -> IntStream.range(0, chunks).parallel().forEach(i -> {
+                    int offset = i * CHUNK_SIZE;
+                    lines[i] = sealChunk(plain, offset, Math.min(CHUNK_SIZE, plain.length - offset), base + i, i, chunks);
+                })).join();
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Error al encriptar: " + e.getMessage());
+            return null;
+        }
+        return lines;
+    }
+
+    private String sealChunk(byte[] plain, int offset, int length, long counter, int index, int count) {
+        byte[] out = new byte[NONCE_SIZE + CHUNK_HEADER_SIZE + length + TAG_SIZE];
+        ByteBuffer header = ByteBuffer.wrap(out);
+        header.putInt(sendDirection).putLong(counter).putShort((short) index).putShort((short) count);
+        try {
+            Cipher cipher = CIPHER.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, nonce(sendDirection, counter));
+            cipher.updateAAD(out, NONCE_SIZE, CHUNK_HEADER_SIZE);
+            cipher.doFinal(plain, offset, length, out, NONCE_SIZE + CHUNK_HEADER_SIZE);
+        } catch (GeneralSecurityException e) {
+            CIPHER.remove();
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        return Base64.getEncoder().encodeToString(out);
+    }
+
+    /**
+     * Registra el contador de un bloque o trama ya autenticado.
+     * @return false si no es mayor que el último recibido (mensaje repetido).
+     */
+    private boolean advanceReceived(long counter) {
+        long last;
+        do {
+            last = receivedCounter.get();
+            if (counter <= last) {
+                return false;
+            }
+        } while (!receivedCounter.compareAndSet(last, counter));
+        return true;
+    }
+
+    @Override
+    public LineOpener newOpener() {
+        return new ChunkAssembler();
+    }
+
+    /**
+     * Junta los bloques de un mensaje; cada bloque se descifra y autentica al llegar.
+     */
+    private final class ChunkAssembler implements LineOpener {
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private int expectedIndex;
+        private int expectedCount;
+        private long firstCounter;
+
+        @Override
+        public byte[] open(String line) throws GeneralSecurityException {
+            byte[] sealed;
+            try {
+                sealed = Base64.getDecoder().decode(line);
+            } catch (IllegalArgumentException e) {
+                throw new GeneralSecurityException("Línea Base64 inválida: " + e.getMessage());
+            }
+            if (sealed.length < NONCE_SIZE + CHUNK_HEADER_SIZE + TAG_SIZE) {
+                throw new GeneralSecurityException("Bloque cifrado demasiado corto.");
+            }
+            ByteBuffer header = ByteBuffer.wrap(sealed);
+            int direction = header.getInt();
+            long counter = header.getLong();
+            int index = header.getShort() & 0xFFFF;
+            int count = header.getShort() & 0xFFFF;
+
+            if (direction != receiveDirection || count == 0 || index >= count) {
+                throw new GeneralSecurityException("Cabecera de bloque inválida.");
+            }
+            if (index == 0) {
+                pending.reset();
+                expectedCount = count;
+                firstCounter = counter;
+            } else if (index != expectedIndex || count != expectedCount || counter != firstCounter + index) {
+                reset();
+                throw new GeneralSecurityException("Bloque fuera de orden.");
+            }
+
+            byte[] plain;
+            try {
+                Cipher cipher = CIPHER.get();
+                cipher.init(Cipher.DECRYPT_MODE, key, nonce(direction, counter));
+                cipher.updateAAD(sealed, NONCE_SIZE, CHUNK_HEADER_SIZE);
+                plain = cipher.doFinal(sealed, NONCE_SIZE + CHUNK_HEADER_SIZE,
+                        sealed.length - NONCE_SIZE - CHUNK_HEADER_SIZE);
+            } catch (GeneralSecurityException e) {
+                CIPHER.remove();
+                reset();
+                throw e instanceof AEADBadTagException ? new GeneralSecurityException("Bloque alterado o clave incorrecta.") : e;
+            }
+            if (!advanceReceived(counter)) {
+                reset();
+                throw new GeneralSecurityException("Bloque repetido (contador " + counter + ").");
+            }
+
+            if (count == 1) {
+                return plain;
+            }
+            pending.write(plain, 0, plain.length);
+            if (index + 1 < count) {
+                expectedIndex = index + 1;
+                return null;
+            }
+            byte[] message = pending.toByteArray();
+            reset();
+            return message;
+        }
+
+        private void reset() {
+            pending.reset();
+            expectedIndex = 0;
+            expectedCount = 0;
+        }
+    }
+
+    @Override
+    public int sealedFrameSize(int plainLength) {
+        return NONCE_SIZE + plainLength + TAG_SIZE;
+    }
+
+    @Override
+    public int sealFrame(byte type, ByteBuffer plain, ByteBuffer out) {
+        long counter = sendCounter.getAndIncrement();
+        try {
+            Cipher cipher = CIPHER.get();
+            GCMParameterSpec spec = nonce(sendDirection, counter);
+            cipher.init(Cipher.ENCRYPT_MODE, key, spec);
+            cipher.updateAAD(new byte[]{type});
+            out.put(spec.getIV());
+            return NONCE_SIZE + cipher.doFinal(plain, out);
+        } catch (Exception e) {
+            CIPHER.remove();
+            System.err.println("Error al encriptar: " + e.getMessage());
+        }
+        return -1;
+    }
+
+    @Override
+    public int openFrame(byte type, ByteBuffer sealed, ByteBuffer out) {
+        if (sealed.remaining() < NONCE_SIZE + TAG_SIZE) {
+            return -1;
+        }
+        try {
+            byte[] iv = new byte[NONCE_SIZE];
+            sealed.get(iv);
+            ByteBuffer nonce = ByteBuffer.wrap(iv);
+            if (nonce.getInt() != receiveDirection) {
+                return -1;
+            }
+            Cipher cipher = CIPHER.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, iv));
+            cipher.updateAAD(new byte[]{type});
+            int written = cipher.doFinal(sealed, out);
+            if (!advanceReceived(nonce.getLong())) {
+                System.err.println("Error al desencriptar: trama repetida.");
+                return -1;
+            }
+            return written;
+        } catch (Exception e) {
+            CIPHER.remove();
+            System.err.println("Error al desencriptar: " + e.getMessage());
+        }
+        return -1;
+    }
+}
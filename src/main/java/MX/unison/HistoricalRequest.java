@@ -0,0 +1,262 @@
+package MX.unison;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Parámetros de una petición de datos históricos.
+ *
+ * Formato en el protocolo: "HISTORICAL_REQUEST:" seguido de
+ *  - "ALL": petición antigua; el servidor responde todo en una sola línea.
+ *  - pares clave=valor separados por ';', por ejemplo "page=500;from=2026-10-18T10:00:00;to=2026-10-18T11:00:00;limit=1000".
+ *    "from" y "to" son fecha y hora ISO (inclusivas) y "limit" el máximo de registros; los tres son opcionales.
+ *    "codec=deflate" (y opcionalmente "level=1..9") pide páginas comprimidas antes de cifrar;
+ *    "codec=serie" pide las lecturas codificadas con SeriesCodec (ver abajo).
+ *    "res=segundos" acepta un punto cada tantos segundos: el servidor responde con el rollup más
+ *    grueso que no la supera (minuto, hora o día; ver Rollup) o con lecturas si es menor a un minuto.
+ *    Cada registro agregado usa el formato normal con el promedio del intervalo y la fecha y hora
+ *    de su inicio, seguido de ", n:#, xmin:#, xmax:#, ymin:#, ymax:#, zmin:#, zmax:#" y de la
+ *    última lectura del intervalo (", ultimo_ms:#, ultimo_x:#, ultimo_y:#, ultimo_z:#", con la captura
+ *    en ms desde 1970); los campos extra no afectan a quien no los conoce. Los intervalos que tocan el rango se incluyen completos.
+ *    "sealed=1" indica que el cliente acepta días sellados (ver abajo).
+ * Las claves desconocidas se ignoran para que clientes más nuevos puedan hablar con este servidor.
+ *
+ * Con "page" el servidor responde en páginas: varias líneas "HIST_PAGE:reg|reg|..." de hasta
+ * 'page' registros, leídas directamente del ResultSet, y al final "HIST_END:total".
+ * Si se pidió compresión y el servidor la soporta, las páginas llegan como "HIST_ZPAGE:" seguido
+ * de los mismos registros comprimidos con Deflate; un servidor que no la soporta ignora "codec"
+ * y responde con HIST_PAGE normales, por lo que el cliente debe aceptar ambos.
+ * Con "codec=serie" las páginas de lecturas llegan como "HIST_SPAGE:" seguido de un bloque de
+ * SeriesCodec (dispositivo, capturado_ms, x, y, z); las de registros agregados, que tienen más
+ * campos, llegan como HIST_ZPAGE.
+ * Con "sealed=1", cada día cerrado que el rango cubre completo puede llegar ya sellado (ver
+ * SealedHistory): una línea "HIST_SEALED:dia=..;lecturas=..;lineas=N;clave=.." cifrada como las
+ * demás y, después, N líneas sin marca de petición ni cifrado de sesión, cada una con un
+ * bloque de SeriesCodec cifrado con la clave del día. Entre ellas solo pueden llegar líneas con
+ * marca (de otras peticiones o del canal de control), nunca las de otro día sellado. Las páginas de antes y de después (el día en
+ * curso y los días incompletos) siguen en el orden normal, de lo más reciente a lo más antiguo.
+ * HIST_END puede traer estadísticas después del total: "HIST_END:total;raw=..;zip=..;cpu_us=..".
+ */
+public class HistoricalRequest {
+
+    public static final String PREFIX = "HISTORICAL_REQUEST:";
+    public static final String LEGACY_ALL = "ALL";
+
+    public static final String PAGE_PREFIX = "HIST_PAGE:";
+    public static final String COMPRESSED_PAGE_PREFIX = "HIST_ZPAGE:";
+    public static final String SERIES_PAGE_PREFIX = "HIST_SPAGE:";
+    public static final String SEALED_PREFIX = "HIST_SEALED:";
+    public static final String END_PREFIX = "HIST_END:";
+
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    // 0 = respuesta antigua en una sola línea
+    private int pageSize;
+    // Rango de captura (inclusivo); null = sin límite por ese lado
+    private LocalDateTime from;
+    private LocalDateTime to;
+    // 0 = sin límite de registros
+    private int limit;
+    // Compresión de las páginas (CompressionUtil.NONE, DEFLATE o SERIES); nivel 0 = el del servidor
+    private String compression = CompressionUtil.NONE;
+    private int compressionLevel;
+    // Segundos entre puntos que acepta el cliente; 0 = lecturas individuales
+    private long resolution;
+    // El cliente acepta días sellados (HIST_SEALED)
+    private boolean acceptSealed;
+
+    public HistoricalRequest() {
+        this.pageSize = DEFAULT_PAGE_SIZE;
+    }
+
+    /**
+     * Petición antigua ("HISTORICAL_REQUEST:ALL").
+     */
+    public static HistoricalRequest legacy() {
+        HistoricalRequest request = new HistoricalRequest();
+        request.pageSize = 0;
+        return request;
+    }
+
+    /**
+     * Interpreta los parámetros que siguen a "HISTORICAL_REQUEST:".
+     * @throws IllegalArgumentException si algún valor no es válido.
+     */
+    public static HistoricalRequest parse(String params) {
+        String trimmed = params.trim();
+        if (trimmed.isEmpty() || trimmed.equals(LEGACY_ALL)) {
+            return legacy();
+        }
+
+        HistoricalRequest request = new HistoricalRequest();
+        for (String pair : trimmed.split(";")) {
+            int eq = pair.indexOf('=');
+            if (eq < 0) {
+                continue;
+            }
+            String key = pair.substring(0, eq).trim();
+            String value = pair.substring(eq + 1).trim();
+            try {
+                switch (key) {
+                    case "page":
+                        request.setPageSize(Integer.parseInt(value));
+                        break;
+                    case "from":
+                        request.setFrom(LocalDateTime.parse(value));
+                        break;
+                    case "to":
+                        request.setTo(LocalDateTime.parse(value));
+                        break;
+                    case "limit":
+                        request.setLimit(Integer.parseInt(value));
+                        break;
+                    case "codec":
+                        // Un codec desconocido no es error: se responde sin compresión
+                        request.setCompression(value.equals(CompressionUtil.DEFLATE) || value.equals(CompressionUtil.SERIES)
+                                ? value : CompressionUtil.NONE);
+                        break;
+                    case "level":
+                        request.setCompressionLevel(Integer.parseInt(value));
+                        break;
+                    case "res":
+                        request.setResolution(Long.parseLong(value));
+                        break;
+                    case "sealed":
+                        request.setAcceptSealed(value.equals("1"));
+                        break;
+                    default:
+                        // Clave desconocida: se ignora
+                }
+            } catch (NumberFormatException | DateTimeParseException e) {
+                throw new IllegalArgumentException("Valor inválido para '" + key + "': " + value);
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Mensaje completo para enviar al servidor.
+     */
+    public String toMessage() {
+        if (!isPaged()) {
+            return PREFIX + LEGACY_ALL;
+        }
+        StringBuilder sb = new StringBuilder(PREFIX).append("page=").append(pageSize);
+        if (from != null) {
+            sb.append(";from=").append(from);
+        }
+        if (to != null) {
+            sb.append(";to=").append(to);
+        }
+        if (limit > 0) {
+            sb.append(";limit=").append(limit);
+        }
+        if (resolution > 0) {
+            sb.append(";res=").append(resolution);
+        }
+        if (acceptSealed) {
+            sb.append(";sealed=1");
+        }
+        if (isCompressed()) {
+            sb.append(";codec=").append(compression);
+            if (compressionLevel > 0) {
+                sb.append(";level=").append(compressionLevel);
+            }
+        }
+        return sb.toString();
+    }
+
+    public boolean isPaged() {
+        return pageSize > 0;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        if (pageSize < 0) {
+            throw new IllegalArgumentException("El tamaño de página no puede ser negativo: " + pageSize);
+        }
+        this.pageSize = pageSize;
+    }
+
+    public LocalDateTime getFrom() {
+        return from;
+    }
+
+    public void setFrom(LocalDateTime from) {
+        this.from = from;
+    }
+
+    public LocalDateTime getTo() {
+        return to;
+    }
+
+    public void setTo(LocalDateTime to) {
+        this.to = to;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("El límite no puede ser negativo: " + limit);
+        }
+        this.limit = limit;
+    }
+
+    public boolean isCompressed() {
+        return CompressionUtil.DEFLATE.equals(compression) || isSeries();
+    }
+
+    public boolean isSeries() {
+        return CompressionUtil.SERIES.equals(compression);
+    }
+
+    public String getCompression() {
+        return compression;
+    }
+
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public long getResolution() {
+        return resolution;
+    }
+
+    public void setResolution(long resolution) {
+        if (resolution < 0) {
+            throw new IllegalArgumentException("La resolución no puede ser negativa: " + resolution);
+        }
+        this.resolution = resolution;
+    }
+
+    public boolean acceptsSealed() {
+        return acceptSealed;
+    }
+
+    public void setAcceptSealed(boolean acceptSealed) {
+        this.acceptSealed = acceptSealed;
+    }
+
+    /**
+     * Obtiene el total de registros de un mensaje "HIST_END:total[;estadísticas]".
+     */
+    public static long parseEndTotal(String endMessage) {
+        String body = endMessage.substring(END_PREFIX.length());
+        int separator = body.indexOf(';');
+        return Long.parseLong(separator < 0 ? body : body.substring(0, separator));
+    }
+}
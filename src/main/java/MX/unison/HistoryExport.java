@@ -0,0 +1,507 @@
+package MX.unison;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Exportación de un rango del histórico a un archivo, para entregar extractos grandes sin pasar
+ * por el protocolo (sendHistoricalData arma páginas para la vista, no archivos de gigabytes).
+ *
+ * Las lecturas se recorren de la más antigua a la más reciente directo del almacenamiento
+ * (SensorStore.scanForward: un cursor por partición en SQLite, los bloques de los segmentos) y se
+ * escriben en un buffer de BUFFER_BYTES que se vacía al FileChannel cada vez que se llena: la
+ * memoria no depende del tamaño del rango. El archivo se escribe como '.tmp' y se renombra al
+ * terminar, así un corte nunca deja un extracto incompleto con el nombre final.
+ *
+ * Formatos:
+ *  - CSV: encabezado "dispositivo,capturado_ms,fecha_hora,x,y,z"; fecha_hora en hora local del
+ *    servidor, ISO con milisegundos.
+ *  - Binario columnar (little endian): encabezado de HEADER_BYTES con magic "MEXP", versión,
+ *    lecturas, primera y última marca de tiempo y cantidad de bloques; después los bloques, cada
+ *    uno con su tamaño (int) y hasta BLOCK lecturas codificadas por columnas con SeriesCodec
+ *    (unos 3 a 6 bytes por lectura en lugar de 24). Mientras se escribe, 'lecturas' vale -1.
+ *    Se lee con read().
+ *
+ * Uso (con el servidor detenido si el almacenamiento es de segmentos; SQLite admite lectores):
+ *   java -cp ... MX.unison.HistoryExport archivo [formato=csv|bin] [from=ISO] [to=ISO] [device=N]
+ * El formato por omisión sale de la extensión (".csv" o binario). El almacenamiento se elige con
+ * monitor.almacen, igual que en el Server.
+ */
+public class HistoryExport {
+
+    /**
+     * Formato del archivo.
+     */
+    public enum Format {
+        CSV,
+        BINARY
+    }
+
+    /**
+     * Recibe el avance de una exportación.
+     */
+    @FunctionalInterface
+    public interface ProgressListener {
+        /**
+         * @param readings Lecturas escritas hasta ahora.
+         * @param bytes Bytes escritos hasta ahora.
+         * @param fraction Parte del rango de tiempo ya recorrida (0 a 1).
+         */
+        void progress(long readings, long bytes, double fraction);
+    }
+
+    public static final int MAGIC = 0x5058454D; // "MEXP" en little endian
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 40;
+    // Lecturas por bloque del formato binario
+    public static final int BLOCK = 4096;
+
+    // Tamaño máximo que se acepta al leer un bloque (el peor caso de SeriesCodec es ~41 bytes por lectura)
+    static final int MAX_BLOCK_BYTES = BLOCK * 48;
+    private static final int BUFFER_BYTES = 1 << 20;
+    // Cada cuántas lecturas se revisa si toca informar el avance
+    private static final int PROGRESS_CHECK = 1 << 16;
+    private static final long PROGRESS_INTERVAL_NS = 1_000_000_000L;
+
+    private final SensorStore store;
+    private final ProgressListener listener;
+
+    /**
+     * Exportador que informa el avance por consola una vez por segundo.
+     */
+    public HistoryExport(SensorStore store) {
+        this(store, HistoryExport::printProgress);
+    }
+
+    public HistoryExport(SensorStore store, ProgressListener listener) {
+        this.store = store;
+        this.listener = listener;
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Uso: HistoryExport archivo [formato=csv|bin] [from=ISO] [to=ISO] [device=N]");
+            return;
+        }
+        Path target = Paths.get(args[0]);
+        Format format = args[0].toLowerCase().endsWith(".csv") ? Format.CSV : Format.BINARY;
+        long fromMs = Long.MIN_VALUE;
+        long toMs = Long.MAX_VALUE;
+        Integer device = null;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                int eq = args[i].indexOf('=');
+                String key = eq < 0 ? args[i] : args[i].substring(0, eq);
+                String value = eq < 0 ? "" : args[i].substring(eq + 1);
+                switch (key) {
+                    case "formato":
+                        format = value.equalsIgnoreCase("csv") ? Format.CSV : Format.BINARY;
+                        break;
+                    case "from":
+                        fromMs = SensorData.toEpochMillis(LocalDateTime.parse(value));
+                        break;
+                    case "to":
+                        toMs = SensorData.toEpochMillis(LocalDateTime.parse(value)) + 999;
+                        break;
+                    case "device":
+                        device = Integer.parseInt(value);
+                        break;
+                    default:
+                        System.err.println("Parámetro desconocido: " + args[i]);
+                        return;
+                }
+            }
+        } catch (NumberFormatException | DateTimeParseException e) {
+            System.err.println("Parámetro inválido: " + e.getMessage());
+            return;
+        }
+
+        try (SensorStore store = openStore(System.getProperty("monitor.almacen", "sqlite"))) {
+            new HistoryExport(store).export(target, format, fromMs, toMs, device);
+        } catch (Exception e) {
+            System.err.println("Error al exportar el histórico: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Abre el almacenamiento solo para leer: sin crear tablas, migrar ni comprimir en segundo plano.
+     * Una base SQLite que no existe o que aún no está en el esquema actual es un error.
+     */
+    private static SensorStore openStore(String kind) throws IOException, SQLException {
+        if (kind.equals("segmentos")) {
+            return new SegmentStore(Paths.get(System.getProperty("monitor.segmentos.dir", "segmentos")),
+                    Integer.getInteger("monitor.segmentos.registros", 1 << 20), false, false);
+        }
+        DataBaseManager dbManager = new DataBaseManager();
+        try {
+            dbManager.openExisting();
+        } catch (SQLException e) {
+            dbManager.close();
+            throw e;
+        }
+        return new SqliteStore(dbManager);
+    }
+
+    /**
+     * Escribe las lecturas del rango en el archivo (lo reemplaza si existe).
+     * @param fromMs Inicio (inclusivo), o Long.MIN_VALUE sin límite.
+     * @param toMs Fin (inclusivo), o Long.MAX_VALUE sin límite.
+     * @param device Dispositivo, o null para todos.
+     * @return Lecturas exportadas.
+     */
+    public long export(Path target, Format format, long fromMs, long toMs, Integer device) throws Exception {
+        long start = System.nanoTime();
+        // Extremos reales del rango, para informar el avance como parte del tiempo recorrido
+        long[] first = {Long.MIN_VALUE};
+        long[] last = {Long.MIN_VALUE};
+        store.scanForward(fromMs, toMs, (d, timestamp, x, y, z) -> {
+            first[0] = timestamp;
+            return false;
+        });
+        store.scan(fromMs, toMs, (d, timestamp, x, y, z) -> {
+            last[0] = timestamp;
+            return false;
+        });
+
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        Writer writer;
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writer = format == Format.CSV ? new CsvWriter(channel) : new BinaryWriter(channel);
+            writer.progress(first[0], last[0]);
+            store.scanForward(fromMs, toMs, (d, timestamp, x, y, z) -> {
+                if (device != null && device != d) {
+                    return true;
+                }
+                try {
+                    writer.write(d, timestamp, x, y, z);
+                } catch (IOException e) {
+                    throw new ExportException(e);
+                }
+                return true;
+            });
+            writer.finish();
+            channel.force(true);
+        } catch (ExportException e) {
+            Files.deleteIfExists(temporary);
+            throw e.getCause();
+        } catch (Exception e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        listener.progress(writer.readings, writer.bytes, 1);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Exportación terminada: %d lecturas, %.1f MB en '%s' (%.1f s, %.0f lecturas/s).%n",
+                writer.readings, writer.bytes / 1e6, target, seconds, writer.readings / Math.max(seconds, 1e-9));
+        return writer.readings;
+    }
+
+    private static void printProgress(long readings, long bytes, double fraction) {
+        System.out.printf("Exportación: %d lecturas, %.1f MB (%.0f %%)%n", readings, bytes / 1e6, fraction * 100);
+    }
+
+    /**
+     * Lee un archivo del formato binario, de la lectura más antigua a la más reciente, bloque por bloque.
+     * @return Lecturas entregadas al visitor.
+     * @throws IOException si el archivo no es una exportación completa o está dañado.
+     */
+    public static long read(Path file, SensorStore.ReadingVisitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header);
+            header.flip();
+            long readings = header.getLong(8);
+            int blocks = header.getInt(32);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || readings < 0 || blocks < 0) {
+                throw new IOException("'" + file + "' no es una exportación binaria completa.");
+            }
+            SeriesCodec codec = new SeriesCodec();
+            long[] timestamps = new long[BLOCK];
+            int[] devices = new int[BLOCK];
+            int[] xs = new int[BLOCK];
+            int[] ys = new int[BLOCK];
+            int[] zs = new int[BLOCK];
+            ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer data = ByteBuffer.allocate(BLOCK * 8);
+            long total = 0;
+            for (int block = 0; block < blocks; block++) {
+                size.clear();
+                readFully(channel, size);
+                int length = size.getInt(0);
+                if (length <= 0 || length > MAX_BLOCK_BYTES) {
+                    throw new IOException("'" + file + "' tiene un bloque inválido: " + block);
+                }
+                if (data.capacity() < length) {
+                    data = ByteBuffer.allocate(length);
+                }
+                data.clear().limit(length);
+                readFully(channel, data);
+                int n;
+                try {
+                    if (SeriesCodec.count(data.array(), 0, length) > BLOCK) {
+                        throw new IOException("'" + file + "' tiene un bloque inválido: " + block);
+                    }
+                    n = codec.decode(data.array(), 0, length, timestamps, devices, xs, ys, zs);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("'" + file + "' tiene un bloque inválido: " + block);
+                }
+                for (int i = 0; i < n; i++) {
+                    total++;
+                    if (!visitor.visit(devices[i], timestamps[i], xs[i], ys[i], zs[i])) {
+                        return total;
+                    }
+                }
+            }
+            if (total != readings) {
+                throw new IOException("'" + file + "' tiene " + total + " lecturas y el encabezado dice " + readings + ".");
+            }
+            return total;
+        }
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Exportación truncada.");
+            }
+        }
+    }
+
+    /**
+     * Error de escritura dentro del visitor, que no puede lanzar IOException.
+     */
+    private static final class ExportException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ExportException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * Escritor de un formato: junta los bytes en un buffer y lo vacía al canal al llenarse.
+     */
+    private abstract class Writer {
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long readings;
+        long bytes;
+        private long firstMs;
+        private long spanMs;
+        private long lastReport = System.nanoTime();
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void progress(long firstMs, long lastMs) {
+            this.firstMs = firstMs;
+            this.spanMs = Math.max(1, lastMs - firstMs);
+        }
+
+        abstract void write(int device, long timestamp, int x, int y, int z) throws IOException;
+
+        /**
+         * Escribe lo pendiente (y lo que el formato necesite al final).
+         */
+        abstract void finish() throws IOException;
+
+        /**
+         * Cuenta la lectura e informa el avance si ya pasó el intervalo.
+         */
+        void counted(long timestamp) {
+            if (++readings % PROGRESS_CHECK == 0 && System.nanoTime() - lastReport >= PROGRESS_INTERVAL_NS) {
+                lastReport = System.nanoTime();
+                listener.progress(readings, bytes + buffer.position(),
+                        Math.min(1, Math.max(0, (double) (timestamp - firstMs) / spanMs)));
+            }
+        }
+
+        /**
+         * Deja lugar para 'needed' bytes en el buffer.
+         */
+        void reserve(int needed) throws IOException {
+            if (buffer.remaining() < needed) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                bytes += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Una línea por lectura; los números se escriben directo en el buffer, sin un String por campo,
+     * y la fecha y hora se formatea una vez por segundo.
+     */
+    private final class CsvWriter extends Writer {
+        // Peor caso de una línea: dispositivo, ms, fecha (23), x, y, z, comas y salto
+        private static final int MAX_LINE = 11 + 20 + 23 + 3 * 11 + 6;
+        private long cachedSecond = Long.MIN_VALUE;
+        private byte[] cachedDate;
+
+        CsvWriter(FileChannel channel) {
+            super(channel);
+            buffer.put("dispositivo,capturado_ms,fecha_hora,x,y,z\n".getBytes(StandardCharsets.US_ASCII));
+        }
+
+        @Override
+        void write(int device, long timestamp, int x, int y, int z) throws IOException {
+            reserve(MAX_LINE);
+            putDecimal(device);
+            buffer.put((byte) ',');
+            putDecimal(timestamp);
+            buffer.put((byte) ',');
+            long second = Math.floorDiv(timestamp, 1000);
+            if (second != cachedSecond) {
+                cachedSecond = second;
+                // "AAAA-MM-DDTHH:MM:SS" sin fracción; los ms se agregan aparte
+                cachedDate = SensorData.toLocalDateTime(second * 1000).withNano(0).toString()
+                        .getBytes(StandardCharsets.US_ASCII);
+            }
+            buffer.put(cachedDate);
+            if (cachedDate.length == 16) {
+                // LocalDateTime omite los segundos en cero
+                buffer.put((byte) ':').put((byte) '0').put((byte) '0');
+            }
+            int millis = (int) Math.floorMod(timestamp, 1000L);
+            buffer.put((byte) '.').put((byte) ('0' + millis / 100)).put((byte) ('0' + millis / 10 % 10))
+                    .put((byte) ('0' + millis % 10));
+            buffer.put((byte) ',');
+            putDecimal(x);
+            buffer.put((byte) ',');
+            putDecimal(y);
+            buffer.put((byte) ',');
+            putDecimal(z);
+            buffer.put((byte) '\n');
+            counted(timestamp);
+        }
+
+        private void putDecimal(long value) {
+            if (value < 0) {
+                if (value == Long.MIN_VALUE) {
+                    buffer.put(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+                    return;
+                }
+                buffer.put((byte) '-');
+                value = -value;
+            }
+            int digits = 1;
+            for (long rest = value / 10; rest > 0; rest /= 10) {
+                digits++;
+            }
+            int end = buffer.position() + digits;
+            for (int at = end - 1; at >= buffer.position(); at--) {
+                buffer.put(at, (byte) ('0' + value % 10));
+                value /= 10;
+            }
+            buffer.position(end);
+        }
+
+        @Override
+        void finish() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Junta BLOCK lecturas por columnas y las escribe como un bloque de SeriesCodec.
+     */
+    private final class BinaryWriter extends Writer {
+        private final SeriesCodec codec = new SeriesCodec();
+        private final long[] timestamps = new long[BLOCK];
+        private final int[] devices = new int[BLOCK];
+        private final int[] xs = new int[BLOCK];
+        private final int[] ys = new int[BLOCK];
+        private final int[] zs = new int[BLOCK];
+        private int pending;
+        private int blocks;
+        private long firstMs = Long.MAX_VALUE;
+        private long lastMs = Long.MIN_VALUE;
+
+        BinaryWriter(FileChannel channel) {
+            super(channel);
+            // Encabezado provisional (lecturas = -1) hasta terminar
+            writeHeader(buffer, -1);
+            buffer.position(HEADER_BYTES);
+        }
+
+        @Override
+        void write(int device, long timestamp, int x, int y, int z) throws IOException {
+            timestamps[pending] = timestamp;
+            devices[pending] = device;
+            xs[pending] = x;
+            ys[pending] = y;
+            zs[pending] = z;
+            firstMs = Math.min(firstMs, timestamp);
+            lastMs = Math.max(lastMs, timestamp);
+            if (++pending == BLOCK) {
+                writeBlock();
+            }
+            counted(timestamp);
+        }
+
+        private void writeBlock() throws IOException {
+            int size = codec.encode(timestamps, devices, xs, ys, zs, 0, pending);
+            reserve(4);
+            buffer.putInt(size);
+            // Un bloque puede no caber en lo que queda del buffer: se copia por partes
+            int offset = 0;
+            while (offset < size) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int n = Math.min(size - offset, buffer.remaining());
+                buffer.put(codec.buffer(), offset, n);
+                offset += n;
+            }
+            pending = 0;
+            blocks++;
+        }
+
+        private void writeHeader(ByteBuffer target, long readings) {
+            target.putInt(0, MAGIC);
+            target.putInt(4, VERSION);
+            target.putLong(8, readings);
+            target.putLong(16, readings > 0 ? firstMs : 0);
+            target.putLong(24, readings > 0 ? lastMs : 0);
+            target.putInt(32, blocks);
+            target.putInt(36, BLOCK);
+        }
+
+        @Override
+        void finish() throws IOException {
+            if (pending > 0) {
+                writeBlock();
+            }
+            flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            writeHeader(header, readings);
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package MX.unison;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Ventana en memoria de las lecturas recientes, delante de otro SensorStore.
+ *
+ * Casi todas las peticiones de histórico piden los últimos minutos, así que cada lote que el
+ * escritor guarda en el almacenamiento también se copia a un buffer circular por dispositivo
+ * (arreglos primitivos de capacidad fija). La ventana sabe desde qué momento tiene todas las
+ * lecturas ('completeFrom'): una consulta que empieza ahí o después se responde solo de memoria;
+ * una que empieza antes se responde de memoria hasta ese momento y sigue en el almacenamiento
+ * con el resto del rango, sin repetir lecturas.
+ *
+ * 'completeFrom' solo avanza:
+ *  - Al arrancar es la lectura más reciente del almacenamiento + 1 ms (lo anterior no está en memoria).
+ *  - Al sobrescribir la lectura más antigua de un buffer lleno, pasa a ser esa lectura + 1 ms.
+ *  - Si llega un dispositivo cuando ya hay monitor.ventana.dispositivos buffers, sus lecturas no
+ *    se guardan en memoria y la ventana pasa a empezar después de ellas.
+ * Las lecturas que llegan con una marca de tiempo anterior a 'completeFrom' quedan solo en el
+ * almacenamiento. Un dispositivo que envía mucho acorta la ventana de todos.
+ *
+ * Memoria: monitor.ventana.lecturas por dispositivo × monitor.ventana.dispositivos × 20 bytes.
+ * Con monitor.ventana.lecturas=0 el Server no usa la ventana.
+ *
+ * Las consultas copian la parte que les toca bajo el candado de lectura, en tramos de tamaño fijo
+ * (SCAN_CHUNK lecturas repartidas entre los dispositivos), y recorren cada tramo fuera de él: la
+ * memoria de una consulta no depende del tamaño de la ventana y un cliente lento no detiene al
+ * escritor. Si mientras tanto el escritor sobrescribe lecturas que la consulta aún no copió, la
+ * consulta sigue en el almacenamiento desde la lectura más antigua que ya entregó.
+ * Los rollups y los histogramas de cuantiles siguen en el almacenamiento.
+ */
+public class HotWindowStore implements SensorStore {
+
+    // Lecturas que una consulta copia a la vez, repartidas entre los dispositivos (con un mínimo por dispositivo)
+    private static final int SCAN_CHUNK = 8192;
+    private static final int MIN_DEVICE_CHUNK = 64;
+    // Resultado del recorrido de la ventana (ver visitNewestFirst)
+    private static final int VISIT_DONE = 0;
+    private static final int VISIT_STOPPED = 1;
+    private static final int VISIT_LAPPED = 2;
+
+    private final SensorStore store;
+    private final int capacity;
+    private final int maxDevices;
+    // Dispositivo -> buffer; protegidos por el candado, igual que completeFrom
+    private final Map<Integer, Ring> rings = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private long completeFrom;
+    private boolean devicesWarned = false;
+
+    // Consultas de lecturas según de dónde se respondieron
+    private final AtomicLong memoryScans = new AtomicLong();
+    private final AtomicLong mergedScans = new AtomicLong();
+    private final AtomicLong storeScans = new AtomicLong();
+    // Consultas que el escritor alcanzó y siguieron en el almacenamiento
+    private final AtomicLong lappedScans = new AtomicLong();
+
+    /**
+     * @param store Almacenamiento donde se guardan las lecturas.
+     * @param capacity Lecturas en memoria por dispositivo.
+     * @param maxDevices Dispositivos con buffer.
+     */
+    public HotWindowStore(SensorStore store, int capacity, int maxDevices) throws Exception {
+        if (capacity <= 0 || maxDevices <= 0) {
+            throw new IllegalArgumentException("La ventana necesita capacidad y dispositivos: " + capacity + ", " + maxDevices);
+        }
+        this.store = store;
+        this.capacity = capacity;
+        this.maxDevices = maxDevices;
+        // Lo ya guardado no está en memoria: la ventana empieza después de la lectura más reciente
+        long[] newest = {Long.MIN_VALUE};
+        store.scan(Long.MIN_VALUE, Long.MAX_VALUE, (device, timestamp, x, y, z) -> {
+            newest[0] = timestamp;
+            return false;
+        });
+        this.completeFrom = newest[0] == Long.MIN_VALUE ? Long.MIN_VALUE : newest[0] + 1;
+        System.out.println("Ventana en memoria: " + capacity + " lecturas por dispositivo, hasta "
+                + maxDevices + " dispositivos (" + (long) capacity * maxDevices * Ring.BYTES_PER_READING / 1024 + " KB).");
+    }
+
+    public SensorStore getStore() {
+        return store;
+    }
+
+    /**
+     * Guarda el lote en el almacenamiento y, ya durable, lo agrega a la ventana.
+     */
+    @Override
+    public void write(List<IngestQueue.Reading> batch) throws Exception {
+        store.write(batch);
+        lock.writeLock().lock();
+        try {
+            Ring ring = null;
+            for (IngestQueue.Reading reading : batch) {
+                if (reading.timestamp < completeFrom) {
+                    continue;
+                }
+                // Casi siempre el lote entero es del mismo dispositivo
+                if (ring == null || ring.device != reading.device) {
+                    ring = ringFor(reading.device);
+                }
+                if (ring == null) {
+                    completeFrom = reading.timestamp + 1;
+                    continue;
+                }
+                if (ring.size == capacity) {
+                    completeFrom = Math.max(completeFrom, ring.oldest() + 1);
+                }
+                ring.add(reading.timestamp, reading.x, reading.y, reading.z);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Buffer del dispositivo (lo crea si hay lugar), o null si ya no caben más dispositivos.
+     */
+    private Ring ringFor(int device) {
+        Ring ring = rings.get(device);
+        if (ring == null && rings.size() < maxDevices) {
+            ring = new Ring(device, capacity);
+            rings.put(device, ring);
+        } else if (ring == null && !devicesWarned) {
+            devicesWarned = true;
+            System.err.println("Ventana en memoria: más de " + maxDevices + " dispositivos; el dispositivo "
+                    + device + " se consulta en el almacenamiento (ver monitor.ventana.dispositivos).");
+        }
+        return ring;
+    }
+
+    /**
+     * Recorre primero lo que está en memoria y, si el rango empieza antes de la ventana, sigue en
+     * el almacenamiento desde el inicio de la ventana hacia atrás.
+     */
+    @Override
+    public long scan(long fromMs, long toMs, ReadingVisitor visitor) throws Exception {
+        if (fromMs > toMs) {
+            return 0;
+        }
+        long windowFrom;
+        List<Cursor> cursors = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            windowFrom = completeFrom;
+            if (Math.max(fromMs, windowFrom) <= toMs) {
+                int chunk = Math.max(MIN_DEVICE_CHUNK, SCAN_CHUNK / Math.max(1, rings.size()));
+                for (Ring ring : rings.values()) {
+                    if (ring.size > 0) {
+                        cursors.add(new Cursor(ring, chunk));
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        countScan(fromMs, toMs, windowFrom);
+        long[] visited = new long[1];
+        long[] oldestVisited = {Long.MAX_VALUE};
+        boolean fromStore = fromMs < windowFrom;
+        long storeTo = fromStore ? Math.min(toMs, windowFrom - 1) : 0;
+        if (!cursors.isEmpty()) {
+            int result = visitNewestFirst(cursors, Math.max(fromMs, windowFrom), toMs, visitor, visited, oldestVisited);
+            if (result == VISIT_STOPPED) {
+                return visited[0];
+            }
+            if (result == VISIT_LAPPED) {
+                // Lo que falta de la ventana ya se sobrescribió: el resto sale del almacenamiento
+                lappedScans.incrementAndGet();
+                fromStore = true;
+                storeTo = oldestVisited[0] == Long.MAX_VALUE ? toMs : Math.min(toMs, oldestVisited[0] - 1);
+            }
+        }
+        long total = visited[0];
+        if (fromStore && fromMs <= storeTo) {
+            total += store.scan(fromMs, storeTo, visitor);
+        }
+        return total;
+    }
+
+    /**
+     * La ventana es una copia de lo último que ya está en el almacenamiento: los recorridos hacia
+     * adelante (exportaciones) van directo a él.
+     */
+    @Override
+    public long scanForward(long fromMs, long toMs, ReadingVisitor visitor) throws Exception {
+        return store.scanForward(fromMs, toMs, visitor);
+    }
+
+    /**
+     * Los agregados se leen del almacenamiento (los rollups de SQLite ya están al día con cada lote).
+     */
+    @Override
+    public long scanAggregates(Rollup.Level level, long fromMs, long toMs, AggregateVisitor visitor) throws Exception {
+        return store.scanAggregates(level, fromMs, toMs, visitor);
+    }
+
+    /**
+     * Los histogramas de cuantiles también se leen del almacenamiento.
+     */
+    @Override
+    public long scanSketches(Rollup.Level level, long fromMs, long toMs, Integer device,
+                             SketchVisitor visitor) throws Exception {
+        return store.scanSketches(level, fromMs, toMs, device, visitor);
+    }
+
+    /**
+     * Entrega las lecturas de los dispositivos en orden, de la más reciente a la más antigua,
+     * tomando en cada paso la más reciente de entre los dispositivos. Dentro de un dispositivo
+     * se sigue el orden de llegada, que es el de captura cuando envía en orden.
+     * Cada cursor copia su siguiente tramo (bajo el candado de lectura) cuando se le acaba el anterior.
+     * @param oldestVisited Recibe la marca de tiempo más antigua entregada.
+     * @return VISIT_DONE, VISIT_STOPPED si el visitor pidió detenerse, o VISIT_LAPPED si el escritor
+     *         sobrescribió lecturas de un dispositivo antes de copiarlas.
+     */
+    private int visitNewestFirst(List<Cursor> cursors, long fromMs, long toMs, ReadingVisitor visitor,
+                                 long[] visited, long[] oldestVisited) {
+        List<Cursor> active = new ArrayList<>(cursors.size());
+        for (Cursor cursor : cursors) {
+            if (refill(cursor, fromMs, toMs)) {
+                active.add(cursor);
+            } else if (cursor.lapped) {
+                return VISIT_LAPPED;
+            }
+        }
+        while (!active.isEmpty()) {
+            int best = 0;
+            for (int c = 1; c < active.size(); c++) {
+                if (active.get(c).timestamp() > active.get(best).timestamp()) {
+                    best = c;
+                }
+            }
+            Cursor cursor = active.get(best);
+            int i = cursor.position++;
+            long timestamp = cursor.timestamps[i];
+            visited[0]++;
+            oldestVisited[0] = Math.min(oldestVisited[0], timestamp);
+            if (!visitor.visit(cursor.ring.device, timestamp, cursor.xs[i], cursor.ys[i], cursor.zs[i])) {
+                return VISIT_STOPPED;
+            }
+            if (cursor.position == cursor.length && !refill(cursor, fromMs, toMs)) {
+                if (cursor.lapped) {
+                    return VISIT_LAPPED;
+                }
+                active.remove(best);
+            }
+        }
+        return VISIT_DONE;
+    }
+
+    private boolean refill(Cursor cursor, long fromMs, long toMs) {
+        lock.readLock().lock();
+        try {
+            return cursor.refill(fromMs, toMs);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void countScan(long fromMs, long toMs, long windowFrom) {
+        if (fromMs >= windowFrom) {
+            memoryScans.incrementAndGet();
+        } else if (toMs >= windowFrom) {
+            mergedScans.incrementAndGet();
+        } else {
+            storeScans.incrementAndGet();
+        }
+    }
+
+    /**
+     * Inicio de la ventana: desde aquí (inclusivo, ms) todas las lecturas están en memoria.
+     */
+    public long getCompleteFrom() {
+        lock.readLock().lock();
+        try {
+            return completeFrom;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String describe() {
+        long readings = 0;
+        int devices;
+        long windowFrom;
+        lock.readLock().lock();
+        try {
+            devices = rings.size();
+            for (Ring ring : rings.values()) {
+                readings += ring.size;
+            }
+            windowFrom = completeFrom;
+        } finally {
+            lock.readLock().unlock();
+        }
+        String since = windowFrom == Long.MIN_VALUE ? "el inicio" : SensorData.toLocalDateTime(windowFrom).toString();
+        return store.describe() + "; ventana: " + readings + " lecturas de " + devices + " dispositivos desde " + since
+                + ", consultas en memoria=" + memoryScans.get() + " combinadas=" + mergedScans.get()
+                + " almacenamiento=" + storeScans.get() + " alcanzadas=" + lappedScans.get();
+    }
+
+    @Override
+    public void close() {
+        System.out.println("Ventana en memoria: consultas en memoria=" + memoryScans.get() + " combinadas="
+                + mergedScans.get() + " almacenamiento=" + storeScans.get() + " alcanzadas=" + lappedScans.get());
+        store.close();
+    }
+
+    /**
+     * Buffer circular de un dispositivo en orden de llegada.
+     */
+    private static final class Ring {
+        static final int BYTES_PER_READING = 20;
+
+        final int device;
+        final long[] timestamps;
+        final int[] xs;
+        final int[] ys;
+        final int[] zs;
+        // Posición donde va la siguiente lectura
+        int head;
+        int size;
+        // Lecturas agregadas desde el inicio: la lectura número n está en n % capacidad mientras n >= added - size
+        long added;
+
+        Ring(int device, int capacity) {
+            this.device = device;
+            this.timestamps = new long[capacity];
+            this.xs = new int[capacity];
+            this.ys = new int[capacity];
+            this.zs = new int[capacity];
+        }
+
+        void add(long timestamp, int x, int y, int z) {
+            timestamps[head] = timestamp;
+            xs[head] = x;
+            ys[head] = y;
+            zs[head] = z;
+            head = (head + 1) % timestamps.length;
+            size = Math.min(size + 1, timestamps.length);
+            added++;
+        }
+
+        /** Marca de tiempo de la lectura que se sobrescribe al agregar con el buffer lleno. */
+        long oldest() {
+            return timestamps[head];
+        }
+    }
+
+    /**
+     * Recorrido de una consulta por el buffer de un dispositivo, de la lectura más reciente a la
+     * más antigua, copiando un tramo a la vez.
+     */
+    private static final class Cursor {
+        final Ring ring;
+        // Tramo copiado, de la más reciente a la más antigua
+        final long[] timestamps;
+        final int[] xs;
+        final int[] ys;
+        final int[] zs;
+        int length;
+        int position;
+        // Número (ver Ring.added) de la lectura más antigua al empezar la consulta y de la siguiente por copiar + 1
+        final long first;
+        long next;
+        boolean lapped;
+
+        Cursor(Ring ring, int chunk) {
+            this.ring = ring;
+            this.timestamps = new long[chunk];
+            this.xs = new int[chunk];
+            this.ys = new int[chunk];
+            this.zs = new int[chunk];
+            this.next = ring.added;
+            this.first = ring.added - ring.size;
+        }
+
+        long timestamp() {
+            return timestamps[position];
+        }
+
+        /**
+         * Copia el siguiente tramo de lecturas del rango. Solo con el candado de lectura tomado.
+         * @return false si no quedan lecturas del rango o si las que faltan ya se sobrescribieron ('lapped').
+         */
+        boolean refill(long fromMs, long toMs) {
+            length = 0;
+            position = 0;
+            int capacity = ring.timestamps.length;
+            long available = ring.added - ring.size;
+            while (length < timestamps.length && next > first) {
+                if (next - 1 < available) {
+                    lapped = true;
+                    break;
+                }
+                int i = (int) (--next % capacity);
+                long timestamp = ring.timestamps[i];
+                if (timestamp >= fromMs && timestamp <= toMs) {
+                    timestamps[length] = timestamp;
+                    xs[length] = ring.xs[i];
+                    ys[length] = ring.ys[i];
+                    zs[length] = ring.zs[i];
+                    length++;
+                }
+            }
+            return length > 0;
+        }
+    }
+}
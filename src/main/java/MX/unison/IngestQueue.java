@@ -0,0 +1,350 @@
+package MX.unison;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cola acotada entre la lectura de los sockets y la escritura en la base de datos (una por servidor).
+ *
+ * Los hilos que leen las conexiones solo desencriptan, interpretan y encolan; un hilo escritor
+ * vacía la cola en lotes y guarda cada lote en una sola transacción (group commit): SQLite hace
+ * una sincronización a disco por lote y no por fila. Un lote se escribe al juntar
+ * monitor.ingesta.lote lecturas o al vencer monitor.ingesta.demora ms desde la primera, lo que
+ * ocurra antes. Así una pausa de la DB ya no frena de inmediato
+ * a todos los clientes, y cuando la cola se llena se aplica la política configurada:
+ *  - BLOCK: el hilo lector (en modo nio, el trabajador de la conexión) espera, y la presión llega
+ *    al cliente por TCP (por defecto; no se pierden datos).
+ *  - DROP_OLDEST: se descarta la lectura más antigua de la cola.
+ *  - DROP_NEWEST: se descarta la lectura que llega.
+ *
+ * Además, a los clientes que negociaron MUX se les avisa antes de llegar al límite:
+ * al pasar de HIGH_WATERMARK se les envía "SLOW_DOWN:ms" (esperar esos ms entre lotes) y,
+ * cuando el escritor la vacía por debajo de LOW_WATERMARK, "RESUME" (aunque el cliente ya no
+ * envíe nada). Los avisos van en el canal de control (identificador TaggedSession.CONTROL_ID)
+ * y, como los ACK, los envía la propia conexión (ClientSession.signalFlow): ni el lector ni el
+ * escritor esperan al socket del cliente.
+ *
+ * También por el canal de control, el escritor confirma a esos clientes "ACK:n" cuando la
+ * transacción con n de sus lecturas terminó (commit). Si el lote falla no se confirma nada,
+ * así una lectura confirmada ya está en disco. El escritor no escribe en los sockets: deja el
+ * conteo en la conexión (ClientSession.acknowledge), que lo envía por su cuenta y junta los ACK
+ * mientras el cliente no alcanza a recibirlos.
+ *
+ * Configuración: monitor.ingesta.capacidad, monitor.ingesta.politica, monitor.ingesta.pausa (ms),
+ * monitor.ingesta.lote, monitor.ingesta.demora (ms) y monitor.ingesta.reporte (segundos entre reportes de la cola; 0 = sin reporte).
+ */
+public class IngestQueue {
+
+    public static final String SLOW_DOWN = "SLOW_DOWN:";
+    public static final String RESUME = "RESUME";
+    public static final String ACK = "ACK:";
+
+    /**
+     * Guarda un lote de lecturas; si termina sin excepción, el lote ya está confirmado en la DB.
+     */
+    public interface BatchWriter {
+        void write(List<Reading> batch) throws Exception;
+    }
+
+    /**
+     * Qué hacer cuando la cola está llena.
+     */
+    public enum ShedPolicy {
+        BLOCK,
+        DROP_OLDEST,
+        DROP_NEWEST
+    }
+
+    /**
+     * Lectura lista para guardarse.
+     */
+    public static final class Reading {
+        final int device;
+        final long timestamp;
+        final int x;
+        final int y;
+        final int z;
+        // Conexión de origen, para la confirmación; la asigna offer()
+        ClientSession session;
+
+        /**
+         * @param device Dispositivo que envió la lectura (0 si el protocolo no lo indica).
+         * @param timestamp Momento de captura en ms desde 1970.
+         */
+        public Reading(int device, long timestamp, int x, int y, int z) {
+            this.device = device;
+            this.timestamp = timestamp;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+    }
+
+    // Cada cuánto revisa el escritor si se pidió cerrar la cola, en ms
+    private static final long POLL_MS = 200;
+
+    private final int capacity = Integer.getInteger("monitor.ingesta.capacidad", 10000);
+    private final ShedPolicy policy =
+            ShedPolicy.valueOf(System.getProperty("monitor.ingesta.politica", ShedPolicy.BLOCK.name()));
+    private final long slowDownPauseMs = Long.getLong("monitor.ingesta.pausa", 250);
+    private final int maxBatch = Math.max(1, Integer.getInteger("monitor.ingesta.lote", 1000));
+    private final long maxBatchDelayNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("monitor.ingesta.demora", 5));
+    private final long reportIntervalSeconds = Long.getLong("monitor.ingesta.reporte", 10);
+    private final int highWatermark = capacity * 8 / 10;
+    private final int lowWatermark = capacity / 2;
+
+    private final BlockingQueue<Reading> queue = new ArrayBlockingQueue<>(capacity);
+    private final BatchWriter writer;
+    private final Thread writerThread;
+    private volatile boolean closed = false;
+    // Clientes a los que se pidió bajar el ritmo y aún no reciben RESUME
+    private final Set<ClientSession> slowedSessions = ConcurrentHashMap.newKeySet();
+
+    // Indicadores
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong persistedCount = new AtomicLong();
+    private final AtomicLong shedCount = new AtomicLong();
+    private final AtomicLong slowDownCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+
+    /**
+     * @param writer Guarda un lote de lecturas en una transacción; lo invoca siempre el mismo hilo escritor.
+     */
+    public IngestQueue(BatchWriter writer) {
+        this.writer = writer;
+
+        writerThread = new Thread(this::runWriter, "ingest-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        if (reportIntervalSeconds > 0) {
+            Thread reporter = new Thread(this::runReporter, "ingest-reporter");
+            reporter.setDaemon(true);
+            reporter.start();
+        }
+    }
+
+    /**
+     * Encola una lectura aplicando la política de cola llena y los avisos de presión al cliente.
+     * @param session Conexión de la que llegó la lectura (recibe SLOW_DOWN/RESUME si negoció MUX).
+     * @return false si la lectura se descartó.
+     */
+    public boolean offer(Reading reading, ClientSession session) {
+        if (closed) {
+            shedCount.incrementAndGet();
+            return false;
+        }
+        signalBackpressure(session);
+        reading.session = session;
+
+        switch (policy) {
+            case DROP_NEWEST:
+                if (!queue.offer(reading)) {
+                    shedCount.incrementAndGet();
+                    return false;
+                }
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(reading)) {
+                    if (queue.poll() != null) {
+                        shedCount.incrementAndGet();
+                    }
+                }
+                break;
+            default:
+                try {
+                    queue.put(reading);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    shedCount.incrementAndGet();
+                    return false;
+                }
+        }
+        enqueuedCount.incrementAndGet();
+        return true;
+    }
+
+    private void signalBackpressure(ClientSession session) {
+        if (session.isMultiplexed() && queue.size() >= highWatermark && slowedSessions.add(session)) {
+            slowDownCount.incrementAndGet();
+            session.signalFlow(SLOW_DOWN + slowDownPauseMs);
+        }
+    }
+
+    /**
+     * Envía RESUME a los clientes frenados si la cola ya bajó de LOW_WATERMARK (lo invoca el escritor).
+     */
+    private void resumeIfDrained() {
+        if (slowedSessions.isEmpty() || queue.size() > lowWatermark) {
+            return;
+        }
+        for (ClientSession session : slowedSessions) {
+            if (slowedSessions.remove(session) && session.isOpen()) {
+                session.signalFlow(RESUME);
+            }
+        }
+    }
+
+    /**
+     * Olvida una conexión cerrada (ya no recibirá RESUME).
+     */
+    public void sessionClosed(ClientSession session) {
+        slowedSessions.remove(session);
+    }
+
+    /**
+     * Deja de aceptar lecturas y espera a que el escritor guarde las que quedan en la cola.
+     * @param timeoutMs Espera máxima en ms.
+     * @return true si la cola quedó vacía y el escritor terminó.
+     */
+    public boolean shutdown(long timeoutMs) {
+        closed = true;
+        try {
+            writerThread.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writerThread.isAlive()) {
+            System.err.println("La cola de ingesta no terminó a tiempo; quedan " + getDepth() + " lecturas sin guardar.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Hilo escritor: toma lotes de la cola y los guarda hasta que se cierra la cola y queda vacía.
+     */
+    private void runWriter() {
+        List<Reading> batch = new ArrayList<>(maxBatch);
+        while (true) {
+            try {
+                Reading first = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    resumeIfDrained();
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                fillBatch(batch);
+                resumeIfDrained();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                writer.write(batch);
+                persistedCount.addAndGet(batch.size());
+                batchCount.incrementAndGet();
+                acknowledge(batch);
+            } catch (Exception e) {
+                failedCount.addAndGet(batch.size());
+                System.err.println("Error al guardar un lote de " + batch.size() + " lecturas: " + e.getMessage());
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Completa el lote hasta maxBatch lecturas o hasta que vence la demora máxima de la primera.
+     * Con la cola llena no se espera: el lote sale completo de inmediato.
+     */
+    private void fillBatch(List<Reading> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + maxBatchDelayNanos;
+        while (batch.size() < maxBatch) {
+            queue.drainTo(batch, maxBatch - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= maxBatch || remaining <= 0 || closed) {
+                return;
+            }
+            Reading next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    /**
+     * Confirma a cada cliente con MUX cuántas de sus lecturas quedaron guardadas en el lote.
+     * No bloquea: el envío lo hace cada conexión.
+     */
+    private void acknowledge(List<Reading> batch) {
+        Map<ClientSession, Integer> counts = new IdentityHashMap<>();
+        for (Reading reading : batch) {
+            if (reading.session != null && reading.session.isMultiplexed()) {
+                counts.merge(reading.session, 1, Integer::sum);
+            }
+        }
+        counts.forEach(ClientSession::acknowledge);
+    }
+
+    private void runReporter() {
+        long lastEnqueued = -1;
+        while (true) {
+            try {
+                Thread.sleep(reportIntervalSeconds * 1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long enqueued = enqueuedCount.get();
+            if (enqueued != lastEnqueued || getDepth() > 0) {
+                System.out.println("Ingesta: en cola " + getDepth() + "/" + capacity + ", encoladas " + enqueued
+                        + ", guardadas " + persistedCount.get() + " en " + batchCount.get() + " lotes"
+                        + ", descartadas " + shedCount.get() + ", fallidas " + failedCount.get()
+                        + ", clientes frenados " + slowedSessions.size());
+                lastEnqueued = enqueued;
+            }
+        }
+    }
+
+    /** Lecturas que esperan en la cola en este momento. */
+    public int getDepth() {
+        return queue.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** Lecturas aceptadas en la cola. */
+    public long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+
+    /** Lecturas guardadas por el escritor. */
+    public long getPersistedCount() {
+        return persistedCount.get();
+    }
+
+    /** Lecturas descartadas por cola llena. */
+    public long getShedCount() {
+        return shedCount.get();
+    }
+
+    /** Lecturas perdidas porque falló el lote que las contenía. */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /** Lotes (transacciones) guardados. */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /** Avisos SLOW_DOWN enviados. */
+    public long getSlowDownCount() {
+        return slowDownCount.get();
+    }
+}
@@ -0,0 +1,766 @@
+package MX.unison;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Lógica del protocolo del servidor, compartida por todos los modos de ejecución.
+ * Recibe los mensajes ya desencriptados ("DATA:", "HISTORICAL_REQUEST:", "STATS_REQUEST:" y
+ * "QUANTILE_REQUEST:"), los procesa contra el almacenamiento (SensorStore) y responde a través de
+ * la ClientSession correspondiente.
+ * Las lecturas no se guardan en el hilo de la conexión: pasan por la IngestQueue del servidor.
+ */
+public class MessageProcessor {
+
+    private final SensorStore store;
+
+    // Límite opcional de hilos dentro de JDBC a la vez (modo "virtual", ver setJdbcConcurrencyLimit)
+    private volatile Semaphore jdbcPermits;
+
+    // Dispositivo de las lecturas que llegan por el protocolo de texto, que no lo indica
+    private static final int UNKNOWN_DEVICE = 0;
+
+    // Delimitador para enviar múltiples registros de datos históricos en una sola cadena
+    private static final String DATA_DELIMITER = "|";
+
+    // Hilos para las peticiones de histórico con identificador, para no frenar la lectura de la conexión
+    private static final int HISTORY_THREADS = Integer.getInteger("monitor.historico.hilos", 4);
+    private volatile ExecutorService historyExecutor;
+
+    // Cola entre la lectura de las conexiones y las inserciones en la DB
+    private final IngestQueue ingestQueue;
+
+    // Días cerrados ya listos para enviar (null = todo se arma al vuelo)
+    private volatile SealedHistory sealedHistory;
+
+    /**
+     * Procesador sobre la base SQLite (ver SqliteStore).
+     */
+    public MessageProcessor(DataBaseManager dbManager) {
+        this(new SqliteStore(dbManager));
+    }
+
+    public MessageProcessor(SensorStore store) {
+        this.store = store;
+        this.ingestQueue = new IngestQueue(this::saveSensorData);
+        this.historyExecutor = Executors.newFixedThreadPool(HISTORY_THREADS, task -> {
+            Thread thread = new Thread(task, "history-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Cambia el executor de las peticiones de histórico (p.ej. hilos virtuales en el modo "virtual").
+     */
+    public void setHistoryExecutor(ExecutorService executor) {
+        ExecutorService previous = this.historyExecutor;
+        this.historyExecutor = executor;
+        previous.shutdown();
+    }
+
+    /**
+     * Cierre ordenado: deja de aceptar peticiones de histórico, espera las que están en curso
+     * y guarda las lecturas que quedan en la cola de ingesta. Después se puede cerrar la DB.
+     * @param timeoutMs Espera máxima para cada etapa, en ms.
+     */
+    public void shutdown(long timeoutMs) {
+        ExecutorService executor = historyExecutor;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+                System.err.println("Peticiones de histórico sin terminar al cerrar el servidor.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ingestQueue.shutdown(timeoutMs);
+    }
+
+    /**
+     * Activa el envío de días sellados a los clientes que los aceptan (ver SealedHistory).
+     */
+    public void setSealedHistory(SealedHistory sealedHistory) {
+        this.sealedHistory = sealedHistory;
+    }
+
+    /**
+     * Limita cuántos hilos pueden estar dentro de llamadas JDBC al mismo tiempo.
+     * El driver de SQLite ejecuta código nativo (JNI) y métodos synchronized, que fijan (pin)
+     * el hilo portador de un hilo virtual mientras duran. Sin este límite, miles de hilos virtuales
+     * haciendo inserciones podrían ocupar todos los portadores y detener al resto de los clientes.
+     * @param permits Número máximo de hilos dentro de JDBC.
+     */
+    public void setJdbcConcurrencyLimit(int permits) {
+        this.jdbcPermits = new Semaphore(permits);
+    }
+
+    private void acquireJdbc() throws InterruptedException {
+        Semaphore permits = jdbcPermits;
+        if (permits != null) {
+            permits.acquire();
+        }
+    }
+
+    private void releaseJdbc() {
+        Semaphore permits = jdbcPermits;
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    /**
+     * Sesión para responder mientras se tiene el permiso JDBC: lo suelta durante cada escritura
+     * en el socket y lo vuelve a tomar al terminar, así un cliente lento no ocupa un permiso
+     * que necesita el escritor de la ingesta (saveSensorData).
+     */
+    private ClientSession releasingJdbcWhileSending(ClientSession session) {
+        Semaphore permits = jdbcPermits;
+        return permits == null ? session : new PermitReleasingSession(session, permits);
+    }
+
+    private static final class PermitReleasingSession implements ClientSession {
+        private final ClientSession delegate;
+        private final Semaphore permits;
+
+        PermitReleasingSession(ClientSession delegate, Semaphore permits) {
+            this.delegate = delegate;
+            this.permits = permits;
+        }
+
+        @Override
+        public void sendEncryptedLine(String encryptedLine) {
+            permits.release();
+            try {
+                delegate.sendEncryptedLine(encryptedLine);
+            } finally {
+                permits.acquireUninterruptibly();
+            }
+        }
+
+        @Override
+        public void sendSealed(String prefix, byte[] plainMessage) {
+            permits.release();
+            try {
+                delegate.sendSealed(prefix, plainMessage);
+            } finally {
+                permits.acquireUninterruptibly();
+            }
+        }
+
+        @Override
+        public void sendSealedAndFile(String prefix, byte[] plainMessage, FileChannel file, long position, long count) throws IOException {
+            permits.release();
+            try {
+                delegate.sendSealedAndFile(prefix, plainMessage, file, position, count);
+            } finally {
+                permits.acquireUninterruptibly();
+            }
+        }
+
+        @Override
+        public SessionCipher cipher() {
+            return delegate.cipher();
+        }
+
+        @Override
+        public boolean isMultiplexed() {
+            return delegate.isMultiplexed();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return delegate.isOpen();
+        }
+    }
+
+    /**
+     * Procesa un mensaje desencriptado recibido de un cliente.
+     * @param decryptedMessage Mensaje en texto plano.
+     * @param session Sesión a la que se envían las respuestas.
+     */
+    public void process(String decryptedMessage, ClientSession session) {
+        if (TaggedSession.isTagged(decryptedMessage)) {
+            processTagged(decryptedMessage, session);
+            return;
+        }
+        if (decryptedMessage.startsWith("DATA:")) {
+            processSensorData(decryptedMessage.substring(5).trim(), session);
+        } else if (decryptedMessage.startsWith(HistoricalRequest.PREFIX)) {
+            System.out.println("Mensaje: Cliente solicita datos históricos.");
+            HistoricalRequest request;
+            try {
+                request = HistoricalRequest.parse(decryptedMessage.substring(HistoricalRequest.PREFIX.length()));
+            } catch (IllegalArgumentException e) {
+                session.sendMessage("ERROR: " + e.getMessage());
+                return;
+            }
+            sendHistoricalData(session, request);
+        } else if (decryptedMessage.startsWith(StatsRequest.PREFIX)) {
+            System.out.println("Mensaje: Cliente solicita estadísticas.");
+            StatsRequest request;
+            try {
+                request = StatsRequest.parse(decryptedMessage.substring(StatsRequest.PREFIX.length()));
+            } catch (IllegalArgumentException e) {
+                session.sendMessage("ERROR: " + e.getMessage());
+                return;
+            }
+            sendStats(session, request);
+        } else if (decryptedMessage.startsWith(QuantileRequest.PREFIX)) {
+            System.out.println("Mensaje: Cliente solicita cuantiles.");
+            QuantileRequest request;
+            try {
+                request = QuantileRequest.parse(decryptedMessage.substring(QuantileRequest.PREFIX.length()));
+            } catch (IllegalArgumentException e) {
+                session.sendMessage("ERROR: " + e.getMessage());
+                return;
+            }
+            sendQuantiles(session, request);
+        }
+    }
+
+    /**
+     * Procesa un mensaje con identificador de petición ("#id mensaje"); sus respuestas llevan la misma marca.
+     * Las peticiones de histórico, de estadísticas y de cuantiles se atienden en otro hilo, así el hilo que lee la conexión sigue
+     * guardando lecturas mientras se envían las páginas, y varias consultas pueden avanzar a la vez.
+     */
+    private void processTagged(String taggedMessage, ClientSession session) {
+        int requestId;
+        try {
+            requestId = TaggedSession.parseId(taggedMessage);
+        } catch (IllegalArgumentException e) {
+            session.sendMessage("ERROR: " + e.getMessage());
+            return;
+        }
+        String message = TaggedSession.stripTag(taggedMessage);
+        ClientSession tagged = new TaggedSession(session, requestId);
+
+        if (!message.startsWith(HistoricalRequest.PREFIX) && !message.startsWith(StatsRequest.PREFIX)
+                && !message.startsWith(QuantileRequest.PREFIX)) {
+            process(message, tagged);
+            return;
+        }
+        try {
+            historyExecutor.execute(() -> process(message, tagged));
+        } catch (RejectedExecutionException e) {
+            tagged.sendMessage("ERROR: Server busy.");
+        }
+    }
+
+    /**
+     * Procesa una trama del protocolo binario ya decodificada.
+     * @param frame Trama DATA, DATA_BATCH o TEXT.
+     * @param session Sesión a la que se envían las respuestas.
+     */
+    public void processFrame(BinaryProtocol.Frame frame, ClientSession session) {
+        if (frame.type == BinaryProtocol.TYPE_TEXT) {
+            process(frame.text, session);
+            return;
+        }
+        // La trama trae el dispositivo y la marca de tiempo de captura, que se guardan tal cual
+        int accepted = 0;
+        for (int i = 0; i < frame.count; i++) {
+            IngestQueue.Reading reading = new IngestQueue.Reading(frame.deviceId, frame.timestamps[i],
+                    frame.xs[i], frame.ys[i], frame.zs[i]);
+            if (ingestQueue.offer(reading, session)) {
+                accepted++;
+            }
+        }
+        System.out.println("Mensaje: Cliente envía datos para guardar (binario). Lecturas encoladas: " + accepted);
+    }
+
+    /**
+     * Procesa y guarda los datos de los sensores en la base de datos.
+     * Formato esperado: "x=#, y=#, z=#"
+     * @param dataStr La cadena de datos del sensor.
+     * @param session Conexión de la que llegó (para los avisos de presión de la cola).
+     */
+    private void processSensorData(String dataStr, ClientSession session) {
+        try {
+            // Analizar la cadena para obtener x, y, z
+            int x = 0, y = 0, z = 0;
+            String[] parts = dataStr.split(", ");
+            for (String part : parts) {
+                if (part.startsWith("x:")) {
+                    x = Integer.parseInt(part.substring(2));
+                } else if (part.startsWith("y:")) {
+                    y = Integer.parseInt(part.substring(2));
+                } else if (part.startsWith("z:")) {
+                    z = Integer.parseInt(part.substring(2));
+                }
+            }
+
+            // El protocolo de texto no trae dispositivo ni marca de tiempo: se usa el momento de llegada
+            long now = System.currentTimeMillis();
+
+            // Encolar para insertar en la DB
+            if (ingestQueue.offer(new IngestQueue.Reading(UNKNOWN_DEVICE, now, x, y, z), session)) {
+                System.out.println("Mensaje: Cliente envía datos para guardar. Datos encolados: X=" + x + ", Y=" + y + ", Z=" + z);
+            }
+
+        } catch (NumberFormatException e) {
+            System.err.println("Error de formato en los datos del sensor: " + e.getMessage());
+        } catch (Exception e) {
+            System.err.println("Error al procesar los datos: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Avisa que la conexión se cerró, para que la cola de ingesta deje de tenerla en cuenta.
+     */
+    public void sessionClosed(ClientSession session) {
+        ingestQueue.sessionClosed(session);
+    }
+
+    public IngestQueue getIngestQueue() {
+        return ingestQueue;
+    }
+
+    public SensorStore getStore() {
+        return store;
+    }
+
+    /**
+     * Guarda un lote de lecturas de la cola de ingesta en el almacenamiento (lo invoca el hilo escritor).
+     * Si algo falla la excepción le indica a la cola que no confirme el lote.
+     */
+    private void saveSensorData(List<IngestQueue.Reading> batch) throws Exception {
+        acquireJdbc();
+        try {
+            store.write(batch);
+        } finally {
+            releaseJdbc();
+        }
+        SealedHistory sealed = sealedHistory;
+        if (sealed != null) {
+            sealed.onWritten(batch);
+        }
+    }
+
+    /**
+     * Consulta los datos históricos y los envía al cliente a medida que el almacenamiento los
+     * recorre, del más reciente al más antiguo, y deja de leer en cuanto se junta el límite.
+     * Con una petición paginada se envía cada página en cuanto se llena, así la memoria usada
+     * no depende del tamaño de la tabla. La petición antigua ("ALL") se sigue respondiendo
+     * en una sola línea para los clientes que aún la usan.
+     * Si la petición acepta una resolución de un minuto o más, se leen intervalos agregados
+     * (ver Rollup) en lugar de las lecturas individuales.
+     * Si el cliente acepta días sellados, los días cerrados que el rango cubre completos se envían
+     * desde sus archivos (ver SealedHistory) y solo el resto se lee del almacenamiento.
+     */
+    private void sendHistoricalData(ClientSession client, HistoricalRequest request) {
+        Rollup.Level level = request.isPaged() ? Rollup.Level.forResolution(request.getResolution()) : null;
+        long fromMs = request.getFrom() != null ? SensorData.toEpochMillis(request.getFrom()) : Long.MIN_VALUE;
+        // "to" es inclusivo con precisión de segundos, como en el esquema anterior
+        long toMs = request.getTo() != null ? SensorData.toEpochMillis(request.getTo()) + 999 : Long.MAX_VALUE;
+
+        try {
+            acquireJdbc();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        // Las páginas se envían desde el cursor abierto; el permiso JDBC se suelta en cada envío
+        ClientSession session = releasingJdbcWhileSending(client);
+        PageWriter pageWriter = new PageWriter(session, request, level == null);
+        try {
+            if (level != null) {
+                store.scanAggregates(level, fromMs, toMs,
+                        (start, count, sumX, sumY, sumZ, minX, maxX, minY, maxY, minZ, maxZ,
+                         lastMs, lastX, lastY, lastZ) -> {
+                            SensorData.appendAggregateString(pageWriter.startRecord(), start, count,
+                                    sumX, sumY, sumZ, minX, maxX, minY, maxY, minZ, maxZ, lastMs, lastX, lastY, lastZ);
+                            return pageWriter.endRecord();
+                        });
+            } else if (request.isPaged() && request.acceptsSealed() && sealedHistory != null) {
+                scanWithSealedDays(session, sealedHistory, fromMs, toMs, pageWriter);
+            } else {
+                store.scan(fromMs, toMs, pageWriter::addReading);
+            }
+
+            long total = pageWriter.finish();
+            System.out.println("Mensaje: Se envían los datos solicitados. Total de registros: " + total
+                    + pageWriter.report());
+
+        } catch (Exception e) {
+            System.err.println("Error al leer datos históricos de la DB: " + e.getMessage());
+            // Enviar un mensaje de error al cliente si falla
+            session.sendMessage("ERROR: Database read failed.");
+        } finally {
+            pageWriter.close();
+            releaseJdbc();
+        }
+    }
+
+    /**
+     * Calcula las estadísticas del rango en una sola pasada por el almacenamiento (ver RangeStats)
+     * y envía solo los resultados: unos cientos de bytes por intervalo en lugar de las lecturas.
+     */
+    private void sendStats(ClientSession client, StatsRequest request) {
+        long fromMs = request.getFrom() != null ? SensorData.toEpochMillis(request.getFrom()) : Long.MIN_VALUE;
+        long toMs = request.getTo() != null ? SensorData.toEpochMillis(request.getTo()) + 999 : Long.MAX_VALUE;
+
+        try {
+            acquireJdbc();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        ClientSession session = releasingJdbcWhileSending(client);
+        try {
+            long start = System.nanoTime();
+            StringBuilder page = new StringBuilder(StatsRequest.PAGE_PREFIX);
+            int[] inPage = {0};
+            RangeStats.Accumulator accumulator = new RangeStats.Accumulator(request.getBucket() * 1000,
+                    request.getDevice(), fromMs == Long.MIN_VALUE ? 0 : fromMs, stats -> {
+                        if (inPage[0] > 0) {
+                            page.append(DATA_DELIMITER);
+                        }
+                        stats.appendRecord(page);
+                        if (++inPage[0] == StatsRequest.PAGE_SIZE) {
+                            session.sendMessage(page.toString());
+                            page.setLength(StatsRequest.PAGE_PREFIX.length());
+                            inPage[0] = 0;
+                        }
+                        return session.isOpen();
+                    });
+            store.scan(fromMs, toMs, accumulator);
+            long buckets = accumulator.finish();
+            if (inPage[0] > 0) {
+                session.sendMessage(page.toString());
+            }
+            long micros = (System.nanoTime() - start) / 1000;
+            session.sendMessage(StatsRequest.END_PREFIX + buckets + ";lecturas=" + accumulator.getReadings()
+                    + ";us=" + micros);
+            System.out.println("Mensaje: Se envían las estadísticas. Intervalos: " + buckets
+                    + ", lecturas: " + accumulator.getReadings());
+        } catch (Exception e) {
+            System.err.println("Error al calcular estadísticas: " + e.getMessage());
+            session.sendMessage("ERROR: Database read failed.");
+        } finally {
+            releaseJdbc();
+        }
+    }
+
+    /**
+     * Calcula los cuantiles combinando los histogramas guardados (ver Quantiles): sin intervalos,
+     * un solo resultado con las lecturas exactas del rango; con intervalos, uno por hora o por día.
+     */
+    private void sendQuantiles(ClientSession client, QuantileRequest request) {
+        long fromMs = request.getFrom() != null ? SensorData.toEpochMillis(request.getFrom()) : Long.MIN_VALUE;
+        long toMs = request.getTo() != null ? SensorData.toEpochMillis(request.getTo()) + 999 : Long.MAX_VALUE;
+        double[] quantiles = request.getQuantiles();
+
+        try {
+            acquireJdbc();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        ClientSession session = releasingJdbcWhileSending(client);
+        try {
+            long start = System.nanoTime();
+            StringBuilder page = new StringBuilder(QuantileRequest.PAGE_PREFIX);
+            int[] inPage = {0};
+            long[] readings = {0};
+            SensorStore.SketchVisitor sender = (bucketStart, sketch) -> {
+                if (inPage[0] > 0) {
+                    page.append(DATA_DELIMITER);
+                }
+                readings[0] += sketch.getCount();
+                QuantileRequest.Result.of(bucketStart, sketch, quantiles).appendRecord(page);
+                if (++inPage[0] == QuantileRequest.PAGE_SIZE) {
+                    session.sendMessage(page.toString());
+                    page.setLength(QuantileRequest.PAGE_PREFIX.length());
+                    inPage[0] = 0;
+                }
+                return session.isOpen();
+            };
+            long buckets;
+            if (request.getLevel() == null) {
+                sender.visit(fromMs == Long.MIN_VALUE ? 0 : fromMs, Quantiles.merge(store, fromMs, toMs, request.getDevice()));
+                buckets = 1;
+            } else {
+                buckets = store.scanSketches(request.getLevel(), fromMs, toMs, request.getDevice(), sender);
+            }
+            if (inPage[0] > 0) {
+                session.sendMessage(page.toString());
+            }
+            long micros = (System.nanoTime() - start) / 1000;
+            session.sendMessage(QuantileRequest.END_PREFIX + buckets + ";lecturas=" + readings[0] + ";us=" + micros);
+            System.out.println("Mensaje: Se envían los cuantiles. Intervalos: " + buckets + ", lecturas: " + readings[0]);
+        } catch (Exception e) {
+            System.err.println("Error al calcular cuantiles: " + e.getMessage());
+            session.sendMessage("ERROR: Database read failed.");
+        } finally {
+            releaseJdbc();
+        }
+    }
+
+    /**
+     * Recorre el rango de lo más reciente a lo más antiguo alternando lecturas del almacenamiento
+     * con días sellados. Un día que ya no cabe en el límite de la petición, o cuyo archivo se borró
+     * mientras tanto, se lee del almacenamiento como el resto.
+     */
+    private void scanWithSealedDays(ClientSession session, SealedHistory sealed, long fromMs, long toMs,
+                                    PageWriter pageWriter) throws Exception {
+        long cursor = toMs;
+        for (SealedHistory.Day day : sealed.daysWithin(fromMs, toMs)) {
+            if (!pageWriter.hasRoom(day.getReadings())) {
+                break;
+            }
+            if (day.getEnd() < cursor) {
+                store.scan(day.getEnd() + 1, cursor, pageWriter::addReading);
+                cursor = day.getEnd();
+                if (!pageWriter.hasRoom(day.getReadings())) {
+                    break;
+                }
+            }
+            // Lo leído hasta aquí es más reciente que el día: su página sale antes
+            pageWriter.flushPage();
+            try {
+                sealed.send(session, day);
+            } catch (IOException e) {
+                System.err.println("No se pudo enviar el día sellado; se lee del almacenamiento: " + e.getMessage());
+                cursor = day.getEnd();
+                continue;
+            }
+            pageWriter.addSealed(day.getReadings());
+            cursor = day.getStart() - 1;
+        }
+        if (pageWriter.hasRoom(1) && fromMs <= cursor) {
+            store.scan(fromMs, cursor, pageWriter::addReading);
+        }
+    }
+
+    /**
+     * Junta los registros de una respuesta en páginas y las envía, comprimidas si el cliente lo pidió;
+     * acumula el tamaño original, el comprimido y el tiempo de CPU gastado en comprimir.
+     * Con "codec=serie" las lecturas se juntan en columnas y cada página se codifica con SeriesCodec
+     * (el tamaño original se cuenta como 24 bytes por lectura).
+     * Con la petición antigua junta todo en una sola línea.
+     */
+    private static final class PageWriter {
+        private static final byte[] COMPRESSED_PREFIX =
+                HistoricalRequest.COMPRESSED_PAGE_PREFIX.getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] SERIES_PREFIX =
+                HistoricalRequest.SERIES_PAGE_PREFIX.getBytes(StandardCharsets.US_ASCII);
+        private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+        private final ClientSession session;
+        private final Deflater deflater;
+        // Columnas de la página con "codec=serie" (null en otro caso); crecen hasta el tamaño de página
+        private final SeriesCodec codec;
+        private long[] timestamps;
+        private int[] devices;
+        private int[] xs;
+        private int[] ys;
+        private int[] zs;
+        private final boolean paged;
+        private final int pageSize;
+        // 0 = sin límite de registros
+        private final int limit;
+        private final StringBuilder page = new StringBuilder();
+        private int inPage;
+        private long total;
+        private long rawBytes;
+        private long compressedBytes;
+        private long cpuNanos;
+        private long sealedDays;
+
+        /**
+         * @param readings true si la respuesta son lecturas individuales (no intervalos agregados).
+         */
+        PageWriter(ClientSession session, HistoricalRequest request, boolean readings) {
+            this.session = session;
+            this.paged = request.isPaged();
+            this.pageSize = request.getPageSize();
+            this.limit = request.getLimit();
+            boolean series = paged && readings && request.isSeries();
+            int level = request.getCompressionLevel() > 0 ? request.getCompressionLevel() : CompressionUtil.DEFAULT_LEVEL;
+            this.deflater = request.isCompressed() && !series ? CompressionUtil.newDeflater(level) : null;
+            this.codec = series ? new SeriesCodec() : null;
+            if (series) {
+                growColumns(Math.min(pageSize, 1024));
+            }
+        }
+
+        /**
+         * Agrega una lectura (en las columnas o como texto, según el codec).
+         * @return false si ya se juntó el límite de registros de la petición.
+         */
+        boolean addReading(int device, long timestamp, int x, int y, int z) {
+            if (codec == null) {
+                SensorData.appendHistoricalString(startRecord(), x, y, z, timestamp);
+                return endRecord();
+            }
+            if (inPage == timestamps.length) {
+                growColumns(Math.min(pageSize, inPage * 2));
+            }
+            timestamps[inPage] = timestamp;
+            devices[inPage] = device;
+            xs[inPage] = x;
+            ys[inPage] = y;
+            zs[inPage] = z;
+            return endRecord();
+        }
+
+        /**
+         * Empieza un registro: devuelve el buffer donde se agrega, ya con el delimitador si hace falta.
+         */
+        StringBuilder startRecord() {
+            if (inPage > 0) {
+                page.append(DATA_DELIMITER);
+            }
+            return page;
+        }
+
+        /**
+         * Termina el registro; si la página se llenó, la envía.
+         * @return false si ya se juntó el límite de registros de la petición o si el cliente se desconectó.
+         */
+        boolean endRecord() {
+            inPage++;
+            total++;
+            if (paged && inPage == pageSize) {
+                send(page);
+                page.setLength(0);
+                inPage = 0;
+                if (!session.isOpen()) {
+                    return false;
+                }
+            }
+            return limit == 0 || total < limit;
+        }
+
+        /**
+         * Indica si caben 'records' registros más sin pasar el límite de la petición
+         * (y si el cliente sigue conectado para recibirlos).
+         */
+        boolean hasRoom(long records) {
+            return (limit == 0 || total + records <= limit) && session.isOpen();
+        }
+
+        /**
+         * Envía la página a medio llenar, si hay.
+         */
+        void flushPage() {
+            if (inPage > 0) {
+                send(page);
+                page.setLength(0);
+                inPage = 0;
+            }
+        }
+
+        /**
+         * Cuenta los registros de un día sellado que ya se envió.
+         */
+        void addSealed(long records) {
+            total += records;
+            sealedDays++;
+        }
+
+        /**
+         * Envía la última página y HIST_END (o la línea completa de la petición antigua,
+         * "NO_DATA" si no hay registros).
+         * @return Total de registros enviados.
+         */
+        long finish() {
+            if (paged) {
+                if (inPage > 0) {
+                    send(page);
+                }
+                session.sendMessage(HistoricalRequest.END_PREFIX + total + stats());
+            } else {
+                session.sendMessage(total > 0 ? page.toString() : "NO_DATA");
+            }
+            return total;
+        }
+
+        private void send(StringBuilder page) {
+            if (codec != null) {
+                sendSeries();
+                return;
+            }
+            if (deflater == null) {
+                session.sendMessage(HistoricalRequest.PAGE_PREFIX + page);
+                return;
+            }
+            byte[] plain = page.toString().getBytes(StandardCharsets.UTF_8);
+            long start = cpuTime();
+            byte[] compressed = CompressionUtil.deflate(deflater, COMPRESSED_PREFIX, plain, plain.length);
+            cpuNanos += cpuTime() - start;
+            rawBytes += plain.length;
+            compressedBytes += compressed.length - COMPRESSED_PREFIX.length;
+            session.sendMessageBytes(compressed);
+        }
+
+        private void growColumns(int size) {
+            timestamps = timestamps == null ? new long[size] : Arrays.copyOf(timestamps, size);
+            devices = devices == null ? new int[size] : Arrays.copyOf(devices, size);
+            xs = xs == null ? new int[size] : Arrays.copyOf(xs, size);
+            ys = ys == null ? new int[size] : Arrays.copyOf(ys, size);
+            zs = zs == null ? new int[size] : Arrays.copyOf(zs, size);
+        }
+
+        private void sendSeries() {
+            long start = cpuTime();
+            int size = codec.encode(timestamps, devices, xs, ys, zs, 0, inPage);
+            byte[] message = Arrays.copyOf(SERIES_PREFIX, SERIES_PREFIX.length + size);
+            System.arraycopy(codec.buffer(), 0, message, SERIES_PREFIX.length, size);
+            cpuNanos += cpuTime() - start;
+            rawBytes += (long) inPage * SegmentStore.BYTES_PER_READING;
+            compressedBytes += size;
+            session.sendMessageBytes(message);
+        }
+
+        /**
+         * Estadísticas que viajan en HIST_END (vacío si no hubo compresión).
+         */
+        String stats() {
+            String sealed = sealedDays > 0 ? ";sealed=" + sealedDays : "";
+            if (deflater == null && codec == null) {
+                return sealed;
+            }
+            return ";raw=" + rawBytes + ";zip=" + compressedBytes + ";cpu_us=" + cpuNanos / 1000 + sealed;
+        }
+
+        String report() {
+            String sealed = sealedDays > 0 ? " (días sellados: " + sealedDays + ")" : "";
+            if ((deflater == null && codec == null) || rawBytes == 0) {
+                return sealed;
+            }
+            return String.format(" (compresión %.1fx, %d -> %d bytes, CPU %.2f ms)",
+                    (double) rawBytes / compressedBytes, rawBytes, compressedBytes, cpuNanos / 1e6) + sealed;
+        }
+
+        void close() {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+
+        /**
+         * Tiempo de CPU del hilo actual; si la JVM no lo mide (p.ej. en hilos virtuales), tiempo de reloj.
+         */
+        private static long cpuTime() {
+            try {
+                long cpu = THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+                return cpu >= 0 ? cpu : System.nanoTime();
+            } catch (UnsupportedOperationException e) {
+                return System.nanoTime();
+            }
+        }
+    }
+}
@@ -0,0 +1,701 @@
+package MX.unison;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Servidor no bloqueante basado en Selector (modo "nio").
+ * Un número fijo de hilos de eventos atiende todas las conexiones, en lugar de un hilo por cliente.
+ * Conserva el mismo formato de red que el ClientHandler: una línea por mensaje, cifrada y en Base64,
+ * por lo que los clientes existentes (ClientConnection) funcionan sin cambios; también acepta
+ * la negociación del protocolo binario (BinaryProtocol).
+ *
+ * Los hilos de eventos solo leen y separan líneas; el descifrado y el acceso a la DB se hacen
+ * en un pool de trabajadores, procesando los mensajes de cada conexión en orden.
+ * Los días sellados del histórico (SealedHistory) se envían con FileChannel.transferTo directo
+ * del archivo al socket, sin copiarlos al heap.
+ */
+public class NioServer {
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    // Límite de un mensaje entrante (línea o trama binaria completa)
+    private static final int MAX_MESSAGE_LENGTH = 128 * 1024;
+    // Bytes pendientes de escritura por conexión antes de frenar al trabajador que responde
+    private static final long MAX_PENDING_WRITE_BYTES = 1024 * 1024;
+    // Mensajes recibidos sin procesar por conexión antes de dejar de leer el socket,
+    // y nivel al que el trabajador debe bajar para que se vuelva a leer
+    private static final int MAX_INBOX_MESSAGES = 1024;
+    private static final int INBOX_RESUME_MESSAGES = 256;
+
+    private final int port;
+    private final MessageProcessor processor;
+    private final EventLoop[] eventLoops;
+    private final ExecutorService workers;
+
+    /**
+     * @param port Puerto donde se escuchan conexiones.
+     * @param processor Lógica del protocolo compartida con el modo de hilos.
+     * @param eventLoopCount Número de hilos de eventos (Selector).
+     * @param workerCount Número de hilos para descifrar y acceder a la DB.
+     */
+    public NioServer(int port, MessageProcessor processor, int eventLoopCount, int workerCount) throws IOException {
+        this.port = port;
+        this.processor = processor;
+        this.eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop(i);
+        }
+        this.workers = Executors.newFixedThreadPool(workerCount);
+    }
+
+    /**
+     * Inicia los hilos de eventos y acepta conexiones indefinidamente en el hilo actual.
+     */
+    public void start() throws IOException {
+        for (EventLoop loop : eventLoops) {
+            loop.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("Servidor NIO iniciado en el puerto " + port + " con " + eventLoops.length
+                    + " hilos de eventos. Esperando conexiones...");
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept(); // Bloquea hasta que un cliente se conecta
+                System.out.println("Mensaje: Se conecta un cliente.");
+                System.out.println("Mensaje: Cliente conectado desde: " + channel.socket().getInetAddress());
+
+                // Reparto round-robin entre los hilos de eventos
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Hilo con su propio Selector que atiende lecturas y escrituras de varias conexiones.
+     */
+    private final class EventLoop extends Thread {
+        private final Selector selector;
+        // Tareas enviadas desde otros hilos (registro de canales, escrituras pendientes)
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int index) throws IOException {
+            super("nio-loop-" + index);
+            this.selector = Selector.open();
+            setDaemon(true);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    Connection connection = new Connection(channel, this);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    System.err.println("Error al registrar la conexión: " + e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // El canal ya no es utilizable
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flushWrites();
+                            }
+                        } catch (IOException e) {
+                            System.err.println("Error en la comunicación con el cliente: " + e.getMessage());
+                            connection.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error en el hilo de eventos " + getName() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Estado de una conexión: buffer de lectura, cola de mensajes por procesar y cola de escritura.
+     */
+    private final class Connection implements ClientSession {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private SelectionKey key;
+
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // Mensajes por procesar: String (línea de texto) o byte[] (trama binaria completa)
+        private final Queue<Object> inbox = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inboxSize = new AtomicInteger();
+        // Con la bandeja llena se quita OP_READ: el cliente queda frenado por la ventana de TCP
+        private final AtomicBoolean readPaused = new AtomicBoolean(false);
+        private final BinaryProtocol.Frame frame = new BinaryProtocol.Frame();
+        // Lo activa el trabajador al aceptar la negociación; el cliente no envía tramas hasta recibir HELLO_OK
+        private volatile boolean binaryMode = false;
+        private volatile boolean multiplexed = false;
+        // Cifrado de la conexión; cambia a GCM si se acuerda en la negociación
+        private volatile SessionCipher cipher = SessionCipher.LEGACY;
+        // Solo lo usa el trabajador que procesa la conexión (uno a la vez)
+        private SessionCipher.LineOpener opener = cipher.newOpener();
+        private final AtomicBoolean draining = new AtomicBoolean(false);
+        // ByteBuffer (una línea) o FileWrite (cabecera y archivo, que salen juntos)
+        private final Queue<Object> writeQueue = new ConcurrentLinkedQueue<>();
+        // Las páginas del histórico se generan más rápido de lo que un cliente lento las recibe;
+        // el trabajador espera cuando hay demasiados bytes en cola para que la memoria quede acotada
+        private final AtomicLong pendingWriteBytes = new AtomicLong();
+        private final Object writeSpace = new Object();
+        // Lecturas guardadas que aún no se confirman; las envía el hilo de eventos (ver acknowledge)
+        private final AtomicLong pendingAcks = new AtomicLong();
+        // Último aviso SLOW_DOWN/RESUME sin enviar (ver signalFlow)
+        private final AtomicReference<String> pendingFlow = new AtomicReference<>();
+        // Cifrar y encolar en un solo paso, para que las líneas salgan en el orden de sus contadores
+        private final ReentrantLock sealLock = new ReentrantLock();
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        /**
+         * Lee lo disponible en el canal y separa los mensajes completos (líneas o tramas).
+         */
+        void onReadable() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            extractMessages();
+        }
+
+        /**
+         * Pasa a la bandeja los mensajes completos del buffer de lectura. Si la bandeja se llena,
+         * los demás se quedan en el buffer y se deja de leer el socket hasta que el trabajador
+         * la vacíe (ver resumeReads). Solo desde el hilo de eventos.
+         */
+        private void extractMessages() throws IOException {
+            readBuffer.flip();
+            while (readBuffer.hasRemaining() && inboxSize.get() < MAX_INBOX_MESSAGES) {
+                if (binaryMode ? !extractFrame() : !extractLine()) {
+                    break;
+                }
+            }
+            readBuffer.compact();
+
+            if (inboxSize.get() >= MAX_INBOX_MESSAGES) {
+                pauseReads();
+            } else if (!readBuffer.hasRemaining()) {
+                // Mensaje incompleto que no cabe en el buffer: crecerlo hasta el límite
+                if (readBuffer.capacity() >= MAX_MESSAGE_LENGTH) {
+                    throw new IOException("Mensaje demasiado largo (más de " + MAX_MESSAGE_LENGTH + " bytes).");
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            }
+
+            if (!inbox.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+
+        private void pauseReads() {
+            if (readPaused.compareAndSet(false, true)) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                // El trabajador pudo vaciar la bandeja antes de ver la bandera
+                if (inboxSize.get() <= INBOX_RESUME_MESSAGES) {
+                    loop.execute(this::resumeReads);
+                }
+            }
+        }
+
+        /**
+         * Vuelve a leer el socket tras pasar a la bandeja lo que quedó en el buffer.
+         * Solo desde el hilo de eventos.
+         */
+        private void resumeReads() {
+            if (!key.isValid() || !readPaused.compareAndSet(true, false)) {
+                return;
+            }
+            try {
+                extractMessages();
+                if (!readPaused.get()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            } catch (IOException e) {
+                System.err.println("Error en la comunicación con el cliente: " + e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Extrae una línea completa del buffer de lectura.
+         * @return false si aún no llega el fin de línea.
+         */
+        private boolean extractLine() {
+            int lineStart = readBuffer.position();
+            for (int i = lineStart; i < readBuffer.limit(); i++) {
+                if (readBuffer.get(i) == '\n') {
+                    int end = i;
+                    if (end > lineStart && readBuffer.get(end - 1) == '\r') {
+                        end--;
+                    }
+                    if (end > lineStart) {
+                        byte[] line = new byte[end - lineStart];
+                        readBuffer.get(lineStart, line);
+                        inbox.add(new String(line, StandardCharsets.US_ASCII));
+                        inboxSize.incrementAndGet();
+                    }
+                    readBuffer.position(i + 1);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Extrae una trama binaria completa del buffer de lectura.
+         * @return false si la trama aún está incompleta.
+         */
+        private boolean extractFrame() {
+            int length = BinaryProtocol.frameLength(readBuffer);
+            if (length < 0 || readBuffer.remaining() < length) {
+                return false;
+            }
+            byte[] frameBytes = new byte[length];
+            readBuffer.get(frameBytes);
+            inbox.add(frameBytes);
+            inboxSize.incrementAndGet();
+            return true;
+        }
+
+        private void scheduleDrain() {
+            if (draining.compareAndSet(false, true)) {
+                workers.execute(this::drain);
+            }
+        }
+
+        /**
+         * Procesa en un hilo trabajador los mensajes pendientes de esta conexión, en orden.
+         */
+        private void drain() {
+            try {
+                Object message;
+                while ((message = inbox.poll()) != null) {
+                    if (inboxSize.decrementAndGet() == INBOX_RESUME_MESSAGES && readPaused.get()) {
+                        loop.execute(this::resumeReads);
+                    }
+                    if (message instanceof byte[]) {
+                        processFrame((byte[]) message);
+                    } else {
+                        processLine((String) message);
+                    }
+                }
+            } catch (Exception e) {
+                System.err.println("Error al procesar el mensaje del cliente: " + e.getMessage());
+            } finally {
+                draining.set(false);
+                // Pudieron llegar mensajes mientras se liberaba la bandera
+                if (!inbox.isEmpty()) {
+                    scheduleDrain();
+                }
+            }
+        }
+
+        private void processLine(String inputLine) {
+            String decryptedMessage;
+            try {
+                decryptedMessage = opener.openText(inputLine);
+            } catch (GeneralSecurityException e) {
+                System.err.println("Mensaje recibido inválido o no se pudo desencriptar: " + e.getMessage());
+                return;
+            }
+            if (decryptedMessage == null) {
+                return; // Bloque de un mensaje que sigue en la siguiente línea
+            }
+            System.out.println("Servidor recibió (Desencriptado): " + decryptedMessage);
+
+            if (BinaryProtocol.isNegotiation(decryptedMessage)) {
+                BinaryProtocol.Negotiation negotiation = BinaryProtocol.negotiate(decryptedMessage, cipher);
+                if (negotiation.binary) {
+                    binaryMode = true;
+                    System.out.println("Mensaje: Cliente usa el protocolo binario v" + BinaryProtocol.VERSION + ".");
+                }
+                multiplexed = negotiation.multiplexed;
+                // La respuesta sale con el cifrado actual; lo que sigue, con el acordado
+                sendMessage(negotiation.response);
+                cipher = negotiation.cipher;
+                opener = cipher.newOpener();
+                return;
+            }
+            processor.process(decryptedMessage, this);
+        }
+
+        private void processFrame(byte[] frameBytes) {
+            try {
+                BinaryProtocol.decodeFrame(ByteBuffer.wrap(frameBytes), cipher, frame);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Trama inválida: " + e.getMessage());
+                return;
+            }
+            processor.processFrame(frame, this);
+        }
+
+        /**
+         * Deja la línea cifrada en la cola de escritura del hilo de eventos.
+         * Con la conexión cerrada la línea se descarta (nadie vaciaría la cola).
+         */
+        @Override
+        public void sendEncryptedLine(String encryptedLine) {
+            if (!channel.isOpen()) {
+                return;
+            }
+            byte[] bytes = (encryptedLine + "\n").getBytes(StandardCharsets.US_ASCII);
+            awaitWriteSpace();
+            pendingWriteBytes.addAndGet(bytes.length);
+            writeQueue.add(ByteBuffer.wrap(bytes));
+            if (!channel.isOpen()) {
+                // Se cerró mientras tanto y close() ya vació la cola
+                discardWrites();
+                return;
+            }
+            scheduleFlush();
+        }
+
+        /**
+         * Cifra el mensaje y deja sus líneas en la cola con el candado tomado: varios trabajadores
+         * (y el hilo de eventos, con los ACK) pueden responder a la vez, y el cliente rechaza un
+         * contador menor que el último que recibió (ver GcmSessionCipher).
+         */
+        @Override
+        public void sendSealed(String prefix, byte[] plainMessage) {
+            if (!channel.isOpen()) {
+                return;
+            }
+            awaitWriteSpace();
+            sealLock.lock();
+            try {
+                ByteBuffer lines = sealLines(prefix, plainMessage);
+                if (lines == null) {
+                    System.err.println("Error: Fallo al encriptar la respuesta.");
+                    return;
+                }
+                pendingWriteBytes.addAndGet(lines.remaining());
+                writeQueue.add(lines);
+            } finally {
+                sealLock.unlock();
+            }
+            if (!channel.isOpen()) {
+                discardWrites();
+                return;
+            }
+            scheduleFlush();
+        }
+
+        /**
+         * Deja la cabecera y el archivo en la cola como un solo elemento, así ninguna otra respuesta
+         * se mete entre ellos; el hilo de eventos envía el archivo con transferTo.
+         */
+        @Override
+        public void sendSealedAndFile(String prefix, byte[] plainMessage, FileChannel file, long position, long count) throws IOException {
+            awaitWriteSpace();
+            sealLock.lock();
+            try {
+                ByteBuffer lines = sealLines(prefix, plainMessage);
+                if (lines == null) {
+                    file.close();
+                    throw new IOException("Fallo al encriptar la cabecera del día sellado.");
+                }
+                FileWrite write = new FileWrite(lines, file, position, count);
+                pendingWriteBytes.addAndGet(write.size());
+                writeQueue.add(write);
+            } finally {
+                sealLock.unlock();
+            }
+            if (!channel.isOpen()) {
+                // close() ya vació la cola; el archivo no se enviará
+                discardWrites();
+            }
+            scheduleFlush();
+        }
+
+        /**
+         * Las líneas cifradas del mensaje, con su prefijo y fin de línea, o null si no se pudo cifrar.
+         */
+        private ByteBuffer sealLines(String prefix, byte[] plainMessage) {
+            String[] encryptedLines = cipher.seal(plainMessage);
+            if (encryptedLines == null) {
+                return null;
+            }
+            StringBuilder lines = new StringBuilder();
+            for (String line : encryptedLines) {
+                lines.append(prefix).append(line).append('\n');
+            }
+            return ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.US_ASCII));
+        }
+
+        /**
+         * Suma las lecturas a la confirmación pendiente y, si no había una, pide al hilo de eventos
+         * que la envíe. El hilo de eventos nunca espera espacio en la cola, así que el escritor
+         * de la ingesta tampoco.
+         */
+        @Override
+        public void acknowledge(int count) {
+            if (pendingAcks.getAndAdd(count) == 0) {
+                loop.execute(this::sendAcks);
+            }
+        }
+
+        /**
+         * Envía en un solo "ACK:n" todo lo confirmado hasta ahora. Solo desde el hilo de eventos.
+         */
+        private void sendAcks() {
+            long count;
+            do {
+                count = pendingAcks.get();
+                if (isOpen()) {
+                    new TaggedSession(this, TaggedSession.CONTROL_ID).sendMessage(IngestQueue.ACK + count);
+                }
+            } while (pendingAcks.addAndGet(-count) > 0);
+        }
+
+        /**
+         * Guarda el aviso y, si no había uno pendiente, pide al hilo de eventos que lo envíe.
+         */
+        @Override
+        public void signalFlow(String signal) {
+            if (pendingFlow.getAndSet(signal) == null) {
+                loop.execute(this::sendFlow);
+            }
+        }
+
+        private void sendFlow() {
+            String signal = pendingFlow.getAndSet(null);
+            if (signal != null && isOpen()) {
+                new TaggedSession(this, TaggedSession.CONTROL_ID).sendMessage(signal);
+            }
+        }
+
+        private void scheduleFlush() {
+            loop.execute(() -> {
+                try {
+                    flushWrites();
+                } catch (IOException e) {
+                    System.err.println("Error al enviar la respuesta: " + e.getMessage());
+                    close();
+                }
+            });
+        }
+
+        @Override
+        public SessionCipher cipher() {
+            return cipher;
+        }
+
+        @Override
+        public boolean isMultiplexed() {
+            return multiplexed;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        /**
+         * Bloquea al trabajador mientras la cola de escritura supera el límite.
+         * El hilo de eventos nunca espera (es quien vacía la cola).
+         */
+        private void awaitWriteSpace() {
+            if (Thread.currentThread() == loop) {
+                return;
+            }
+            synchronized (writeSpace) {
+                while (pendingWriteBytes.get() > MAX_PENDING_WRITE_BYTES && channel.isOpen()) {
+                    try {
+                        writeSpace.wait(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void signalWriteSpace() {
+            synchronized (writeSpace) {
+                writeSpace.notifyAll();
+            }
+        }
+
+        /**
+         * Escribe lo posible de la cola; si el socket no acepta más, espera a OP_WRITE.
+         * Solo se invoca desde el hilo de eventos.
+         */
+        void flushWrites() throws IOException {
+            if (!key.isValid()) {
+                return;
+            }
+            Object next;
+            while ((next = writeQueue.peek()) != null) {
+                long size;
+                if (next instanceof FileWrite) {
+                    FileWrite write = (FileWrite) next;
+                    if (!write.writeTo(channel)) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    write.close();
+                    size = write.size();
+                } else {
+                    ByteBuffer buffer = (ByteBuffer) next;
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    size = buffer.limit();
+                }
+                writeQueue.poll();
+                long pending = pendingWriteBytes.addAndGet(-size);
+                if (pending <= MAX_PENDING_WRITE_BYTES && pending + size > MAX_PENDING_WRITE_BYTES) {
+                    signalWriteSpace();
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Cierra los archivos que quedaron en la cola de una conexión cerrada.
+         */
+        private void discardWrites() {
+            Object next;
+            while ((next = writeQueue.poll()) != null) {
+                if (next instanceof FileWrite) {
+                    ((FileWrite) next).close();
+                }
+            }
+        }
+
+        void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error al cerrar el socket: " + e.getMessage());
+            }
+            discardWrites();
+            signalWriteSpace();
+            processor.sessionClosed(this);
+            System.out.println("Cliente desconectado.");
+        }
+    }
+
+    /**
+     * Cabecera y archivo de un día sellado en la cola de escritura de una conexión.
+     */
+    private static final class FileWrite {
+        private final ByteBuffer header;
+        private final FileChannel file;
+        private final long count;
+        private long position;
+        private final long end;
+
+        FileWrite(ByteBuffer header, FileChannel file, long position, long count) {
+            this.header = header;
+            this.file = file;
+            this.count = count;
+            this.position = position;
+            this.end = position + count;
+        }
+
+        long size() {
+            return header.limit() + count;
+        }
+
+        /**
+         * Envía lo que el socket acepte: primero la cabecera y después el archivo, sin pasar por el heap.
+         * @return true si ya se envió todo.
+         */
+        boolean writeTo(SocketChannel channel) throws IOException {
+            if (header.hasRemaining()) {
+                channel.write(header);
+                if (header.hasRemaining()) {
+                    return false;
+                }
+            }
+            while (position < end) {
+                long sent = file.transferTo(position, end - position, channel);
+                if (sent <= 0) {
+                    if (position >= file.size()) {
+                        throw new IOException("El archivo sellado terminó antes de lo esperado.");
+                    }
+                    return false;
+                }
+                position += sent;
+            }
+            return true;
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                System.err.println("Error al cerrar el archivo sellado: " + e.getMessage());
+            }
+        }
+    }
+}
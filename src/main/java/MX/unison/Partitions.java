@@ -0,0 +1,192 @@
+package MX.unison;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Particiones por día de las lecturas: cada día (UTC) va en su propia tabla 'lecturas_AAAAMMDD'
+ * con su índice por capturado_ms, dentro del mismo archivo SQLite.
+ *
+ * Así el tamaño de cada tabla y de su índice no crece con los años: la ingesta siempre inserta en
+ * la partición del día y una consulta por rango solo abre las particiones que lo tocan. Para
+ * caducar datos se elimina la tabla completa (DROP TABLE) en lugar de borrar fila por fila;
+ * sus páginas pasan a la lista libre de SQLite y las reutilizan las particiones nuevas, así que
+ * el archivo deja de crecer sin necesidad de VACUUM.
+ *
+ * El catálogo en memoria se carga de sqlite_master al crear las tablas; solo el escritor
+ * (la conexión de escritura del pool) crea o elimina particiones.
+ */
+public final class Partitions {
+
+    public static final long DAY_MS = 86_400_000L;
+    static final String PREFIX = DataBaseManager.TABLE + "_";
+
+    // Inicio del día en ms -> tabla; las consultas lo recorren sin bloquear al escritor
+    private final ConcurrentSkipListMap<Long, String> tables = new ConcurrentSkipListMap<>();
+
+    /**
+     * Inicio (ms, UTC) del día que contiene 'timestamp'.
+     */
+    public static long dayStart(long timestamp) {
+        return Math.floorDiv(timestamp, DAY_MS) * DAY_MS;
+    }
+
+    /**
+     * Nombre de la partición del día que empieza en 'dayStart', p.ej. "lecturas_20261018".
+     */
+    public static String tableName(long dayStart) {
+        return PREFIX + LocalDate.ofEpochDay(Math.floorDiv(dayStart, DAY_MS)).format(DateTimeFormatter.BASIC_ISO_DATE);
+    }
+
+    /**
+     * Particiones que existen en la base, de la más antigua a la más reciente.
+     */
+    public static List<String> list(Connection conn) throws SQLException {
+        List<String> names = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table'"
+                     + " AND name GLOB '" + PREFIX + "[0-9]*' ORDER BY name")) {
+            while (rs.next()) {
+                names.add(rs.getString(1));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Crea la partición del día (tabla e índice) si no existe, con el esquema de 'lecturas'.
+     */
+    static void create(Connection conn, String table) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + table + " (\n"
+                    + " id INTEGER PRIMARY KEY NOT NULL,\n"
+                    + " dispositivo INTEGER NOT NULL,\n"
+                    + " capturado_ms INTEGER NOT NULL,\n"
+                    + " x INTEGER NOT NULL,\n"
+                    + " y INTEGER NOT NULL,\n"
+                    + " z INTEGER NOT NULL\n"
+                    + ");");
+        }
+        createIndex(conn, table);
+    }
+
+    /**
+     * Crea el índice por capturado_ms de la partición si no existe.
+     */
+    static void createIndex(Connection conn, String table) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_" + table + "_captura ON " + table + "(capturado_ms);");
+        }
+    }
+
+    /**
+     * Elimina el índice por capturado_ms de la partición; solo para cargas masivas (ver BulkLoader),
+     * que lo vuelven a crear con createIndex() al terminar.
+     */
+    static void dropIndex(Connection conn, String table) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP INDEX IF EXISTS idx_" + table + "_captura;");
+        }
+    }
+
+    /**
+     * Vuelve a leer el catálogo de la base.
+     */
+    void load(Connection conn) throws SQLException {
+        tables.clear();
+        for (String name : list(conn)) {
+            try {
+                LocalDate day = LocalDate.parse(name.substring(PREFIX.length()), DateTimeFormatter.BASIC_ISO_DATE);
+                tables.put(day.toEpochDay() * DAY_MS, name);
+            } catch (DateTimeParseException e) {
+                System.err.println("Tabla '" + name + "' ignorada: no es una partición de lecturas.");
+            }
+        }
+    }
+
+    /**
+     * Se asegura de que exista la partición de 'timestamp'. Debe llamarse con la conexión de
+     * escritura fuera de una transacción (autocommit): así, aunque el lote que sigue falle,
+     * el catálogo nunca apunta a una tabla que no llegó a crearse.
+     */
+    public void ensure(Connection conn, long timestamp) throws SQLException {
+        long day = dayStart(timestamp);
+        if (tables.containsKey(day)) {
+            return;
+        }
+        String table = tableName(day);
+        create(conn, table);
+        tables.put(day, table);
+        System.out.println("Partición '" + table + "' creada.");
+    }
+
+    /**
+     * Tabla de la partición de 'timestamp' (ya creada con ensure()).
+     */
+    public String tableFor(long timestamp) {
+        String table = tables.get(dayStart(timestamp));
+        if (table == null) {
+            throw new IllegalStateException("No existe la partición de " + timestamp + "; falta ensure().");
+        }
+        return table;
+    }
+
+    /**
+     * Tabla de la partición del día que empieza en 'dayStart', o null si no existe.
+     */
+    public String find(long dayStart) {
+        return tables.get(dayStart);
+    }
+
+    /**
+     * Sentencia INSERT de la partición de 'timestamp', de la caché de la conexión.
+     */
+    public PreparedStatement prepareInsert(DataBaseManager.PooledConnection conn, long timestamp) throws SQLException {
+        return conn.prepare("INSERT INTO " + tableFor(timestamp) + "(dispositivo, capturado_ms, x, y, z) VALUES(?, ?, ?, ?, ?)");
+    }
+
+    /**
+     * Particiones que pueden tener lecturas en el rango, de la más reciente a la más antigua.
+     * @param fromMs Inicio (inclusivo), o Long.MIN_VALUE sin límite.
+     * @param toMs Fin (inclusivo), o Long.MAX_VALUE sin límite.
+     */
+    public NavigableMap<Long, String> between(long fromMs, long toMs) {
+        if (fromMs > toMs) {
+            return new ConcurrentSkipListMap<>();
+        }
+        long fromDay = fromMs == Long.MIN_VALUE ? Long.MIN_VALUE : dayStart(fromMs);
+        return tables.subMap(fromDay, true, dayStart(toMs), true).descendingMap();
+    }
+
+    /**
+     * Elimina las particiones cuyo día terminó antes de 'cutoffMs'. Primero salen del catálogo,
+     * para que las consultas nuevas ya no las incluyan, y después se eliminan con la conexión de escritura.
+     * @return Cantidad de particiones eliminadas.
+     */
+    int dropBefore(DataBaseManager.PooledConnection conn, long cutoffMs) throws SQLException {
+        NavigableMap<Long, String> expired = tables.headMap(dayStart(cutoffMs), false);
+        List<String> names = new ArrayList<>(expired.values());
+        expired.clear();
+        try (Statement stmt = conn.getConnection().createStatement()) {
+            for (String table : names) {
+                stmt.execute("DROP TABLE IF EXISTS " + table);
+                System.out.println("Partición '" + table + "' eliminada por la política de retención.");
+            }
+        }
+        return names.size();
+    }
+
+    public int size() {
+        return tables.size();
+    }
+}
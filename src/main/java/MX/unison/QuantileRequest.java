@@ -0,0 +1,273 @@
+package MX.unison;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Parámetros de una petición de cuantiles calculados en el servidor con los histogramas guardados
+ * (ver Quantiles y QuantileSketch).
+ *
+ * Formato en el protocolo: "QUANTILE_REQUEST:" seguido de pares clave=valor separados por ';', por
+ * ejemplo "from=2026-09-01T00:00:00;to=2026-10-18T23:59:59;bucket=86400;q=0.5,0.95,0.99". Todas las
+ * claves son opcionales:
+ *  - "from" y "to": fecha y hora ISO (inclusivas), igual que en HistoricalRequest.
+ *  - "bucket": 3600 (por hora) o 86400 (por día), ambos alineados a UTC;
+ *    sin bucket, un solo resultado con exactamente las lecturas del rango.
+ *  - "device": solo las lecturas de ese dispositivo.
+ *  - "q": cuantiles entre 0 y 1 separados por comas; por omisión 0.5,0.95,0.99.
+ * Las claves desconocidas se ignoran.
+ *
+ * Con bucket, cada intervalo que toca el rango se informa completo (como los rollups). El servidor
+ * responde con líneas "QUANTILE_PAGE:reg|reg|..." de hasta PAGE_SIZE intervalos, del más reciente
+ * al más antiguo, y al final "QUANTILE_END:intervalos;lecturas=..". Formato de un registro (ver
+ * Result): "inicio_ms,n" y luego, por eje x/y/z, un valor por cuantil pedido. Los valores tienen
+ * el error de QuantileSketch: a lo más ±0.8 % del valor exacto (exactos si |v| < 128).
+ */
+public class QuantileRequest {
+
+    public static final String PREFIX = "QUANTILE_REQUEST:";
+    public static final String PAGE_PREFIX = "QUANTILE_PAGE:";
+    public static final String END_PREFIX = "QUANTILE_END:";
+
+    // Intervalos por línea de respuesta
+    public static final int PAGE_SIZE = 500;
+
+    private static final double[] DEFAULT_QUANTILES = {0.5, 0.95, 0.99};
+
+    // Rango de captura (inclusivo); null = sin límite por ese lado
+    private LocalDateTime from;
+    private LocalDateTime to;
+    // Segundos por intervalo (0, 3600 o 86400)
+    private long bucket;
+    // null = todos los dispositivos
+    private Integer device;
+    private double[] quantiles = DEFAULT_QUANTILES.clone();
+
+    /**
+     * Interpreta los parámetros que siguen a "QUANTILE_REQUEST:".
+     * @throws IllegalArgumentException si algún valor no es válido.
+     */
+    public static QuantileRequest parse(String params) {
+        QuantileRequest request = new QuantileRequest();
+        for (String pair : params.trim().split(";")) {
+            int eq = pair.indexOf('=');
+            if (eq < 0) {
+                continue;
+            }
+            String key = pair.substring(0, eq).trim();
+            String value = pair.substring(eq + 1).trim();
+            try {
+                switch (key) {
+                    case "from":
+                        request.setFrom(LocalDateTime.parse(value));
+                        break;
+                    case "to":
+                        request.setTo(LocalDateTime.parse(value));
+                        break;
+                    case "bucket":
+                        request.setBucket(Long.parseLong(value));
+                        break;
+                    case "device":
+                        request.setDevice(Integer.parseInt(value));
+                        break;
+                    case "q":
+                        request.setQuantiles(Arrays.stream(value.split(",")).map(String::trim)
+                                .mapToDouble(Double::parseDouble).toArray());
+                        break;
+                    default:
+                        // Clave desconocida: se ignora
+                }
+            } catch (NumberFormatException | DateTimeParseException e) {
+                throw new IllegalArgumentException("Valor inválido para '" + key + "': " + value);
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Mensaje completo para enviar al servidor.
+     */
+    public String toMessage() {
+        StringBuilder sb = new StringBuilder(PREFIX);
+        if (from != null) {
+            sb.append("from=").append(from).append(';');
+        }
+        if (to != null) {
+            sb.append("to=").append(to).append(';');
+        }
+        if (bucket > 0) {
+            sb.append("bucket=").append(bucket).append(';');
+        }
+        if (device != null) {
+            sb.append("device=").append(device).append(';');
+        }
+        sb.append("q=");
+        for (int i = 0; i < quantiles.length; i++) {
+            sb.append(i > 0 ? "," : "").append(quantiles[i]);
+        }
+        return sb.toString();
+    }
+
+    public LocalDateTime getFrom() {
+        return from;
+    }
+
+    public void setFrom(LocalDateTime from) {
+        this.from = from;
+    }
+
+    public LocalDateTime getTo() {
+        return to;
+    }
+
+    public void setTo(LocalDateTime to) {
+        this.to = to;
+    }
+
+    public long getBucket() {
+        return bucket;
+    }
+
+    /**
+     * @param bucket 0, 3600 o 86400 segundos (los intervalos con histogramas guardados).
+     */
+    public void setBucket(long bucket) {
+        if (bucket != 0 && bucket != 3600 && bucket != 86_400) {
+            throw new IllegalArgumentException("El intervalo debe ser 0, 3600 o 86400 segundos: " + bucket);
+        }
+        this.bucket = bucket;
+    }
+
+    /**
+     * Nivel de histogramas del intervalo pedido, o null sin intervalos.
+     */
+    public Rollup.Level getLevel() {
+        return bucket == 0 ? null : Rollup.Level.forResolution(bucket);
+    }
+
+    public Integer getDevice() {
+        return device;
+    }
+
+    public void setDevice(Integer device) {
+        this.device = device;
+    }
+
+    public double[] getQuantiles() {
+        return quantiles.clone();
+    }
+
+    public void setQuantiles(double... quantiles) {
+        if (quantiles.length == 0) {
+            throw new IllegalArgumentException("Se necesita al menos un cuantil.");
+        }
+        for (double q : quantiles) {
+            if (!(q >= 0 && q <= 1)) {
+                throw new IllegalArgumentException("El cuantil debe estar entre 0 y 1: " + q);
+            }
+        }
+        this.quantiles = quantiles.clone();
+    }
+
+    /**
+     * Obtiene el número de intervalos de un mensaje "QUANTILE_END:intervalos[;...]".
+     */
+    public static long parseEndTotal(String endMessage) {
+        String body = endMessage.substring(END_PREFIX.length());
+        int separator = body.indexOf(';');
+        return Long.parseLong(separator < 0 ? body : body.substring(0, separator));
+    }
+
+    /**
+     * Cuantiles de un intervalo (un registro de QUANTILE_PAGE).
+     */
+    public static final class Result {
+        private final long start;
+        private final long count;
+        // [eje][cuantil], en el orden de la petición
+        private final int[][] values;
+
+        public Result(long start, long count, int[][] values) {
+            this.start = start;
+            this.count = count;
+            this.values = values;
+        }
+
+        /**
+         * Cuantiles del histograma, en el orden de 'quantiles'.
+         */
+        public static Result of(long start, QuantileSketch sketch, double[] quantiles) {
+            int[][] values = new int[QuantileSketch.AXES][quantiles.length];
+            for (int axis = 0; axis < QuantileSketch.AXES; axis++) {
+                for (int i = 0; i < quantiles.length; i++) {
+                    values[axis][i] = sketch.quantile(axis, quantiles[i]);
+                }
+            }
+            return new Result(start, sketch.getCount(), values);
+        }
+
+        /** Inicio del intervalo (ms desde 1970), o del rango si no hay intervalos. */
+        public long getStart() {
+            return start;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Valor del cuantil número 'index' de la petición para el eje (RangeStats.X, Y o Z).
+         */
+        public int getValue(int axis, int index) {
+            return values[axis][index];
+        }
+
+        /**
+         * Agrega el registro en el formato de QUANTILE_PAGE.
+         */
+        public void appendRecord(StringBuilder sb) {
+            sb.append(start).append(',').append(count);
+            for (int[] axisValues : values) {
+                for (int value : axisValues) {
+                    sb.append(',').append(value);
+                }
+            }
+        }
+
+        /**
+         * Interpreta un registro de QUANTILE_PAGE.
+         * @param quantiles Cuantiles que se pidieron (cuántos valores trae cada eje).
+         * @throws IllegalArgumentException si el formato no es válido.
+         */
+        public static Result parse(String record, int quantiles) {
+            String[] parts = record.split(",");
+            if (parts.length != 2 + QuantileSketch.AXES * quantiles) {
+                throw new IllegalArgumentException("Registro de cuantiles inválido: " + record);
+            }
+            try {
+                int[][] values = new int[QuantileSketch.AXES][quantiles];
+                for (int axis = 0; axis < QuantileSketch.AXES; axis++) {
+                    for (int i = 0; i < quantiles; i++) {
+                        values[axis][i] = Integer.parseInt(parts[2 + axis * quantiles + i]);
+                    }
+                }
+                return new Result(Long.parseLong(parts[0]), Long.parseLong(parts[1]), values);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Registro de cuantiles inválido: " + record);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(SensorData.toLocalDateTime(start)).append(" n=").append(count);
+            String[] names = {"x", "y", "z"};
+            for (int axis = 0; axis < values.length; axis++) {
+                sb.append(String.format(Locale.ROOT, " %s%s", names[axis], Arrays.toString(values[axis])));
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package MX.unison;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Histograma compacto de x/y/z para calcular cuantiles (p50, p95, p99...) sin guardar las lecturas.
+ *
+ * Cada valor cae en una cubeta log-lineal (como HdrHistogram con 64 sub-cubetas por potencia de 2):
+ * los valores con |v| < 128 tienen cubeta propia y de ahí en adelante cada cubeta abarca 1/64 de su
+ * magnitud. Solo se cuentan lecturas por cubeta, así que:
+ *  - Se combinan sumando cuentas (merge): el histograma de un día es la suma de los de sus horas, y
+ *    el de un rango la suma de los de sus intervalos, sin error adicional por combinar.
+ *  - Cota de error: quantile(q) devuelve el centro de la cubeta donde cae la lectura de rango
+ *    ceil(q·n) (cuantil "nearest-rank" exacto); difiere del valor exacto en a lo más |v|/128
+ *    (±0.8 %), y es exacto para |v| < 128.
+ * Memoria y tamaño serializado dependen de cuántas cubetas distintas hay, no de las lecturas: con
+ * lecturas que varían en un par de cientos de unidades son unos cientos de bytes por eje.
+ *
+ * No es seguro entre hilos.
+ */
+public final class QuantileSketch {
+
+    public static final int AXES = 3;
+
+    // Valores con cubeta propia (|v| < 2 * SUB_BUCKETS) y sub-cubetas por potencia de 2 después
+    private static final int SUB_BUCKETS = 64;
+    private static final int SUB_BITS = 6;
+    private static final int EXACT = 2 * SUB_BUCKETS;
+    private static final byte FORMAT = 1;
+
+    // Por eje, cuentas de las cubetas [offset[axis], offset[axis] + counts[axis].length)
+    private final long[][] counts = new long[AXES][];
+    private final int[] offset = new int[AXES];
+    private long count;
+
+    /**
+     * Agrega una lectura.
+     */
+    public void add(int x, int y, int z) {
+        count++;
+        increment(0, index(x), 1);
+        increment(1, index(y), 1);
+        increment(2, index(z), 1);
+    }
+
+    /**
+     * Suma las cuentas de otro histograma a este.
+     */
+    public void merge(QuantileSketch other) {
+        for (int axis = 0; axis < AXES; axis++) {
+            long[] theirs = other.counts[axis];
+            if (theirs == null) {
+                continue;
+            }
+            for (int i = 0; i < theirs.length; i++) {
+                if (theirs[i] != 0) {
+                    increment(axis, other.offset[axis] + i, theirs[i]);
+                }
+            }
+        }
+        count += other.count;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Cuantil del eje (ver la cota de error arriba); 0 si no hay lecturas.
+     * @param q Entre 0 y 1.
+     */
+    public int quantile(int axis, double q) {
+        long[] axisCounts = counts[axis];
+        if (count == 0 || axisCounts == null) {
+            return 0;
+        }
+        long rank = Math.max(1, Math.min(count, (long) Math.ceil(q * count)));
+        long seen = 0;
+        for (int i = 0; i < axisCounts.length; i++) {
+            seen += axisCounts[i];
+            if (seen >= rank) {
+                return value(offset[axis] + i);
+            }
+        }
+        return value(offset[axis] + axisCounts.length - 1);
+    }
+
+    /**
+     * Cubeta del valor, ordenadas igual que los valores (las negativas son el espejo de las positivas).
+     */
+    static int index(int value) {
+        long magnitude = Math.abs((long) value);
+        int index;
+        if (magnitude < EXACT) {
+            index = (int) magnitude;
+        } else {
+            int shift = 63 - Long.numberOfLeadingZeros(magnitude) - SUB_BITS;
+            index = EXACT + (shift - 1) * SUB_BUCKETS + (int) ((magnitude >> shift) - SUB_BUCKETS);
+        }
+        return value < 0 ? -index : index;
+    }
+
+    /**
+     * Valor que representa a la cubeta: el centro de los valores que caen en ella.
+     */
+    static int value(int index) {
+        int magnitude = Math.abs(index);
+        long center;
+        if (magnitude < EXACT) {
+            center = magnitude;
+        } else {
+            int shift = (magnitude - EXACT) / SUB_BUCKETS + 1;
+            long mantissa = (magnitude - EXACT) % SUB_BUCKETS + SUB_BUCKETS;
+            long lower = mantissa << shift;
+            center = lower + ((1L << shift) - 1) / 2;
+        }
+        center = Math.min(center, index < 0 ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE);
+        return (int) (index < 0 ? -center : center);
+    }
+
+    private void increment(int axis, int index, long amount) {
+        long[] axisCounts = counts[axis];
+        if (axisCounts == null) {
+            counts[axis] = new long[8];
+            offset[axis] = index - 4;
+            axisCounts = counts[axis];
+        } else if (index < offset[axis] || index >= offset[axis] + axisCounts.length) {
+            // Crece al doble (o lo necesario) hacia el lado que hace falta
+            int low = Math.min(index, offset[axis]);
+            int high = Math.max(index + 1, offset[axis] + axisCounts.length);
+            int length = Math.max(high - low, axisCounts.length * 2);
+            int newOffset = index < offset[axis] ? high - length : low;
+            long[] grown = new long[length];
+            System.arraycopy(axisCounts, 0, grown, offset[axis] - newOffset, axisCounts.length);
+            counts[axis] = grown;
+            offset[axis] = newOffset;
+            axisCounts = grown;
+        }
+        axisCounts[index - offset[axis]] += amount;
+    }
+
+    /**
+     * Serializa el histograma: formato, lecturas y, por eje, las cubetas con lecturas como pares
+     * (distancia a la cubeta anterior, cuenta) en varints.
+     */
+    public byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(FORMAT);
+        writeVarLong(out, count);
+        for (int axis = 0; axis < AXES; axis++) {
+            long[] axisCounts = counts[axis];
+            int used = 0;
+            for (int i = 0; axisCounts != null && i < axisCounts.length; i++) {
+                if (axisCounts[i] != 0) {
+                    used++;
+                }
+            }
+            writeVarLong(out, used);
+            int previous = 0;
+            for (int i = 0; used > 0 && i < axisCounts.length; i++) {
+                if (axisCounts[i] != 0) {
+                    int index = offset[axis] + i;
+                    // La primera cubeta puede ser negativa: zigzag
+                    long delta = index - (long) previous;
+                    writeVarLong(out, (delta << 1) ^ (delta >> 63));
+                    writeVarLong(out, axisCounts[i]);
+                    previous = index;
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Interpreta lo que escribió toBytes().
+     * @throws IllegalArgumentException si el formato no es válido.
+     */
+    public static QuantileSketch fromBytes(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        QuantileSketch sketch = new QuantileSketch();
+        try {
+            if (in.get() != FORMAT) {
+                throw new IllegalArgumentException("Formato de histograma desconocido: " + bytes[0]);
+            }
+            sketch.count = readVarLong(in);
+            for (int axis = 0; axis < AXES; axis++) {
+                long used = readVarLong(in);
+                long index = 0;
+                for (long k = 0; k < used; k++) {
+                    long zigzag = readVarLong(in);
+                    index += (zigzag >>> 1) ^ -(zigzag & 1);
+                    sketch.increment(axis, (int) index, readVarLong(in));
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Histograma truncado (" + bytes.length + " bytes).");
+        }
+        return sketch;
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint demasiado largo en el histograma.");
+    }
+}
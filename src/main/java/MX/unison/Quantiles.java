@@ -0,0 +1,386 @@
+package MX.unison;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Histogramas de cuantiles (ver QuantileSketch) por dispositivo, por hora y por día, guardados en
+ * las tablas 'cuantiles_hora' y 'cuantiles_dia' junto a las lecturas. Con ellos p50/p95/p99 de
+ * meses de historia se calculan combinando unos cientos de histogramas en lugar de millones de filas.
+ *
+ * Se mantienen igual que los rollups: el escritor de la ingesta junta los histogramas de su lote
+ * en memoria (Batch) y los combina con los guardados dentro de la misma transacción que las
+ * lecturas. Las horas y los días se cuentan en UTC (ver Rollup.Level).
+ * La retención no los borra, igual que los rollups.
+ */
+public final class Quantiles {
+
+    /** Niveles con histogramas guardados. */
+    static final Rollup.Level[] LEVELS = {Rollup.Level.HOUR, Rollup.Level.DAY};
+
+    // Lecturas que se acumulan en memoria antes de escribir, al reconstruir
+    private static final int REBUILD_CHUNK = 100_000;
+
+    private Quantiles() {
+    }
+
+    /**
+     * Tabla de histogramas del nivel.
+     * @throws IllegalArgumentException si el nivel no tiene histogramas guardados.
+     */
+    static String table(Rollup.Level level) {
+        switch (level) {
+            case HOUR:
+                return "cuantiles_hora";
+            case DAY:
+                return "cuantiles_dia";
+            default:
+                throw new IllegalArgumentException("Sin histogramas guardados para el nivel " + level);
+        }
+    }
+
+    static boolean isStored(Rollup.Level level) {
+        return level == Rollup.Level.HOUR || level == Rollup.Level.DAY;
+    }
+
+    private static String selectSql(Rollup.Level level) {
+        return "SELECT histograma FROM " + table(level) + " WHERE inicio_ms = ? AND dispositivo = ?";
+    }
+
+    private static String upsertSql(Rollup.Level level) {
+        return "INSERT INTO " + table(level) + "(inicio_ms, dispositivo, cuenta, histograma) VALUES(?, ?, ?, ?)"
+                + " ON CONFLICT(inicio_ms, dispositivo) DO UPDATE SET cuenta = excluded.cuenta,"
+                + " histograma = excluded.histograma";
+    }
+
+    /**
+     * Crea las tablas de histogramas que falten. Si alguna es nueva y ya hay lecturas,
+     * la calcula una vez a partir de las particiones (de ahí en adelante se mantiene sola).
+     * Igual que con los rollups, una tabla de días locales de versiones anteriores se recalcula.
+     */
+    static void createTables(Connection conn) throws SQLException {
+        for (Rollup.Level level : LEVELS) {
+            boolean existed = DataBaseManager.tableExists(conn, table(level));
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE TABLE IF NOT EXISTS " + table(level) + " (\n"
+                        + " inicio_ms INTEGER NOT NULL,\n"
+                        + " dispositivo INTEGER NOT NULL,\n"
+                        + " cuenta INTEGER NOT NULL,\n"
+                        + " histograma BLOB NOT NULL,\n"
+                        + " PRIMARY KEY (inicio_ms, dispositivo)\n"
+                        + ") WITHOUT ROWID;");
+            }
+            if (!existed) {
+                rebuild(conn, level);
+            } else if (!Rollup.isAligned(conn, table(level), level.bucketMillis)) {
+                System.out.println("Histogramas '" + table(level) + "' con intervalos no alineados a UTC; se vuelven a calcular.");
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("DELETE FROM " + table(level));
+                }
+                rebuild(conn, level);
+            }
+        }
+    }
+
+    /**
+     * Vacía y vuelve a calcular todos los histogramas (p.ej. después de una carga masiva que
+     * escribió directo en las particiones).
+     */
+    public static void rebuildAll(Connection conn) throws SQLException {
+        for (Rollup.Level level : LEVELS) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("DELETE FROM " + table(level));
+            }
+            rebuild(conn, level);
+        }
+    }
+
+    /**
+     * Calcula los histogramas de un nivel desde cero recorriendo todas las particiones.
+     */
+    private static void rebuild(Connection conn, Rollup.Level level) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        long rows = 0;
+        try (Statement stmt = conn.createStatement()) {
+            Batch batch = new Batch(level);
+            int pending = 0;
+            for (String table : Partitions.list(conn)) {
+                try (ResultSet rs = stmt.executeQuery("SELECT dispositivo, capturado_ms, x, y, z FROM " + table)) {
+                    while (rs.next()) {
+                        batch.add(rs.getInt(1), rs.getLong(2), rs.getInt(3), rs.getInt(4), rs.getInt(5));
+                        rows++;
+                        if (++pending == REBUILD_CHUNK) {
+                            batch.write(conn);
+                            batch = new Batch(level);
+                            pending = 0;
+                        }
+                    }
+                }
+            }
+            batch.write(conn);
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        if (rows > 0) {
+            System.out.println("Histogramas '" + table(level) + "' calculados a partir de " + rows + " lecturas.");
+        }
+    }
+
+    /**
+     * Histograma de las lecturas del rango, combinando los guardados donde cubren intervalos
+     * completos: días completos de 'cuantiles_dia', horas completas de 'cuantiles_hora', y solo
+     * las lecturas de las fracciones de hora de los extremos. El resultado es el mismo que con
+     * todas las lecturas del rango (combinar no agrega error), con a lo más dos horas de lecturas leídas.
+     * @param fromMs Inicio (inclusivo), o Long.MIN_VALUE sin límite.
+     * @param toMs Fin (inclusivo), o Long.MAX_VALUE sin límite.
+     * @param device Dispositivo, o null para todos.
+     */
+    public static QuantileSketch merge(SensorStore store, long fromMs, long toMs, Integer device) throws Exception {
+        QuantileSketch total = new QuantileSketch();
+        if (fromMs > toMs) {
+            return total;
+        }
+        Rollup.Level hour = Rollup.Level.HOUR;
+        Rollup.Level day = Rollup.Level.DAY;
+        // Horas completas dentro del rango: [hoursFrom, hoursTo]
+        long hoursFrom = fromMs == Long.MIN_VALUE ? fromMs : alignUp(hour, fromMs);
+        long hoursTo = toMs == Long.MAX_VALUE ? toMs : hour.bucketStart(toMs + 1) - 1;
+        if (hoursFrom > hoursTo) {
+            scanReadings(store, fromMs, toMs, device, total);
+            return total;
+        }
+        if (fromMs < hoursFrom) {
+            scanReadings(store, fromMs, hoursFrom - 1, device, total);
+        }
+        if (hoursTo < toMs) {
+            scanReadings(store, hoursTo + 1, toMs, device, total);
+        }
+
+        // Días completos dentro de esas horas (un día UTC son 24 horas completas)
+        long daysFrom = hoursFrom == Long.MIN_VALUE ? hoursFrom : alignUp(day, hoursFrom);
+        long daysTo = hoursTo == Long.MAX_VALUE ? hoursTo : day.bucketStart(hoursTo + 1) - 1;
+        boolean useDays = daysFrom <= daysTo;
+        SensorStore.SketchVisitor add = (start, sketch) -> {
+            total.merge(sketch);
+            return true;
+        };
+        if (useDays) {
+            store.scanSketches(day, daysFrom, daysTo, device, add);
+            if (hoursFrom < daysFrom) {
+                store.scanSketches(hour, hoursFrom, daysFrom - 1, device, add);
+            }
+            if (daysTo < hoursTo) {
+                store.scanSketches(hour, daysTo + 1, hoursTo, device, add);
+            }
+        } else {
+            store.scanSketches(hour, hoursFrom, hoursTo, device, add);
+        }
+        return total;
+    }
+
+    private static void scanReadings(SensorStore store, long fromMs, long toMs, Integer device,
+                                     QuantileSketch sketch) throws Exception {
+        store.scan(fromMs, toMs, (readingDevice, timestamp, x, y, z) -> {
+            if (device == null || device == readingDevice) {
+                sketch.add(x, y, z);
+            }
+            return true;
+        });
+    }
+
+    /** Primer inicio de intervalo igual o posterior a 'timestamp'. */
+    private static long alignUp(Rollup.Level level, long timestamp) {
+        long start = level.bucketStart(timestamp);
+        return start == timestamp ? start : level.bucketEnd(timestamp) + 1;
+    }
+
+    /**
+     * Histogramas de un lote de lecturas por nivel, intervalo y dispositivo, listos para combinarse
+     * con los guardados. No es seguro entre hilos: lo usa quien escribe el lote.
+     */
+    public static final class Batch {
+        private final Rollup.Level[] levels;
+        // Por nivel: inicio del intervalo -> dispositivo -> histograma
+        private final List<Map<Long, Map<Integer, QuantileSketch>>> sketches;
+        // Intervalo y dispositivo de la lectura anterior, por nivel: casi todo el lote cae ahí
+        private final long[] lastStart;
+        private final long[] lastEnd;
+        private final int[] lastDevice;
+        private final QuantileSketch[] lastSketch;
+
+        /**
+         * Lote para todos los niveles con histogramas guardados.
+         */
+        public Batch() {
+            this(LEVELS);
+        }
+
+        private Batch(Rollup.Level... levels) {
+            this.levels = levels;
+            this.sketches = new ArrayList<>(levels.length);
+            this.lastStart = new long[levels.length];
+            this.lastEnd = new long[levels.length];
+            this.lastDevice = new int[levels.length];
+            this.lastSketch = new QuantileSketch[levels.length];
+            for (int i = 0; i < levels.length; i++) {
+                sketches.add(new HashMap<>());
+            }
+        }
+
+        public void add(int device, long timestamp, int x, int y, int z) {
+            for (int i = 0; i < levels.length; i++) {
+                QuantileSketch sketch = lastSketch[i];
+                if (sketch == null || device != lastDevice[i] || timestamp < lastStart[i] || timestamp > lastEnd[i]) {
+                    long start = levels[i].bucketStart(timestamp);
+                    sketch = sketches.get(i).computeIfAbsent(start, key -> new HashMap<>())
+                            .computeIfAbsent(device, key -> new QuantileSketch());
+                    lastStart[i] = start;
+                    lastEnd[i] = levels[i].bucketEnd(timestamp);
+                    lastDevice[i] = device;
+                    lastSketch[i] = sketch;
+                }
+                sketch.add(x, y, z);
+            }
+        }
+
+        /**
+         * Combina en este lote los histogramas de otro de los mismos niveles (p.ej. los que calcularon
+         * por separado los hilos de BulkLoader); 'other' no debe usarse después.
+         */
+        public void merge(Batch other) {
+            for (int i = 0; i < levels.length; i++) {
+                for (Map.Entry<Long, Map<Integer, QuantileSketch>> bucket : other.sketches.get(i).entrySet()) {
+                    Map<Integer, QuantileSketch> devices = sketches.get(i).computeIfAbsent(bucket.getKey(), key -> new HashMap<>());
+                    for (Map.Entry<Integer, QuantileSketch> entry : bucket.getValue().entrySet()) {
+                        devices.merge(entry.getKey(), entry.getValue(), (mine, theirs) -> {
+                            mine.merge(theirs);
+                            return mine;
+                        });
+                    }
+                }
+            }
+        }
+
+        /**
+         * Combina los histogramas con los guardados usando la conexión del lote (en su transacción).
+         */
+        public void write(DataBaseManager.PooledConnection conn) throws SQLException {
+            for (int i = 0; i < levels.length; i++) {
+                write(conn.prepare(selectSql(levels[i])), conn.prepare(upsertSql(levels[i])), sketches.get(i));
+            }
+        }
+
+        private void write(Connection conn) throws SQLException {
+            for (int i = 0; i < levels.length; i++) {
+                try (PreparedStatement select = conn.prepareStatement(selectSql(levels[i]));
+                     PreparedStatement upsert = conn.prepareStatement(upsertSql(levels[i]))) {
+                    write(select, upsert, sketches.get(i));
+                }
+            }
+        }
+
+        private static void write(PreparedStatement select, PreparedStatement upsert,
+                                  Map<Long, Map<Integer, QuantileSketch>> levelSketches) throws SQLException {
+            if (levelSketches.isEmpty()) {
+                return;
+            }
+            try {
+                for (Map.Entry<Long, Map<Integer, QuantileSketch>> bucket : levelSketches.entrySet()) {
+                    for (Map.Entry<Integer, QuantileSketch> entry : bucket.getValue().entrySet()) {
+                        QuantileSketch sketch = entry.getValue();
+                        select.setLong(1, bucket.getKey());
+                        select.setInt(2, entry.getKey());
+                        try (ResultSet rs = select.executeQuery()) {
+                            if (rs.next()) {
+                                // El lote pasa a contener también lo guardado; el lote no se reutiliza
+                                sketch.merge(QuantileSketch.fromBytes(rs.getBytes(1)));
+                            }
+                        }
+                        upsert.setLong(1, bucket.getKey());
+                        upsert.setInt(2, entry.getKey());
+                        upsert.setLong(3, sketch.getCount());
+                        upsert.setBytes(4, sketch.toBytes());
+                        upsert.addBatch();
+                    }
+                }
+                upsert.executeBatch();
+            } finally {
+                upsert.clearBatch();
+            }
+        }
+    }
+
+    /**
+     * Calcula los histogramas al vuelo a partir de un recorrido de lecturas del más reciente al
+     * más antiguo (para almacenamientos sin histogramas guardados, ver SensorStore.scanSketches).
+     * Igual que Rollup.Aggregator, si las lecturas llegan muy desordenadas un intervalo puede salir
+     * en más de un histograma.
+     */
+    public static final class Builder implements SensorStore.ReadingVisitor {
+        private final Rollup.Level level;
+        private final Integer device;
+        private final SensorStore.SketchVisitor downstream;
+        private QuantileSketch sketch;
+        private long bucketStart;
+        private long bucketEnd;
+        private long emitted;
+        private boolean stopped;
+
+        /**
+         * @param device Dispositivo, o null para todos.
+         */
+        public Builder(Rollup.Level level, Integer device, SensorStore.SketchVisitor downstream) {
+            this.level = level;
+            this.device = device;
+            this.downstream = downstream;
+        }
+
+        @Override
+        public boolean visit(int device, long timestamp, int x, int y, int z) {
+            if (this.device != null && this.device != device) {
+                return true;
+            }
+            if (sketch != null && (timestamp < bucketStart || timestamp > bucketEnd) && !emit()) {
+                return false;
+            }
+            if (sketch == null) {
+                sketch = new QuantileSketch();
+                bucketStart = level.bucketStart(timestamp);
+                bucketEnd = level.bucketEnd(timestamp);
+            }
+            sketch.add(x, y, z);
+            return true;
+        }
+
+        /**
+         * Entrega el último intervalo pendiente.
+         * @return Intervalos entregados.
+         */
+        public long finish() {
+            if (sketch != null && !stopped) {
+                emit();
+            }
+            return emitted;
+        }
+
+        private boolean emit() {
+            QuantileSketch done = sketch;
+            sketch = null;
+            emitted++;
+            stopped = !downstream.visit(bucketStart, done);
+            return !stopped;
+        }
+    }
+}
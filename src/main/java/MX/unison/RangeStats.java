@@ -0,0 +1,261 @@
+package MX.unison;
+
+import java.util.Locale;
+
+/**
+ * Estadísticas de las lecturas de un intervalo: cantidad y, por eje, mínimo, máximo, media,
+ * desviación estándar (poblacional) y los valores de la primera y la última lectura (por marca
+ * de tiempo de captura).
+ *
+ * Se calculan en una sola pasada (ver Accumulator): la media y la desviación con el método de
+ * Welford, que no acumula sumas de cuadrados enormes y no pierde precisión con millones de lecturas.
+ *
+ * Formato de un registro en STATS_PAGE (ver StatsRequest), separado por comas:
+ * "inicio_ms,n,xmin,xmax,xmedia,xdesv,xprimera,xultima,ymin,...,zultima"; la media y la
+ * desviación con tres decimales.
+ */
+public final class RangeStats {
+
+    public static final int X = 0;
+    public static final int Y = 1;
+    public static final int Z = 2;
+    private static final int AXES = 3;
+    private static final int FIELDS_PER_AXIS = 6;
+
+    private final long start;
+    private long count;
+    private final int[] min = new int[AXES];
+    private final int[] max = new int[AXES];
+    private final double[] mean = new double[AXES];
+    // Suma de los cuadrados de las diferencias con la media (Welford): desv = sqrt(m2 / n)
+    private final double[] m2 = new double[AXES];
+    private final double[] stddev = new double[AXES];
+    private final int[] first = new int[AXES];
+    private final int[] last = new int[AXES];
+    private long firstMs = Long.MAX_VALUE;
+    private long lastMs = Long.MIN_VALUE;
+
+    public RangeStats(long start) {
+        this.start = start;
+        for (int axis = 0; axis < AXES; axis++) {
+            min[axis] = Integer.MAX_VALUE;
+            max[axis] = Integer.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Agrega una lectura.
+     */
+    public void add(long timestamp, int x, int y, int z) {
+        count++;
+        addAxis(X, x);
+        addAxis(Y, y);
+        addAxis(Z, z);
+        // Con empates se queda la primera que llegó, igual en ambos extremos
+        if (timestamp < firstMs) {
+            firstMs = timestamp;
+            first[X] = x;
+            first[Y] = y;
+            first[Z] = z;
+        }
+        if (timestamp > lastMs) {
+            lastMs = timestamp;
+            last[X] = x;
+            last[Y] = y;
+            last[Z] = z;
+        }
+    }
+
+    private void addAxis(int axis, int value) {
+        if (value < min[axis]) {
+            min[axis] = value;
+        }
+        if (value > max[axis]) {
+            max[axis] = value;
+        }
+        double delta = value - mean[axis];
+        mean[axis] += delta / count;
+        m2[axis] += delta * (value - mean[axis]);
+        stddev[axis] = Double.NaN;
+    }
+
+    /** Inicio del intervalo (ms desde 1970), o del rango si no hay intervalos. */
+    public long getStart() {
+        return start;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /** Mínimo del eje (0 si no hay lecturas). */
+    public int getMin(int axis) {
+        return count > 0 ? min[axis] : 0;
+    }
+
+    /** Máximo del eje (0 si no hay lecturas). */
+    public int getMax(int axis) {
+        return count > 0 ? max[axis] : 0;
+    }
+
+    public double getMean(int axis) {
+        return mean[axis];
+    }
+
+    public double getStddev(int axis) {
+        if (Double.isNaN(stddev[axis])) {
+            stddev[axis] = count > 0 ? Math.sqrt(m2[axis] / count) : 0;
+        }
+        return stddev[axis];
+    }
+
+    /** Valor de la lectura más antigua del intervalo. */
+    public int getFirst(int axis) {
+        return first[axis];
+    }
+
+    /** Valor de la lectura más reciente del intervalo. */
+    public int getLast(int axis) {
+        return last[axis];
+    }
+
+    /**
+     * Agrega el registro en el formato de STATS_PAGE.
+     */
+    public void appendRecord(StringBuilder sb) {
+        sb.append(start).append(',').append(count);
+        for (int axis = 0; axis < AXES; axis++) {
+            sb.append(',').append(getMin(axis)).append(',').append(getMax(axis)).append(',');
+            appendDecimal(sb, getMean(axis));
+            sb.append(',');
+            appendDecimal(sb, getStddev(axis));
+            sb.append(',').append(first[axis]).append(',').append(last[axis]);
+        }
+    }
+
+    private static void appendDecimal(StringBuilder sb, double value) {
+        sb.append(String.format(Locale.ROOT, "%.3f", value));
+    }
+
+    /**
+     * Interpreta un registro de STATS_PAGE.
+     * @throws IllegalArgumentException si el formato no es válido.
+     */
+    public static RangeStats parse(String record) {
+        String[] parts = record.split(",");
+        if (parts.length != 2 + AXES * FIELDS_PER_AXIS) {
+            throw new IllegalArgumentException("Registro de estadísticas inválido: " + record);
+        }
+        try {
+            RangeStats stats = new RangeStats(Long.parseLong(parts[0]));
+            stats.count = Long.parseLong(parts[1]);
+            for (int axis = 0; axis < AXES; axis++) {
+                int base = 2 + axis * FIELDS_PER_AXIS;
+                stats.min[axis] = Integer.parseInt(parts[base]);
+                stats.max[axis] = Integer.parseInt(parts[base + 1]);
+                stats.mean[axis] = Double.parseDouble(parts[base + 2]);
+                stats.stddev[axis] = Double.parseDouble(parts[base + 3]);
+                stats.first[axis] = Integer.parseInt(parts[base + 4]);
+                stats.last[axis] = Integer.parseInt(parts[base + 5]);
+            }
+            return stats;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Registro de estadísticas inválido: " + record);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(SensorData.toLocalDateTime(start)).append(" n=").append(count);
+        String[] names = {"x", "y", "z"};
+        for (int axis = 0; axis < AXES; axis++) {
+            sb.append(String.format(Locale.ROOT, " %s[min=%d max=%d media=%.3f desv=%.3f primera=%d última=%d]",
+                    names[axis], getMin(axis), getMax(axis), getMean(axis), getStddev(axis), first[axis], last[axis]));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Recibe un intervalo terminado.
+     */
+    @FunctionalInterface
+    public interface Visitor {
+        /**
+         * @return false para detener el recorrido.
+         */
+        boolean visit(RangeStats stats);
+    }
+
+    /**
+     * Convierte un recorrido de lecturas (de la más reciente a la más antigua) en intervalos de
+     * estadísticas: como las lecturas llegan en orden, cada intervalo se entrega en cuanto empieza
+     * el siguiente y la memoria no depende del rango.
+     */
+    public static final class Accumulator implements SensorStore.ReadingVisitor {
+        private final long bucketMs;
+        private final Integer device;
+        private final Visitor downstream;
+        private RangeStats current;
+        private long readings;
+        private long emitted;
+        private boolean stopped;
+
+        /**
+         * @param bucketMs Duración de cada intervalo en ms; 0 = un solo resultado con todo el rango.
+         * @param device Dispositivo, o null para todos.
+         * @param rangeStart Inicio que se informa cuando no hay intervalos.
+         */
+        public Accumulator(long bucketMs, Integer device, long rangeStart, Visitor downstream) {
+            this.bucketMs = bucketMs;
+            this.device = device;
+            this.downstream = downstream;
+            if (bucketMs == 0) {
+                current = new RangeStats(rangeStart);
+            }
+        }
+
+        @Override
+        public boolean visit(int device, long timestamp, int x, int y, int z) {
+            if (this.device != null && this.device != device) {
+                return true;
+            }
+            if (bucketMs > 0) {
+                long start = Math.floorDiv(timestamp, bucketMs) * bucketMs;
+                if (current != null && start != current.start && !emit()) {
+                    return false;
+                }
+                if (current == null) {
+                    current = new RangeStats(start);
+                }
+            }
+            readings++;
+            current.add(timestamp, x, y, z);
+            return true;
+        }
+
+        /**
+         * Entrega el último intervalo pendiente (sin intervalos, el del rango aunque esté vacío).
+         * @return Intervalos entregados.
+         */
+        public long finish() {
+            if (current != null && !stopped && (current.count > 0 || bucketMs == 0)) {
+                emit();
+            }
+            return emitted;
+        }
+
+        /** Lecturas que entraron en algún intervalo. */
+        public long getReadings() {
+            return readings;
+        }
+
+        private boolean emit() {
+            RangeStats done = current;
+            current = null;
+            emitted++;
+            stopped = !downstream.visit(done);
+            return !stopped;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package MX.unison;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tablas de agregados (rollups) por minuto, hora y día: por cada intervalo guardan cuántas lecturas
+ * hubo, mínimo, máximo y suma de x/y/z, y la última lectura. Así una consulta de un mes a
+ * resolución de horas lee unas 720 filas en lugar de millones.
+ *
+ * Se mantienen de forma incremental: el escritor de la ingesta junta los agregados de su lote en
+ * memoria (Batch) y los suma a las tablas con un UPSERT por intervalo, dentro de la misma
+ * transacción que las lecturas, así nunca quedan desfasados de las lecturas.
+ *
+ * Todos los intervalos se cuentan en UTC, incluidos los de día, igual que las particiones
+ * (Partitions) y los días sellados: un día de rollup es exactamente una partición. Las tablas
+ * de día de versiones anteriores, que empezaban a medianoche local, se recalculan al abrir la DB.
+ */
+public final class Rollup {
+
+    /**
+     * Granularidad de un rollup.
+     */
+    public enum Level {
+        MINUTE("rollup_minuto", 60_000L),
+        HOUR("rollup_hora", 3_600_000L),
+        DAY("rollup_dia", 86_400_000L);
+
+        final String table;
+        final long bucketMillis;
+        final String upsertSql;
+
+        Level(String table, long bucketMillis) {
+            this.table = table;
+            this.bucketMillis = bucketMillis;
+            this.upsertSql = "INSERT INTO " + table + "(inicio_ms, cuenta, min_x, max_x, suma_x, min_y, max_y, suma_y,"
+                    + " min_z, max_z, suma_z, ultimo_ms, ultimo_x, ultimo_y, ultimo_z)"
+                    + " VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
+                    + " ON CONFLICT(inicio_ms) DO UPDATE SET cuenta = cuenta + excluded.cuenta,"
+                    + " min_x = min(min_x, excluded.min_x), max_x = max(max_x, excluded.max_x), suma_x = suma_x + excluded.suma_x,"
+                    + " min_y = min(min_y, excluded.min_y), max_y = max(max_y, excluded.max_y), suma_y = suma_y + excluded.suma_y,"
+                    + " min_z = min(min_z, excluded.min_z), max_z = max(max_z, excluded.max_z), suma_z = suma_z + excluded.suma_z,"
+                    // En un UPDATE todas las expresiones ven los valores anteriores de la fila
+                    + " ultimo_x = CASE WHEN excluded.ultimo_ms >= ultimo_ms THEN excluded.ultimo_x ELSE ultimo_x END,"
+                    + " ultimo_y = CASE WHEN excluded.ultimo_ms >= ultimo_ms THEN excluded.ultimo_y ELSE ultimo_y END,"
+                    + " ultimo_z = CASE WHEN excluded.ultimo_ms >= ultimo_ms THEN excluded.ultimo_z ELSE ultimo_z END,"
+                    + " ultimo_ms = max(ultimo_ms, excluded.ultimo_ms)";
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        /**
+         * Inicio del intervalo que contiene 'timestamp' (ms desde 1970).
+         */
+        public long bucketStart(long timestamp) {
+            return Math.floorDiv(timestamp, bucketMillis) * bucketMillis;
+        }
+
+        /**
+         * Último ms del intervalo que contiene 'timestamp'.
+         */
+        public long bucketEnd(long timestamp) {
+            return bucketStart(timestamp) + bucketMillis - 1;
+        }
+
+        /**
+         * El rollup más grueso cuyo intervalo no supera la resolución pedida.
+         * @param resolutionSeconds Segundos entre puntos que acepta el cliente.
+         * @return El nivel, o null si la resolución pide lecturas individuales.
+         */
+        public static Level forResolution(long resolutionSeconds) {
+            long millis = resolutionSeconds * 1000;
+            Level chosen = null;
+            for (Level level : values()) {
+                if (level.bucketMillis <= millis) {
+                    chosen = level;
+                }
+            }
+            return chosen;
+        }
+    }
+
+    // Lecturas que se acumulan en memoria antes de escribir, al reconstruir
+    private static final int REBUILD_CHUNK = 100_000;
+
+    private Rollup() {
+    }
+
+    /**
+     * Crea las tablas de rollup que falten. Si alguna es nueva y ya hay lecturas,
+     * la calcula una vez a partir de las particiones (de ahí en adelante se mantiene sola).
+     * Una tabla con intervalos que no empiezan en múltiplos de su duración (los días locales de
+     * versiones anteriores) se vacía y se vuelve a calcular.
+     */
+    static void createTables(Connection conn) throws SQLException {
+        for (Level level : Level.values()) {
+            boolean existed = DataBaseManager.tableExists(conn, level.table);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE TABLE IF NOT EXISTS " + level.table + " (\n"
+                        + " inicio_ms INTEGER PRIMARY KEY NOT NULL,\n"
+                        + " cuenta INTEGER NOT NULL,\n"
+                        + " min_x INTEGER NOT NULL, max_x INTEGER NOT NULL, suma_x INTEGER NOT NULL,\n"
+                        + " min_y INTEGER NOT NULL, max_y INTEGER NOT NULL, suma_y INTEGER NOT NULL,\n"
+                        + " min_z INTEGER NOT NULL, max_z INTEGER NOT NULL, suma_z INTEGER NOT NULL,\n"
+                        + " ultimo_ms INTEGER NOT NULL,\n"
+                        + " ultimo_x INTEGER NOT NULL, ultimo_y INTEGER NOT NULL, ultimo_z INTEGER NOT NULL\n"
+                        + ");");
+            }
+            if (!existed) {
+                rebuild(conn, level);
+            } else if (!isAligned(conn, level.table, level.bucketMillis)) {
+                System.out.println("Rollup '" + level.table + "' con intervalos no alineados a UTC; se vuelve a calcular.");
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("DELETE FROM " + level.table);
+                }
+                rebuild(conn, level);
+            }
+        }
+    }
+
+    /**
+     * Indica si todos los intervalos guardados en 'table' empiezan en un múltiplo de 'bucketMillis'.
+     */
+    static boolean isAligned(Connection conn, String table, long bucketMillis) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(
+                "SELECT 1 FROM " + table + " WHERE inicio_ms % ? != 0 LIMIT 1")) {
+            pstmt.setLong(1, bucketMillis);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return !rs.next();
+            }
+        }
+    }
+
+    /**
+     * Vacía y vuelve a calcular todos los rollups (p.ej. después de una carga masiva que
+     * escribió directo en las particiones).
+     */
+    public static void rebuildAll(Connection conn) throws SQLException {
+        for (Level level : Level.values()) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("DELETE FROM " + level.table);
+            }
+            rebuild(conn, level);
+        }
+    }
+
+    /**
+     * Calcula un rollup desde cero recorriendo todas las particiones.
+     */
+    private static void rebuild(Connection conn, Level level) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        long rows = 0;
+        try (Statement stmt = conn.createStatement()) {
+            Batch batch = new Batch(level);
+            int pending = 0;
+            for (String table : Partitions.list(conn)) {
+                try (ResultSet rs = stmt.executeQuery("SELECT capturado_ms, x, y, z FROM " + table)) {
+                    while (rs.next()) {
+                        batch.add(rs.getLong(1), rs.getInt(2), rs.getInt(3), rs.getInt(4));
+                        rows++;
+                        if (++pending == REBUILD_CHUNK) {
+                            batch.write(conn);
+                            batch = new Batch(level);
+                            pending = 0;
+                        }
+                    }
+                }
+            }
+            batch.write(conn);
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        if (rows > 0) {
+            System.out.println("Rollup '" + level.table + "' calculado a partir de " + rows + " lecturas.");
+        }
+    }
+
+    /**
+     * Agregados de un lote de lecturas, listos para sumarse a las tablas de rollup.
+     * No es seguro entre hilos: lo usa quien escribe el lote.
+     */
+    public static final class Batch {
+        private final Map<Level, Map<Long, Bucket>> buckets = new EnumMap<>(Level.class);
+
+        /**
+         * Lote para todos los niveles.
+         */
+        public Batch() {
+            this(Level.values());
+        }
+
+        private Batch(Level... levels) {
+            for (Level level : levels) {
+                buckets.put(level, new HashMap<>());
+            }
+        }
+
+        public void add(long timestamp, int x, int y, int z) {
+            for (Map.Entry<Level, Map<Long, Bucket>> entry : buckets.entrySet()) {
+                long start = entry.getKey().bucketStart(timestamp);
+                entry.getValue().computeIfAbsent(start, key -> new Bucket()).add(timestamp, x, y, z);
+            }
+        }
+
+        /**
+         * Suma a este lote los agregados de otro de los mismos niveles (p.ej. los que calcularon
+         * por separado los hilos de BulkLoader); 'other' no debe usarse después.
+         */
+        public void merge(Batch other) {
+            for (Map.Entry<Level, Map<Long, Bucket>> entry : other.buckets.entrySet()) {
+                Map<Long, Bucket> levelBuckets = buckets.get(entry.getKey());
+                for (Map.Entry<Long, Bucket> bucket : entry.getValue().entrySet()) {
+                    levelBuckets.merge(bucket.getKey(), bucket.getValue(), Bucket::merge);
+                }
+            }
+        }
+
+        /**
+         * Suma los agregados a las tablas con la conexión del lote (en su transacción).
+         */
+        public void write(DataBaseManager.PooledConnection conn) throws SQLException {
+            for (Map.Entry<Level, Map<Long, Bucket>> entry : buckets.entrySet()) {
+                write(conn.prepare(entry.getKey().upsertSql), entry.getValue());
+            }
+        }
+
+        private void write(Connection conn) throws SQLException {
+            for (Map.Entry<Level, Map<Long, Bucket>> entry : buckets.entrySet()) {
+                try (PreparedStatement pstmt = conn.prepareStatement(entry.getKey().upsertSql)) {
+                    write(pstmt, entry.getValue());
+                }
+            }
+        }
+
+        private static void write(PreparedStatement pstmt, Map<Long, Bucket> levelBuckets) throws SQLException {
+            if (levelBuckets.isEmpty()) {
+                return;
+            }
+            try {
+                for (Map.Entry<Long, Bucket> entry : levelBuckets.entrySet()) {
+                    entry.getValue().bind(pstmt, entry.getKey());
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+            } finally {
+                pstmt.clearBatch();
+            }
+        }
+    }
+
+    /**
+     * Calcula los intervalos al vuelo a partir de un recorrido de lecturas del más reciente al
+     * más antiguo (para almacenamientos sin rollups guardados, ver SensorStore.scanAggregates).
+     * Cada intervalo se entrega al cambiar de intervalo; si las lecturas llegan muy desordenadas,
+     * un intervalo puede salir en más de un registro.
+     */
+    public static final class Aggregator implements SensorStore.ReadingVisitor {
+        private final Level level;
+        private final SensorStore.AggregateVisitor downstream;
+        private Bucket bucket;
+        private long bucketStart;
+        private long emitted;
+        private boolean stopped;
+
+        public Aggregator(Level level, SensorStore.AggregateVisitor downstream) {
+            this.level = level;
+            this.downstream = downstream;
+        }
+
+        @Override
+        public boolean visit(int device, long timestamp, int x, int y, int z) {
+            long start = level.bucketStart(timestamp);
+            if (bucket != null && start != bucketStart && !emit()) {
+                return false;
+            }
+            if (bucket == null) {
+                bucket = new Bucket();
+                bucketStart = start;
+            }
+            bucket.add(timestamp, x, y, z);
+            return true;
+        }
+
+        /**
+         * Entrega el último intervalo pendiente.
+         * @return Intervalos entregados.
+         */
+        public long finish() {
+            if (bucket != null && !stopped) {
+                emit();
+            }
+            return emitted;
+        }
+
+        private boolean emit() {
+            Bucket done = bucket;
+            bucket = null;
+            emitted++;
+            boolean more = downstream.visit(bucketStart, done.count, done.sumX, done.sumY, done.sumZ,
+                    done.minX, done.maxX, done.minY, done.maxY, done.minZ, done.maxZ,
+                    done.lastMs, done.lastX, done.lastY, done.lastZ);
+            stopped = !more;
+            return more;
+        }
+    }
+
+    /**
+     * Acumulado de un intervalo.
+     */
+    private static final class Bucket {
+        long count;
+        int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
+        int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+        int minZ = Integer.MAX_VALUE, maxZ = Integer.MIN_VALUE;
+        long sumX, sumY, sumZ;
+        long lastMs = Long.MIN_VALUE;
+        int lastX, lastY, lastZ;
+
+        void add(long timestamp, int x, int y, int z) {
+            count++;
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+            sumX += x;
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+            sumY += y;
+            minZ = Math.min(minZ, z);
+            maxZ = Math.max(maxZ, z);
+            sumZ += z;
+            if (timestamp >= lastMs) {
+                lastMs = timestamp;
+                lastX = x;
+                lastY = y;
+                lastZ = z;
+            }
+        }
+
+        Bucket merge(Bucket other) {
+            count += other.count;
+            minX = Math.min(minX, other.minX);
+            maxX = Math.max(maxX, other.maxX);
+            sumX += other.sumX;
+            minY = Math.min(minY, other.minY);
+            maxY = Math.max(maxY, other.maxY);
+            sumY += other.sumY;
+            minZ = Math.min(minZ, other.minZ);
+            maxZ = Math.max(maxZ, other.maxZ);
+            sumZ += other.sumZ;
+            if (other.lastMs >= lastMs) {
+                lastMs = other.lastMs;
+                lastX = other.lastX;
+                lastY = other.lastY;
+                lastZ = other.lastZ;
+            }
+            return this;
+        }
+
+        void bind(PreparedStatement pstmt, long start) throws SQLException {
+            pstmt.setLong(1, start);
+            pstmt.setLong(2, count);
+            pstmt.setInt(3, minX);
+            pstmt.setInt(4, maxX);
+            pstmt.setLong(5, sumX);
+            pstmt.setInt(6, minY);
+            pstmt.setInt(7, maxY);
+            pstmt.setLong(8, sumY);
+            pstmt.setInt(9, minZ);
+            pstmt.setInt(10, maxZ);
+            pstmt.setLong(11, sumZ);
+            pstmt.setLong(12, lastMs);
+            pstmt.setInt(13, lastX);
+            pstmt.setInt(14, lastY);
+            pstmt.setInt(15, lastZ);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package MX.unison;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Migra las lecturas del esquema 1 ('datos_sensor', fecha y hora como TEXT) a las particiones
+ * por día (capturado_ms INTEGER, ver Partitions), por lotes y sin detener el servidor.
+ *
+ * Cada lote copia las filas más antiguas que quedan (y suma sus agregados a los rollups y a los
+ * histogramas de cuantiles) y las borra de la tabla anterior en la misma transacción, con la
+ * conexión de escritura del pool: se turna con los lotes de la ingesta y, si se interrumpe, la
+ * siguiente ejecución sigue donde quedó sin duplicar filas. Mientras tanto las consultas del
+ * histórico leen de ambas tablas. Al quedar vacía, la tabla anterior se elimina.
+ *
+ * El servidor la ejecuta en segundo plano al arrancar (propiedad monitor.migracion.auto, por defecto true).
+ * También se puede ejecutar a mano sobre un archivo:
+ *   java -cp ... MX.unison.SchemaMigration [archivo.db]
+ *
+ * Configuración: monitor.migracion.lote (filas por transacción) y monitor.migracion.pausa
+ * (ms entre lotes, para dejar pasar a la ingesta).
+ */
+public class SchemaMigration implements Runnable {
+
+    // Las lecturas del esquema anterior no tenían dispositivo
+    private static final int LEGACY_DEVICE = 0;
+    // Cada cuántos lotes se informa el avance
+    private static final int REPORT_EVERY = 20;
+
+    private final DataBaseManager dbManager;
+    private final int batchSize = Math.max(1, Integer.getInteger("monitor.migracion.lote", 5000));
+    private final long pauseMs = Long.getLong("monitor.migracion.pausa", 20);
+
+    private long migrated;
+    private long skipped;
+
+    public SchemaMigration(DataBaseManager dbManager) {
+        this.dbManager = dbManager;
+    }
+
+    public static void main(String[] args) {
+        String path = args.length > 0 ? args[0] : "monitorBD.db";
+        try (DataBaseManager dbManager = new DataBaseManager(path)) {
+            dbManager.createTable();
+            if (!dbManager.hasLegacyTable()) {
+                System.out.println("La base '" + path + "' ya usa el esquema " + DataBaseManager.SCHEMA_VERSION + ".");
+                return;
+            }
+            new SchemaMigration(dbManager).run();
+        }
+    }
+
+    /**
+     * Migra todos los lotes pendientes. Un error deja la migración a medias, pero consistente.
+     */
+    @Override
+    public void run() {
+        if (!dbManager.hasLegacyTable()) {
+            return;
+        }
+        long start = System.nanoTime();
+        long pending = countLegacyRows();
+        System.out.println("Migración de esquema: " + pending + " lecturas por convertir, en lotes de " + batchSize + ".");
+        try {
+            int batches = 0;
+            int moved;
+            while ((moved = migrateBatch()) > 0) {
+                if (++batches % REPORT_EVERY == 0) {
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    System.out.printf("Migración de esquema: %d/%d lecturas (%.0f lecturas/s)%n",
+                            migrated, pending, migrated / seconds);
+                }
+                if (moved == batchSize && pauseMs > 0) {
+                    Thread.sleep(pauseMs);
+                }
+            }
+            dropLegacyTable();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Migración de esquema terminada: %d lecturas en %.1f s, %d descartadas por fecha inválida.%n",
+                    migrated, seconds, skipped);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Migración de esquema interrumpida tras " + migrated + " lecturas; se reanudará.");
+        } catch (SQLException e) {
+            System.err.println("Error en la migración de esquema (se reanudará en el próximo arranque): " + e.getMessage());
+        }
+    }
+
+    /**
+     * Mueve el siguiente lote en una transacción.
+     * @return Filas leídas de la tabla anterior (0 cuando ya no quedan).
+     */
+    private int migrateBatch() throws SQLException {
+        try (DataBaseManager.PooledConnection conn = dbManager.borrowWriter()) {
+            Partitions partitions = dbManager.getPartitions();
+            PreparedStatement select = conn.prepare("SELECT id, x, y, z, fecha_de_captura, hora_de_captura FROM "
+                    + DataBaseManager.LEGACY_TABLE + " ORDER BY id LIMIT ?");
+            PreparedStatement delete = conn.prepare("DELETE FROM " + DataBaseManager.LEGACY_TABLE + " WHERE id <= ?");
+
+            // Se lee el lote antes de abrir la transacción para crear primero las particiones que falten;
+            // solo esta conexión escribe, así que nadie cambia la tabla anterior mientras tanto
+            List<IngestQueue.Reading> readings = new ArrayList<>(batchSize);
+            int read = 0;
+            long lastId = -1;
+            select.setInt(1, batchSize);
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    read++;
+                    lastId = rs.getLong(1);
+                    long timestamp = SensorData.toEpochMillis(rs.getString(5), rs.getString(6));
+                    if (timestamp == 0) {
+                        skipped++;
+                        continue;
+                    }
+                    readings.add(new IngestQueue.Reading(LEGACY_DEVICE, timestamp, rs.getInt(2), rs.getInt(3), rs.getInt(4)));
+                }
+            }
+            if (read == 0) {
+                return 0;
+            }
+            for (IngestQueue.Reading reading : readings) {
+                partitions.ensure(conn.getConnection(), reading.timestamp);
+            }
+
+            conn.getConnection().setAutoCommit(false);
+            Rollup.Batch rollup = new Rollup.Batch();
+            Quantiles.Batch quantiles = new Quantiles.Batch();
+            Set<PreparedStatement> inserts = new LinkedHashSet<>();
+            try {
+                for (IngestQueue.Reading reading : readings) {
+                    PreparedStatement insert = partitions.prepareInsert(conn, reading.timestamp);
+                    inserts.add(insert);
+                    rollup.add(reading.timestamp, reading.x, reading.y, reading.z);
+                    quantiles.add(reading.device, reading.timestamp, reading.x, reading.y, reading.z);
+                    insert.setInt(1, reading.device);
+                    insert.setLong(2, reading.timestamp);
+                    insert.setInt(3, reading.x);
+                    insert.setInt(4, reading.y);
+                    insert.setInt(5, reading.z);
+                    insert.addBatch();
+                }
+                for (PreparedStatement insert : inserts) {
+                    insert.executeBatch();
+                }
+                rollup.write(conn);
+                quantiles.write(conn);
+                delete.setLong(1, lastId);
+                delete.executeUpdate();
+                conn.getConnection().commit();
+                migrated += readings.size();
+            } finally {
+                // Sin commit, close() de la conexión del pool hace rollback
+                for (PreparedStatement insert : inserts) {
+                    insert.clearBatch();
+                }
+            }
+            conn.getConnection().setAutoCommit(true);
+            return read;
+        }
+    }
+
+    private void dropLegacyTable() throws SQLException {
+        // Primero las consultas nuevas dejan de incluirla; luego se elimina (con su índice)
+        dbManager.setLegacyTable(false);
+        try (DataBaseManager.PooledConnection conn = dbManager.borrowWriter();
+             Statement stmt = conn.getConnection().createStatement()) {
+            stmt.execute("DROP TABLE IF EXISTS " + DataBaseManager.LEGACY_TABLE);
+        }
+    }
+
+    private long countLegacyRows() {
+        try (Connection conn = dbManager.connect();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + DataBaseManager.LEGACY_TABLE)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+
+    /** Lecturas migradas en esta ejecución. */
+    public long getMigratedCount() {
+        return migrated;
+    }
+}
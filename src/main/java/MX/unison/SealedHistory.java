@@ -0,0 +1,556 @@
+package MX.unison;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Días cerrados del histórico, sellados en archivos que ya están listos para enviarse.
+ *
+ * Las lecturas de un día que ya terminó no cambian, pero cada petición de histórico las volvía a
+ * leer, codificar, cifrar y pasar a Base64. Cuando un día (UTC, igual que las particiones) termina,
+ * el hilo "historial-sellado" lo recorre una sola vez y escribe 'AAAAMMDD.sel': las lecturas del día
+ * en el orden de las respuestas (de la más reciente a la más antigua), en bloques de SeriesCodec de
+ * LINE_READINGS lecturas, cada bloque cifrado con AES-GCM y en Base64, una línea por bloque.
+ * Una petición que cubre el día completo envía estas líneas tal cual desde el archivo
+ * (ClientSession.sendMessageAndFile); el día en curso y los días que el rango toca en parte se arman
+ * al vuelo como antes.
+ *
+ * Cifrado: cada conexión tiene su propia clave (GcmSessionCipher), así que el archivo no puede ir
+ * cifrado con ella. Cada archivo tiene una clave propia al azar; el servidor la envía dentro de la
+ * línea "HIST_SEALED:..." cifrada con la clave de la sesión, y el cliente descifra con ella las
+ * líneas del archivo que siguen. En disco la clave se guarda cifrada con la clave fija del
+ * servidor (EncryptionUtil). El nonce de cada línea es su número y los datos autenticados (AAD)
+ * son el día y el número de línea, así que no se pueden reordenar ni mezclar líneas de otro
+ * archivo; el total de líneas viaja en HIST_SEALED, ya autenticado por la sesión.
+ *
+ * Formato del archivo: una cabecera de HEADER_SIZE bytes en texto
+ * ("SELLADO 1;dia=..;lecturas=..;lineas=..;bytes=..;clave=..", completada con espacios y '\n')
+ * y después las líneas, cada una terminada en '\n'.
+ *
+ * Un día sellado deja de ser válido si llega una lectura atrasada de ese día: el MessageProcessor
+ * avisa con onWritten() y el archivo se borra; la siguiente pasada lo vuelve a sellar. Los días que
+ * la retención ya borró del almacenamiento también se borran de aquí. Lo que se escriba en el
+ * almacenamiento por fuera del Server debe borrar los archivos de esos días (deleteDay()).
+ *
+ * Propiedades: monitor.sellado.dir (por defecto "sellados"), monitor.sellado.dias (días hacia atrás
+ * que se sellan, 31), monitor.sellado.espera (segundos después de medianoche antes de sellar, para
+ * las lecturas en tránsito, 300) y monitor.sellado.intervalo (segundos entre pasadas, 60).
+ */
+public class SealedHistory implements AutoCloseable {
+
+    static final int HEADER_SIZE = 256;
+    static final int LINE_READINGS = 4096;
+    private static final String MAGIC = "SELLADO 1";
+    private static final String EXTENSION = ".sel";
+    private static final int KEY_SIZE = 32;
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_SIZE = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM no disponible: " + e.getMessage(), e);
+        }
+    });
+
+    private final Path dir;
+    private final SensorStore store;
+    private final int lookbackDays;
+    private final long graceMs;
+    private final long intervalMs;
+    // Inicio del día (ms, UTC) -> archivo sellado; las peticiones lo recorren sin candado
+    private final ConcurrentSkipListMap<Long, Day> days = new ConcurrentSkipListMap<>();
+    // Lecturas atrasadas por día: si cambia mientras se sella, el archivo se descarta
+    private final Map<Long, Long> lateWrites = new ConcurrentHashMap<>();
+    // Días sin lecturas, para no recorrerlos en cada pasada
+    private final Set<Long> emptyDays = ConcurrentHashMap.newKeySet();
+    private final Thread sealer;
+    private volatile boolean closed = false;
+
+    private final AtomicLong sealedCount = new AtomicLong();
+    private final AtomicLong invalidatedCount = new AtomicLong();
+    private final AtomicLong servedDays = new AtomicLong();
+    private final AtomicLong servedBytes = new AtomicLong();
+
+    /**
+     * Archivo sellado de un día.
+     */
+    public static final class Day {
+        final long start;
+        final Path path;
+        final long readings;
+        final int lines;
+        final long bodyBytes;
+        final byte[] key;
+
+        Day(long start, Path path, long readings, int lines, long bodyBytes, byte[] key) {
+            this.start = start;
+            this.path = path;
+            this.readings = readings;
+            this.lines = lines;
+            this.bodyBytes = bodyBytes;
+            this.key = key;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        /** Último ms (inclusivo) del día. */
+        public long getEnd() {
+            return start + Partitions.DAY_MS - 1;
+        }
+
+        public long getReadings() {
+            return readings;
+        }
+    }
+
+    /**
+     * Sellado con las propiedades monitor.sellado.*; el hilo que sella arranca de inmediato.
+     */
+    public SealedHistory(Path dir, SensorStore store) throws IOException {
+        this(dir, store, Integer.getInteger("monitor.sellado.dias", 31),
+                TimeUnit.SECONDS.toMillis(Long.getLong("monitor.sellado.espera", 300)),
+                TimeUnit.SECONDS.toMillis(Long.getLong("monitor.sellado.intervalo", 60)), true);
+    }
+
+    /**
+     * @param lookbackDays Días cerrados hacia atrás que se sellan.
+     * @param graceMs Espera después del fin del día antes de sellarlo.
+     * @param intervalMs Tiempo entre pasadas del hilo que sella.
+     * @param background false para no arrancar el hilo (se sella con sealPending()).
+     */
+    public SealedHistory(Path dir, SensorStore store, int lookbackDays, long graceMs, long intervalMs,
+                         boolean background) throws IOException {
+        this.dir = dir;
+        this.store = store;
+        this.lookbackDays = lookbackDays;
+        this.graceMs = graceMs;
+        this.intervalMs = intervalMs;
+        Files.createDirectories(dir);
+        load();
+        this.sealer = new Thread(this::runSealer, "historial-sellado");
+        sealer.setDaemon(true);
+        if (background) {
+            sealer.start();
+        }
+        System.out.println("Histórico sellado: " + days.size() + " días en " + dir.toAbsolutePath() + ".");
+    }
+
+    /**
+     * Carga los archivos sellados que ya existen y borra los que quedaron a medio escribir.
+     */
+    private void load() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.deleteIfExists(file);
+                } else if (name.endsWith(EXTENSION)) {
+                    try {
+                        Day day = readHeader(file);
+                        days.put(day.start, day);
+                    } catch (IOException | IllegalArgumentException e) {
+                        System.err.println("Archivo sellado inválido, se borra: " + file + " (" + e.getMessage() + ")");
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        }
+    }
+
+    private static Day readHeader(Path file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long size;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            size = channel.size();
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                // Seguir hasta leer la cabecera completa
+            }
+        }
+        String text = new String(header.array(), 0, header.position(), StandardCharsets.US_ASCII).trim();
+        String[] fields = text.split(";");
+        if (!fields[0].equals(MAGIC) || header.hasRemaining()) {
+            throw new IllegalArgumentException("cabecera desconocida");
+        }
+        long start = Long.parseLong(field(fields, "dia"));
+        long bodyBytes = Long.parseLong(field(fields, "bytes"));
+        if (size != HEADER_SIZE + bodyBytes) {
+            throw new IllegalArgumentException("tamaño " + size + " en lugar de " + (HEADER_SIZE + bodyBytes));
+        }
+        byte[] key = EncryptionUtil.decryptBytes(Base64.getDecoder().decode(field(fields, "clave")));
+        if (key == null || key.length != KEY_SIZE) {
+            throw new IllegalArgumentException("clave inválida");
+        }
+        return new Day(start, file, Long.parseLong(field(fields, "lecturas")),
+                Integer.parseInt(field(fields, "lineas")), bodyBytes, key);
+    }
+
+    private static String field(String[] fields, String name) {
+        for (String field : fields) {
+            if (field.startsWith(name + "=")) {
+                return field.substring(name.length() + 1);
+            }
+        }
+        throw new IllegalArgumentException("falta '" + name + "'");
+    }
+
+    private void runSealer() {
+        while (!closed) {
+            try {
+                sealPending();
+                pruneExpired();
+            } catch (Exception e) {
+                if (closed) {
+                    return;
+                }
+                System.err.println("Error al sellar el histórico: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(intervalMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sella los días cerrados (dentro de monitor.sellado.dias) que aún no tienen archivo.
+     * @return Días sellados en esta pasada.
+     */
+    public int sealPending() throws Exception {
+        long now = System.currentTimeMillis();
+        long today = Partitions.dayStart(now);
+        int sealed = 0;
+        for (int back = 1; back <= lookbackDays && !closed; back++) {
+            long start = today - back * Partitions.DAY_MS;
+            if (start + Partitions.DAY_MS + graceMs > now || days.containsKey(start) || emptyDays.contains(start)) {
+                continue;
+            }
+            if (seal(start)) {
+                sealed++;
+            }
+        }
+        return sealed;
+    }
+
+    /**
+     * Recorre el día una vez y publica su archivo sellado.
+     * @return false si el día no tiene lecturas o llegó una lectura atrasada mientras se sellaba.
+     */
+    private boolean seal(long start) throws Exception {
+        long version = lateWrites.getOrDefault(start, 0L);
+        String name = dayName(start);
+        Path tmp = dir.resolve(name + ".tmp");
+        Path file = dir.resolve(name + EXTENSION);
+        byte[] key = new byte[KEY_SIZE];
+        RANDOM.nextBytes(key);
+
+        DayWriter writer;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writer = new DayWriter(channel, start, key);
+            store.scan(start, start + Partitions.DAY_MS - 1, writer::add);
+            writer.finish();
+            if (writer.readings > 0) {
+                writeHeader(channel, start, writer, key);
+                channel.force(true);
+            }
+        } catch (Exception e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        if (writer.readings == 0) {
+            Files.deleteIfExists(tmp);
+            emptyDays.add(start);
+            return false;
+        }
+
+        // Bajo el mismo candado que onWritten: o se ve la lectura atrasada, o ella ve el archivo
+        synchronized (this) {
+            if (closed || lateWrites.getOrDefault(start, 0L) != version) {
+                Files.deleteIfExists(tmp);
+                return false;
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            days.put(start, new Day(start, file, writer.readings, writer.lines, writer.bodyBytes, key));
+        }
+        sealedCount.incrementAndGet();
+        System.out.println("Histórico sellado: " + name + " (" + writer.readings + " lecturas, "
+                + writer.lines + " líneas, " + (HEADER_SIZE + writer.bodyBytes) / 1024 + " KB).");
+        return true;
+    }
+
+    /**
+     * Nombre de los archivos del día, sin extensión ("AAAAMMDD").
+     */
+    private static String dayName(long start) {
+        return Partitions.tableName(start).substring(Partitions.PREFIX.length());
+    }
+
+    /**
+     * Borra el archivo sellado del día que empieza en 'dayStart', si existe. Es para quien escribe en
+     * el almacenamiento por fuera del Server (p.ej. BulkLoader) con el Server detenido: al arrancar,
+     * el día se vuelve a sellar con todas sus lecturas.
+     * @return true si había archivo.
+     */
+    public static boolean deleteDay(Path dir, long dayStart) throws IOException {
+        return Files.deleteIfExists(dir.resolve(dayName(dayStart) + EXTENSION));
+    }
+
+    private static void writeHeader(FileChannel channel, long start, DayWriter writer, byte[] key) throws IOException {
+        String text = MAGIC + ";dia=" + start + ";lecturas=" + writer.readings + ";lineas=" + writer.lines
+                + ";bytes=" + writer.bodyBytes + ";clave=" + Base64.getEncoder().encodeToString(EncryptionUtil.encryptBytes(key));
+        byte[] header = new byte[HEADER_SIZE];
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length >= HEADER_SIZE) {
+            throw new IOException("Cabecera del archivo sellado demasiado larga.");
+        }
+        Arrays.fill(header, (byte) ' ');
+        System.arraycopy(bytes, 0, header, 0, bytes.length);
+        header[HEADER_SIZE - 1] = '\n';
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, buffer.position());
+        }
+    }
+
+    /**
+     * Borra los días sellados que la retención ya quitó del almacenamiento.
+     */
+    public void pruneExpired() throws Exception {
+        for (Day day : days.values()) {
+            boolean[] found = {false};
+            store.scan(day.start, day.getEnd(), (device, timestamp, x, y, z) -> {
+                found[0] = true;
+                return false;
+            });
+            if (!found[0]) {
+                synchronized (this) {
+                    if (days.remove(day.start, day)) {
+                        Files.deleteIfExists(day.path);
+                        System.out.println("Histórico sellado: " + day.path.getFileName() + " ya no está en el almacenamiento; se borra.");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Lo invoca el escritor después de guardar cada lote: una lectura de un día ya cerrado borra
+     * el archivo sellado de ese día (se vuelve a sellar en la siguiente pasada).
+     */
+    public void onWritten(List<IngestQueue.Reading> batch) {
+        long today = Partitions.dayStart(System.currentTimeMillis());
+        long lastDay = Long.MIN_VALUE;
+        for (IngestQueue.Reading reading : batch) {
+            if (reading.timestamp >= today) {
+                continue;
+            }
+            long start = Partitions.dayStart(reading.timestamp);
+            if (start != lastDay) {
+                lastDay = start;
+                invalidate(start);
+            }
+        }
+    }
+
+    private synchronized void invalidate(long start) {
+        lateWrites.merge(start, 1L, Long::sum);
+        emptyDays.remove(start);
+        Day day = days.remove(start);
+        if (day != null) {
+            invalidatedCount.incrementAndGet();
+            try {
+                Files.deleteIfExists(day.path);
+            } catch (IOException e) {
+                System.err.println("No se pudo borrar el archivo sellado " + day.path + ": " + e.getMessage());
+            }
+            System.out.println("Histórico sellado: llegó una lectura atrasada de " + day.path.getFileName()
+                    + "; se vuelve a sellar.");
+        }
+    }
+
+    /**
+     * Días sellados contenidos por completo en el rango, del más reciente al más antiguo.
+     */
+    public List<Day> daysWithin(long fromMs, long toMs) {
+        List<Day> within = new ArrayList<>();
+        if (fromMs > toMs || toMs - Partitions.DAY_MS + 1 < fromMs) {
+            return within;
+        }
+        for (Day day : days.subMap(fromMs, true, toMs - Partitions.DAY_MS + 1, true).descendingMap().values()) {
+            within.add(day);
+        }
+        return within;
+    }
+
+    /**
+     * Envía un día sellado: la línea "HIST_SEALED:" con la clave del archivo, cifrada con la sesión,
+     * y después las líneas del archivo sin tocarlas.
+     * @throws IOException si el archivo ya no existe (p.ej. lo borró una lectura atrasada).
+     */
+    public void send(ClientSession session, Day day) throws IOException {
+        String header = HistoricalRequest.SEALED_PREFIX + "dia=" + day.start + ";lecturas=" + day.readings
+                + ";lineas=" + day.lines + ";clave=" + Base64.getEncoder().encodeToString(day.key);
+        FileChannel file = FileChannel.open(day.path, StandardOpenOption.READ);
+        session.sendMessageAndFile(header, file, HEADER_SIZE, day.bodyBytes);
+        servedDays.incrementAndGet();
+        servedBytes.addAndGet(day.bodyBytes);
+    }
+
+    /**
+     * Descifra una línea de un día sellado (lo usa el cliente).
+     * @param key Clave del archivo, recibida en HIST_SEALED.
+     * @return El bloque de SeriesCodec de la línea.
+     */
+    public static byte[] openLine(byte[] key, long dayStart, int index, String line) throws GeneralSecurityException {
+        byte[] sealed;
+        try {
+            sealed = Base64.getDecoder().decode(line);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("Línea Base64 inválida: " + e.getMessage());
+        }
+        if (sealed.length < NONCE_SIZE + TAG_SIZE || ByteBuffer.wrap(sealed).getLong(4) != index) {
+            throw new GeneralSecurityException("Línea sellada inválida o fuera de orden.");
+        }
+        try {
+            Cipher cipher = CIPHER.get();
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(TAG_SIZE * 8, sealed, 0, NONCE_SIZE));
+            cipher.updateAAD(aad(dayStart, index));
+            return cipher.doFinal(sealed, NONCE_SIZE, sealed.length - NONCE_SIZE);
+        } catch (GeneralSecurityException e) {
+            CIPHER.remove();
+            throw new GeneralSecurityException("Línea sellada alterada o clave incorrecta.");
+        }
+    }
+
+    private static byte[] aad(long dayStart, int index) {
+        return ByteBuffer.allocate(12).putLong(dayStart).putInt(index).array();
+    }
+
+    public int getSealedDays() {
+        return days.size();
+    }
+
+    public String describe() {
+        return "histórico sellado: " + days.size() + " días, sellados=" + sealedCount.get()
+                + " invalidados=" + invalidatedCount.get() + " enviados=" + servedDays.get()
+                + " (" + servedBytes.get() / 1024 + " KB)";
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        sealer.interrupt();
+        try {
+            sealer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Histórico sellado: " + describe().substring("histórico sellado: ".length()) + ".");
+    }
+
+    /**
+     * Junta las lecturas del día en bloques, los cifra y escribe una línea por bloque.
+     */
+    private static final class DayWriter {
+        private final FileChannel channel;
+        private final long dayStart;
+        private final SecretKeySpec key;
+        private final SeriesCodec codec = new SeriesCodec();
+        private final long[] timestamps = new long[LINE_READINGS];
+        private final int[] devices = new int[LINE_READINGS];
+        private final int[] xs = new int[LINE_READINGS];
+        private final int[] ys = new int[LINE_READINGS];
+        private final int[] zs = new int[LINE_READINGS];
+        private int inBlock;
+        long readings;
+        int lines;
+        long bodyBytes;
+
+        DayWriter(FileChannel channel, long dayStart, byte[] key) throws IOException {
+            this.channel = channel;
+            this.dayStart = dayStart;
+            this.key = new SecretKeySpec(key, "AES");
+            channel.position(HEADER_SIZE);
+        }
+
+        /**
+         * @throws UncheckedIOException si falla la escritura (el recorrido del almacenamiento no admite IOException).
+         */
+        boolean add(int device, long timestamp, int x, int y, int z) {
+            timestamps[inBlock] = timestamp;
+            devices[inBlock] = device;
+            xs[inBlock] = x;
+            ys[inBlock] = y;
+            zs[inBlock] = z;
+            inBlock++;
+            readings++;
+            if (inBlock == LINE_READINGS) {
+                flushBlock();
+            }
+            return true;
+        }
+
+        void finish() {
+            if (inBlock > 0) {
+                flushBlock();
+            }
+        }
+
+        private void flushBlock() {
+            int size = codec.encode(timestamps, devices, xs, ys, zs, 0, inBlock);
+            byte[] sealed = new byte[NONCE_SIZE + size + TAG_SIZE];
+            ByteBuffer.wrap(sealed).putInt(0).putLong(lines);
+            try {
+                Cipher cipher = CIPHER.get();
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, sealed, 0, NONCE_SIZE));
+                cipher.updateAAD(aad(dayStart, lines));
+                cipher.doFinal(codec.buffer(), 0, size, sealed, NONCE_SIZE);
+            } catch (GeneralSecurityException e) {
+                CIPHER.remove();
+                throw new IllegalStateException("Error al cifrar el día sellado: " + e.getMessage(), e);
+            }
+            byte[] encoded = Base64.getEncoder().encode(sealed);
+            ByteBuffer line = ByteBuffer.allocate(encoded.length + 1).put(encoded).put((byte) '\n');
+            line.flip();
+            try {
+                while (line.hasRemaining()) {
+                    channel.write(line);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            bodyBytes += line.limit();
+            inBlock = 0;
+            lines++;
+        }
+    }
+}
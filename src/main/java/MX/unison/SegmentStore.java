@@ -0,0 +1,760 @@
+package MX.unison;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Almacenamiento alternativo a SQLite: las lecturas son tuplas de ancho fijo que solo se agregan,
+ * así que se guardan por columnas en segmentos de capacidad fija mapeados en memoria
+ * (FileChannel.map), sin SQL, sin B-tree y sin convertir cada fila.
+ *
+ * Formato de cada archivo 'seg-NNNNNNNN.dat' (little endian):
+ *  - Encabezado de 4096 bytes: magic, versión, capacidad y dos ranuras de confirmación
+ *    (secuencia, registros confirmados, CRC32 de ambos).
+ *  - Columnas de 'capacidad' valores cada una: capturado_ms (long), dispositivo, x, y, z (int);
+ *    24 bytes por lectura.
+ *
+ * Escritura: el escritor (un solo hilo) copia el lote a las columnas, las fuerza a disco si
+ * monitor.segmentos.sync es true (por defecto) y después publica la nueva cuenta en la ranura
+ * que no tiene la última confirmación. Al abrir, se toma la ranura válida con la secuencia mayor:
+ * un lote que se cortó a medias (o una ranura escrita a medias) queda fuera y se sobrescribe.
+ * Al llenarse un segmento se abre el siguiente.
+ *
+ * Índice: por cada bloque de 4096 registros se guarda en memoria el mínimo y el máximo de
+ * capturado_ms; se reconstruye al abrir leyendo la columna de tiempos. Una consulta por rango
+ * solo lee los bloques que lo tocan, directo del archivo mapeado (sin copiar registros ni crear
+ * objetos por lectura). El orden es el de llegada al revés, que es el de captura cuando los
+ * dispositivos envían en orden; el rango se filtra por registro, así que no depende de eso.
+ *
+ * Datos fríos: un segmento lleno ya no cambia, así que un hilo de fondo lo reescribe comprimido
+ * con SeriesCodec en 'seg-NNNNNNNN.zsg' (encabezado con magic, versión, lecturas y bloques; un
+ * directorio con mínimo, máximo, posición, tamaño y cuenta de cada bloque; y los bloques de 4096
+ * lecturas). El archivo se escribe aparte, se fuerza a disco y se renombra de forma atómica;
+ * después reemplaza al segmento en la lista y se borra el original. Si el proceso se corta a
+ * medias, al abrir se descarta el temporal o, si ya existe el comprimido, el original. Las
+ * consultas decodifican solo los bloques que tocan el rango, en arreglos reutilizados por hilo.
+ *
+ * No mantiene rollups: los agregados se calculan al vuelo (ver SensorStore.scanAggregates).
+ *
+ * Configuración: monitor.segmentos.dir (directorio), monitor.segmentos.registros (capacidad de
+ * cada segmento), monitor.segmentos.sync y monitor.segmentos.comprimir (por defecto true).
+ */
+public class SegmentStore implements SensorStore {
+
+    private static final int MAGIC = 0x4D534547; // "MSEG"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4096;
+    // Ranuras de confirmación: secuencia, cuenta y CRC32 (8 bytes cada uno)
+    private static final int SLOT_OFFSET = 16;
+    private static final int SLOT_BYTES = 24;
+
+    // Segmentos comprimidos: encabezado (magic, versión, lecturas, bloques) y una entrada por bloque
+    private static final int COLD_MAGIC = 0x4D53475A; // "MSGZ"
+    private static final int COLD_HEADER_BYTES = 16;
+    private static final int COLD_ENTRY_BYTES = 32;
+
+    public static final int BYTES_PER_READING = 24;
+    // Registros por entrada del índice disperso (y por bloque de los segmentos comprimidos)
+    static final int BLOCK = 4096;
+
+    // Arreglos para decodificar bloques fríos, uno por hilo de consulta
+    private static final ThreadLocal<BlockReader> READERS = ThreadLocal.withInitial(BlockReader::new);
+
+    private final Path dir;
+    private final int capacity;
+    private final boolean sync;
+    private final boolean compress;
+    // Del más antiguo al más reciente; solo el escritor agrega y solo el compresor reemplaza
+    private final List<SegmentFile> segments = new CopyOnWriteArrayList<>();
+    // Segmentos llenos que esperan su compresión
+    private final BlockingQueue<Segment> toCompress = new LinkedBlockingQueue<>();
+    private Thread compressor;
+    private volatile boolean closed = false;
+
+    public SegmentStore(Path dir) throws IOException {
+        this(dir, Integer.getInteger("monitor.segmentos.registros", 1 << 20),
+                Boolean.parseBoolean(System.getProperty("monitor.segmentos.sync", "true")),
+                Boolean.parseBoolean(System.getProperty("monitor.segmentos.comprimir", "true")));
+    }
+
+    /**
+     * @param dir Directorio de los segmentos (se crea si no existe).
+     * @param capacity Lecturas por segmento (se redondea a un múltiplo de 4096).
+     * @param sync Forzar cada lote a disco antes de confirmarlo.
+     * @param compress Comprimir en segundo plano los segmentos que se llenan.
+     */
+    public SegmentStore(Path dir, int capacity, boolean sync, boolean compress) throws IOException {
+        int blocks = Math.max(1, (capacity + BLOCK - 1) / BLOCK);
+        if ((long) blocks * BLOCK * BYTES_PER_READING + HEADER_BYTES > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Capacidad de segmento demasiado grande: " + capacity);
+        }
+        this.dir = dir;
+        this.capacity = blocks * BLOCK;
+        this.sync = sync;
+        this.compress = compress;
+        Files.createDirectories(dir);
+
+        List<Path> found = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "seg-*")) {
+            stream.forEach(found::add);
+        }
+        // Por número de segmento; el comprimido gana sobre el original que quedó sin borrar
+        TreeMap<Integer, Path> files = new TreeMap<>();
+        for (Path file : found) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(".tmp")) {
+                Files.delete(file);
+                continue;
+            }
+            if (!name.endsWith(".dat") && !name.endsWith(".zsg")) {
+                continue;
+            }
+            Path previous = files.get(number(file));
+            if (previous == null) {
+                files.put(number(file), file);
+            } else {
+                Path cold = name.endsWith(".zsg") ? file : previous;
+                files.put(number(file), cold);
+                Files.delete(cold == file ? previous : file);
+            }
+        }
+        for (Path file : files.values()) {
+            segments.add(file.getFileName().toString().endsWith(".zsg") ? ColdSegment.open(file) : Segment.open(file));
+        }
+        if (compress) {
+            // Los segmentos llenos que quedaron sin comprimir (todos menos el activo)
+            for (int i = 0; i < segments.size() - 1; i++) {
+                if (segments.get(i) instanceof Segment) {
+                    toCompress.add((Segment) segments.get(i));
+                }
+            }
+            compressor = new Thread(this::runCompressor, "segmentos-compresion");
+            compressor.setDaemon(true);
+            compressor.start();
+        }
+        System.out.println("Almacenamiento en segmentos: " + describe());
+    }
+
+    /**
+     * Copia el lote al segmento activo y lo confirma. Si el segmento se llena, el resto va al
+     * siguiente (cada parte se confirma por separado).
+     */
+    @Override
+    public synchronized void write(List<IngestQueue.Reading> batch) throws IOException {
+        if (closed) {
+            throw new IOException("El almacenamiento de segmentos está cerrado.");
+        }
+        int written = 0;
+        while (written < batch.size()) {
+            // El último segmento es el activo, salvo que al abrir el último archivo ya estuviera
+            // comprimido (p.ej. si se borró el .dat que seguía): entonces se empieza uno nuevo
+            SegmentFile last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            Segment active = last instanceof Segment ? (Segment) last : null;
+            if (active == null || active.count == active.capacity) {
+                if (active != null && compress) {
+                    toCompress.add(active);
+                }
+                active = createSegment();
+            }
+            int n = Math.min(batch.size() - written, active.capacity - active.count);
+            active.append(batch, written, n, sync);
+            written += n;
+        }
+    }
+
+    @Override
+    public long scan(long fromMs, long toMs, ReadingVisitor visitor) {
+        long[] total = new long[1];
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            if (!segments.get(i).scan(fromMs, toMs, visitor, total)) {
+                break;
+            }
+        }
+        return total[0];
+    }
+
+    /**
+     * Del segmento más antiguo al más reciente y, dentro de cada uno, en orden de llegada.
+     */
+    @Override
+    public long scanForward(long fromMs, long toMs, ReadingVisitor visitor) {
+        long[] total = new long[1];
+        for (SegmentFile segment : segments) {
+            if (!segment.scanForward(fromMs, toMs, visitor, total)) {
+                break;
+            }
+        }
+        return total[0];
+    }
+
+    /** Lecturas confirmadas en todos los segmentos. */
+    public long getCount() {
+        long count = 0;
+        for (SegmentFile segment : segments) {
+            count += segment.count();
+        }
+        return count;
+    }
+
+    /** Segmentos ya comprimidos. */
+    public int getCompressedCount() {
+        int compressed = 0;
+        for (SegmentFile segment : segments) {
+            if (segment instanceof ColdSegment) {
+                compressed++;
+            }
+        }
+        return compressed;
+    }
+
+    /** Segmentos llenos que aún esperan su compresión. */
+    public int getPendingCompression() {
+        return toCompress.size();
+    }
+
+    @Override
+    public String describe() {
+        return "Segmentos: " + segments.size() + " archivos (" + getCompressedCount() + " comprimidos), "
+                + getCount() + " lecturas en '" + dir + "'";
+    }
+
+    /**
+     * Detiene la compresión y cierra los archivos. Los mapeos en memoria los libera la JVM
+     * cuando ya nadie los usa.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        if (compressor != null) {
+            compressor.interrupt();
+            try {
+                compressor.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            for (SegmentFile segment : segments) {
+                try {
+                    segment.close();
+                } catch (IOException e) {
+                    System.err.println("Error al cerrar el segmento '" + segment.path + "': " + e.getMessage());
+                }
+            }
+        }
+        System.out.println("Almacenamiento cerrado. " + describe());
+    }
+
+    private Segment createSegment() throws IOException {
+        int next = segments.isEmpty() ? 1 : segments.get(segments.size() - 1).number + 1;
+        Segment segment = Segment.create(dir.resolve(String.format("seg-%08d.dat", next)), next, capacity);
+        segments.add(segment);
+        System.out.println("Segmento '" + segment.path.getFileName() + "' creado.");
+        return segment;
+    }
+
+    /**
+     * Hilo de compresión: toma los segmentos llenos en orden. Si uno falla se queda sin comprimir
+     * (se sigue leyendo del original) y se vuelve a intentar al reiniciar.
+     */
+    private void runCompressor() {
+        while (!closed) {
+            Segment segment;
+            try {
+                segment = toCompress.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                compress(segment);
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Error al comprimir el segmento '" + segment.path + "': " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Escribe el segmento comprimido, lo pone en lugar del original y borra el original.
+     * Las consultas que ya estaban leyendo el original terminan con su mapeo en memoria.
+     */
+    private void compress(Segment segment) throws IOException {
+        long started = System.nanoTime();
+        int count = segment.count;
+        int blocks = (count + BLOCK - 1) / BLOCK;
+        Path target = dir.resolve(String.format("seg-%08d.zsg", segment.number));
+        Path temporary = dir.resolve(target.getFileName() + ".tmp");
+
+        SeriesCodec codec = new SeriesCodec();
+        BlockReader columns = new BlockReader();
+        ByteBuffer directory = ByteBuffer.allocate(COLD_HEADER_BYTES + blocks * COLD_ENTRY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        directory.putInt(COLD_MAGIC).putInt(VERSION).putInt(count).putInt(blocks);
+        long position = directory.capacity();
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (int block = 0; block < blocks; block++) {
+                int first = block * BLOCK;
+                int n = Math.min(BLOCK, count - first);
+                segment.copyBlock(first, n, columns);
+                int size = codec.encode(columns.timestamps, columns.devices, columns.xs, columns.ys, columns.zs, 0, n);
+                directory.putLong(segment.blockMin[block]).putLong(segment.blockMax[block])
+                        .putLong(position).putInt(size).putInt(n);
+                ByteBuffer data = ByteBuffer.wrap(codec.buffer(), 0, size);
+                while (data.hasRemaining()) {
+                    position += out.write(data, position);
+                }
+            }
+            directory.flip();
+            long at = 0;
+            while (directory.hasRemaining()) {
+                at += out.write(directory, at);
+            }
+            out.force(true);
+        }
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+        if (sync) {
+            syncDirectory();
+        }
+
+        ColdSegment cold = ColdSegment.open(target);
+        synchronized (this) {
+            if (closed) {
+                // Al abrir de nuevo se usa el comprimido y se borra el original
+                cold.close();
+                return;
+            }
+            segments.set(segments.indexOf(segment), cold);
+        }
+        segment.close();
+        Files.delete(segment.path);
+        long original = HEADER_BYTES + (long) segment.capacity * BYTES_PER_READING;
+        System.out.printf("Segmento '%s' comprimido: %d lecturas, %d -> %d bytes (%.1fx) en %.0f ms.%n",
+                segment.path.getFileName(), count, original, position, (double) original / position,
+                (System.nanoTime() - started) / 1e6);
+    }
+
+    /**
+     * Fuerza a disco el directorio para que el cambio de nombre sobreviva a un corte de luz.
+     * Algunos sistemas (p.ej. Windows) no permiten abrir un directorio; ahí se omite.
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Sin soporte para forzar directorios
+        }
+    }
+
+    private static int number(Path file) {
+        String name = file.getFileName().toString();
+        return Integer.parseInt(name.substring("seg-".length(), name.indexOf('.')));
+    }
+
+    /**
+     * Archivo de segmento en la lista: activo o lleno sin comprimir (Segment) o comprimido (ColdSegment).
+     */
+    private abstract static class SegmentFile {
+        final Path path;
+        final int number;
+
+        SegmentFile(Path path, int number) {
+            this.path = path;
+            this.number = number;
+        }
+
+        abstract int count();
+
+        /**
+         * Recorre los registros del rango, del último al primero.
+         * @return false si el visitor pidió detenerse.
+         */
+        abstract boolean scan(long fromMs, long toMs, ReadingVisitor visitor, long[] total);
+
+        /**
+         * Recorre los registros del rango, del primero al último.
+         * @return false si el visitor pidió detenerse.
+         */
+        abstract boolean scanForward(long fromMs, long toMs, ReadingVisitor visitor, long[] total);
+
+        abstract void close() throws IOException;
+    }
+
+    /**
+     * Columnas de un bloque de lecturas, para comprimirlo o después de decodificarlo.
+     */
+    private static final class BlockReader {
+        final SeriesCodec codec = new SeriesCodec();
+        final long[] timestamps = new long[BLOCK];
+        final int[] devices = new int[BLOCK];
+        final int[] xs = new int[BLOCK];
+        final int[] ys = new int[BLOCK];
+        final int[] zs = new int[BLOCK];
+        byte[] bytes = new byte[BLOCK * 8];
+
+        /**
+         * Copia el bloque comprimido del archivo mapeado y lo decodifica en las columnas.
+         * @return Lecturas del bloque.
+         */
+        int decode(MappedByteBuffer buffer, int offset, int size) {
+            if (bytes.length < size) {
+                bytes = new byte[size];
+            }
+            buffer.get(offset, bytes, 0, size);
+            return codec.decode(bytes, 0, size, timestamps, devices, xs, ys, zs);
+        }
+    }
+
+    /**
+     * Un archivo de segmento mapeado completo en memoria.
+     */
+    private static final class Segment extends SegmentFile {
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        // Inicio de cada columna en el archivo
+        final int tsOffset;
+        final int deviceOffset;
+        final int xOffset;
+        final int yOffset;
+        final int zOffset;
+        // Índice disperso: mínimo y máximo de capturado_ms por bloque
+        final long[] blockMin;
+        final long[] blockMax;
+        // Registros confirmados; los lectores no pasan de aquí
+        volatile int count;
+        // Secuencia de la última confirmación (solo el escritor)
+        long sequence;
+
+        private Segment(Path path, int number, FileChannel channel, int capacity) throws IOException {
+            super(path, number);
+            this.channel = channel;
+            this.capacity = capacity;
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) capacity * BYTES_PER_READING);
+            this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+            this.tsOffset = HEADER_BYTES;
+            this.deviceOffset = tsOffset + capacity * 8;
+            this.xOffset = deviceOffset + capacity * 4;
+            this.yOffset = xOffset + capacity * 4;
+            this.zOffset = yOffset + capacity * 4;
+            this.blockMin = new long[capacity / BLOCK];
+            this.blockMax = new long[capacity / BLOCK];
+            Arrays.fill(blockMin, Long.MAX_VALUE);
+            Arrays.fill(blockMax, Long.MIN_VALUE);
+        }
+
+        static Segment create(Path path, int number, int capacity) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(path, number, channel, capacity);
+            segment.buffer.putInt(0, MAGIC);
+            segment.buffer.putInt(4, VERSION);
+            segment.buffer.putInt(8, capacity);
+            segment.buffer.force(0, SLOT_OFFSET);
+            return segment;
+        }
+
+        /**
+         * Abre un segmento existente y recupera la última confirmación válida.
+         */
+        static Segment open(Path path) throws IOException {
+            int number = number(path);
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(SLOT_OFFSET).order(ByteOrder.LITTLE_ENDIAN);
+                channel.read(header, 0);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                    throw new IOException("'" + path + "' no es un segmento de lecturas.");
+                }
+                Segment segment = new Segment(path, number, channel, header.getInt(8));
+                segment.recover();
+                return segment;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        private void recover() {
+            long bestSequence = -1;
+            long bestCount = 0;
+            for (int slot = 0; slot < 2; slot++) {
+                int offset = SLOT_OFFSET + slot * SLOT_BYTES;
+                long slotSequence = buffer.getLong(offset);
+                long slotCount = buffer.getLong(offset + 8);
+                boolean valid = buffer.getLong(offset + 16) == checksum(slotSequence, slotCount)
+                        && slotCount >= 0 && slotCount <= capacity;
+                if (valid && slotSequence > bestSequence) {
+                    bestSequence = slotSequence;
+                    bestCount = slotCount;
+                }
+            }
+            sequence = Math.max(0, bestSequence);
+            int recovered = (int) bestCount;
+            for (int i = 0; i < recovered; i++) {
+                index(i, buffer.getLong(tsOffset + i * 8));
+            }
+            count = recovered;
+        }
+
+        /**
+         * Escribe n lecturas del lote a partir de 'from' y las confirma.
+         */
+        void append(List<IngestQueue.Reading> batch, int from, int n, boolean sync) {
+            int start = count;
+            for (int k = 0; k < n; k++) {
+                IngestQueue.Reading reading = batch.get(from + k);
+                int i = start + k;
+                buffer.putLong(tsOffset + i * 8, reading.timestamp);
+                buffer.putInt(deviceOffset + i * 4, reading.device);
+                buffer.putInt(xOffset + i * 4, reading.x);
+                buffer.putInt(yOffset + i * 4, reading.y);
+                buffer.putInt(zOffset + i * 4, reading.z);
+                index(i, reading.timestamp);
+            }
+            if (sync) {
+                buffer.force(tsOffset + start * 8, n * 8);
+                buffer.force(deviceOffset + start * 4, n * 4);
+                buffer.force(xOffset + start * 4, n * 4);
+                buffer.force(yOffset + start * 4, n * 4);
+                buffer.force(zOffset + start * 4, n * 4);
+            }
+            // Se confirma en la ranura que no tiene la última confirmación
+            sequence++;
+            int offset = SLOT_OFFSET + (int) (sequence & 1) * SLOT_BYTES;
+            buffer.putLong(offset, sequence);
+            buffer.putLong(offset + 8, start + n);
+            buffer.putLong(offset + 16, checksum(sequence, start + n));
+            if (sync) {
+                buffer.force(offset, SLOT_BYTES);
+            }
+            count = start + n;
+        }
+
+        private void index(int i, long timestamp) {
+            int block = i / BLOCK;
+            blockMin[block] = Math.min(blockMin[block], timestamp);
+            blockMax[block] = Math.max(blockMax[block], timestamp);
+        }
+
+        @Override
+        int count() {
+            return count;
+        }
+
+        /**
+         * Copia las columnas de n registros a partir de 'first' (para comprimirlos).
+         */
+        void copyBlock(int first, int n, BlockReader columns) {
+            for (int k = 0; k < n; k++) {
+                int i = first + k;
+                columns.timestamps[k] = buffer.getLong(tsOffset + i * 8);
+                columns.devices[k] = buffer.getInt(deviceOffset + i * 4);
+                columns.xs[k] = buffer.getInt(xOffset + i * 4);
+                columns.ys[k] = buffer.getInt(yOffset + i * 4);
+                columns.zs[k] = buffer.getInt(zOffset + i * 4);
+            }
+        }
+
+        @Override
+        boolean scan(long fromMs, long toMs, ReadingVisitor visitor, long[] total) {
+            int n = count;
+            for (int block = (n - 1) / BLOCK; block >= 0 && n > 0; block--) {
+                if (blockMax[block] < fromMs || blockMin[block] > toMs) {
+                    continue;
+                }
+                int first = block * BLOCK;
+                for (int i = Math.min(n, first + BLOCK) - 1; i >= first; i--) {
+                    long timestamp = buffer.getLong(tsOffset + i * 8);
+                    if (timestamp < fromMs || timestamp > toMs) {
+                        continue;
+                    }
+                    total[0]++;
+                    if (!visitor.visit(buffer.getInt(deviceOffset + i * 4), timestamp,
+                            buffer.getInt(xOffset + i * 4), buffer.getInt(yOffset + i * 4), buffer.getInt(zOffset + i * 4))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        boolean scanForward(long fromMs, long toMs, ReadingVisitor visitor, long[] total) {
+            int n = count;
+            for (int block = 0; block * BLOCK < n; block++) {
+                if (blockMax[block] < fromMs || blockMin[block] > toMs) {
+                    continue;
+                }
+                int first = block * BLOCK;
+                for (int i = first; i < Math.min(n, first + BLOCK); i++) {
+                    long timestamp = buffer.getLong(tsOffset + i * 8);
+                    if (timestamp < fromMs || timestamp > toMs) {
+                        continue;
+                    }
+                    total[0]++;
+                    if (!visitor.visit(buffer.getInt(deviceOffset + i * 4), timestamp,
+                            buffer.getInt(xOffset + i * 4), buffer.getInt(yOffset + i * 4), buffer.getInt(zOffset + i * 4))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        void close() throws IOException {
+            channel.close();
+        }
+
+        private static long checksum(long sequence, long count) {
+            CRC32 crc = new CRC32();
+            ByteBuffer bytes = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            bytes.putLong(sequence).putLong(count).flip();
+            crc.update(bytes);
+            return crc.getValue();
+        }
+    }
+
+    /**
+     * Un segmento comprimido de solo lectura, mapeado en memoria; el directorio de bloques se
+     * carga al abrir y sirve de índice igual que en los segmentos sin comprimir.
+     */
+    private static final class ColdSegment extends SegmentFile {
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final int count;
+        final long[] blockMin;
+        final long[] blockMax;
+        final int[] blockOffset;
+        final int[] blockSize;
+
+        private ColdSegment(Path path, FileChannel channel, int count, int blocks) throws IOException {
+            super(path, number(path));
+            this.channel = channel;
+            this.count = count;
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+            this.blockMin = new long[blocks];
+            this.blockMax = new long[blocks];
+            this.blockOffset = new int[blocks];
+            this.blockSize = new int[blocks];
+        }
+
+        static ColdSegment open(Path path) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(COLD_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                channel.read(header, 0);
+                int count = header.getInt(8);
+                int blocks = header.getInt(12);
+                if (header.getInt(0) != COLD_MAGIC || header.getInt(4) != VERSION || count < 0
+                        || blocks != (count + BLOCK - 1) / BLOCK
+                        || COLD_HEADER_BYTES + (long) blocks * COLD_ENTRY_BYTES > channel.size()) {
+                    throw new IOException("'" + path + "' no es un segmento comprimido válido.");
+                }
+                ColdSegment segment = new ColdSegment(path, channel, count, blocks);
+                long total = 0;
+                for (int block = 0; block < blocks; block++) {
+                    int entry = COLD_HEADER_BYTES + block * COLD_ENTRY_BYTES;
+                    segment.blockMin[block] = segment.buffer.getLong(entry);
+                    segment.blockMax[block] = segment.buffer.getLong(entry + 8);
+                    long offset = segment.buffer.getLong(entry + 16);
+                    int size = segment.buffer.getInt(entry + 24);
+                    int n = segment.buffer.getInt(entry + 28);
+                    if (offset < 0 || size < 0 || offset + size > channel.size() || n <= 0 || n > BLOCK) {
+                        throw new IOException("'" + path + "' tiene un bloque inválido: " + block);
+                    }
+                    segment.blockOffset[block] = (int) offset;
+                    segment.blockSize[block] = size;
+                    total += n;
+                }
+                if (total != count) {
+                    throw new IOException("'" + path + "' no es un segmento comprimido válido.");
+                }
+                return segment;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        @Override
+        int count() {
+            return count;
+        }
+
+        @Override
+        boolean scan(long fromMs, long toMs, ReadingVisitor visitor, long[] total) {
+            BlockReader reader = null;
+            for (int block = blockMin.length - 1; block >= 0; block--) {
+                if (blockMax[block] < fromMs || blockMin[block] > toMs) {
+                    continue;
+                }
+                if (reader == null) {
+                    reader = READERS.get();
+                }
+                int n = reader.decode(buffer, blockOffset[block], blockSize[block]);
+                for (int i = n - 1; i >= 0; i--) {
+                    long timestamp = reader.timestamps[i];
+                    if (timestamp < fromMs || timestamp > toMs) {
+                        continue;
+                    }
+                    total[0]++;
+                    if (!visitor.visit(reader.devices[i], timestamp, reader.xs[i], reader.ys[i], reader.zs[i])) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        boolean scanForward(long fromMs, long toMs, ReadingVisitor visitor, long[] total) {
+            BlockReader reader = null;
+            for (int block = 0; block < blockMin.length; block++) {
+                if (blockMax[block] < fromMs || blockMin[block] > toMs) {
+                    continue;
+                }
+                if (reader == null) {
+                    reader = READERS.get();
+                }
+                int n = reader.decode(buffer, blockOffset[block], blockSize[block]);
+                for (int i = 0; i < n; i++) {
+                    long timestamp = reader.timestamps[i];
+                    if (timestamp < fromMs || timestamp > toMs) {
+                        continue;
+                    }
+                    total[0]++;
+                    if (!visitor.visit(reader.devices[i], timestamp, reader.xs[i], reader.ys[i], reader.zs[i])) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+}
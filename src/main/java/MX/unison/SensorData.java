@@ -1,17 +1,31 @@
 package MX.unison;
 
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+
 public class SensorData {
     public final int x;
     public final int y;
     public final int z;
+    public final long timestamp; // Momento de captura en ms desde 1970 (UTC); 0 si no se conoce
     public final String fecha; // Se usa para datos históricos
     public final String hora;  // Se usa para datos históricos
 
-    // Constructor para la simulación serial (tiempo real)
+    // Constructor para la simulación serial (tiempo real): la captura es ahora
     public SensorData(int x, int y, int z) {
+        this(x, y, z, System.currentTimeMillis());
+    }
+
+    // Constructor con la marca de tiempo de captura ya conocida
+    public SensorData(int x, int y, int z, long timestamp) {
         this.x = x;
         this.y = y;
         this.z = z;
+        this.timestamp = timestamp;
         this.fecha = null; // No necesario en la simulación
         this.hora = null;  // No necesario en la simulación
     }
@@ -21,10 +35,37 @@ public class SensorData {
         this.x = x;
         this.y = y;
         this.z = z;
+        this.timestamp = toEpochMillis(fecha, hora);
         this.fecha = fecha;
         this.hora = hora;
     }
 
+    /**
+     * Milisegundos desde 1970 de una fecha y hora locales.
+     */
+    public static long toEpochMillis(LocalDateTime dateTime) {
+        return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Fecha y hora locales de una marca de tiempo en milisegundos.
+     */
+    public static LocalDateTime toLocalDateTime(long epochMillis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault());
+    }
+
+    /**
+     * Milisegundos desde 1970 de la fecha ("YYYY-MM-DD") y hora ("HH:MM:SS") del formato histórico.
+     * @return La marca de tiempo, o 0 si el formato no es válido.
+     */
+    public static long toEpochMillis(String fecha, String hora) {
+        try {
+            return toEpochMillis(LocalDateTime.of(LocalDate.parse(fecha), LocalTime.parse(hora)));
+        } catch (DateTimeParseException | NullPointerException e) {
+            return 0;
+        }
+    }
+
     /**
      * Retorna el formato de cadena serial requerido para el envío.
      * Formato: "x:#, y:#, z:#"
@@ -39,8 +80,55 @@ public class SensorData {
      * Formato: "x:#, y:#, z:#, fecha:YYYY-MM-DD, hora:HH:MM:SS"
      */
     public String toHistoricalString() {
-        return "x:" + x + ", y:" + y + ", z:" + z +
-                ", fecha:" + fecha + ", hora:" + hora;
+        return appendHistoricalString(new StringBuilder(), x, y, z, fecha, hora).toString();
+    }
+
+    /**
+     * Agrega un registro en formato histórico sin crear objetos intermedios
+     * (usado al serializar páginas directamente desde el ResultSet).
+     */
+    public static StringBuilder appendHistoricalString(StringBuilder sb, int x, int y, int z, String fecha, String hora) {
+        return sb.append("x:").append(x).append(", y:").append(y).append(", z:").append(z)
+                .append(", fecha:").append(fecha).append(", hora:").append(hora);
+    }
+
+    /**
+     * Agrega un registro en formato histórico a partir de la marca de tiempo en ms.
+     * El formato en la red no cambia: fecha y hora locales, como en el esquema anterior.
+     */
+    public static StringBuilder appendHistoricalString(StringBuilder sb, int x, int y, int z, long timestamp) {
+        LocalDateTime captured = toLocalDateTime(timestamp);
+        // Se arma a mano en lugar de con DateTimeFormatter: se llama por cada fila de las páginas
+        sb.append("x:").append(x).append(", y:").append(y).append(", z:").append(z).append(", fecha:");
+        sb.append(captured.getYear()).append('-');
+        appendTwoDigits(sb, captured.getMonthValue()).append('-');
+        appendTwoDigits(sb, captured.getDayOfMonth()).append(", hora:");
+        appendTwoDigits(sb, captured.getHour()).append(':');
+        appendTwoDigits(sb, captured.getMinute()).append(':');
+        return appendTwoDigits(sb, captured.getSecond());
+    }
+
+    /**
+     * Agrega un registro de un intervalo agregado (rollup): el promedio en x/y/z con la fecha y hora
+     * de inicio del intervalo, seguido de la cuenta, los extremos y la última lectura del intervalo
+     * (", n:#, xmin:#, xmax:#, ymin:#, ymax:#, zmin:#, zmax:#, ultimo_ms:#, ultimo_x:#, ultimo_y:#, ultimo_z:#").
+     */
+    public static StringBuilder appendAggregateString(StringBuilder sb, long start, long count,
+                                                      long sumX, long sumY, long sumZ,
+                                                      int minX, int maxX, int minY, int maxY, int minZ, int maxZ,
+                                                      long lastMs, int lastX, int lastY, int lastZ) {
+        appendHistoricalString(sb, (int) Math.round((double) sumX / count), (int) Math.round((double) sumY / count),
+                (int) Math.round((double) sumZ / count), start);
+        return sb.append(", n:").append(count)
+                .append(", xmin:").append(minX).append(", xmax:").append(maxX)
+                .append(", ymin:").append(minY).append(", ymax:").append(maxY)
+                .append(", zmin:").append(minZ).append(", zmax:").append(maxZ)
+                .append(", ultimo_ms:").append(lastMs).append(", ultimo_x:").append(lastX)
+                .append(", ultimo_y:").append(lastY).append(", ultimo_z:").append(lastZ);
+    }
+
+    private static StringBuilder appendTwoDigits(StringBuilder sb, int value) {
+        return sb.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
     }
 
     /**
@@ -0,0 +1,112 @@
+package MX.unison;
+
+import java.util.List;
+
+/**
+ * Almacenamiento de las lecturas del servidor. El MessageProcessor solo habla con esta interfaz:
+ * el escritor de la IngestQueue guarda los lotes con write() y las peticiones de histórico
+ * recorren las lecturas con scan(), scanAggregates() o scanSketches().
+ *
+ * Implementaciones:
+ *  - SqliteStore: la base SQLite con particiones por día y rollups (por defecto).
+ *  - SegmentStore: segmentos columnares de solo agregar en archivos mapeados en memoria.
+ * Se elige al arrancar el Server con la propiedad monitor.almacen ("sqlite" o "segmentos").
+ */
+public interface SensorStore extends AutoCloseable {
+
+    /**
+     * Recibe una lectura de un recorrido.
+     */
+    @FunctionalInterface
+    interface ReadingVisitor {
+        /**
+         * @return false para detener el recorrido.
+         */
+        boolean visit(int device, long timestamp, int x, int y, int z);
+    }
+
+    /**
+     * Recibe un intervalo agregado de un recorrido (ver Rollup).
+     */
+    @FunctionalInterface
+    interface AggregateVisitor {
+        /**
+         * @param lastMs Captura de la lectura más reciente del intervalo; lastX/lastY/lastZ son sus valores.
+         * @return false para detener el recorrido.
+         */
+        boolean visit(long start, long count, long sumX, long sumY, long sumZ,
+                      int minX, int maxX, int minY, int maxY, int minZ, int maxZ,
+                      long lastMs, int lastX, int lastY, int lastZ);
+    }
+
+    /**
+     * Recibe el histograma de cuantiles de un intervalo (ver Quantiles).
+     */
+    @FunctionalInterface
+    interface SketchVisitor {
+        /**
+         * @return false para detener el recorrido.
+         */
+        boolean visit(long start, QuantileSketch sketch);
+    }
+
+    /**
+     * Guarda un lote de lecturas; al terminar sin excepción el lote ya es durable
+     * (el mismo contrato que IngestQueue.BatchWriter). Lo invoca siempre el mismo hilo escritor.
+     */
+    void write(List<IngestQueue.Reading> batch) throws Exception;
+
+    /**
+     * Recorre las lecturas capturadas en el rango, de la más reciente a la más antigua.
+     * @param fromMs Inicio (inclusivo, ms desde 1970), o Long.MIN_VALUE sin límite.
+     * @param toMs Fin (inclusivo), o Long.MAX_VALUE sin límite.
+     * @return Lecturas entregadas al visitor.
+     */
+    long scan(long fromMs, long toMs, ReadingVisitor visitor) throws Exception;
+
+    /**
+     * Recorre las lecturas capturadas en el rango, de la más antigua a la más reciente (para
+     * exportar, ver HistoryExport), con los mismos límites que scan() y sin cargar el rango en memoria.
+     * @return Lecturas entregadas al visitor.
+     */
+    long scanForward(long fromMs, long toMs, ReadingVisitor visitor) throws Exception;
+
+    /**
+     * Recorre los intervalos de 'level' que tocan el rango, del más reciente al más antiguo
+     * (completos, aunque empiecen antes de fromMs o terminen después de toMs). Por omisión los
+     * calcula al vuelo con scan(); las implementaciones con agregados guardados la reemplazan.
+     * @return Intervalos entregados al visitor.
+     */
+    default long scanAggregates(Rollup.Level level, long fromMs, long toMs, AggregateVisitor visitor) throws Exception {
+        Rollup.Aggregator aggregator = new Rollup.Aggregator(level, visitor);
+        scan(fromMs == Long.MIN_VALUE ? fromMs : level.bucketStart(fromMs),
+                toMs == Long.MAX_VALUE ? toMs : level.bucketEnd(toMs), aggregator);
+        return aggregator.finish();
+    }
+
+    /**
+     * Recorre los histogramas de cuantiles de los intervalos de 'level' que tocan el rango, del más
+     * reciente al más antiguo (completos, como scanAggregates()). Por omisión los calcula al vuelo
+     * con scan(); las implementaciones con histogramas guardados la reemplazan.
+     * @param device Dispositivo, o null para todos (un histograma por intervalo).
+     * @return Histogramas entregados al visitor.
+     */
+    default long scanSketches(Rollup.Level level, long fromMs, long toMs, Integer device,
+                              SketchVisitor visitor) throws Exception {
+        Quantiles.Builder builder = new Quantiles.Builder(level, device, visitor);
+        scan(fromMs == Long.MIN_VALUE ? fromMs : level.bucketStart(fromMs),
+                toMs == Long.MAX_VALUE ? toMs : level.bucketEnd(toMs), builder);
+        return builder.finish();
+    }
+
+    /**
+     * Resumen para los reportes del servidor.
+     */
+    String describe();
+
+    /**
+     * Cierra el almacenamiento; después de esto write() y scan() fallan.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,373 @@
+package MX.unison;
+
+import java.util.Arrays;
+
+/**
+ * Codificación compacta de bloques de lecturas (dispositivo, capturado_ms, x, y, z) para los datos
+ * fríos (SegmentStore) y para las páginas del histórico con "codec=serie".
+ *
+ * Las marcas de tiempo son casi regulares y x, y, z cambian poco entre lecturas seguidas, así que
+ * en lugar de 24 bytes por lectura (o ~40 de texto) se guardan diferencias pequeñas:
+ *  - capturado_ms: delta de delta (la diferencia entre un intervalo y el anterior), casi siempre
+ *    0 o unos pocos ms de variación.
+ *  - dispositivo, x, y, z: por cada marco de 128 valores se elige lo que ocupe menos bits: la
+ *    diferencia con el valor anterior o la distancia al mínimo del marco. La primera sirve para
+ *    señales suaves y la segunda para valores que saltan dentro de un rango (como los del simulador).
+ * Los valores con signo pasan por zig-zag (0, -1, 1, -2... -> 0, 1, 2, 3...) y cada marco se
+ * empaqueta con el ancho en bits de su valor más grande, así un valor atípico solo afecta a su marco.
+ *
+ * Formato de un bloque (enteros "varint": 7 bits por byte, el bit alto indica que sigue otro):
+ *  - varint cuenta; si es 0 no hay nada más.
+ *  - zig-zag varint de la primera lectura: capturado_ms, dispositivo, x, y, z.
+ *  - si hay dos o más lecturas, zig-zag varint del primer intervalo.
+ *  - columna de tiempos: delta de delta de la tercera lectura en adelante, en marcos.
+ *  - columnas de dispositivo, x, y, z: de la segunda lectura en adelante, en marcos.
+ * Cada marco empieza con un byte: ancho en bits (0 a 64) y, en el bit alto, si se guarda la
+ * distancia al mínimo; en ese caso sigue el mínimo en zig-zag varint. Después van los valores
+ * empaquetados, del bit bajo al alto, completando el último byte del marco.
+ *
+ * Una instancia reutiliza su buffer de salida entre bloques y no crea objetos por lectura;
+ * no es segura entre hilos (una por hilo o por respuesta).
+ */
+public final class SeriesCodec {
+
+    // Valores por marco de empaquetado
+    static final int FRAME = 128;
+    // Bit alto del byte de cada marco: valores como distancia al mínimo del marco
+    private static final int FRAME_OF_REFERENCE = 0x80;
+    // Peor caso de un marco: encabezado, mínimo y 128 valores de 64 bits
+    private static final int MAX_FRAME_BYTES = 1 + 10 + FRAME * 8;
+
+    // Salida del codificador (se agranda si hace falta y se reutiliza)
+    private byte[] out = new byte[4096];
+    private int size;
+    // Entrada del decodificador
+    private byte[] in;
+    private int pos;
+    private int limit;
+    // Bits pendientes de escribir o ya leídos y sin usar
+    private long bitBuffer;
+    private int bitCount;
+    // Valores del marco en curso
+    private final long[] frame = new long[FRAME];
+
+    /**
+     * Codifica 'count' lecturas de los arreglos a partir de 'offset'.
+     * @return Tamaño del bloque; los bytes quedan en buffer() hasta la siguiente llamada.
+     */
+    public int encode(long[] timestamps, int[] devices, int[] xs, int[] ys, int[] zs, int offset, int count) {
+        size = 0;
+        ensureCapacity(70);
+        writeVarLong(count);
+        if (count == 0) {
+            return size;
+        }
+        writeVarLong(zigZag(timestamps[offset]));
+        writeVarLong(zigZag((long) devices[offset]));
+        writeVarLong(zigZag((long) xs[offset]));
+        writeVarLong(zigZag((long) ys[offset]));
+        writeVarLong(zigZag((long) zs[offset]));
+        if (count > 1) {
+            writeVarLong(zigZag(timestamps[offset + 1] - timestamps[offset]));
+        }
+        encodeTimestamps(timestamps, offset, count);
+        encodeChannel(devices, offset, count);
+        encodeChannel(xs, offset, count);
+        encodeChannel(ys, offset, count);
+        encodeChannel(zs, offset, count);
+        return size;
+    }
+
+    /**
+     * Bytes del último bloque codificado (válidos de 0 al tamaño que devolvió encode()).
+     */
+    public byte[] buffer() {
+        return out;
+    }
+
+    /**
+     * Cuenta de lecturas de un bloque, para dimensionar los arreglos antes de decode().
+     * @throws IllegalArgumentException si el bloque está incompleto.
+     */
+    public static int count(byte[] data, int offset, int length) {
+        long count = 0;
+        for (int i = 0; i < Math.min(length, 5); i++) {
+            byte b = data[offset + i];
+            count |= (long) (b & 0x7F) << (7 * i);
+            if (b >= 0) {
+                return checkCount(count);
+            }
+        }
+        throw new IllegalArgumentException("Bloque de serie incompleto.");
+    }
+
+    /**
+     * Decodifica un bloque en los arreglos (desde la posición 0), que deben tener lugar para
+     * toda su cuenta (ver count()).
+     * @return Lecturas decodificadas.
+     * @throws IllegalArgumentException si el bloque está incompleto o no es válido.
+     */
+    public int decode(byte[] data, int offset, int length,
+                      long[] timestamps, int[] devices, int[] xs, int[] ys, int[] zs) {
+        startReading(data, offset, length);
+        int count = readCount();
+        if (count == 0) {
+            return 0;
+        }
+        if (timestamps.length < count || devices.length < count || xs.length < count
+                || ys.length < count || zs.length < count) {
+            throw new IllegalArgumentException("Arreglos insuficientes para un bloque de " + count + " lecturas.");
+        }
+        timestamps[0] = unZigZag(readVarLong());
+        devices[0] = (int) unZigZag(readVarLong());
+        xs[0] = (int) unZigZag(readVarLong());
+        ys[0] = (int) unZigZag(readVarLong());
+        zs[0] = (int) unZigZag(readVarLong());
+        if (count > 1) {
+            timestamps[1] = timestamps[0] + unZigZag(readVarLong());
+        }
+        decodeTimestamps(timestamps, count);
+        decodeChannel(devices, count);
+        decodeChannel(xs, count);
+        decodeChannel(ys, count);
+        decodeChannel(zs, count);
+        return count;
+    }
+
+    private void encodeTimestamps(long[] timestamps, int offset, int count) {
+        long previousDelta = count > 1 ? timestamps[offset + 1] - timestamps[offset] : 0;
+        for (int start = 2; start < count; start += FRAME) {
+            int n = Math.min(FRAME, count - start);
+            long widest = 0;
+            for (int k = 0; k < n; k++) {
+                int i = offset + start + k;
+                long delta = timestamps[i] - timestamps[i - 1];
+                frame[k] = zigZag(delta - previousDelta);
+                previousDelta = delta;
+                widest |= frame[k];
+            }
+            writeFrame(n, bitWidth(widest), 0, false);
+        }
+    }
+
+    private void decodeTimestamps(long[] timestamps, int count) {
+        long previousDelta = count > 1 ? timestamps[1] - timestamps[0] : 0;
+        for (int start = 2; start < count; start += FRAME) {
+            int n = Math.min(FRAME, count - start);
+            int width = readFrameHeader() & ~FRAME_OF_REFERENCE;
+            requireBits(width, n);
+            for (int k = 0; k < n; k++) {
+                previousDelta += unZigZag(readBits(width));
+                timestamps[start + k] = timestamps[start + k - 1] + previousDelta;
+            }
+            endFrame();
+        }
+    }
+
+    private void encodeChannel(int[] values, int offset, int count) {
+        for (int start = 1; start < count; start += FRAME) {
+            int n = Math.min(FRAME, count - start);
+            long widestDelta = 0;
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (int k = 0; k < n; k++) {
+                int i = offset + start + k;
+                widestDelta |= zigZag(values[i] - values[i - 1]) & 0xFFFFFFFFL;
+                min = Math.min(min, values[i]);
+                max = Math.max(max, values[i]);
+            }
+            int deltaWidth = bitWidth(widestDelta);
+            int rangeWidth = bitWidth((long) max - min);
+            // La distancia al mínimo se elige solo si compensa los bytes del mínimo
+            boolean fromMinimum = (long) rangeWidth * n + 8L * varLongSize(zigZag((long) min)) < (long) deltaWidth * n;
+            for (int k = 0; k < n; k++) {
+                int i = offset + start + k;
+                frame[k] = fromMinimum ? (long) values[i] - min : zigZag(values[i] - values[i - 1]) & 0xFFFFFFFFL;
+            }
+            writeFrame(n, fromMinimum ? rangeWidth : deltaWidth, min, fromMinimum);
+        }
+    }
+
+    private void decodeChannel(int[] values, int count) {
+        for (int start = 1; start < count; start += FRAME) {
+            int n = Math.min(FRAME, count - start);
+            int header = readFrameHeader();
+            int width = header & ~FRAME_OF_REFERENCE;
+            if ((header & FRAME_OF_REFERENCE) != 0) {
+                long min = unZigZag(readVarLong());
+                requireBits(width, n);
+                for (int k = 0; k < n; k++) {
+                    values[start + k] = (int) (min + readBits(width));
+                }
+            } else {
+                requireBits(width, n);
+                for (int k = 0; k < n; k++) {
+                    values[start + k] = values[start + k - 1] + unZigZag((int) readBits(width));
+                }
+            }
+            endFrame();
+        }
+    }
+
+    private void writeFrame(int n, int width, int min, boolean fromMinimum) {
+        ensureCapacity(MAX_FRAME_BYTES);
+        out[size++] = (byte) (width | (fromMinimum ? FRAME_OF_REFERENCE : 0));
+        if (fromMinimum) {
+            writeVarLong(zigZag((long) min));
+        }
+        if (width > 0) {
+            for (int k = 0; k < n; k++) {
+                writeBits(frame[k], width);
+            }
+        }
+        // El marco termina en un byte completo
+        if (bitCount > 0) {
+            out[size++] = (byte) bitBuffer;
+        }
+        bitBuffer = 0;
+        bitCount = 0;
+    }
+
+    private void writeBits(long value, int width) {
+        if (width > 32) {
+            writeBits(value & 0xFFFFFFFFL, 32);
+            writeBits(value >>> 32, width - 32);
+            return;
+        }
+        bitBuffer |= (value & mask(width)) << bitCount;
+        bitCount += width;
+        while (bitCount >= 8) {
+            out[size++] = (byte) bitBuffer;
+            bitBuffer >>>= 8;
+            bitCount -= 8;
+        }
+    }
+
+    private void writeVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[size++] = (byte) value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > out.length) {
+            out = Arrays.copyOf(out, Math.max(out.length * 2, size + extra));
+        }
+    }
+
+    private void startReading(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IllegalArgumentException("Rango fuera del arreglo: " + offset + "+" + length);
+        }
+        in = data;
+        pos = offset;
+        limit = offset + length;
+        bitBuffer = 0;
+        bitCount = 0;
+    }
+
+    private int readCount() {
+        return checkCount(readVarLong());
+    }
+
+    private static int checkCount(long count) {
+        if (count < 0 || count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Cuenta inválida en el bloque: " + count);
+        }
+        return (int) count;
+    }
+
+    private int readFrameHeader() {
+        if (pos >= limit) {
+            throw new IllegalArgumentException("Bloque de serie incompleto.");
+        }
+        int header = in[pos++] & 0xFF;
+        if ((header & ~FRAME_OF_REFERENCE) > 64) {
+            throw new IllegalArgumentException("Ancho inválido en el bloque: " + (header & ~FRAME_OF_REFERENCE));
+        }
+        return header;
+    }
+
+    /**
+     * Comprueba que los n valores empaquetados del marco estén completos en el bloque;
+     * así readBits() no revisa el límite en cada byte.
+     */
+    private void requireBits(int width, int n) {
+        if (pos + ((long) width * n + 7) / 8 > limit) {
+            throw new IllegalArgumentException("Bloque de serie incompleto.");
+        }
+    }
+
+    private long readBits(int width) {
+        if (width > 32) {
+            long low = readBits(32);
+            return low | (readBits(width - 32) << 32);
+        }
+        while (bitCount < width) {
+            bitBuffer |= (long) (in[pos++] & 0xFF) << bitCount;
+            bitCount += 8;
+        }
+        long value = bitBuffer & mask(width);
+        bitBuffer >>>= width;
+        bitCount -= width;
+        return value;
+    }
+
+    private void endFrame() {
+        bitBuffer = 0;
+        bitCount = 0;
+    }
+
+    private long readVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos >= limit) {
+                throw new IllegalArgumentException("Bloque de serie incompleto.");
+            }
+            byte b = in[pos++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint demasiado largo en el bloque.");
+    }
+
+    private static int varLongSize(long value) {
+        int bytes = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            bytes++;
+        }
+        return bytes;
+    }
+
+    private static long mask(int width) {
+        return width == 64 ? -1L : (1L << width) - 1;
+    }
+
+    /**
+     * Bits necesarios para el valor sin signo más grande de un marco (0 si todos son 0).
+     */
+    private static int bitWidth(long widest) {
+        return 64 - Long.numberOfLeadingZeros(widest);
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -5,25 +5,148 @@ import MX.unison.DataBaseManager;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Clase principal del programa Servidor.
- * Se encarga de inicializar la DB y escuchar conexiones de clientes.
+ * Se encarga de inicializar el almacenamiento (SQLite o segmentos, propiedad "monitor.almacen")
+ * y escuchar conexiones de clientes.
+ *
+ * Modos de ejecución (primer argumento o propiedad "monitor.server.modo"):
+ *  - "thread": un hilo ClientHandler por cliente (por defecto).
+ *  - "virtual": cada ClientHandler corre en un hilo virtual si el JDK en que se ejecuta los tiene
+ *    (21 o superior; el mismo jar compilado para 17 los obtiene por reflexión).
+ *  - "nio": NioServer con un número fijo de hilos de eventos.
  */
 public class Server {
 
     private static final int PORT = 12345; // Puerto fijo para la comunicación
 
+    // Espera máxima de cada etapa del cierre ordenado, en ms
+    private static final long SHUTDOWN_TIMEOUT_MS = 10000;
+
     public static void main(String[] args) {
         System.out.println("Iniciando Sistema de Monitoreo - Servidor...");
 
-        // 1. Preparar la Base de Datos
+        String mode = args.length > 0 ? args[0] : System.getProperty("monitor.server.modo", "thread");
+
+        // 1. Preparar el almacenamiento de las lecturas, con la ventana en memoria delante
+        SensorStore store;
+        try {
+            store = withHotWindow(openStore(System.getProperty("monitor.almacen", "sqlite")));
+        } catch (Exception e) {
+            System.err.println("No se pudo abrir el almacenamiento: " + e.getMessage());
+            return;
+        }
+
+        MessageProcessor processor = new MessageProcessor(store);
+        SealedHistory sealed = openSealedHistory(store);
+        processor.setSealedHistory(sealed);
+
+        // Al terminar el proceso (Ctrl+C, kill): guardar lo encolado y cerrar el almacenamiento
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Cerrando el servidor...");
+            processor.shutdown(SHUTDOWN_TIMEOUT_MS);
+            if (sealed != null) {
+                sealed.close();
+            }
+            store.close();
+        }, "server-shutdown"));
+
+        // 2. Iniciar el Socket Servidor
+        try {
+            serve(mode, PORT, processor);
+        } catch (IOException e) {
+            System.err.println("Error fatal en el Servidor Socket: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Abre el almacenamiento indicado por la propiedad monitor.almacen:
+     *  - "sqlite": la base monitorBD.db (por defecto). Si tiene lecturas del esquema anterior,
+     *    se migran en segundo plano sin detener el servidor.
+     *  - "segmentos": archivos columnares mapeados en memoria (ver SegmentStore).
+     */
+    static SensorStore openStore(String kind) throws IOException {
+        if (kind.equals("segmentos")) {
+            return new SegmentStore(Paths.get(System.getProperty("monitor.segmentos.dir", "segmentos")));
+        }
         DataBaseManager dbManager = new DataBaseManager();
         dbManager.createTable();
 
-        // 2. Iniciar el Socket Servidor
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Servidor iniciado en el puerto " + PORT + ". Esperando conexiones...");
+        if (dbManager.hasLegacyTable() && Boolean.parseBoolean(System.getProperty("monitor.migracion.auto", "true"))) {
+            Thread migration = new Thread(new SchemaMigration(dbManager), "schema-migration");
+            migration.setDaemon(true);
+            migration.start();
+        }
+        return new SqliteStore(dbManager);
+    }
+
+    /**
+     * Pone la ventana de lecturas recientes (HotWindowStore) delante del almacenamiento, salvo
+     * con monitor.ventana.lecturas=0. Por omisión, una hora a una lectura por segundo para
+     * hasta 64 dispositivos (unos 4.5 MB).
+     */
+    static SensorStore withHotWindow(SensorStore store) throws Exception {
+        int readings = Integer.getInteger("monitor.ventana.lecturas", 3600);
+        if (readings <= 0) {
+            return store;
+        }
+        try {
+            return new HotWindowStore(store, readings, Integer.getInteger("monitor.ventana.dispositivos", 64));
+        } catch (Exception e) {
+            store.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Abre los días sellados del histórico (ver SealedHistory), salvo con monitor.sellado.dias=0.
+     * Los archivos van en monitor.sellado.dir; por omisión "sellados", o "segmentos-sellados" con
+     * el almacenamiento de segmentos, para no servir días de un almacenamiento con los de otro.
+     * @return null si no se usan o no se pudo abrir el directorio (todo se arma al vuelo).
+     */
+    static SealedHistory openSealedHistory(SensorStore store) {
+        if (Integer.getInteger("monitor.sellado.dias", 31) <= 0) {
+            return null;
+        }
+        String defaultDir = System.getProperty("monitor.almacen", "sqlite").equals("segmentos")
+                ? System.getProperty("monitor.segmentos.dir", "segmentos") + "-sellados" : "sellados";
+        try {
+            return new SealedHistory(Paths.get(System.getProperty("monitor.sellado.dir", defaultDir)), store);
+        } catch (IOException e) {
+            System.err.println("No se pudo abrir el histórico sellado; se arma al vuelo: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Atiende conexiones indefinidamente en el modo indicado.
+     * Se separa de main para poder levantar el servidor desde ServerBenchmark (src/test).
+     */
+    static void serve(String mode, int port, MessageProcessor processor) throws IOException {
+        switch (mode) {
+            case "nio":
+                int loops = Integer.getInteger("monitor.nio.loops", Runtime.getRuntime().availableProcessors());
+                int workers = Integer.getInteger("monitor.nio.workers", 8);
+                new NioServer(port, processor, loops, workers).start();
+                break;
+            case "virtual":
+                runVirtualThreads(port, processor);
+                break;
+            default:
+                runThreadPerClient(port, processor);
+        }
+    }
+
+    /**
+     * Modo clásico: acepta conexiones y asigna un hilo ClientHandler a cada cliente.
+     */
+    private static void runThreadPerClient(int port, MessageProcessor processor) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            System.out.println("Servidor iniciado en el puerto " + port + ". Esperando conexiones...");
 
             // Bucle principal para aceptar conexiones indefinidamente
             while (true) {
@@ -31,11 +154,48 @@ public class Server {
 
                 // Un cliente se ha conectado, se le asigna un hilo
                 System.out.println("Mensaje: Se conecta un cliente.");
-                ClientHandler clientHandler = new ClientHandler(clientSocket, dbManager);
+                ClientHandler clientHandler = new ClientHandler(clientSocket, processor);
                 clientHandler.start();
             }
-        } catch (IOException e) {
-            System.err.println("Error fatal en el Servidor Socket: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Modo "virtual": el mismo ClientHandler, pero su cuerpo (run) se ejecuta en un hilo virtual
+     * de un executor de un hilo por tarea, en lugar de arrancarlo como hilo de plataforma.
+     * Las llamadas JDBC fijan el hilo portador, por eso se limita su concurrencia
+     * (propiedad "monitor.virtual.jdbc", por defecto la mitad de los procesadores).
+     */
+    private static void runVirtualThreads(int port, MessageProcessor processor) throws IOException {
+        int jdbcLimit = Integer.getInteger("monitor.virtual.jdbc",
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        processor.setJdbcConcurrencyLimit(jdbcLimit);
+        processor.setHistoryExecutor(newVirtualThreadExecutor());
+
+        ExecutorService executor = newVirtualThreadExecutor();
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            System.out.println("Servidor (hilos virtuales) iniciado en el puerto " + port + ". Esperando conexiones...");
+
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                System.out.println("Mensaje: Se conecta un cliente.");
+                executor.execute(new ClientHandler(clientSocket, processor));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Obtiene Executors.newVirtualThreadPerTaskExecutor() por reflexión, para que el código siga
+     * compilando con el target 17 por defecto. Si el JDK no tiene hilos virtuales, usa hilos normales.
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Este JDK no soporta hilos virtuales (se requiere JDK 21). Se usarán hilos normales.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
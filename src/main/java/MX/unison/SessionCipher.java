@@ -0,0 +1,117 @@
+package MX.unison;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+
+/**
+ * Cifrado de una conexión. Hay dos implementaciones:
+ *  - LEGACY: la clave fija de EncryptionUtil (AES/ECB), la que usan los clientes y servidores anteriores.
+ *  - GcmSessionCipher: clave propia de la conexión, acordada en la negociación, con AES-GCM autenticado.
+ *
+ * Las líneas de texto se sellan con seal() (una o varias líneas en Base64) y se abren con un
+ * LineOpener por flujo de líneas, porque un mensaje grande puede llegar en varios bloques.
+ * Las tramas binarias se sellan enteras con sealFrame()/openFrame().
+ */
+public interface SessionCipher {
+
+    SessionCipher LEGACY = new LegacyCipher();
+
+    /**
+     * Cifra un mensaje y lo devuelve como líneas Base64 (sin fin de línea), en el orden en que se deben enviar.
+     * @return Las líneas, o null si hubo un error.
+     */
+    String[] seal(byte[] plain);
+
+    default String[] seal(String plainMessage) {
+        return seal(plainMessage.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Crea un lector para un flujo de líneas (p.ej. las respuestas de una petición).
+     */
+    LineOpener newOpener();
+
+    /**
+     * Tamaño que ocupa una carga de 'plainLength' bytes ya cifrada en una trama.
+     */
+    int sealedFrameSize(int plainLength);
+
+    /**
+     * Cifra la carga de una trama del tipo indicado y la escribe en 'out'.
+     * @return Bytes escritos, o -1 si hubo un error.
+     */
+    int sealFrame(byte type, ByteBuffer plain, ByteBuffer out);
+
+    /**
+     * Descifra la carga de una trama del tipo indicado y la escribe en 'out'.
+     * @return Bytes escritos, o -1 si hubo un error (incluida una carga alterada).
+     */
+    int openFrame(byte type, ByteBuffer sealed, ByteBuffer out);
+
+    /**
+     * Descifra las líneas de un flujo y junta los bloques de cada mensaje.
+     */
+    interface LineOpener {
+        /**
+         * @return El mensaje en claro, o null si la línea es un bloque y faltan más.
+         * @throws GeneralSecurityException si la línea no se puede descifrar o autenticar.
+         */
+        byte[] open(String line) throws GeneralSecurityException;
+
+        default String openText(String line) throws GeneralSecurityException {
+            byte[] plain = open(line);
+            return plain != null ? new String(plain, StandardCharsets.UTF_8) : null;
+        }
+    }
+
+    /**
+     * Cifrado anterior: cada línea es un mensaje completo cifrado con la clave fija.
+     */
+    final class LegacyCipher implements SessionCipher {
+
+        private static final LineOpener OPENER = line -> {
+            byte[] encrypted;
+            try {
+                encrypted = Base64.getDecoder().decode(line);
+            } catch (IllegalArgumentException e) {
+                throw new GeneralSecurityException("Línea Base64 inválida: " + e.getMessage());
+            }
+            byte[] plain = EncryptionUtil.decryptBytes(encrypted);
+            if (plain == null) {
+                throw new GeneralSecurityException("No se pudo desencriptar la línea.");
+            }
+            return plain;
+        };
+
+        private LegacyCipher() {
+        }
+
+        @Override
+        public String[] seal(byte[] plain) {
+            byte[] encrypted = EncryptionUtil.encryptBytes(plain);
+            return encrypted != null ? new String[]{Base64.getEncoder().encodeToString(encrypted)} : null;
+        }
+
+        @Override
+        public LineOpener newOpener() {
+            return OPENER;
+        }
+
+        @Override
+        public int sealedFrameSize(int plainLength) {
+            return EncryptionUtil.encryptedSize(plainLength);
+        }
+
+        @Override
+        public int sealFrame(byte type, ByteBuffer plain, ByteBuffer out) {
+            return EncryptionUtil.encrypt(plain, out);
+        }
+
+        @Override
+        public int openFrame(byte type, ByteBuffer sealed, ByteBuffer out) {
+            return EncryptionUtil.decrypt(sealed, out);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package MX.unison;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+
+/**
+ * Almacenamiento en SQLite (DataBaseManager): lecturas en particiones por día, rollups e
+ * histogramas de cuantiles que se actualizan en la misma transacción de cada lote y, mientras dura
+ * la migración, las filas del esquema anterior.
+ */
+public class SqliteStore implements SensorStore {
+
+    // Formato de fecha y hora de las filas del esquema anterior (ver buildHistoricalQuery)
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    private final DataBaseManager dbManager;
+
+    /**
+     * @param dbManager Base ya preparada con createTable().
+     */
+    public SqliteStore(DataBaseManager dbManager) {
+        this.dbManager = dbManager;
+    }
+
+    public DataBaseManager getDataBaseManager() {
+        return dbManager;
+    }
+
+    /**
+     * Guarda el lote en una sola transacción con la conexión de escritura del pool, usando el
+     * INSERT de la partición del día ya preparado en ella, con executeBatch, suma los agregados
+     * del lote a las tablas de rollup y combina sus histogramas con los de cuantiles.
+     * Si algo falla se deshace el lote completo.
+     */
+    @Override
+    public void write(List<IngestQueue.Reading> batch) throws SQLException {
+        try (DataBaseManager.PooledConnection conn = dbManager.borrowWriter()) {
+            Partitions partitions = dbManager.getPartitions();
+            // Las particiones de días nuevos se crean antes de abrir la transacción del lote
+            for (IngestQueue.Reading reading : batch) {
+                partitions.ensure(conn.getConnection(), reading.timestamp);
+            }
+            conn.getConnection().setAutoCommit(false);
+            Rollup.Batch rollup = new Rollup.Batch();
+            Quantiles.Batch quantiles = new Quantiles.Batch();
+            // Casi siempre todo el lote cae en la misma partición
+            Set<PreparedStatement> inserts = new LinkedHashSet<>();
+            PreparedStatement pstmt = null;
+            long day = Long.MIN_VALUE;
+            try {
+                for (IngestQueue.Reading reading : batch) {
+                    if (Partitions.dayStart(reading.timestamp) != day) {
+                        day = Partitions.dayStart(reading.timestamp);
+                        pstmt = partitions.prepareInsert(conn, reading.timestamp);
+                        inserts.add(pstmt);
+                    }
+                    rollup.add(reading.timestamp, reading.x, reading.y, reading.z);
+                    quantiles.add(reading.device, reading.timestamp, reading.x, reading.y, reading.z);
+                    pstmt.setInt(1, reading.device);
+                    pstmt.setLong(2, reading.timestamp);
+                    pstmt.setInt(3, reading.x);
+                    pstmt.setInt(4, reading.y);
+                    pstmt.setInt(5, reading.z);
+                    pstmt.addBatch();
+                }
+                for (PreparedStatement insert : inserts) {
+                    insert.executeBatch();
+                }
+                // Los rollups y los histogramas se actualizan en la misma transacción que las lecturas
+                rollup.write(conn);
+                quantiles.write(conn);
+                conn.getConnection().commit();
+            } finally {
+                // Sin commit, close() de la conexión del pool hace rollback
+                for (PreparedStatement insert : inserts) {
+                    insert.clearBatch();
+                }
+            }
+            conn.getConnection().setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Lee partición por partición, del día más reciente al más antiguo, con una conexión de
+     * solo lectura; deja de leer en cuanto el visitor lo pide, así el costo depende del rango
+     * pedido y no de los años de historia guardados.
+     */
+    @Override
+    public long scan(long fromMs, long toMs, ReadingVisitor visitor) throws SQLException {
+        return scan(fromMs, toMs, visitor, false);
+    }
+
+    /**
+     * Igual que scan() pero del día más antiguo al más reciente. Cada día es un cursor sobre el
+     * índice de su partición que entrega las filas a medida que SQLite las lee (la memoria no
+     * depende del rango), y se cierra al terminar el día, así un recorrido de horas no retiene
+     * los checkpoints del WAL mientras tanto.
+     */
+    @Override
+    public long scanForward(long fromMs, long toMs, ReadingVisitor visitor) throws SQLException {
+        return scan(fromMs, toMs, visitor, true);
+    }
+
+    private long scan(long fromMs, long toMs, ReadingVisitor visitor, boolean ascending) throws SQLException {
+        long total = 0;
+        // Las sentencias son de la caché de la conexión: se cierran solo los ResultSet
+        try (DataBaseManager.PooledConnection conn = dbManager.borrowReader()) {
+            List<Long> days = historyDays(conn, fromMs, toMs);
+            if (ascending) {
+                Collections.reverse(days);
+            }
+            for (long day : days) {
+                // Se revisa en cada día: la migración o la retención pueden cambiar las tablas mientras tanto
+                String table = dbManager.getPartitions().find(day);
+                boolean includeLegacy = dbManager.hasLegacyTable();
+                if (table == null && !includeLegacy) {
+                    continue;
+                }
+                try (ResultSet rs = prepareHistoricalQuery(conn, table, includeLegacy, ascending, day, fromMs, toMs)
+                        .executeQuery()) {
+                    while (rs.next()) {
+                        total++;
+                        if (!visitor.visit(rs.getInt(1), rs.getLong(2), rs.getInt(3), rs.getInt(4), rs.getInt(5))) {
+                            return total;
+                        }
+                    }
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Lee la tabla de rollup del nivel. Las filas del esquema anterior aún no migradas no están
+     * en los rollups.
+     */
+    @Override
+    public long scanAggregates(Rollup.Level level, long fromMs, long toMs, AggregateVisitor visitor) throws SQLException {
+        long total = 0;
+        try (DataBaseManager.PooledConnection conn = dbManager.borrowReader()) {
+            PreparedStatement pstmt = conn.prepare("SELECT inicio_ms, cuenta, suma_x, suma_y, suma_z,"
+                    + " min_x, max_x, min_y, max_y, min_z, max_z, ultimo_ms, ultimo_x, ultimo_y, ultimo_z FROM "
+                    + level.getTable()
+                    + " WHERE inicio_ms BETWEEN ? AND ? ORDER BY inicio_ms DESC");
+            pstmt.setLong(1, fromMs == Long.MIN_VALUE ? fromMs : level.bucketStart(fromMs));
+            pstmt.setLong(2, toMs);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    total++;
+                    if (!visitor.visit(rs.getLong(1), rs.getLong(2), rs.getLong(3), rs.getLong(4), rs.getLong(5),
+                            rs.getInt(6), rs.getInt(7), rs.getInt(8), rs.getInt(9), rs.getInt(10), rs.getInt(11),
+                            rs.getLong(12), rs.getInt(13), rs.getInt(14), rs.getInt(15))) {
+                        break;
+                    }
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Lee las tablas de histogramas de cuantiles (horas y días; los minutos se calculan al vuelo).
+     * Sin dispositivo combina los de todos los dispositivos de cada intervalo. Igual que con los
+     * rollups, las filas del esquema anterior aún no migradas no están incluidas.
+     */
+    @Override
+    public long scanSketches(Rollup.Level level, long fromMs, long toMs, Integer device,
+                             SketchVisitor visitor) throws SQLException {
+        if (!Quantiles.isStored(level)) {
+            try {
+                return SensorStore.super.scanSketches(level, fromMs, toMs, device, visitor);
+            } catch (SQLException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new SQLException(e);
+            }
+        }
+        long total = 0;
+        try (DataBaseManager.PooledConnection conn = dbManager.borrowReader()) {
+            PreparedStatement pstmt = conn.prepare("SELECT inicio_ms, histograma FROM " + Quantiles.table(level)
+                    + " WHERE inicio_ms BETWEEN ? AND ?" + (device != null ? " AND dispositivo = ?" : "")
+                    + " ORDER BY inicio_ms DESC");
+            pstmt.setLong(1, fromMs == Long.MIN_VALUE ? fromMs : level.bucketStart(fromMs));
+            pstmt.setLong(2, toMs);
+            if (device != null) {
+                pstmt.setInt(3, device);
+            }
+            try (ResultSet rs = pstmt.executeQuery()) {
+                QuantileSketch sketch = null;
+                long start = 0;
+                while (rs.next()) {
+                    QuantileSketch row = QuantileSketch.fromBytes(rs.getBytes(2));
+                    if (sketch != null && rs.getLong(1) == start) {
+                        sketch.merge(row);
+                        continue;
+                    }
+                    if (sketch != null) {
+                        total++;
+                        if (!visitor.visit(start, sketch)) {
+                            return total;
+                        }
+                    }
+                    sketch = row;
+                    start = rs.getLong(1);
+                }
+                if (sketch != null) {
+                    total++;
+                    visitor.visit(start, sketch);
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Arma la consulta del histórico sobre la partición de un día, del más reciente al más antiguo
+     * (o al revés con 'ascending'). El rango se compara sobre capturado_ms, así SQLite usa el índice
+     * de la partición tanto para el rango como para el orden.
+     *
+     * Mientras existan filas del esquema anterior (migración en curso) se agregan con UNION ALL las
+     * del mismo día, convirtiendo su fecha y hora locales a ms en SQLite para ordenarlas junto con
+     * las nuevas. 'table' es null si ese día solo tiene filas del esquema anterior.
+     */
+    private String buildHistoricalQuery(String table, boolean includeLegacy, boolean ascending) {
+        StringBuilder sql = new StringBuilder();
+        if (table != null) {
+            sql.append("SELECT dispositivo, capturado_ms, x, y, z FROM ").append(table)
+                    .append(" WHERE capturado_ms BETWEEN ? AND ?");
+        }
+        if (includeLegacy) {
+            if (table != null) {
+                sql.append(" UNION ALL ");
+            }
+            sql.append("SELECT 0, CAST(strftime('%s', fecha_de_captura || ' ' || hora_de_captura, 'utc')")
+                    .append(" AS INTEGER) * 1000, x, y, z FROM ").append(DataBaseManager.LEGACY_TABLE)
+                    .append(" WHERE (fecha_de_captura, hora_de_captura) >= (?, ?)")
+                    .append(" AND (fecha_de_captura, hora_de_captura) <= (?, ?)")
+                    .append(ascending ? " ORDER BY 2" : " ORDER BY 2 DESC");
+        } else {
+            sql.append(ascending ? " ORDER BY capturado_ms, id" : " ORDER BY capturado_ms DESC, id DESC");
+        }
+        return sql.toString();
+    }
+
+    /**
+     * @param day Inicio del día de la partición (ms, UTC).
+     * @param fromMs Inicio del rango pedido (inclusivo).
+     * @param toMs Fin del rango pedido (inclusivo).
+     */
+    private PreparedStatement prepareHistoricalQuery(DataBaseManager.PooledConnection conn, String table,
+                                                     boolean includeLegacy, boolean ascending, long day,
+                                                     long fromMs, long toMs) throws SQLException {
+        PreparedStatement pstmt = conn.prepare(buildHistoricalQuery(table, includeLegacy, ascending));
+        int index = 1;
+        if (table != null) {
+            pstmt.setLong(index++, fromMs);
+            pstmt.setLong(index++, toMs);
+        }
+        if (includeLegacy) {
+            // Parte del rango que cae en este día, en hora local y con precisión de segundos
+            LocalDateTime from = SensorData.toLocalDateTime(Math.max(fromMs, day));
+            LocalDateTime to = SensorData.toLocalDateTime(Math.min(toMs, day + Partitions.DAY_MS - 1));
+            pstmt.setString(index++, from.format(DATE_FORMAT));
+            pstmt.setString(index++, from.format(TIME_FORMAT));
+            pstmt.setString(index++, to.format(DATE_FORMAT));
+            pstmt.setString(index, to.format(TIME_FORMAT));
+        }
+        return pstmt;
+    }
+
+    /**
+     * Días que hay que recorrer para el rango, del más reciente al más antiguo: las particiones
+     * que lo tocan y, mientras exista la tabla del esquema anterior, también los días que solo
+     * tienen filas en ella.
+     */
+    private List<Long> historyDays(DataBaseManager.PooledConnection conn, long fromMs, long toMs) throws SQLException {
+        NavigableMap<Long, String> inRange = dbManager.getPartitions().between(fromMs, toMs);
+        if (!dbManager.hasLegacyTable()) {
+            return new ArrayList<>(inRange.keySet());
+        }
+        // Extremos de las filas del esquema anterior (dos búsquedas en su índice)
+        long oldest = inRange.isEmpty() ? Long.MAX_VALUE : inRange.lastKey();
+        long newest = inRange.isEmpty() ? Long.MIN_VALUE : inRange.firstKey() + Partitions.DAY_MS - 1;
+        try (ResultSet rs = conn.prepare("SELECT (SELECT MIN(fecha_de_captura) FROM " + DataBaseManager.LEGACY_TABLE
+                + "), (SELECT MAX(fecha_de_captura) FROM " + DataBaseManager.LEGACY_TABLE + ")").executeQuery()) {
+            if (rs.next() && rs.getString(1) != null) {
+                oldest = Math.min(oldest, SensorData.toEpochMillis(rs.getString(1), "00:00:00"));
+                newest = Math.max(newest, SensorData.toEpochMillis(rs.getString(2), "23:59:59"));
+            }
+        }
+        List<Long> days = new ArrayList<>();
+        if (oldest > newest) {
+            return days;
+        }
+        long last = Partitions.dayStart(Math.max(fromMs, oldest));
+        for (long day = Partitions.dayStart(Math.min(toMs, newest)); day >= last; day -= Partitions.DAY_MS) {
+            days.add(day);
+        }
+        return days;
+    }
+
+    @Override
+    public String describe() {
+        return dbManager.describePool();
+    }
+
+    @Override
+    public void close() {
+        dbManager.close();
+    }
+}
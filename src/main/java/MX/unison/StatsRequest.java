@@ -0,0 +1,147 @@
+package MX.unison;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Parámetros de una petición de estadísticas calculadas en el servidor.
+ *
+ * Formato en el protocolo: "STATS_REQUEST:" seguido de pares clave=valor separados por ';', por
+ * ejemplo "from=2026-10-18T00:00:00;to=2026-10-18T23:59:59;bucket=3600". Todas las claves son opcionales:
+ *  - "from" y "to": fecha y hora ISO (inclusivas), igual que en HistoricalRequest.
+ *  - "bucket": segundos de cada intervalo (hasta MAX_BUCKET, un año), alineados a 1970 (UTC); sin bucket,
+ *    un solo resultado del rango.
+ *  - "device": solo las lecturas de ese dispositivo.
+ * Las claves desconocidas se ignoran.
+ *
+ * El servidor responde con líneas "STATS_PAGE:reg|reg|..." de hasta PAGE_SIZE intervalos, del más
+ * reciente al más antiguo, y al final "STATS_END:intervalos;lecturas=..". Cada registro tiene el
+ * formato de RangeStats (cantidad, mínimo, máximo, media, desviación estándar, primera y última
+ * lectura de cada eje); los intervalos sin lecturas no se envían.
+ */
+public class StatsRequest {
+
+    public static final String PREFIX = "STATS_REQUEST:";
+    public static final String PAGE_PREFIX = "STATS_PAGE:";
+    public static final String END_PREFIX = "STATS_END:";
+
+    // Intervalos por línea de respuesta
+    public static final int PAGE_SIZE = 500;
+    // Intervalo más largo que se acepta, en segundos; el servidor lo pasa a ms sin desbordar
+    public static final long MAX_BUCKET = 366L * 24 * 3600;
+
+    // Rango de captura (inclusivo); null = sin límite por ese lado
+    private LocalDateTime from;
+    private LocalDateTime to;
+    // Segundos por intervalo; 0 = todo el rango en un solo resultado
+    private long bucket;
+    // null = todos los dispositivos
+    private Integer device;
+
+    /**
+     * Interpreta los parámetros que siguen a "STATS_REQUEST:".
+     * @throws IllegalArgumentException si algún valor no es válido.
+     */
+    public static StatsRequest parse(String params) {
+        StatsRequest request = new StatsRequest();
+        for (String pair : params.trim().split(";")) {
+            int eq = pair.indexOf('=');
+            if (eq < 0) {
+                continue;
+            }
+            String key = pair.substring(0, eq).trim();
+            String value = pair.substring(eq + 1).trim();
+            try {
+                switch (key) {
+                    case "from":
+                        request.setFrom(LocalDateTime.parse(value));
+                        break;
+                    case "to":
+                        request.setTo(LocalDateTime.parse(value));
+                        break;
+                    case "bucket":
+                        request.setBucket(Long.parseLong(value));
+                        break;
+                    case "device":
+                        request.setDevice(Integer.parseInt(value));
+                        break;
+                    default:
+                        // Clave desconocida: se ignora
+                }
+            } catch (NumberFormatException | DateTimeParseException e) {
+                throw new IllegalArgumentException("Valor inválido para '" + key + "': " + value);
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Mensaje completo para enviar al servidor.
+     */
+    public String toMessage() {
+        StringBuilder sb = new StringBuilder(PREFIX);
+        if (from != null) {
+            sb.append("from=").append(from).append(';');
+        }
+        if (to != null) {
+            sb.append("to=").append(to).append(';');
+        }
+        if (bucket > 0) {
+            sb.append("bucket=").append(bucket).append(';');
+        }
+        if (device != null) {
+            sb.append("device=").append(device).append(';');
+        }
+        if (sb.charAt(sb.length() - 1) == ';') {
+            sb.setLength(sb.length() - 1);
+        }
+        return sb.toString();
+    }
+
+    public LocalDateTime getFrom() {
+        return from;
+    }
+
+    public void setFrom(LocalDateTime from) {
+        this.from = from;
+    }
+
+    public LocalDateTime getTo() {
+        return to;
+    }
+
+    public void setTo(LocalDateTime to) {
+        this.to = to;
+    }
+
+    public long getBucket() {
+        return bucket;
+    }
+
+    public void setBucket(long bucket) {
+        if (bucket < 0) {
+            throw new IllegalArgumentException("El intervalo no puede ser negativo: " + bucket);
+        }
+        if (bucket > MAX_BUCKET) {
+            throw new IllegalArgumentException("El intervalo no puede ser mayor a " + MAX_BUCKET + " segundos: " + bucket);
+        }
+        this.bucket = bucket;
+    }
+
+    public Integer getDevice() {
+        return device;
+    }
+
+    public void setDevice(Integer device) {
+        this.device = device;
+    }
+
+    /**
+     * Obtiene el número de intervalos de un mensaje "STATS_END:intervalos[;...]".
+     */
+    public static long parseEndTotal(String endMessage) {
+        String body = endMessage.substring(END_PREFIX.length());
+        int separator = body.indexOf(';');
+        return Long.parseLong(separator < 0 ? body : body.substring(0, separator));
+    }
+}
@@ -0,0 +1,107 @@
+package MX.unison;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sesión que marca cada respuesta con el identificador de la petición que la originó.
+ *
+ * Formato: el cliente envía "#id mensaje" (dentro del texto cifrado o de la trama TEXT) y
+ * el servidor responde cada línea como "#id lineaCifrada"; la marca va fuera del cifrado para que
+ * el hilo lector del cliente pueda repartir las líneas sin desencriptarlas primero.
+ * Así varias peticiones de histórico pueden estar en curso a la vez sobre la misma conexión,
+ * junto con las lecturas en vivo. Solo se usa si el servidor anunció la capacidad MUX en la negociación.
+ */
+public class TaggedSession implements ClientSession {
+
+    public static final char TAG_PREFIX = '#';
+    // Identificador reservado para los avisos que el servidor envía por su cuenta (p.ej. SLOW_DOWN)
+    public static final int CONTROL_ID = 0;
+
+    private final ClientSession delegate;
+    private final String tag;
+
+    public TaggedSession(ClientSession delegate, int requestId) {
+        this.delegate = delegate;
+        this.tag = TAG_PREFIX + Integer.toString(requestId) + ' ';
+    }
+
+    @Override
+    public void sendEncryptedLine(String encryptedLine) {
+        delegate.sendEncryptedLine(tag + encryptedLine);
+    }
+
+    @Override
+    public void sendSealed(String prefix, byte[] plainMessage) {
+        delegate.sendSealed(tag + prefix, plainMessage);
+    }
+
+    /**
+     * Solo las líneas cifradas llevan la marca; las del archivo van sin ella, y el cliente las
+     * reconoce porque siguen a la cabecera que las anuncia y son las únicas sin marca.
+     */
+    @Override
+    public void sendSealedAndFile(String prefix, byte[] plainMessage, FileChannel file, long position, long count) throws IOException {
+        delegate.sendSealedAndFile(tag + prefix, plainMessage, file, position, count);
+    }
+
+    @Override
+    public void acknowledge(int count) {
+        delegate.acknowledge(count);
+    }
+
+    @Override
+    public void signalFlow(String signal) {
+        delegate.signalFlow(signal);
+    }
+
+    @Override
+    public SessionCipher cipher() {
+        return delegate.cipher();
+    }
+
+    @Override
+    public boolean isMultiplexed() {
+        return delegate.isMultiplexed();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return delegate.isOpen();
+    }
+
+    /**
+     * Agrega la marca de petición a un mensaje o línea.
+     */
+    public static String tag(int requestId, String message) {
+        return TAG_PREFIX + Integer.toString(requestId) + ' ' + message;
+    }
+
+    /**
+     * Indica si el mensaje o la línea trae marca de petición.
+     */
+    public static boolean isTagged(String message) {
+        return !message.isEmpty() && message.charAt(0) == TAG_PREFIX;
+    }
+
+    /**
+     * Obtiene el identificador de un mensaje marcado ("#id resto").
+     * @throws IllegalArgumentException si la marca no es válida.
+     */
+    public static int parseId(String message) {
+        int space = message.indexOf(' ');
+        try {
+            return Integer.parseInt(message.substring(1, space < 0 ? message.length() : space));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Identificador de petición inválido: " + message);
+        }
+    }
+
+    /**
+     * Quita la marca de un mensaje o línea ("#id resto" -> "resto").
+     */
+    public static String stripTag(String message) {
+        int space = message.indexOf(' ');
+        return space < 0 ? "" : message.substring(space + 1);
+    }
+}
@@ -2,6 +2,11 @@ package MX.unison;
 
 import javax.swing.*;
 import java.awt.*;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
 import java.util.List;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartPanel;
@@ -26,11 +31,21 @@ public class VistaHistorico extends JPanel {
     private final JButton btnLoadData;
     private final JPanel chartContainer;
 
+    // Filtros de búsqueda
+    private JTextField txtDateStart;
+    private JTextField txtTimeEnd;
+
     private XYSeries seriesX;
     private XYSeries seriesY;
     private XYSeries seriesZ;
     private XYSeriesCollection dataset;
     private JFreeChart chart;
+    // Registros agregados a la gráfica en la carga actual
+    private int loadedCount;
+
+    // Puntos que se piden como máximo en rangos largos; el servidor los arma con sus rollups
+    private static final long MAX_CHART_POINTS = 2000;
+    private static final long SECONDS_PER_DAY = 86_400;
 
     public VistaHistorico(MainFrame mainFrame, ClientConnection clientConnection) {
         this.mainFrame = mainFrame;
@@ -64,12 +79,17 @@ public class VistaHistorico extends JPanel {
         StyleUtil.applyPrimaryStyle(btnLoadData);
         btnLoadData.addActionListener(e -> loadHistoricalData());
 
+        JButton btnStats = new JButton("Estadísticas");
+        StyleUtil.applyBaseStyle(btnStats);
+        btnStats.addActionListener(e -> showStats());
+
         JButton btnBack = new JButton("Volver a Inicio");
         StyleUtil.applyBaseStyle(btnBack);
         btnBack.setBackground(StyleUtil.AZUL_OSCURO_UNISON.darker());
         btnBack.addActionListener(e -> mainFrame.showCard(MainFrame.getCardInicio()));
 
         bottomPanel.add(btnLoadData);
+        bottomPanel.add(btnStats);
         bottomPanel.add(btnBack);
         add(bottomPanel, BorderLayout.SOUTH);
 
@@ -90,12 +110,14 @@ public class VistaHistorico extends JPanel {
         // Requisitos: Incluir filtros por fecha y hora
         panel.add(lblTitle);
         panel.add(new JLabel("Fecha Inicio:"));
-        JTextField txtDateStart = new JTextField(8);
+        txtDateStart = new JTextField(8);
+        txtDateStart.setToolTipText("AAAA-MM-DD");
         StyleUtil.applyBaseStyle(txtDateStart);
         panel.add(txtDateStart);
 
         panel.add(new JLabel("Hora Fin:"));
-        JTextField txtTimeEnd = new JTextField(6);
+        txtTimeEnd = new JTextField(6);
+        txtTimeEnd.setToolTipText("HH:MM o HH:MM:SS");
         StyleUtil.applyBaseStyle(txtTimeEnd);
         panel.add(txtTimeEnd);
 
@@ -133,6 +155,46 @@ public class VistaHistorico extends JPanel {
         plot.setRenderer(renderer);
     }
 
+    /**
+     * Arma la petición con los filtros: desde la "Fecha Inicio" (a las 00:00:00) hasta la "Hora Fin"
+     * de ese mismo día, o de hoy si no se indicó fecha. Los campos vacíos no filtran.
+     * El filtrado se hace en el servidor, con el índice por fecha y hora.
+     * @throws DateTimeParseException si algún campo tiene un formato inválido.
+     */
+    private HistoricalRequest buildRequest() {
+        HistoricalRequest request = new HistoricalRequest();
+        // Las lecturas se piden codificadas por columnas (los agregados llegan con Deflate);
+        // un servidor que no conoce el codec las envía normales
+        request.setCompression(CompressionUtil.SERIES);
+        // Los días cerrados pueden llegar ya sellados, sin que el servidor los vuelva a leer
+        request.setAcceptSealed(true);
+        String dateText = txtDateStart.getText().trim();
+        String timeText = txtTimeEnd.getText().trim();
+
+        LocalDate date = dateText.isEmpty() ? null : LocalDate.parse(dateText);
+        if (date != null) {
+            request.setFrom(date.atStartOfDay());
+        }
+        if (!timeText.isEmpty()) {
+            request.setTo((date != null ? date : LocalDate.now()).atTime(LocalTime.parse(timeText)));
+        }
+        request.setResolution(chartResolution(request.getFrom(), request.getTo()));
+        return request;
+    }
+
+    /**
+     * Resolución (segundos por punto) para que un rango de más de un día no traiga cada lectura:
+     * el servidor responde con promedios por minuto, hora o día. Sin fecha de inicio el rango
+     * puede ser de años, así que se piden horas. 0 = lecturas individuales.
+     */
+    private static long chartResolution(LocalDateTime from, LocalDateTime to) {
+        if (from == null) {
+            return 3600;
+        }
+        long seconds = Duration.between(from, to != null ? to : LocalDateTime.now()).getSeconds();
+        return seconds > SECONDS_PER_DAY ? seconds / MAX_CHART_POINTS : 0;
+    }
+
     /**
      * Carga los datos históricos del servidor en un Thread (requisito).
      */
@@ -143,6 +205,15 @@ public class VistaHistorico extends JPanel {
             return;
         }
 
+        HistoricalRequest request;
+        try {
+            request = buildRequest();
+        } catch (DateTimeParseException e) {
+            JOptionPane.showMessageDialog(this, "Formato de filtro inválido. Use AAAA-MM-DD para la fecha y HH:MM[:SS] para la hora.",
+                    "Filtros de Búsqueda", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
         btnLoadData.setEnabled(false);
         chartContainer.removeAll();
         lblStatus.setText("Cargando datos desde la base de datos..."); // Mensaje de carga (requisito)
@@ -150,24 +221,33 @@ public class VistaHistorico extends JPanel {
         chartContainer.revalidate();
         chartContainer.repaint();
 
+        // Limpiar la gráfica; las páginas se agregan conforme llegan
+        seriesX.clear();
+        seriesY.clear();
+        seriesZ.clear();
+        loadedCount = 0;
+
         // Cargar los datos desde un Thread (requisito)
         new Thread(() -> {
             try {
-                // 1. Solicitar los datos al servidor (comunicación por Socket, datos encriptados)
-                List<SensorData> dataList = clientConnection.requestHistoricalData();
+                // 1. Solicitar los datos al servidor (comunicación por Socket, datos encriptados, por páginas)
+                long total = clientConnection.requestHistoricalData(request,
+                        page -> SwingUtilities.invokeLater(() -> appendToChart(page)));
 
                 SwingUtilities.invokeLater(() -> {
-                    if (!dataList.isEmpty()) {
-                        // 2. Actualizar la gráfica con los nuevos datos
-                        updateChart(dataList);
-                        lblStatus.setText("Datos cargados: " + dataList.size() + " registros.");
+                    if (total > 0) {
+                        // 2. La gráfica ya tiene todas las páginas
+                        lblStatus.setText("Datos cargados: " + total + " registros.");
 
                         ChartPanel chartPanel = new ChartPanel(chart);
                         chartContainer.removeAll();
                         chartContainer.add(chartPanel, BorderLayout.CENTER);
-                    } else {
+                    } else if (total == 0) {
                         lblStatus.setText("No se encontraron datos históricos para mostrar.");
                         chartContainer.add(lblStatus, BorderLayout.CENTER);
+                    } else {
+                        lblStatus.setText("Error al cargar los datos desde el servidor.");
+                        chartContainer.add(lblStatus, BorderLayout.CENTER);
                     }
                     chartContainer.revalidate();
                     chartContainer.repaint();
@@ -186,20 +266,74 @@ public class VistaHistorico extends JPanel {
     }
 
     /**
-     * Rellena las series de JFreeChart con la lista de datos históricos.
+     * Pide al servidor las estadísticas del rango de los filtros (un solo resultado, sin traer
+     * las lecturas) y las muestra en un diálogo.
      */
-    private void updateChart(List<SensorData> dataList) {
-        seriesX.clear();
-        seriesY.clear();
-        seriesZ.clear();
+    private void showStats() {
+        if (!clientConnection.isConnected()) {
+            JOptionPane.showMessageDialog(this, "Debe estar conectado al servidor para consultar estadísticas.",
+                    "Error de Conexión", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        StatsRequest request = new StatsRequest();
+        try {
+            HistoricalRequest range = buildRequest();
+            request.setFrom(range.getFrom());
+            request.setTo(range.getTo());
+        } catch (DateTimeParseException e) {
+            JOptionPane.showMessageDialog(this, "Formato de filtro inválido. Use AAAA-MM-DD para la fecha y HH:MM[:SS] para la hora.",
+                    "Filtros de Búsqueda", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        // Percentiles del mismo rango, de los histogramas del servidor (ver QuantileRequest)
+        QuantileRequest quantileRequest = new QuantileRequest();
+        quantileRequest.setFrom(request.getFrom());
+        quantileRequest.setTo(request.getTo());
+
+        new Thread(() -> {
+            List<RangeStats> results = clientConnection.requestStats(request);
+            List<QuantileRequest.Result> quantiles = results == null || results.isEmpty()
+                    ? null : clientConnection.requestQuantiles(quantileRequest);
+            SwingUtilities.invokeLater(() -> {
+                if (results == null || results.isEmpty()) {
+                    JOptionPane.showMessageDialog(this, "No se pudieron obtener las estadísticas del servidor.",
+                            "Estadísticas", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                RangeStats stats = results.get(0);
+                StringBuilder text = new StringBuilder("Lecturas: " + stats.getCount());
+                String[] names = {"X", "Y", "Z"};
+                for (int axis = RangeStats.X; stats.getCount() > 0 && axis <= RangeStats.Z; axis++) {
+                    text.append(String.format("%nEje %s: mín %d, máx %d, media %.2f, desv. %.2f, primera %d, última %d",
+                            names[axis], stats.getMin(axis), stats.getMax(axis), stats.getMean(axis),
+                            stats.getStddev(axis), stats.getFirst(axis), stats.getLast(axis)));
+                    if (quantiles != null && !quantiles.isEmpty()) {
+                        QuantileRequest.Result percentiles = quantiles.get(0);
+                        text.append(String.format(", p50 %d, p95 %d, p99 %d", percentiles.getValue(axis, 0),
+                                percentiles.getValue(axis, 1), percentiles.getValue(axis, 2)));
+                    }
+                }
+                JOptionPane.showMessageDialog(this, text.toString(), "Estadísticas", JOptionPane.INFORMATION_MESSAGE);
+            });
+        }).start();
+    }
 
+    /**
+     * Agrega una página de datos históricos a las series de JFreeChart (se llama en el EDT).
+     */
+    private void appendToChart(List<SensorData> page) {
         // Usamos el índice como el eje X, ya que el gráfico de tiempo real ya usa el tiempo.
-        for (int i = 0; i < dataList.size(); i++) {
-            SensorData data = dataList.get(i);
-            // Usamos el índice 'i' como el punto del eje X
-            seriesX.add(i + 1, data.x);
-            seriesY.add(i + 1, data.y);
-            seriesZ.add(i + 1, data.z);
+        // Se notifica a la gráfica una sola vez por página, no por cada punto.
+        for (SensorData data : page) {
+            loadedCount++;
+            seriesX.add(loadedCount, data.x, false);
+            seriesY.add(loadedCount, data.y, false);
+            seriesZ.add(loadedCount, data.z, false);
         }
+        seriesX.fireSeriesChanged();
+        seriesY.fireSeriesChanged();
+        seriesZ.fireSeriesChanged();
+        lblStatus.setText("Cargando datos desde la base de datos... " + loadedCount + " registros.");
     }
 }
@@ -0,0 +1,129 @@
+package MX.unison;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estadísticas y cuantiles de un rango (por defecto el último día de 1 millón de lecturas, una por
+ * segundo, en SQLite): pedir las lecturas por columnas para calcularlas en el cliente contra
+ * STATS_REQUEST (total y por hora, desde los rollups) y QUANTILE_REQUEST por hora, y combinar los
+ * histogramas guardados (Quantiles.merge) contra recorrer las lecturas.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AggregateBenchmark {
+
+    /** Segundos hasta la lectura más reciente. */
+    @Param({"86400"})
+    public int rango;
+
+    @Param({"1000000"})
+    public int lecturas;
+
+    private Path dir;
+    private SensorStore store;
+    private MessageProcessor processor;
+    private long fromMs;
+    private long toMs;
+    private String readingsMessage;
+    private String statsMessage;
+    private String hourlyStatsMessage;
+    private String hourlyQuantilesMessage;
+    private final ClientSession discard = encryptedLine -> {
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkData.silenceOutput();
+        dir = BenchmarkData.tempDir();
+        store = BenchmarkData.openStore("sqlite", dir);
+        BenchmarkData.fill(store, lecturas, 1000);
+        processor = new MessageProcessor(store);
+
+        LocalDateTime from = BenchmarkData.BASE.plusSeconds(lecturas - rango);
+        LocalDateTime to = BenchmarkData.BASE.plusSeconds(lecturas - 1);
+        fromMs = SensorData.toEpochMillis(from);
+        toMs = SensorData.toEpochMillis(to);
+
+        HistoricalRequest readings = new HistoricalRequest();
+        readings.setFrom(from);
+        readings.setTo(to);
+        readings.setCompression(CompressionUtil.SERIES);
+        readingsMessage = readings.toMessage();
+
+        StatsRequest stats = new StatsRequest();
+        stats.setFrom(from);
+        stats.setTo(to);
+        statsMessage = stats.toMessage();
+        stats.setBucket(3600);
+        hourlyStatsMessage = stats.toMessage();
+
+        QuantileRequest quantiles = new QuantileRequest();
+        quantiles.setFrom(from);
+        quantiles.setTo(to);
+        quantiles.setBucket(3600);
+        hourlyQuantilesMessage = quantiles.toMessage();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        processor.shutdown(10_000);
+        store.close();
+        BenchmarkData.deleteRecursively(dir);
+        BenchmarkData.restoreOutput();
+    }
+
+    @Benchmark
+    public void readingsForClientStats() {
+        processor.process(readingsMessage, discard);
+    }
+
+    @Benchmark
+    public void stats() {
+        processor.process(statsMessage, discard);
+    }
+
+    @Benchmark
+    public void hourlyStats() {
+        processor.process(hourlyStatsMessage, discard);
+    }
+
+    @Benchmark
+    public void hourlyQuantiles() {
+        processor.process(hourlyQuantilesMessage, discard);
+    }
+
+    @Benchmark
+    public QuantileSketch mergeSketches() throws Exception {
+        return Quantiles.merge(store, fromMs, toMs, null);
+    }
+
+    @Benchmark
+    public QuantileSketch scanReadingsIntoSketch() throws Exception {
+        QuantileSketch sketch = new QuantileSketch();
+        store.scan(fromMs, toMs, (device, timestamp, x, y, z) -> {
+            sketch.add(x, y, z);
+            return true;
+        });
+        return sketch;
+    }
+}
@@ -0,0 +1,133 @@
+package MX.unison;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Datos y utilidades comunes de los benchmarks JMH (las clases *Benchmark de src/test/java).
+ * No son pruebas: surefire no los ejecuta. Para correrlos:
+ *
+ *   mvn -B test-compile dependency:build-classpath -Dmdep.includeScope=test -Dmdep.outputFile=target/bench.cp
+ *   java -cp "target/test-classes:target/classes:$(cat target/bench.cp)" org.openjdk.jmh.Main CipherBenchmark
+ *
+ * Con las opciones normales de JMH, por ejemplo "StoreBenchmark -p almacen=segmentos" o
+ * "-f 1 -wi 2 -i 3" para una corrida corta. Cada benchmark usa su propio directorio temporal,
+ * nunca monitorBD.db.
+ */
+final class BenchmarkData {
+
+    /** Inicio de las series de lecturas. */
+    static final LocalDateTime BASE = LocalDateTime.of(2025, 1, 1, 0, 0);
+    static final long BASE_MS = SensorData.toEpochMillis(BASE);
+
+    private static final int FILL_BATCH = 10_000;
+    private static final PrintStream OUT = System.out;
+    private static final PrintStream ERR = System.err;
+
+    private BenchmarkData() {
+    }
+
+    static Path tempDir() throws IOException {
+        return Files.createTempDirectory("monitor-bench-");
+    }
+
+    /**
+     * Abre un almacenamiento vacío en 'dir', como el servidor con monitor.almacen.
+     * @param kind "sqlite" o "segmentos".
+     */
+    static SensorStore openStore(String kind, Path dir) throws Exception {
+        switch (kind) {
+            case "sqlite":
+                DataBaseManager dbManager = new DataBaseManager(dir.resolve("bench.db").toString());
+                dbManager.createTable();
+                return new SqliteStore(dbManager);
+            case "segmentos":
+                return new SegmentStore(dir.resolve("segmentos"), 1 << 20, true, false);
+            default:
+                throw new IllegalArgumentException("Almacenamiento desconocido: " + kind);
+        }
+    }
+
+    /**
+     * Guarda 'readings' lecturas del dispositivo 1, una cada 'stepMs' desde BASE_MS, con x, y, z
+     * al azar entre 50 y 149 como ArduinoSimulator. Pasa por store.write, así que en SQLite
+     * también se llenan los rollups y los histogramas de cuantiles.
+     */
+    static void fill(SensorStore store, int readings, long stepMs) throws Exception {
+        Random random = new Random(1);
+        List<IngestQueue.Reading> batch = new ArrayList<>(FILL_BATCH);
+        for (int i = 0; i < readings; i++) {
+            batch.add(new IngestQueue.Reading(1, BASE_MS + i * stepMs, 50 + random.nextInt(100),
+                    50 + random.nextInt(100), 50 + random.nextInt(100)));
+            if (batch.size() == FILL_BATCH || i == readings - 1) {
+                store.write(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Lecturas de un dispositivo, una por segundo más 0 a 2 ms de atraso acumulado (como el
+     * Thread.sleep del simulador). "simulador": x, y, z al azar entre 50 y 149; "suave": cada
+     * valor cambia entre -2 y 2 respecto al anterior.
+     */
+    static void fillSimulatedSeries(String kind, long[] timestamps, int[] devices, int[] xs, int[] ys, int[] zs) {
+        Random random = new Random(1);
+        long timestamp = BASE_MS;
+        int x = 100;
+        int y = 100;
+        int z = 100;
+        for (int i = 0; i < timestamps.length; i++) {
+            if (kind.equals("simulador")) {
+                x = random.nextInt(100) + 50;
+                y = random.nextInt(100) + 50;
+                z = random.nextInt(100) + 50;
+            } else {
+                x += random.nextInt(5) - 2;
+                y += random.nextInt(5) - 2;
+                z += random.nextInt(5) - 2;
+            }
+            timestamps[i] = timestamp;
+            devices[i] = 1;
+            xs[i] = x;
+            ys[i] = y;
+            zs[i] = z;
+            timestamp += 1000 + random.nextInt(3);
+        }
+    }
+
+    /**
+     * Los mensajes por lectura del servidor dominarían la medición; se descartan durante el benchmark.
+     * JMH guarda su propia salida al arrancar, así que sus resultados se siguen viendo.
+     */
+    static void silenceOutput() {
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        System.setOut(discard);
+        System.setErr(discard);
+    }
+
+    static void restoreOutput() {
+        System.setOut(OUT);
+        System.setErr(ERR);
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
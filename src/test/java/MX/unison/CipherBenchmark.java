@@ -0,0 +1,139 @@
+package MX.unison;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cifrado de un mensaje DATA en un hilo (cifrar y descifrar): el esquema anterior (derivar la clave
+ * y crear el Cipher en cada mensaje) contra la clave y los Cipher reutilizados de EncryptionUtil,
+ * con String/Base64, byte[] y ByteBuffer. Además el cifrado de sesión AES-GCM con respuestas
+ * grandes: sellar 64 KiB (un bloque), sellar 32 MiB (bloques en paralelo) y abrirlos en secuencia
+ * como el hilo lector del cliente.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CipherBenchmark {
+
+    private static final String TEXT = "DATA:x:123, y:45, z:67";
+
+    private byte[] plain;
+    private ByteBuffer plainBuffer;
+    private ByteBuffer encryptedBuffer;
+    private ByteBuffer decryptedBuffer;
+
+    private KeyPair clientKeys;
+    private KeyPair serverKeys;
+    private GcmSessionCipher server;
+    private byte[] small;
+    private byte[] large;
+    private String[] sealedLarge;
+
+    @Setup
+    public void setUp() throws Exception {
+        plain = TEXT.getBytes(StandardCharsets.UTF_8);
+        plainBuffer = ByteBuffer.wrap(plain);
+        encryptedBuffer = ByteBuffer.allocate(EncryptionUtil.encryptedSize(plain.length));
+        decryptedBuffer = ByteBuffer.allocate(EncryptionUtil.encryptedSize(plain.length));
+
+        clientKeys = GcmSessionCipher.generateKeyPair();
+        serverKeys = GcmSessionCipher.generateKeyPair();
+        server = GcmSessionCipher.agree(serverKeys, GcmSessionCipher.encodePublicKey(clientKeys), true);
+        large = new byte[32 * 1024 * 1024];
+        new Random(1).nextBytes(large);
+        small = Arrays.copyOf(large, GcmSessionCipher.CHUNK_SIZE);
+        sealedLarge = server.seal(large);
+    }
+
+    @Benchmark
+    public String legacyPerMessage() throws Exception {
+        return legacyDecrypt(legacyEncrypt(TEXT));
+    }
+
+    @Benchmark
+    public String cachedString() {
+        return EncryptionUtil.decrypt(EncryptionUtil.encrypt(TEXT));
+    }
+
+    @Benchmark
+    public byte[] cachedBytes() {
+        return EncryptionUtil.decryptBytes(EncryptionUtil.encryptBytes(plain));
+    }
+
+    @Benchmark
+    public int cachedByteBuffer() {
+        plainBuffer.rewind();
+        encryptedBuffer.clear();
+        decryptedBuffer.clear();
+        EncryptionUtil.encrypt(plainBuffer, encryptedBuffer);
+        encryptedBuffer.flip();
+        return EncryptionUtil.decrypt(encryptedBuffer, decryptedBuffer);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String[] gcmSeal64KiB() throws Exception {
+        return server.seal(small);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public String[] gcmSeal32MiB() throws Exception {
+        return server.seal(large);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public byte[] gcmOpen32MiB() throws Exception {
+        // Un cifrador nuevo en cada vuelta: el mismo mensaje abierto dos veces se rechaza como repetido
+        SessionCipher.LineOpener opener = GcmSessionCipher.agree(clientKeys,
+                GcmSessionCipher.encodePublicKey(serverKeys), false).newOpener();
+        byte[] message = null;
+        for (String line : sealedLarge) {
+            message = opener.open(line);
+        }
+        return message;
+    }
+
+    /**
+     * Cifrado como se hacía antes: SHA-1 de la clave y Cipher.getInstance en cada mensaje.
+     */
+    private static String legacyEncrypt(String message) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, legacyKey());
+        return Base64.getEncoder().encodeToString(cipher.doFinal(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String legacyDecrypt(String message) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+        cipher.init(Cipher.DECRYPT_MODE, legacyKey());
+        return new String(cipher.doFinal(Base64.getDecoder().decode(message)), StandardCharsets.UTF_8);
+    }
+
+    private static SecretKeySpec legacyKey() throws Exception {
+        byte[] key = MessageDigest.getInstance("SHA-1").digest("UNISON_MONITOR_KEY".getBytes(StandardCharsets.UTF_8));
+        return new SecretKeySpec(Arrays.copyOf(key, 16), "AES");
+    }
+}
@@ -0,0 +1,77 @@
+package MX.unison;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exportar todas las lecturas (por defecto 1 millón, una por segundo) a CSV o al formato binario
+ * (ver HistoryExport), desde SQLite o desde segmentos.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExportBenchmark {
+
+    @Param({"sqlite", "segmentos"})
+    public String almacen;
+
+    @Param({"CSV", "BINARY"})
+    public HistoryExport.Format formato;
+
+    @Param({"1000000"})
+    public int lecturas;
+
+    private Path dir;
+    private SensorStore store;
+    private HistoryExport exporter;
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkData.silenceOutput();
+        dir = BenchmarkData.tempDir();
+        store = BenchmarkData.openStore(almacen, dir);
+        BenchmarkData.fill(store, lecturas, 1000);
+        exporter = new HistoryExport(store);
+        file = dir.resolve("export");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        store.close();
+        BenchmarkData.deleteRecursively(dir);
+        BenchmarkData.restoreOutput();
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteExport() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long export() throws Exception {
+        long exported = exporter.export(file, formato, Long.MIN_VALUE, Long.MAX_VALUE, null);
+        if (exported != lecturas) {
+            throw new IllegalStateException("Se exportaron " + exported + " de " + lecturas + " lecturas.");
+        }
+        return exported;
+    }
+}
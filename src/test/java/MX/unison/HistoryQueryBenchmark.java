@@ -0,0 +1,85 @@
+package MX.unison;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Una petición de histórico de las lecturas más recientes (la última hora o el último día) por
+ * el MessageProcessor real, con paginación y cifrado, sobre SQLite con una lectura por segundo
+ * (por defecto 1 millón). Compara los codecs de las páginas (sin compresión, Deflate y por
+ * columnas) y, con almacen=ventana, la misma base con la ventana en memoria de una hora delante
+ * (HotWindowStore).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HistoryQueryBenchmark {
+
+    @Param({"sqlite", "ventana"})
+    public String almacen;
+
+    @Param({CompressionUtil.NONE, CompressionUtil.DEFLATE, CompressionUtil.SERIES})
+    public String codec;
+
+    /** Segundos hasta la lectura más reciente. */
+    @Param({"3600", "86400"})
+    public int rango;
+
+    @Param({"1000000"})
+    public int lecturas;
+
+    private Path dir;
+    private SensorStore store;
+    private MessageProcessor processor;
+    private String message;
+    private final ClientSession discard = encryptedLine -> {
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkData.silenceOutput();
+        dir = BenchmarkData.tempDir();
+        store = BenchmarkData.openStore("sqlite", dir);
+        if (almacen.equals("ventana")) {
+            store = new HotWindowStore(store, 3600, 64);
+        }
+        BenchmarkData.fill(store, lecturas, 1000);
+        processor = new MessageProcessor(store);
+
+        HistoricalRequest request = new HistoricalRequest();
+        request.setFrom(BenchmarkData.BASE.plusSeconds(lecturas - rango));
+        request.setTo(BenchmarkData.BASE.plusSeconds(lecturas - 1));
+        request.setCompression(codec);
+        message = request.toMessage();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        processor.shutdown(10_000);
+        store.close();
+        BenchmarkData.deleteRecursively(dir);
+        BenchmarkData.restoreOutput();
+    }
+
+    @Benchmark
+    public void history() {
+        processor.process(message, discard);
+    }
+}
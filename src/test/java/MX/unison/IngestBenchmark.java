@@ -0,0 +1,99 @@
+package MX.unison;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * La cola de ingesta con su escritor sobre SQLite: lecturas por segundo hasta que están
+ * confirmadas (ACK, después del commit), desde 4 conexiones. Con lote=1 hay un commit por
+ * lectura; con lote=1000, un commit por lote (group commit, ver IngestQueue).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class IngestBenchmark {
+
+    private static final int READINGS = 500;
+
+    @Param({"1", "1000"})
+    public String lote;
+
+    private Path dir;
+    private SensorStore store;
+    private MessageProcessor processor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkData.silenceOutput();
+        // La cola lee el tamaño del lote al crearse
+        System.setProperty("monitor.ingesta.lote", lote);
+        dir = BenchmarkData.tempDir();
+        store = BenchmarkData.openStore("sqlite", dir);
+        processor = new MessageProcessor(store);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        processor.shutdown(10_000);
+        store.close();
+        System.clearProperty("monitor.ingesta.lote");
+        BenchmarkData.deleteRecursively(dir);
+        BenchmarkData.restoreOutput();
+    }
+
+    /**
+     * Una conexión de la ingesta: cuenta los ACK que le llegan.
+     */
+    @State(Scope.Thread)
+    public static class Connection {
+        final Semaphore acks = new Semaphore(0);
+        final ClientSession session = new ClientSession() {
+            @Override
+            public void sendEncryptedLine(String encryptedLine) {
+            }
+
+            @Override
+            public boolean isMultiplexed() {
+                return true;
+            }
+
+            @Override
+            public void acknowledge(int count) {
+                acks.release(count);
+            }
+        };
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(READINGS)
+    public void ingest(Connection connection) throws InterruptedException {
+        for (int r = 0; r < READINGS; r++) {
+            processor.process("DATA:x:" + r + ", y:" + r + ", z:" + r, connection.session);
+        }
+        if (!connection.acks.tryAcquire(READINGS, 1, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Lecturas sin confirmar tras 1 minuto ("
+                    + processor.getIngestQueue().getFailedCount() + " fallidas).");
+        }
+    }
+}
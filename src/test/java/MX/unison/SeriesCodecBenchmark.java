@@ -0,0 +1,78 @@
+package MX.unison;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Codificar y decodificar un bloque de SeriesCodec (SegmentStore.BLOCK lecturas, como los
+ * segmentos comprimidos), en ns por lectura. "simulador": x, y, z al azar como ArduinoSimulator;
+ * "suave": valores que cambian poco entre lecturas. Al preparar el estado se comprueba que el
+ * bloque se decodifica igual.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SeriesCodecBenchmark {
+
+    private static final int BLOCK = SegmentStore.BLOCK;
+
+    @Param({"simulador", "suave"})
+    public String serie;
+
+    private final long[] timestamps = new long[BLOCK];
+    private final int[] devices = new int[BLOCK];
+    private final int[] xs = new int[BLOCK];
+    private final int[] ys = new int[BLOCK];
+    private final int[] zs = new int[BLOCK];
+
+    private final long[] outTimestamps = new long[BLOCK];
+    private final int[] outDevices = new int[BLOCK];
+    private final int[] outXs = new int[BLOCK];
+    private final int[] outYs = new int[BLOCK];
+    private final int[] outZs = new int[BLOCK];
+
+    private SeriesCodec codec;
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() {
+        BenchmarkData.fillSimulatedSeries(serie, timestamps, devices, xs, ys, zs);
+        codec = new SeriesCodec();
+        int size = codec.encode(timestamps, devices, xs, ys, zs, 0, BLOCK);
+        encoded = Arrays.copyOf(codec.buffer(), size);
+        int n = codec.decode(encoded, 0, encoded.length, outTimestamps, outDevices, outXs, outYs, outZs);
+        if (n != BLOCK || !Arrays.equals(outTimestamps, timestamps) || !Arrays.equals(outXs, xs)
+                || !Arrays.equals(outYs, ys) || !Arrays.equals(outZs, zs)) {
+            throw new IllegalStateException("El bloque no se decodificó igual.");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public int encode() {
+        return codec.encode(timestamps, devices, xs, ys, zs, 0, BLOCK);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public int decode() {
+        codec.decode(encoded, 0, encoded.length, outTimestamps, outDevices, outXs, outYs, outZs);
+        return outXs[BLOCK - 1];
+    }
+}
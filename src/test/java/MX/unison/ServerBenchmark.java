@@ -0,0 +1,200 @@
+package MX.unison;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * El servidor completo en cada modo (thread, virtual, nio) con muchas conexiones abiertas (por
+ * defecto 1000): cada medición envía 'lecturasPorConexion' lecturas cifradas por cada conexión
+ * desde 8 hilos cliente y termina cuando todas están guardadas.
+ *
+ * El servidor no se puede detener: sigue escuchando hasta que termina el fork de JMH, así que
+ * este benchmark no se corre con -f 0.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServerBenchmark {
+
+    private static final int SENDERS = 8;
+    private static final long STALL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    @Param({"thread", "virtual", "nio"})
+    public String modo;
+
+    @Param({"1000"})
+    public int conexiones;
+
+    @Param({"20"})
+    public int lecturasPorConexion;
+
+    private Path dir;
+    private CountingStore store;
+    private final List<Socket> sockets = new ArrayList<>();
+    private ExecutorService senders;
+    private byte[] line;
+    private long expected;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkData.silenceOutput();
+        dir = BenchmarkData.tempDir();
+        store = new CountingStore(BenchmarkData.openStore("sqlite", dir));
+        MessageProcessor processor = new MessageProcessor(store);
+
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        Thread serverThread = new Thread(() -> {
+            try {
+                Server.serve(modo, port, processor);
+            } catch (IOException e) {
+                throw new IllegalStateException("Error en el servidor del benchmark: " + e.getMessage(), e);
+            }
+        }, "bench-server-" + modo);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        waitForPort(port);
+
+        for (int i = 0; i < conexiones; i++) {
+            sockets.add(new Socket("127.0.0.1", port));
+        }
+        senders = Executors.newFixedThreadPool(SENDERS);
+        line = (EncryptionUtil.encrypt("DATA:x:100, y:100, z:100") + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        senders.shutdownNow();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        Thread.sleep(500); // Dejar que el servidor cierre sus conexiones
+        store.close();
+        BenchmarkData.deleteRecursively(dir);
+        BenchmarkData.restoreOutput();
+    }
+
+    @Benchmark
+    public long sendAndStore() throws Exception {
+        List<Future<?>> sent = new ArrayList<>();
+        for (int s = 0; s < SENDERS; s++) {
+            int first = s;
+            sent.add(senders.submit(() -> {
+                for (int r = 0; r < lecturasPorConexion; r++) {
+                    for (int i = first; i < sockets.size(); i += SENDERS) {
+                        OutputStream out = sockets.get(i).getOutputStream();
+                        out.write(line);
+                        out.flush();
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : sent) {
+            future.get();
+        }
+        expected += (long) sockets.size() * lecturasPorConexion;
+        return waitForReadings(expected);
+    }
+
+    /**
+     * Espera a que el almacenamiento tenga 'count' lecturas; falla si deja de crecer.
+     */
+    private long waitForReadings(long count) throws InterruptedException {
+        long last = -1;
+        long stableSince = System.nanoTime();
+        while (true) {
+            long stored = store.written.get();
+            if (stored >= count) {
+                return stored;
+            }
+            if (stored != last) {
+                last = stored;
+                stableSince = System.nanoTime();
+            } else if (System.nanoTime() - stableSince > STALL_NANOS) {
+                throw new IllegalStateException("Se guardaron " + stored + " de " + count + " lecturas.");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("El servidor no abrió el puerto " + port + ".");
+    }
+
+    /**
+     * Cuenta las lecturas guardadas sin consultar la base en cada vuelta.
+     */
+    private static final class CountingStore implements SensorStore {
+        private final SensorStore store;
+        final AtomicLong written = new AtomicLong();
+
+        CountingStore(SensorStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public void write(List<IngestQueue.Reading> batch) throws Exception {
+            store.write(batch);
+            written.addAndGet(batch.size());
+        }
+
+        @Override
+        public long scan(long fromMs, long toMs, ReadingVisitor visitor) throws Exception {
+            return store.scan(fromMs, toMs, visitor);
+        }
+
+        @Override
+        public long scanForward(long fromMs, long toMs, ReadingVisitor visitor) throws Exception {
+            return store.scanForward(fromMs, toMs, visitor);
+        }
+
+        @Override
+        public String describe() {
+            return store.describe();
+        }
+
+        @Override
+        public void close() {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package MX.unison;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SqliteStore contra SegmentStore con las mismas lecturas (por defecto 2 millones, una cada
+ * 100 ms): escribir un lote de la ingesta, recorrer la última hora, agregar un día por hora
+ * (rollups en SQLite, al vuelo en segmentos) y recorrer todo.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StoreBenchmark {
+
+    private static final long STEP_MS = 100;
+
+    @Param({"sqlite", "segmentos"})
+    public String almacen;
+
+    @Param({"2000000"})
+    public int lecturas;
+
+    @Param({"1000"})
+    public int lote;
+
+    private Path dir;
+    private SensorStore store;
+    private long end;
+    private long next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkData.silenceOutput();
+        dir = BenchmarkData.tempDir();
+        store = BenchmarkData.openStore(almacen, dir);
+        BenchmarkData.fill(store, lecturas, STEP_MS);
+        end = BenchmarkData.BASE_MS + (lecturas - 1) * STEP_MS;
+        next = end + STEP_MS;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        store.close();
+        BenchmarkData.deleteRecursively(dir);
+        BenchmarkData.restoreOutput();
+    }
+
+    /**
+     * El lote de writeBatch, armado fuera de la medición; sus lecturas siguen a las ya guardadas.
+     */
+    @State(Scope.Thread)
+    public static class Batch {
+        final List<IngestQueue.Reading> readings = new ArrayList<>();
+
+        @Setup(Level.Invocation)
+        public void next(StoreBenchmark bench) {
+            readings.clear();
+            for (int i = 0; i < bench.lote; i++) {
+                readings.add(new IngestQueue.Reading(1, bench.next, i % 100, i % 50, i % 25));
+                bench.next += STEP_MS;
+            }
+        }
+    }
+
+    @Benchmark
+    public void writeBatch(Batch batch) throws Exception {
+        store.write(batch.readings);
+    }
+
+    @Benchmark
+    public long scanLastHour() throws Exception {
+        return store.scan(end - 3_600_000L, end, (device, timestamp, x, y, z) -> true);
+    }
+
+    @Benchmark
+    public long aggregateDayByHour() throws Exception {
+        return store.scanAggregates(Rollup.Level.HOUR, end - Partitions.DAY_MS, end,
+                (bucket, n, sx, sy, sz, x0, x1, y0, y1, z0, z1, tl, xl, yl, zl) -> true);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long scanAll() throws Exception {
+        return store.scan(Long.MIN_VALUE, Long.MAX_VALUE, (device, timestamp, x, y, z) -> true);
+    }
+}
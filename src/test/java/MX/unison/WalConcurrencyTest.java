@@ -0,0 +1,154 @@
+package MX.unison;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Con la base en modo WAL (ver DataBaseManager) las consultas del histórico no bloquean al escritor
+ * de la ingesta: la latencia de confirmación (hasta el ACK, después del commit) con varios lectores
+ * recorriendo todo el histórico debe quedar cerca de la que hay sin lectores.
+ *
+ * Sin WAL, cada lectura tiene el archivo bloqueado mientras dura y el escritor espera hasta el
+ * busy_timeout (segundos), así que la cota de abajo falla con mucho margen.
+ */
+class WalConcurrencyTest {
+
+    private static final int ROWS = 200_000;
+    private static final int READERS = 4;
+    private static final long PHASE_NANOS = TimeUnit.SECONDS.toNanos(3);
+    // p99 con lectores permitido: el mayor entre FACTOR veces el de referencia y el de referencia
+    // más SLACK_NANOS (los lectores también compiten por la CPU con el escritor)
+    private static final long FACTOR = 10;
+    private static final long SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    @TempDir
+    Path dir;
+
+    private final PrintStream originalOut = System.out;
+    private DataBaseManager dbManager;
+    private MessageProcessor processor;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        // El procesador informa cada mensaje en la salida
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        dbManager = new DataBaseManager(dir.resolve("wal.db").toString());
+        dbManager.createTable();
+        SqliteStore store = new SqliteStore(dbManager);
+        long start = System.currentTimeMillis() - ROWS * 10L;
+        List<IngestQueue.Reading> batch = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++) {
+            batch.add(new IngestQueue.Reading(1, start + i * 10L, i % 1000, i % 500, i % 250));
+            if (batch.size() == 10_000) {
+                store.write(batch);
+                batch.clear();
+            }
+        }
+        processor = new MessageProcessor(store);
+    }
+
+    @AfterEach
+    void tearDown() {
+        processor.shutdown(10_000);
+        dbManager.close();
+        System.setOut(originalOut);
+    }
+
+    @Test
+    void historyReadersDoNotStallTheWriter() throws Exception {
+        Semaphore acks = new Semaphore(0);
+        ClientSession ingestSession = new ClientSession() {
+            @Override
+            public void sendEncryptedLine(String encryptedLine) {
+            }
+
+            @Override
+            public boolean isMultiplexed() {
+                return true;
+            }
+
+            @Override
+            public void acknowledge(int count) {
+                acks.release(count);
+            }
+        };
+
+        long[] idle = measureAckLatency(ingestSession, acks);
+
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong scans = new AtomicLong();
+        ClientSession discard = encryptedLine -> {
+        };
+        ExecutorService readers = Executors.newFixedThreadPool(READERS);
+        for (int r = 0; r < READERS; r++) {
+            readers.execute(() -> {
+                while (!stop.get()) {
+                    processor.process(new HistoricalRequest().toMessage(), discard);
+                    scans.incrementAndGet();
+                }
+            });
+        }
+        long[] busy;
+        try {
+            Thread.sleep(200); // Que las consultas ya estén leyendo
+            busy = measureAckLatency(ingestSession, acks);
+        } finally {
+            stop.set(true);
+            readers.shutdown();
+            readers.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        long idleP99 = p99(idle);
+        long busyP99 = p99(busy);
+        long bound = Math.max(idleP99 * FACTOR, idleP99 + SLACK_NANOS);
+        String report = String.format("p99 sin lectores %.2f ms (%d lecturas), con %d lectores %.2f ms (%d lecturas, %d históricos),"
+                        + " cota %.2f ms", idleP99 / 1e6, idle.length, READERS, busyP99 / 1e6, busy.length, scans.get(), bound / 1e6);
+        originalOut.println("[wal] " + report);
+        assertTrue(scans.get() > 0, "Los lectores no completaron ningún histórico: " + report);
+        assertTrue(busyP99 <= bound, report);
+    }
+
+    /**
+     * Envía lecturas de una en una durante PHASE_NANOS y mide cuánto tarda cada ACK.
+     * @return Latencias en nanosegundos, ordenadas.
+     */
+    private long[] measureAckLatency(ClientSession session, Semaphore acks) throws InterruptedException {
+        long[] samples = new long[1024];
+        int count = 0;
+        long end = System.nanoTime() + PHASE_NANOS;
+        while (System.nanoTime() < end) {
+            long start = System.nanoTime();
+            processor.process("DATA:x:1, y:2, z:3", session);
+            assertTrue(acks.tryAcquire(30, TimeUnit.SECONDS), "La lectura no se confirmó en 30 s");
+            if (count == samples.length) {
+                samples = Arrays.copyOf(samples, count * 2);
+            }
+            samples[count++] = System.nanoTime() - start;
+        }
+        samples = Arrays.copyOf(samples, count);
+        Arrays.sort(samples);
+        return samples;
+    }
+
+    private static long p99(long[] sorted) {
+        assertTrue(sorted.length > 0, "Sin muestras de latencia");
+        return sorted[(int) (sorted.length * 0.99)];
+    }
+}